@@ -1,9 +1,8 @@
 package com.github.valdeza.DiscordMonitor;
 
-import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 
@@ -11,16 +10,9 @@ import javax.security.auth.login.LoginException;
 
 import com.github.valdeza.DiscordMonitor.DiscordMonitorTargetIdentifier.MessageProcessingOptions;
 
-import net.dv8tion.jda.client.entities.Group;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.JDABuilder;
 import net.dv8tion.jda.core.entities.ChannelType;
-import net.dv8tion.jda.core.entities.Guild;
-import net.dv8tion.jda.core.entities.Member;
-import net.dv8tion.jda.core.entities.Message;
-import net.dv8tion.jda.core.entities.Message.Attachment;
-import net.dv8tion.jda.core.entities.MessageEmbed;
-import net.dv8tion.jda.core.entities.PrivateChannel;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.events.ReadyEvent;
@@ -34,10 +26,21 @@ import net.dv8tion.jda.core.hooks.ListenerAdapter;
 
 class DiscordMonitor
 {
-	private static final DateTimeFormatter LOG_DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSSSSXXXXX");
-	private static final int ATTACHMENT_DOWNLOAD_RETRY_LIMIT = 5;
+	static final DateTimeFormatter LOG_DATETIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSSSSXXXXX");
 
 	private DiscordMonitorConfig appconfig;
+	/** null if event journaling is disabled */
+	private DiscordMonitorEventJournal eventJournal;
+	/** null if message activity logging is disabled */
+	private DiscordMonitorLogDB logDB;
+	/** null if attachment auto-downloading is disabled. Also read by the LogDB writer thread (see its compaction callback). */
+	private volatile DiscordMonitorAttachmentDownloader attachmentDownloader;
+	/** null if no NotificationSinks are configured */
+	private DiscordMonitorNotificationDispatcher notificationDispatcher;
+	private final DiscordMonitorStatistics statistics = new DiscordMonitorStatistics();
+	private final DiscordMonitorLogEncoder logEncoder = new DiscordMonitorLogEncoder(System.out, DiscordMonitorLogEncoder.getStdoutCharset());
+	private DiscordMonitorCommandEngine commandEngine;
+	private DiscordMonitorOverloadController overloadController;
 
 	public DiscordMonitor(DiscordMonitorConfig appconfig)
 	{
@@ -46,7 +49,79 @@ class DiscordMonitor
 
 	public void start()
 	{
-		// TODO Check if .sqlite exists. If not, initialise one.
+		if (this.appconfig.eventJournalLocation != null)
+		{
+			try
+			{
+				this.eventJournal = new DiscordMonitorEventJournal(this.appconfig.eventJournalLocation);
+			}
+			catch (IOException e)
+			{
+				System.err.println("error: Unable to open event journal: " + e.toString());
+				return;
+			}
+		}
+
+		if (this.appconfig.logDBLocation != null)
+		{
+			try
+			{
+				this.logDB = new DiscordMonitorLogDB(this.appconfig.logDBLocation, this.appconfig.getRetentionPolicies(), (file, numBytes) ->
+				{
+					if (this.attachmentDownloader != null)
+						this.attachmentDownloader.notifyFreedDatastoreCapacity(file, numBytes);
+				});
+			}
+			catch (SQLException e)
+			{
+				System.err.println("error: Unable to open LogDB: " + e.toString());
+				if (this.eventJournal != null)
+					this.eventJournal.close();
+				return;
+			}
+		}
+		if (this.appconfig.notificationSinks != null)
+		{
+			try
+			{
+				this.notificationDispatcher = new DiscordMonitorNotificationDispatcher(this.appconfig.notificationSinks, this.appconfig.notificationOutboxLocation);
+			}
+			catch (IOException e)
+			{
+				System.err.println("error: Unable to open NotificationSink outbox: " + e.toString());
+				if (this.logDB != null)
+					this.logDB.close();
+				if (this.eventJournal != null)
+					this.eventJournal.close();
+				return;
+			}
+		}
+		// LogDB and outboxes first: their remaining writes complete journaled events.
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			if (this.logDB != null)
+				this.logDB.close();
+			if (this.notificationDispatcher != null)
+				this.notificationDispatcher.close();
+			if (this.eventJournal != null)
+				this.eventJournal.close();
+		}, "DiscordMonitor-shutdown"));
+
+		if (this.appconfig.attachmentDatastorePaths != null)
+			this.attachmentDownloader = new DiscordMonitorAttachmentDownloader(this.appconfig, this.logDB, this.logEncoder);
+		this.commandEngine = new DiscordMonitorCommandEngine(this.appconfig, this.statistics, this.logDB, this.attachmentDownloader, this.notificationDispatcher);
+		this.overloadController = new DiscordMonitorOverloadController(this::processMessageEventRecord, this.statistics, this.appconfig.overloadLagThreshold);
+
+		if (this.eventJournal != null)
+		{
+			List<MessageEventRecord> recoveredRecords = this.eventJournal.takeRecoveredRecords();
+			if (!recoveredRecords.isEmpty())
+			{
+				System.out.println("info: Replaying " + recoveredRecords.size() + " unprocessed event(s) from the event journal.");
+				for (MessageEventRecord record : recoveredRecords)
+					this.overloadController.submit(record);
+			}
+		}
 
 		try
 		{
@@ -72,6 +147,136 @@ class DiscordMonitor
 		}
 	}
 
+	/**
+	 * Checks log and notification targets, then prints the event and hands it on for storage and attachment downloads,
+	 * unless the {@linkplain DiscordMonitorOverloadController overload controller} calls for deferring or shedding that work.
+	 * NotificationWatchlist hits and deletions are never deferred or shed.
+	 * Runs on the overload controller's processing thread.
+	 * Also used to replay events recovered from the {@linkplain DiscordMonitorConfig#eventJournalLocation event journal}.
+	 */
+	private void processMessageEventRecord(MessageEventRecord record)
+	{
+		this.statistics.notifyEvent(record.eventType, 1);
+		boolean doAutoDownloadAttachments = false;
+		StringBuilder hitAnnouncement = new StringBuilder();
+
+		boolean declaredLoggableHit = false;
+		for (DiscordMonitorTargetIdentifier targetid : this.appconfig.logTargets)
+		{
+			if (!record.isMatchedBy(targetid))
+				continue;
+
+			// All conditions passed.
+			if (!declaredLoggableHit)
+			{
+				declaredLoggableHit = true;
+				hitAnnouncement.append("(i) Logging for:");
+			}
+			hitAnnouncement.append(' ').append(targetid.identifierLabel);
+			record.logTargetLabels.add(targetid.identifierLabel);
+
+			if (!doAutoDownloadAttachments // Skip check if already true
+					&& targetid.messageProcessingOptions != null && targetid.messageProcessingOptions.contains(MessageProcessingOptions.AUTODOWNLOAD_ATTACHMENTS))
+				doAutoDownloadAttachments = true;
+		}
+		if (declaredLoggableHit)
+		{
+			hitAnnouncement.append('\n');
+			this.statistics.notifyLogTargetHit();
+		}
+
+		boolean declaredNotificationHit = false;
+		for (DiscordMonitorTargetIdentifier targetid : this.appconfig.notificationWatchlist)
+		{
+			if (!record.isMatchedBy(targetid))
+				continue;
+
+			// All conditions passed.
+			if (!declaredNotificationHit)
+			{
+				declaredNotificationHit = true;
+				hitAnnouncement.append("/!\\ WATCHLIST HIT:");
+			}
+			hitAnnouncement.append(' ').append(targetid.identifierLabel);
+			record.watchlistLabels.add(targetid.identifierLabel);
+			this.statistics.notifyWatchlistHit(targetid.identifierLabel, record.messageId, record.eventType, record.time);
+
+			if (!doAutoDownloadAttachments // Skip check if already true
+					&& targetid.messageProcessingOptions != null && targetid.messageProcessingOptions.contains(MessageProcessingOptions.AUTODOWNLOAD_ATTACHMENTS))
+				doAutoDownloadAttachments = true;
+		}
+		if (declaredNotificationHit)
+			hitAnnouncement.append('\n');
+
+		boolean isLogged = declaredLoggableHit || declaredNotificationHit;
+		boolean isDownloaded = doAutoDownloadAttachments;
+		DiscordMonitorAttachmentDownloader.Priority priority = declaredNotificationHit
+			? DiscordMonitorAttachmentDownloader.Priority.WATCHLIST : DiscordMonitorAttachmentDownloader.Priority.LOG_TARGET;
+		DiscordMonitorOverloadController.Stage stage = this.overloadController.getStage();
+		if (stage == DiscordMonitorOverloadController.Stage.NORMAL || declaredNotificationHit || record.eventType == MessageEventType.DELETE)
+		{
+			this.overloadController.runDeferred(record.messageId);
+			this.outputMessageEventRecord(record, hitAnnouncement, isLogged, isDownloaded, priority);
+		}
+		else if (!declaredLoggableHit)
+		{ // Matches no targets. Never deferred, leaving the room for deferred work to LogTargets hits.
+			if (this.overloadController.isSampled())
+			{
+				this.overloadController.runDeferred(record.messageId);
+				this.outputMessageEventRecord(record, hitAnnouncement, isLogged, isDownloaded, priority);
+			}
+			else if (record.journalEntry != null)
+				record.journalEntry.release();
+		}
+		else if (!this.overloadController.defer(record.messageId, () -> this.outputMessageEventRecord(record, hitAnnouncement, isLogged, isDownloaded, priority)))
+		{
+			this.overloadController.notifyShed();
+			if (record.journalEntry != null)
+				record.journalEntry.release();
+		}
+	}
+
+	/**
+	 * Prints the given event (preceded by its target hits, if any) and hands it on for storage and attachment downloads as requested,
+	 * and NotificationWatchlist hits to the NotificationSinks.
+	 * @param hitAnnouncement Lines announcing the LogTargets and NotificationWatchlist identifiers matched, if any
+	 * @param isLogged Whether to store the event in the LogDB (if enabled)
+	 * @param doAutoDownloadAttachments Whether to download the message's attachments (if enabled)
+	 */
+	private void outputMessageEventRecord(MessageEventRecord record, CharSequence hitAnnouncement, boolean isLogged,
+		boolean doAutoDownloadAttachments, DiscordMonitorAttachmentDownloader.Priority priority)
+	{
+		DiscordMonitorBotUtilities.serialiseDeferredEmbeds(record);
+
+		if (this.logDB != null && isLogged)
+		{
+			if (record.journalEntry != null)
+				record.journalEntry.retain(); // Released once written
+			this.logDB.submit(record);
+		}
+
+		if (doAutoDownloadAttachments && this.attachmentDownloader != null && record.eventType != MessageEventType.DELETE)
+		{
+			/* Note: Despite edits being unable to add/remove attachments,
+			 * will also download for edited messages because
+			 * (1) the bot may not have been active at the time of message creation and
+			 * (2) Discord file attachment limits should typically have negligible impact on disk space usage
+			 *     (8 MB typical attachment limit; 50 MB for presumably rare Discord Nitro users)
+			 */
+			for (int i = 0; i < record.attachmentJson.size(); ++i)
+				this.attachmentDownloader.submit(record, i, priority);
+		}
+
+		if (this.notificationDispatcher != null && !record.watchlistLabels.isEmpty())
+			this.notificationDispatcher.submit(record);
+
+		//TODO Poll .sqlite db for previous message details of deletions
+		this.logEncoder.printRecord(hitAnnouncement, record);
+
+		if (record.journalEntry != null)
+			record.journalEntry.release();
+	}
+
 	private class DiscordMonitorListenerAdapterPrep extends ListenerAdapter
 	{
 		@Override
@@ -92,7 +297,9 @@ class DiscordMonitor
 		public void onMessageReceived(MessageReceivedEvent event)
 		{
 			boolean authorizedCommandHit = false;
-			if (DiscordMonitor.this.appconfig.commandPrefix == null || event.getMessage().getRawContent().startsWith(DiscordMonitor.this.appconfig.commandPrefix))
+			String rawContent = event.getMessage().getRawContent();
+			// A null CommandPrefix disables commands, as documented (and warned about) at configuration.
+			if (DiscordMonitor.this.appconfig.commandPrefix != null && rawContent.startsWith(DiscordMonitor.this.appconfig.commandPrefix))
 			{ // Command detected
 				for (DiscordMonitorTargetIdentifier targetid : DiscordMonitor.this.appconfig.authorizedUsers)
 				{
@@ -104,19 +311,19 @@ class DiscordMonitor
 					User author = event.getAuthor();
 					if (event.getChannelType().isGuild() && !event.getMember().getEffectiveName().equals(author.getName()))
 					{ // The authour has a nickname.
-						System.out.printf("*** Command ran by user '%s#%s' (nickname: '%s', id: %d) as per identifier '%s':\n\t%s\n\n",
+						DiscordMonitor.this.logEncoder.printf("*** Command ran by user '%s#%s' (nickname: '%s', id: %d) as per identifier '%s':\n\t%s\n\n",
 							author.getName(), author.getDiscriminator(), event.getMember().getEffectiveName(), author.getIdLong(), targetid.identifierLabel, event.getMessage().getRawContent());
 					}
 					else
 					{
-						System.out.printf("*** Command ran by user '%s#%s' (id: %d) as per identifier '%s':\n\t%s\n\n",
+						DiscordMonitor.this.logEncoder.printf("*** Command ran by user '%s#%s' (id: %d) as per identifier '%s':\n\t%s\n\n",
 							author.getName(), author.getDiscriminator(), author.getIdLong(), targetid.identifierLabel, event.getMessage().getRawContent());
 					}
 					break;
 				}
 			}
 			if (authorizedCommandHit)
-				; //TODO Process and log command
+				DiscordMonitor.this.commandEngine.submit(rawContent.substring(DiscordMonitor.this.appconfig.commandPrefix.length()), event.getChannel());
 			else // Proceed with treating this as a potentially loggable event.
 				eventHandlerGenericMessageEvent(event);
 		}
@@ -134,7 +341,7 @@ class DiscordMonitor
 		}
 
 		/**
-		 * Checks log and notification targets and prints message content to console for the following event types:
+		 * Journals (if enabled) and queues for {@linkplain DiscordMonitor#processMessageEventRecord processing} the following event types:
 		 * <ul>
 		 * <li> {@link net.dv8tion.jda.core.events.message.MessageDeleteEvent}
 		 * <li> {@link net.dv8tion.jda.core.events.message.MessageReceivedEvent}
@@ -145,233 +352,21 @@ class DiscordMonitor
 		 */
 		private void eventHandlerGenericMessageEvent(GenericMessageEvent event)
 		{
-			//These are provided with every event in JDA
-			JDA jda = event.getJDA();                       //JDA, the core of the api.
-
-			boolean doAutoDownloadAttachments = false;
-
-			boolean declaredLoggableHit = false;
-			for (DiscordMonitorTargetIdentifier targetid : DiscordMonitor.this.appconfig.logTargets)
-			{
-				if (!DiscordMonitorBotUtilities.isTargetIdentifierMatchGeneric(targetid, event))
-					continue;
-
-				// All conditions passed.
-				if (!declaredLoggableHit)
-				{
-					declaredLoggableHit = true;
-					System.out.print("(i) Logging for:");
-				}
-				System.out.print(" " + targetid.identifierLabel);
-
-				if (!doAutoDownloadAttachments // Skip check if already true
-						&& targetid.messageProcessingOptions != null && targetid.messageProcessingOptions.contains(MessageProcessingOptions.AUTODOWNLOAD_ATTACHMENTS))
-					doAutoDownloadAttachments = true;
-			}
-			if (declaredLoggableHit)
-				System.out.println();
-
-			boolean declaredNotificationHit = false;
-			for (DiscordMonitorTargetIdentifier targetid : DiscordMonitor.this.appconfig.notificationWatchlist)
-			{
-				if (!DiscordMonitorBotUtilities.isTargetIdentifierMatchGeneric(targetid, event))
-					continue;
-
-				// All conditions passed.
-				if (!declaredNotificationHit)
-				{
-					declaredNotificationHit = true;
-					System.out.print("/!\\ WATCHLIST HIT:");
-				}
-				System.out.print(" " + targetid.identifierLabel);
-
-				if (!doAutoDownloadAttachments // Skip check if already true
-						&& targetid.messageProcessingOptions != null && targetid.messageProcessingOptions.contains(MessageProcessingOptions.AUTODOWNLOAD_ATTACHMENTS))
-					doAutoDownloadAttachments = true;
-			}
-			if (declaredNotificationHit)
-				System.out.println();
-
-			//Event specific information
-			Message message = null; //The message that was received.
-			if (event instanceof MessageReceivedEvent)
-				message = ((MessageReceivedEvent)event).getMessage();
-			else if (event instanceof MessageUpdateEvent)
-				message = ((MessageUpdateEvent)event).getMessage();
-			else if (!(event instanceof MessageDeleteEvent))
+			if (!(event instanceof MessageReceivedEvent || event instanceof MessageUpdateEvent || event instanceof MessageDeleteEvent))
 				throw new IllegalArgumentException("Provided event is not of type Message(Delete|Received|Update)Event");
-
-			StringBuilder msg = new StringBuilder("\n");
-			if (message == null)
+			if (!event.isFromType(ChannelType.TEXT) && !event.isFromType(ChannelType.PRIVATE) && !event.isFromType(ChannelType.GROUP))
 			{
-				msg.append("Time: ").append(OffsetDateTime.now(ZoneId.of("Z")).format(DiscordMonitor.LOG_DATETIME_FORMAT)).append(" (approximate)")
-					.append("\nMESSAGE DELETED");
-
-				//TODO Poll .sqlite db for previous message details
-
-				if (event.isFromType(ChannelType.TEXT))         //If this message was sent to a Guild TextChannel
-				{
-					TextChannel textChannel = (TextChannel)event.getChannel();
-					System.out.printf("%d:(%s)[%s]: %s\n\n", event.getMessageIdLong(), DiscordMonitorBotUtilities.replaceBellCharacter(textChannel.getGuild().getName()), DiscordMonitorBotUtilities.replaceBellCharacter(textChannel.getName()), msg);
-				}
-				else if (event.isFromType(ChannelType.PRIVATE))
-				{
-					PrivateChannel privateChannel = (PrivateChannel)event.getChannel();
-					System.out.printf("%d:[DM]<%s>: %s\n\n", event.getMessageIdLong(), DiscordMonitorBotUtilities.replaceBellCharacter(privateChannel.getName()), msg);
-				}
-				else if (event.isFromType(ChannelType.GROUP))   //If this message was sent to a Group. This is CLIENT only!
-				{
-					//The message was sent in a Group. It should be noted that Groups are CLIENT only.
-					Group group = (Group)event.getChannel();
-					String groupName = group.getName() != null ? group.getName() : "";  //A group name can be null due to it being unnamed.
-
-					System.out.printf("%d:[GRP: %s]: %s\n\n", event.getMessageIdLong(), DiscordMonitorBotUtilities.replaceBellCharacter(groupName), msg);
-				}
+				System.out.printf("warning: Encountered message in unsupported channel type '%s'. Ignored.\n", event.getChannelType());
+				return;
 			}
-			else // event includes a Message variable
-			{
-				msg.append("Time: ").append(
-						message.isEdited()
-						? message.getEditedTime().format(DiscordMonitor.LOG_DATETIME_FORMAT)
-						: message.getCreationTime().format(DiscordMonitor.LOG_DATETIME_FORMAT))
-					.append("\nMessage: ").append(DiscordMonitorBotUtilities.replaceBellCharacter(message.getContent())); //This returns a human readable version of the Message. Similar to what you would see in the client.
-				List<MessageEmbed> embeds = message.getEmbeds();
-				int currEmbedCount = 0;
-				for (MessageEmbed embedProbe : embeds)
-				{
-					msg.append(String.format("\nEmbed[%d]: ", currEmbedCount++))
-						.append(DiscordMonitorBotUtilities.replaceBellCharacter(DiscordMonitorBotUtilities.GSON_MESSAGE_ELEMENT_SERIALISER.toJson(embedProbe)));
-				}
-
-				boolean attachmentDownloadFailed = false;
-				List<Attachment> attachments = message.getAttachments();
-				int currAttachmentCount = 0;
-				for (Attachment attachmentProbe : attachments)
-				{
-					msg.append(String.format("\nAttachment[%d]: ", currAttachmentCount++))
-						.append(DiscordMonitorBotUtilities.replaceBellCharacter(DiscordMonitorBotUtilities.GSON_MESSAGE_ELEMENT_SERIALISER.toJson(attachmentProbe)));
-
-					if (doAutoDownloadAttachments)
-					{
-						if (DiscordMonitor.this.appconfig.attachmentDatastorePaths == null)
-						{ // Attachment auto-downloading disabled
-							doAutoDownloadAttachments = false;
-							continue;
-						}
-
-						/* Note: Despite edits being unable to add/remove attachments,
-						 * will also download for edited messages because
-						 * (1) the bot may not have been active at the time of message creation and
-						 * (2) Discord file attachment limits should typically have negligible impact on disk space usage
-						 *     (8 MB typical attachment limit; 50 MB for presumably rare Discord Nitro users)
-						 */
-						// Loop to retry downloads if needed.
-						for (int retryCount = 1; retryCount <= DiscordMonitor.ATTACHMENT_DOWNLOAD_RETRY_LIMIT; ++retryCount)
-						{
-							if (retryCount != 1)
-								System.out.printf("info: Attachment download attempt %d/%d", retryCount, DiscordMonitor.ATTACHMENT_DOWNLOAD_RETRY_LIMIT);
-
-							DiscordMonitor.this.appconfig.refreshCurrentAttachmentDatastorePath();
-							if (DiscordMonitor.this.appconfig.attachmentDatastorePaths.isEmpty())
-							{ // No directory to download to
-								attachmentDownloadFailed = true;
-								break;
-							}
-
-							File downloadPath = DiscordMonitor.this.appconfig.generateDownloadFilepath(attachmentProbe.getFileName());
-							if (attachmentProbe.download(downloadPath))
-							{ // Download successful
-								DiscordMonitor.this.appconfig.notifySpentAttachmentDatastoreCapacity(attachmentProbe.getSize());
-								msg.append("\nAttachment downloaded to: ").append(downloadPath.toString());
-								break;
-							}
-
-							// Download unsuccessful. Test if directory is writable before retrying.
-							if (retryCount == 1)
-							{
-								boolean writeSuccess = false;
-								try
-								{
-									File.createTempFile("writetest", null, DiscordMonitor.this.appconfig.attachmentDatastorePaths.peek()).deleteOnExit();
-									writeSuccess = true;
-								}
-								catch (IOException e)
-								{
-									System.out.println("warning: Current AttachmentDatastorePath is not able to be written to.");
-									System.out.println(e.toString()); // Print details?
-									DiscordMonitor.this.appconfig.nextAttachmentDatastorePath(false);
-								}
-								catch (SecurityException e)
-								{
-									System.out.println("warning: Denied write access to current AttachmentDatastorePath.");
-									DiscordMonitor.this.appconfig.nextAttachmentDatastorePath(false);
-								}
-
-								if (!writeSuccess)
-								{
-									attachmentDownloadFailed = true;
-									break;
-								}
-							}
-
-							if (retryCount == DiscordMonitor.ATTACHMENT_DOWNLOAD_RETRY_LIMIT)
-								attachmentDownloadFailed = true;
-						}
-					}
-				}
-				if (attachmentDownloadFailed)
-				{
-					msg.append("\nUnable to auto-download attachment(s)");
-					if (DiscordMonitor.this.appconfig.attachmentDatastorePaths.isEmpty())
-						msg.append(": no valid AttachmentDatastorePaths");
-					msg.append(". See URL(s) for manual download.");
-				}
-
-				User author = message.getAuthor();                //The user that sent the message
-
-				boolean bot = author.isBot();                    //This boolean is useful to determine if the User that
-																// sent the Message is a BOT or not!
-
-				if (event.isFromType(ChannelType.TEXT))         //If this message was sent to a Guild TextChannel
-				{
-					//Because we now know that this message was sent in a Guild, we can do guild specific things
-					// Note, if you don't check the ChannelType before using these methods, they might return null due
-					// the message possibly not being from a Guild!
 
-					Guild guild = message.getGuild(); //The Guild that this message was sent in. (note, in the API, Guilds are Servers)
-					TextChannel textChannel = message.getTextChannel(); //The TextChannel that this message was sent to.
-					Member member = guild.getMember(author); //This Member that sent the message. Contains Guild specific information about the User!
-
-					String name;
-					if (message.isWebhookMessage())
-					{
-						name = author.getName();                //If this is a Webhook message, then there is no Member associated
-					}                                           // with the User, thus we default to the author for name.
-					else
-					{
-						name = member.getEffectiveName();       //This will either use the Member's nickname if they have one,
-					}                                           // otherwise it will default to their username. (User#getName())
-
-					System.out.printf("%d:(%s)[%s]<%s>: %s\n\n", message.getIdLong(), DiscordMonitorBotUtilities.replaceBellCharacter(guild.getName()), DiscordMonitorBotUtilities.replaceBellCharacter(textChannel.getName()), DiscordMonitorBotUtilities.replaceBellCharacter(name), msg);
-				}
-				else if (event.isFromType(ChannelType.PRIVATE))
-				{
-					User other = message.getPrivateChannel().getUser();
-					User self = jda.getSelfUser();
-					String dmIdentifier = other.getIdLong() == author.getIdLong()
-						? (other.getName() + " -> " + self.getName())
-						: (self.getName() + " -> " + other.getName());
-					System.out.printf("%d:[DM]<%s>: %s\n\n", message.getIdLong(), DiscordMonitorBotUtilities.replaceBellCharacter(dmIdentifier), msg);
-				}
-				else if (event.isFromType(ChannelType.GROUP))   //If this message was sent to a Group. This is CLIENT only!
-				{
-					//The message was sent in a Group. It should be noted that Groups are CLIENT only.
-					Group group = message.getGroup();
-					String groupName = group.getName() != null ? group.getName() : "";  //A group name can be null due to it being unnamed.
-
-					System.out.printf("%d:[GRP: %s]<%s>: %s\n\n", message.getIdLong(), DiscordMonitorBotUtilities.replaceBellCharacter(groupName), DiscordMonitorBotUtilities.replaceBellCharacter(author.getName()), msg);
-				}
-			}
+			// Embeds are only serialised up front when there is time to, or when journaling, so that replayed events keep them.
+			boolean deferEmbeds = DiscordMonitor.this.eventJournal == null
+				&& DiscordMonitor.this.overloadController.getStage() != DiscordMonitorOverloadController.Stage.NORMAL;
+			MessageEventRecord record = DiscordMonitorBotUtilities.toMessageEventRecord(event, deferEmbeds);
+			if (DiscordMonitor.this.eventJournal != null)
+				DiscordMonitor.this.eventJournal.append(record);
+			DiscordMonitor.this.overloadController.submit(record);
 		}
 
 		// Can apparently only happen in TextChannels (guilds).
@@ -383,7 +378,12 @@ class DiscordMonitor
 
 			long serverId = event.getGuild().getIdLong();
 			long channelId = event.getChannel().getIdLong();
+			OffsetDateTime time = OffsetDateTime.now();
+			DiscordMonitor.this.statistics.notifyEvent(MessageEventType.DELETE, event.getMessageIds().size());
+			List<MessageEventRecord> records = DiscordMonitorBotUtilities.toMessageEventRecords(event, time);
 
+			// Announcements and the deletion notice are printed in one go, so that no other output ends up between them.
+			StringBuilder output = new StringBuilder();
 			boolean declaredLoggableHit = false;
 			for (DiscordMonitorTargetIdentifier targetid : DiscordMonitor.this.appconfig.logTargets)
 			{
@@ -394,12 +394,17 @@ class DiscordMonitor
 				if (!declaredLoggableHit)
 				{
 					declaredLoggableHit = true;
-					System.out.print("(i) Logging for:");
+					output.append("(i) Logging for:");
 				}
-				System.out.print(" " + targetid.identifierLabel);
+				output.append(' ').append(targetid.identifierLabel);
+				for (MessageEventRecord record : records)
+					record.logTargetLabels.add(targetid.identifierLabel);
 			}
 			if (declaredLoggableHit)
-				System.out.println();
+			{
+				output.append('\n');
+				DiscordMonitor.this.statistics.notifyLogTargetHit();
+			}
 
 			boolean declaredNotificationHit = false;
 			for (DiscordMonitorTargetIdentifier targetid : DiscordMonitor.this.appconfig.notificationWatchlist)
@@ -411,16 +416,29 @@ class DiscordMonitor
 				if (!declaredNotificationHit)
 				{
 					declaredNotificationHit = true;
-					System.out.print("/!\\ WATCHLIST HIT:");
+					output.append("/!\\ WATCHLIST HIT:");
+				}
+				output.append(' ').append(targetid.identifierLabel);
+				for (MessageEventRecord record : records)
+				{
+					record.watchlistLabels.add(targetid.identifierLabel);
+					DiscordMonitor.this.statistics.notifyWatchlistHit(targetid.identifierLabel, record.messageId, MessageEventType.DELETE, time);
 				}
-				System.out.print(" " + targetid.identifierLabel);
 			}
 			if (declaredNotificationHit)
-				System.out.println();
+				output.append('\n');
+
+			// Stored and notified as one deletion per message, as single deletions would have been.
+			if (DiscordMonitor.this.logDB != null && (declaredLoggableHit || declaredNotificationHit))
+				for (MessageEventRecord record : records)
+					DiscordMonitor.this.logDB.submit(record);
+			if (DiscordMonitor.this.notificationDispatcher != null && declaredNotificationHit)
+				for (MessageEventRecord record : records)
+					DiscordMonitor.this.notificationDispatcher.submit(record);
 
 
 			StringBuilder msg = new StringBuilder("\n")
-				.append("Time: ").append(OffsetDateTime.now().format(DiscordMonitor.LOG_DATETIME_FORMAT)).append(" (approximate)")
+				.append("Time: ").append(time.format(DiscordMonitor.LOG_DATETIME_FORMAT)).append(" (approximate)")
 				.append("\nMESSAGES DELETED:");
 			for (String msgId : event.getMessageIds())
 				msg.append(" ").append(msgId);
@@ -428,7 +446,8 @@ class DiscordMonitor
 			//TODO Poll .sqlite db for previous message details
 
 			TextChannel textChannel = (TextChannel)event.getChannel();
-			System.out.printf("(%s)[%s]: %s\n\n", textChannel.getGuild().getName(), textChannel.getName(), msg);
+			output.append('(').append(textChannel.getGuild().getName()).append(")[").append(textChannel.getName()).append("]: ").append(msg).append("\n\n");
+			DiscordMonitor.this.logEncoder.print(output);
 		}
 	}
 }
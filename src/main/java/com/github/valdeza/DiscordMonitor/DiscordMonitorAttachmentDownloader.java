@@ -0,0 +1,367 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.PriorityQueue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Downloads attachments to the {@linkplain DiscordMonitorConfig#attachmentDatastorePaths AttachmentDatastorePaths} in the background.
+ * <p>
+ * Queued downloads are served by {@link Priority} and then by size (smallest first).
+ * One worker only serves {@link Priority#WATCHLIST WATCHLIST} downloads, so these never wait for a worker behind bulk downloads.
+ * If a {@linkplain DiscordMonitorConfig#downloadBandwidthLimit DownloadBandwidthLimit} is set, all downloads share a token bucket
+ * in which WATCHLIST downloads take precedence, leaving bulk downloads whatever bandwidth remains.
+ * <p>
+ * In {@linkplain DiscordMonitorDatastoreStriper.Placement#STRIPED STRIPED} placement, each download is written to a path picked by a
+ * {@link DiscordMonitorDatastoreStriper}, with a worker per path so that every disk can take writes at once.
+ */
+class DiscordMonitorAttachmentDownloader
+{
+	private static final int RETRY_LIMIT = 5;
+	/**
+	 * Total number of download threads, including the one reserved for {@link Priority#WATCHLIST WATCHLIST} downloads.
+	 * In STRIPED placement, there is at least one more than there are AttachmentDatastorePaths.
+	 */
+	private static final int WORKER_COUNT = 3;
+	/** Bytes read (and rate limited) at a time */
+	private static final int BUFFER_SIZE = 16384;
+	private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+	private static final String USER_AGENT = "DiscordBot (https://github.com/valdeza/DiscordMonitor, 1.0)";
+
+	/** Download priority tiers, highest first */
+	enum Priority
+	{
+		/** Attachment of a {@linkplain DiscordMonitorConfig#notificationWatchlist NotificationWatchlist} hit */
+		WATCHLIST,
+		/** Attachment of a {@linkplain DiscordMonitorConfig#logTargets LogTargets} hit only */
+		LOG_TARGET
+	}
+
+	private static class DownloadTask implements Comparable<DownloadTask>
+	{
+		final long messageId;
+		final int attachmentIndex;
+		final String url;
+		final String fileName;
+		final int size;
+		final Priority priority;
+		/** Keeps tasks of equal priority and size in submission order */
+		final long sequence;
+		/** Released once this download is done with; null if the message was not journaled */
+		final DiscordMonitorEventJournal.Entry journalEntry;
+		/** Time spent writing the latest attempt to disk. Worker only. */
+		long writeNanos;
+
+		/** @param attachmentJson {@linkplain MessageEventRecord#attachmentJson Serialised} attachment */
+		DownloadTask(long messageId, int attachmentIndex, String attachmentJson, Priority priority, long sequence, DiscordMonitorEventJournal.Entry journalEntry)
+		{
+			JsonObject attachment = new JsonParser().parse(attachmentJson).getAsJsonObject();
+			this.messageId = messageId;
+			this.attachmentIndex = attachmentIndex;
+			this.url = attachment.get("url").getAsString();
+			this.fileName = attachment.get("fileName").getAsString();
+			this.size = attachment.get("size").getAsInt();
+			this.priority = priority;
+			this.sequence = sequence;
+			this.journalEntry = journalEntry;
+		}
+
+		@Override
+		public int compareTo(DownloadTask other)
+		{
+			int result = this.priority.compareTo(other.priority);
+			if (result == 0)
+				result = Integer.compare(this.size, other.size);
+			if (result == 0)
+				result = Long.compare(this.sequence, other.sequence);
+			return result;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "attachment " + this.attachmentIndex + " of message " + this.messageId;
+		}
+	}
+
+	private final DiscordMonitorConfig appconfig;
+	/** Records downloads for retention; null if message activity logging is disabled */
+	private final DiscordMonitorLogDB logDB;
+	/** Prints announcements without splitting up printed records */
+	private final DiscordMonitorLogEncoder console;
+	/** null in SEQUENTIAL placement */
+	private final DiscordMonitorDatastoreStriper striper;
+	/** null if bandwidth is unlimited */
+	private final DiscordMonitorTokenBucket bandwidth;
+	/** Guarded by 'this' */
+	private final PriorityQueue<DownloadTask> queue = new PriorityQueue<>();
+	private long nextSequence = 0;
+
+	/**
+	 * @param logDB LogDB to record downloads in, so that they expire with their messages; null if disabled
+	 * @param console Encoder message event records are printed with, to print announcements through
+	 */
+	DiscordMonitorAttachmentDownloader(DiscordMonitorConfig appconfig, DiscordMonitorLogDB logDB, DiscordMonitorLogEncoder console)
+	{
+		this.appconfig = appconfig;
+		this.logDB = logDB;
+		this.console = console;
+		this.striper = appconfig.createDatastoreStriper();
+		this.bandwidth = appconfig.downloadBandwidthLimit == null ? null
+			: new DiscordMonitorTokenBucket(appconfig.downloadBandwidthLimit, appconfig.downloadBurstSize);
+
+		int workerCount = DiscordMonitorAttachmentDownloader.WORKER_COUNT;
+		if (this.striper != null)
+			workerCount = Math.max(workerCount, appconfig.attachmentDatastorePaths.size() + 1);
+		for (int i = 0; i < workerCount; ++i)
+		{
+			boolean isPriorityOnly = i == 0;
+			Thread worker = new Thread(() -> this.runWorker(isPriorityOnly), "DiscordMonitorAttachmentDownloader-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queues the given attachment of <em>record</em> for download, unless it falls outside {@linkplain DiscordMonitorConfig#minFileSize MinFileSize}
+	 * and {@linkplain DiscordMonitorConfig#maxFileSize MaxFileSize}. The outcome is announced once the download completes.
+	 * The record's {@linkplain MessageEventRecord#journalEntry journal entry} (if any) is retained until then.
+	 */
+	public synchronized void submit(MessageEventRecord record, int attachmentIndex, Priority priority)
+	{
+		DownloadTask task = new DownloadTask(record.messageId, attachmentIndex, record.attachmentJson.get(attachmentIndex), priority, this.nextSequence++, record.journalEntry);
+		if ((this.appconfig.minFileSize != null && task.size < this.appconfig.minFileSize)
+			|| (this.appconfig.maxFileSize != null && task.size > this.appconfig.maxFileSize))
+		{
+			this.console.printf("info: Skipped download of %s (%d bytes): outside MinFileSize/MaxFileSize.\n", task, task.size);
+			return;
+		}
+
+		if (task.journalEntry != null)
+			task.journalEntry.retain();
+		this.queue.add(task);
+		this.notifyAll();
+	}
+
+	/**
+	 * To be called once an attachment of <em>numBytes</em> has been deleted from the datastore (e.g. by LogDB compaction),
+	 * so that the space freed is used again.
+	 */
+	public void notifyFreedDatastoreCapacity(File file, long numBytes)
+	{
+		synchronized (this.appconfig)
+		{
+			this.appconfig.notifyFreedAttachmentDatastoreCapacity(file, numBytes);
+		}
+		if (this.striper != null)
+			this.striper.notifyFreed(file, numBytes);
+	}
+
+	/** Returns the state of each AttachmentDatastorePath in STRIPED placement (see {@link DiscordMonitorDatastoreStriper#describe()}), or null in SEQUENTIAL placement. */
+	public String describeStripes()
+	{
+		return this.striper != null ? this.striper.describe() : null;
+	}
+
+	/** Returns the number of downloads waiting for a worker. */
+	public synchronized int getQueuedCount()
+	{
+		return this.queue.size();
+	}
+
+	private synchronized DownloadTask take(boolean isPriorityOnly) throws InterruptedException
+	{
+		while (true)
+		{
+			DownloadTask task = this.queue.peek();
+			if (task != null && (!isPriorityOnly || task.priority == Priority.WATCHLIST))
+				return this.queue.poll();
+			this.wait();
+		}
+	}
+
+	private void runWorker(boolean isPriorityOnly)
+	{
+		try
+		{
+			while (true)
+			{
+				DownloadTask task = this.take(isPriorityOnly);
+				this.download(task);
+				if (task.journalEntry != null)
+					task.journalEntry.release(); // Even if the download failed: it was retried already.
+			}
+		}
+		catch (InterruptedException e)
+		{
+			this.console.println("warning: Attachment download worker interrupted.");
+		}
+	}
+
+	/** Downloads the given attachment to the current AttachmentDatastorePath, retrying and moving on to the next path as needed. */
+	private void download(DownloadTask task) throws InterruptedException
+	{
+		if (this.striper != null)
+		{
+			this.downloadStriped(task);
+			return;
+		}
+
+		String failureReason = null;
+		for (int retryCount = 1; retryCount <= DiscordMonitorAttachmentDownloader.RETRY_LIMIT; ++retryCount)
+		{
+			if (retryCount != 1)
+				this.console.printf("info: Download attempt %d/%d for %s\n", retryCount, DiscordMonitorAttachmentDownloader.RETRY_LIMIT, task);
+
+			File datastorePath;
+			synchronized (this.appconfig) // Datastore path state is shared by all workers.
+			{
+				this.appconfig.refreshCurrentAttachmentDatastorePath();
+				if (this.appconfig.attachmentDatastorePaths.isEmpty())
+				{ // No directory to download to
+					failureReason = "no valid AttachmentDatastorePaths";
+					break;
+				}
+				datastorePath = this.appconfig.attachmentDatastorePaths.peek();
+			}
+
+			File downloadPath = null;
+			try
+			{
+				downloadPath = DiscordMonitorConfig.generateDownloadFilepath(datastorePath, task.fileName);
+				long numBytes = this.transfer(task, downloadPath);
+				synchronized (this.appconfig)
+				{
+					this.appconfig.notifySpentAttachmentDatastoreCapacity(numBytes);
+				}
+				if (this.logDB != null)
+					this.logDB.recordAttachmentFile(task.messageId, downloadPath, numBytes);
+				this.console.println("info: Downloaded " + task + " to: " + downloadPath);
+				return;
+			}
+			catch (IOException e)
+			{
+				if (downloadPath != null)
+					downloadPath.delete();
+				failureReason = e.toString();
+			}
+
+			// Download unsuccessful. Test if directory is writable before retrying.
+			if (retryCount == 1)
+			{
+				synchronized (this.appconfig)
+				{
+					if (this.appconfig.attachmentDatastorePaths.peek() != datastorePath)
+						continue; // Another worker has already moved on from this path.
+					try
+					{
+						File.createTempFile("writetest", null, datastorePath).deleteOnExit();
+					}
+					catch (IOException e)
+					{
+						this.console.println("warning: Current AttachmentDatastorePath is not able to be written to.\n" + e); // Print details?
+						this.appconfig.nextAttachmentDatastorePath(false);
+					}
+					catch (SecurityException e)
+					{
+						this.console.println("warning: Denied write access to current AttachmentDatastorePath.");
+						this.appconfig.nextAttachmentDatastorePath(false);
+					}
+				}
+			}
+		}
+
+		this.console.println("warning: Unable to auto-download " + task + ": " + failureReason + ". See URL for manual download.");
+	}
+
+	/** Downloads the given attachment to a path picked by the striper, retrying (possibly on another path) as needed. */
+	private void downloadStriped(DownloadTask task) throws InterruptedException
+	{
+		String failureReason = null;
+		for (int retryCount = 1; retryCount <= DiscordMonitorAttachmentDownloader.RETRY_LIMIT; ++retryCount)
+		{
+			if (retryCount != 1)
+				this.console.printf("info: Download attempt %d/%d for %s\n", retryCount, DiscordMonitorAttachmentDownloader.RETRY_LIMIT, task);
+
+			DiscordMonitorDatastoreStriper.Stripe stripe = this.striper.acquire(task.size);
+			if (stripe == null)
+			{
+				failureReason = "no AttachmentDatastorePaths in rotation with room for it";
+				break;
+			}
+			File downloadPath = null;
+			try
+			{
+				downloadPath = DiscordMonitorConfig.generateDownloadFilepath(stripe.path, task.fileName);
+				long numBytes = this.transfer(task, downloadPath);
+				this.striper.release(stripe, task.size, numBytes, task.writeNanos);
+				if (this.logDB != null)
+					this.logDB.recordAttachmentFile(task.messageId, downloadPath, numBytes);
+				this.console.println("info: Downloaded " + task + " to: " + downloadPath);
+				return;
+			}
+			catch (IOException e)
+			{
+				if (downloadPath != null)
+					downloadPath.delete();
+				failureReason = e.toString();
+				this.striper.fail(stripe, task.size); // Next attempt goes elsewhere if the path cannot be written to.
+			}
+		}
+
+		this.console.println("warning: Unable to auto-download " + task + ": " + failureReason + ". See URL for manual download.");
+	}
+
+	/**
+	 * Copies the given attachment to <em>downloadPath</em> (as reserved by {@link DiscordMonitorConfig#generateDownloadFilepath(File, String)}), drawing from the bandwidth limit (if any) as it goes.
+	 * @return Number of bytes written
+	 */
+	private long transfer(DownloadTask task, File downloadPath) throws IOException, InterruptedException
+	{
+		HttpURLConnection connection = (HttpURLConnection)new URL(task.url).openConnection();
+		connection.setConnectTimeout(DiscordMonitorAttachmentDownloader.CONNECT_TIMEOUT_MILLIS);
+		connection.setReadTimeout(DiscordMonitorAttachmentDownloader.READ_TIMEOUT_MILLIS);
+		connection.setRequestProperty("User-Agent", DiscordMonitorAttachmentDownloader.USER_AGENT);
+		try
+		{
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP " + connection.getResponseCode() + " " + connection.getResponseMessage());
+
+			int bufferSize = DiscordMonitorAttachmentDownloader.BUFFER_SIZE;
+			if (this.bandwidth != null)
+				bufferSize = (int)Math.min(bufferSize, this.bandwidth.getCapacity());
+			byte[] buffer = new byte[bufferSize];
+			boolean isPriority = task.priority == Priority.WATCHLIST;
+			long numBytes = 0;
+			task.writeNanos = 0;
+			try (InputStream in = connection.getInputStream();
+				OutputStream out = new FileOutputStream(downloadPath))
+			{
+				int count;
+				while ((count = in.read(buffer)) != -1)
+				{
+					if (this.bandwidth != null)
+						this.bandwidth.acquire(count, isPriority);
+					long writeStartNanos = System.nanoTime();
+					out.write(buffer, 0, count);
+					task.writeNanos += System.nanoTime() - writeStartNanos;
+					numBytes += count;
+				}
+			}
+			return numBytes;
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+}
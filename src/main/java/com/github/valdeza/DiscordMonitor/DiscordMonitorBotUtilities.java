@@ -1,5 +1,10 @@
 package com.github.valdeza.DiscordMonitor;
 
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
 import com.google.gson.FieldNamingPolicy;
@@ -10,10 +15,14 @@ import net.dv8tion.jda.client.entities.Group;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.entities.ChannelType;
 import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.Message.Attachment;
+import net.dv8tion.jda.core.entities.MessageEmbed;
 import net.dv8tion.jda.core.entities.MessageChannel;
 import net.dv8tion.jda.core.entities.PrivateChannel;
 import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.events.message.GenericMessageEvent;
+import net.dv8tion.jda.core.events.message.MessageBulkDeleteEvent;
 import net.dv8tion.jda.core.events.message.MessageDeleteEvent;
 import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.core.events.message.MessageUpdateEvent;
@@ -21,6 +30,8 @@ import net.dv8tion.jda.core.events.message.MessageUpdateEvent;
 class DiscordMonitorBotUtilities
 {
 	static final char BELL_CHARACTER = '\007';
+	/** Discord epoch (2015-01-01T00:00:00Z) in Unix milliseconds, from which snowflake timestamps are measured. */
+	static final long DISCORD_EPOCH_MILLIS = 1420070400000L;
 
 	static final Gson GSON_MESSAGE_ELEMENT_SERIALISER =
 		new GsonBuilder()
@@ -121,6 +132,148 @@ class DiscordMonitorBotUtilities
 		return tid.matches(serverId, channelId, userId, messageContent, isAttachmentFound, eventType);
 	}
 
+	/**
+	 * Returns a JDA-independent snapshot of the given message event, holding everything {@link DiscordMonitor} logs about it.
+	 * As with {@link #isTargetIdentifierMatchGeneric(DiscordMonitorTargetIdentifier, GenericMessageEvent)},
+	 * the server ID of a group or private channel is taken to be its channel ID.
+	 * @param deferEmbeds If 'true', embeds are left in {@link MessageEventRecord#deferredEmbeds} rather than serialised.
+	 * @throws IllegalArgumentException Thrown if <em>event</em> is not of type Message(Delete|Received|Update)Event.
+	 */
+	static MessageEventRecord toMessageEventRecord(GenericMessageEvent event, boolean deferEmbeds)
+	{
+		MessageEventRecord record = new MessageEventRecord();
+		record.messageId = event.getMessageIdLong();
+		record.channelType = event.getChannelType();
+		record.channelId = event.getChannel().getIdLong();
+
+		Message message = null;
+		if (event instanceof MessageReceivedEvent)
+		{
+			record.eventType = MessageEventType.NEW;
+			message = ((MessageReceivedEvent)event).getMessage();
+		}
+		else if (event instanceof MessageUpdateEvent)
+		{
+			record.eventType = MessageEventType.EDIT;
+			message = ((MessageUpdateEvent)event).getMessage();
+		}
+		else if (event instanceof MessageDeleteEvent)
+			record.eventType = MessageEventType.DELETE;
+		else
+			throw new IllegalArgumentException("Provided event is not of type Message(Delete|Received|Update)Event");
+
+		switch (event.getChannelType())
+		{
+			case TEXT:
+				TextChannel textChannel = (TextChannel)event.getChannel();
+				record.serverId = textChannel.getGuild().getIdLong();
+				record.serverName = textChannel.getGuild().getName();
+				record.channelName = textChannel.getName();
+				break;
+			case PRIVATE:
+				User recipient = ((PrivateChannel)event.getChannel()).getUser();
+				record.serverId = record.channelId;
+				record.recipientId = recipient.getIdLong();
+				record.recipientName = recipient.getName();
+				record.channelName = event.getChannel().getName();
+				break;
+			case GROUP:
+				record.serverId = record.channelId;
+				String groupName = event.getChannel().getName();
+				record.channelName = groupName != null ? groupName : ""; //A group name can be null due to it being unnamed.
+				break;
+			default:
+				break;
+		}
+
+		if (message == null)
+		{ // Deletions only provide the message ID.
+			record.time = OffsetDateTime.now(ZoneId.of("Z"));
+			record.isTimeApproximate = true;
+			return record;
+		}
+
+		User author = message.getAuthor();
+		record.userId = author.getIdLong();
+		record.time = message.isEdited() ? message.getEditedTime() : message.getCreationTime();
+		record.content = message.getContent();
+		record.strippedContent = message.getStrippedContent();
+		if (deferEmbeds && !message.getEmbeds().isEmpty())
+			record.deferredEmbeds = message.getEmbeds();
+		else
+			for (MessageEmbed embed : message.getEmbeds())
+				record.embedJson.add(DiscordMonitorBotUtilities.GSON_MESSAGE_ELEMENT_SERIALISER.toJson(embed));
+		for (Attachment attachment : message.getAttachments())
+			record.attachmentJson.add(DiscordMonitorBotUtilities.GSON_MESSAGE_ELEMENT_SERIALISER.toJson(attachment));
+
+		switch (event.getChannelType())
+		{
+			case TEXT:
+				if (message.isWebhookMessage())
+					record.authorName = author.getName(); // Webhook messages have no associated Member.
+				else
+					record.authorName = message.getGuild().getMember(author).getEffectiveName();
+				break;
+			case PRIVATE:
+				User other = message.getPrivateChannel().getUser();
+				User self = event.getJDA().getSelfUser();
+				User recipient = other.getIdLong() == author.getIdLong() ? self : other;
+				record.authorName = author.getName();
+				record.recipientId = recipient.getIdLong();
+				record.recipientName = recipient.getName();
+				record.channelName = author.getName() + " -> " + recipient.getName();
+				break;
+			case GROUP:
+				record.authorName = author.getName();
+				break;
+			default:
+				break;
+		}
+		return record;
+	}
+
+	/**
+	 * Returns a {@link MessageEventType#DELETE DELETE} event for each message purged by the given bulk deletion, in the order JDA provides them.
+	 * As with single deletions, only the message IDs are known, and the time is approximate.
+	 * @param time Time the bulk deletion was received
+	 */
+	static List<MessageEventRecord> toMessageEventRecords(MessageBulkDeleteEvent event, OffsetDateTime time)
+	{
+		TextChannel textChannel = event.getChannel();
+		List<MessageEventRecord> records = new ArrayList<>(event.getMessageIds().size());
+		for (String messageId : event.getMessageIds())
+		{
+			MessageEventRecord record = new MessageEventRecord();
+			record.eventType = MessageEventType.DELETE;
+			record.channelType = ChannelType.TEXT;
+			record.messageId = Long.parseLong(messageId);
+			record.serverId = textChannel.getGuild().getIdLong();
+			record.serverName = textChannel.getGuild().getName();
+			record.channelId = textChannel.getIdLong();
+			record.channelName = textChannel.getName();
+			record.time = time;
+			record.isTimeApproximate = true;
+			records.add(record);
+		}
+		return records;
+	}
+
+	/** Serialises the record's {@linkplain MessageEventRecord#deferredEmbeds deferred embeds}, if any, into {@link MessageEventRecord#embedJson}. */
+	static void serialiseDeferredEmbeds(MessageEventRecord record)
+	{
+		if (record.deferredEmbeds == null)
+			return;
+		for (MessageEmbed embed : record.deferredEmbeds)
+			record.embedJson.add(DiscordMonitorBotUtilities.GSON_MESSAGE_ELEMENT_SERIALISER.toJson(embed));
+		record.deferredEmbeds = null;
+	}
+
+	/** Returns the creation time encoded in the given snowflake ID, in Unix milliseconds. */
+	static long getSnowflakeCreationMillis(long snowflakeId)
+	{
+		return (snowflakeId >>> 22) + DiscordMonitorBotUtilities.DISCORD_EPOCH_MILLIS;
+	}
+
 	/** Returns a string with all occurrences of the 'bell' character (ASCII code 0x07) replaced by a dot ('.').
 	 * The bell character causes terminals to beep or chime.
 	 * @param s String possibly containing bell characters to replace
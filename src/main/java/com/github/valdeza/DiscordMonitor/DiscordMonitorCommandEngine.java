@@ -0,0 +1,307 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.io.FileUtils;
+
+import net.dv8tion.jda.core.MessageBuilder;
+import net.dv8tion.jda.core.entities.MessageChannel;
+
+/**
+ * Runs commands issued by {@linkplain DiscordMonitorConfig#authorizedUsers AuthorizedUsers}.
+ * <p>
+ * Commands run on a small, bounded pool of low-priority threads rather than the event thread, so that slow queries never delay event processing.
+ * If the pool is saturated, further commands are refused rather than queued without bound.
+ * Aggregates that are expensive to compute (LogDB totals, datastore sizes) are cached for {@value #CACHE_TTL_SECONDS} seconds.
+ * <p>
+ * Replies are always printed to the console and, if {@linkplain DiscordMonitorConfig#enableBotReply EnableBotReply} is set, also sent to the channel the command was issued in,
+ * with mentions stripped so that quoted message content cannot ping anyone.
+ */
+class DiscordMonitorCommandEngine
+{
+	private static final int WORKER_COUNT = 2;
+	private static final int QUEUE_CAPACITY = 16;
+	private static final long CACHE_TTL_SECONDS = 30;
+	private static final int DEFAULT_HIT_COUNT = 10;
+	private static final int DEFAULT_RULE_COUNT = 10;
+	/** Discord's message length limit */
+	private static final int MAX_REPLY_LENGTH = 2000;
+	private static final String HELP =
+		"Commands:\n"
+		+ "stats                 Event and hit counts since startup, LogDB totals\n"
+		+ "hits [n]              Most recent watchlist hits (default " + DiscordMonitorCommandEngine.DEFAULT_HIT_COUNT + ")\n"
+		+ "lookup <message id>   Logged history of a message, e.g. to see what a deleted message said\n"
+		+ "datastore             Attachment datastore and download queue status\n"
+		+ "sinks                 NotificationSink delivery status and lag\n"
+		+ "rules [n]             Costliest target identifiers with their matching statistics (default " + DiscordMonitorCommandEngine.DEFAULT_RULE_COUNT + ")\n"
+		+ "help                  This message";
+
+	/** A value recomputed at most once every {@value DiscordMonitorCommandEngine#CACHE_TTL_SECONDS} seconds */
+	private static class CachedValue<T>
+	{
+		private final Supplier<T> supplier;
+		private T value;
+		private long expiryNanos;
+
+		CachedValue(Supplier<T> supplier)
+		{
+			this.supplier = supplier;
+		}
+
+		synchronized T get()
+		{
+			long now = System.nanoTime();
+			if (this.value == null || now - this.expiryNanos >= 0)
+			{
+				this.value = this.supplier.get();
+				this.expiryNanos = now + TimeUnit.SECONDS.toNanos(DiscordMonitorCommandEngine.CACHE_TTL_SECONDS);
+			}
+			return this.value;
+		}
+	}
+
+	private final DiscordMonitorConfig appconfig;
+	private final DiscordMonitorStatistics statistics;
+	/** null if message activity logging is disabled */
+	private final DiscordMonitorLogDB logDB;
+	/** null if attachment auto-downloading is disabled */
+	private final DiscordMonitorAttachmentDownloader attachmentDownloader;
+	/** null if no NotificationSinks are configured */
+	private final DiscordMonitorNotificationDispatcher notificationDispatcher;
+	private final ThreadPoolExecutor executor;
+	private final CachedValue<String> logDBSummary = new CachedValue<>(this::summariseLogDB);
+	private final CachedValue<String> datastoreSummary = new CachedValue<>(this::summariseDatastore);
+
+	DiscordMonitorCommandEngine(DiscordMonitorConfig appconfig, DiscordMonitorStatistics statistics, DiscordMonitorLogDB logDB,
+		DiscordMonitorAttachmentDownloader attachmentDownloader, DiscordMonitorNotificationDispatcher notificationDispatcher)
+	{
+		this.appconfig = appconfig;
+		this.statistics = statistics;
+		this.logDB = logDB;
+		this.attachmentDownloader = attachmentDownloader;
+		this.notificationDispatcher = notificationDispatcher;
+
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(DiscordMonitorCommandEngine.WORKER_COUNT, DiscordMonitorCommandEngine.WORKER_COUNT, 0, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(DiscordMonitorCommandEngine.QUEUE_CAPACITY),
+			runnable ->
+			{
+				Thread thread = new Thread(runnable, "DiscordMonitorCommandEngine-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+	}
+
+	/**
+	 * Queues the given command (with {@linkplain DiscordMonitorConfig#commandPrefix CommandPrefix} already removed) and returns immediately.
+	 * @param channel Channel to reply in, if replies are enabled
+	 */
+	public void submit(String command, MessageChannel channel)
+	{
+		try
+		{
+			this.executor.execute(() -> this.reply(this.execute(command), channel));
+		}
+		catch (RejectedExecutionException e)
+		{
+			this.reply("Too many commands pending. Please try again later.", channel);
+		}
+	}
+
+	private String execute(String command)
+	{
+		String[] args = command.trim().split("\\s+");
+		try
+		{
+			switch (args[0].toLowerCase())
+			{
+				case "stats": return this.executeStats();
+				case "hits": return this.executeHits(args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : DiscordMonitorCommandEngine.DEFAULT_HIT_COUNT);
+				case "lookup": return this.executeLookup(Long.parseLong(args[1]));
+				case "datastore": return this.datastoreSummary.get() + "Queued downloads: " + (this.attachmentDownloader != null ? this.attachmentDownloader.getQueuedCount() : 0);
+				case "sinks": return this.notificationDispatcher != null ? this.notificationDispatcher.describe() : "No NotificationSinks configured.";
+				case "rules": return this.executeRules(args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : DiscordMonitorCommandEngine.DEFAULT_RULE_COUNT);
+				case "help": return DiscordMonitorCommandEngine.HELP;
+				default: return "Unknown command: " + args[0] + "\n" + DiscordMonitorCommandEngine.HELP;
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException | NumberFormatException e)
+		{
+			return "Invalid arguments: " + command + "\n" + DiscordMonitorCommandEngine.HELP;
+		}
+		catch (RuntimeException e)
+		{
+			System.out.println("error: Command failed: " + command);
+			e.printStackTrace();
+			return "Command failed: " + e.toString();
+		}
+	}
+
+	private String executeStats()
+	{
+		Duration uptime = Duration.between(this.statistics.startTime, Instant.now());
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Uptime: %dd %02d:%02d:%02d\n", uptime.toDays(), uptime.toHours() % 24, uptime.toMinutes() % 60, uptime.getSeconds() % 60));
+		sb.append("Events since startup:");
+		for (MessageEventType eventType : MessageEventType.values())
+			sb.append(' ').append(eventType).append('=').append(this.statistics.getEventCount(eventType));
+		sb.append("\nLogTargets hits: ").append(this.statistics.getLogTargetHitCount())
+			.append("\nWatchlist hits: ").append(this.statistics.getWatchlistHitCount())
+			.append("\nOverload: ").append(this.statistics.getDeferredEventCount()).append(" deferred (")
+			.append(this.statistics.getPendingDeferredEventCount()).append(" pending), ")
+			.append(this.statistics.getShedEventCount()).append(" shed")
+			.append('\n').append(this.logDBSummary.get());
+		return sb.toString();
+	}
+
+	private String executeHits(int limit)
+	{
+		List<DiscordMonitorStatistics.WatchlistHit> hits = this.statistics.getRecentWatchlistHits(limit);
+		if (hits.isEmpty())
+			return "No watchlist hits since startup.";
+		StringBuilder sb = new StringBuilder();
+		for (DiscordMonitorStatistics.WatchlistHit hit : hits)
+			sb.append(hit.time.format(DiscordMonitor.LOG_DATETIME_FORMAT)).append(' ').append(hit.eventType).append(' ')
+				.append(hit.messageId).append(' ').append(hit.identifierLabel).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Lists the identifiers that have taken the longest to match, estimated as evaluations times the mean cost of running every check,
+	 * with the order their checks are currently evaluated in and each check's rejection rate and mean cost.
+	 */
+	private String executeRules(int limit)
+	{
+		List<String> listNames = new ArrayList<>();
+		List<DiscordMonitorTargetIdentifier> tids = new ArrayList<>();
+		String[] names = { "AuthorizedUsers", "LogTargets", "NotificationWatchlist" };
+		DiscordMonitorTargetIdentifier[][] lists = { this.appconfig.authorizedUsers, this.appconfig.logTargets, this.appconfig.notificationWatchlist };
+		for (int i = 0; i < lists.length; ++i)
+			if (lists[i] != null)
+				for (DiscordMonitorTargetIdentifier tid : lists[i])
+				{
+					listNames.add(names[i]);
+					tids.add(tid);
+				}
+		if (tids.isEmpty())
+			return "No target identifiers configured.";
+
+		List<Integer> indices = new ArrayList<>();
+		for (int i = 0; i < tids.size(); ++i)
+			indices.add(i);
+		indices.sort(Comparator.comparingDouble((Integer i) -> tids.get(i).profile.getEvaluationCount() * tids.get(i).profile.getMeanFullCostNanos()).reversed());
+
+		StringBuilder sb = new StringBuilder();
+		for (int i : indices.subList(0, Math.min(limit, indices.size())))
+		{
+			DiscordMonitorRuleProfile profile = tids.get(i).profile;
+			sb.append(String.format("%s/%s: %d evaluated, %d matched, %.0f ns for all checks\n\t%s\n", listNames.get(i), tids.get(i).identifierLabel,
+				profile.getEvaluationCount(), profile.getMatchCount(), profile.getMeanFullCostNanos(), profile.describeChecks(tids.get(i)::usesCheck)));
+		}
+		return sb.toString();
+	}
+
+	private String executeLookup(long messageId)
+	{
+		if (this.logDB == null)
+			return "LogDB disabled.";
+		List<MessageEventRecord> history;
+		try
+		{
+			history = this.logDB.getMessageHistory(messageId);
+		}
+		catch (SQLException e)
+		{
+			return "LogDB query failed: " + e.toString();
+		}
+		if (history.isEmpty())
+			return "Message " + messageId + " was not logged.";
+
+		StringBuilder sb = new StringBuilder();
+		for (MessageEventRecord record : history)
+		{
+			sb.append(record.time.format(DiscordMonitor.LOG_DATETIME_FORMAT)).append(' ').append(record.eventType);
+			if (record.authorName != null)
+				sb.append(" <").append(record.authorName).append('>');
+			if (record.content != null)
+				sb.append(": ").append(record.content);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	private String summariseLogDB()
+	{
+		if (this.logDB == null)
+			return "LogDB disabled.";
+		try
+		{
+			StringBuilder sb = new StringBuilder("LogDB:");
+			for (Map.Entry<MessageEventType, Long> entry : this.logDB.countEvents().entrySet())
+				sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+			sb.append(" (").append(FileUtils.byteCountToDisplaySize(this.appconfig.logDBLocation.length())).append(')');
+			return sb.toString();
+		}
+		catch (SQLException e)
+		{
+			return "LogDB query failed: " + e.toString();
+		}
+	}
+
+	private String summariseDatastore()
+	{
+		if (this.attachmentDownloader == null)
+			return "Attachment auto-downloading disabled.\n";
+		String stripes = this.attachmentDownloader.describeStripes();
+		if (stripes != null)
+			return "Striped across:\n" + stripes + (this.appconfig.maxDatastoreSize != null
+				? "MaxDatastoreSize: " + FileUtils.byteCountToDisplaySize(this.appconfig.maxDatastoreSize) + "\n" : "");
+
+		List<File> datastorePaths;
+		synchronized (this.appconfig)
+		{
+			datastorePaths = new ArrayList<>(this.appconfig.attachmentDatastorePaths);
+		}
+		StringBuilder sb = new StringBuilder();
+		if (datastorePaths.isEmpty())
+			sb.append("No AttachmentDatastorePaths remaining.\n");
+		for (int i = 0; i < datastorePaths.size(); ++i)
+		{
+			File path = datastorePaths.get(i);
+			sb.append(i == 0 ? "Current: " : "Next: ").append(path);
+			if (path.isDirectory())
+				sb.append(" (").append(FileUtils.byteCountToDisplaySize(FileUtils.sizeOfDirectory(path))).append(')');
+			sb.append('\n');
+		}
+		if (this.appconfig.maxDatastoreSize != null)
+			sb.append("MaxDatastoreSize: ").append(FileUtils.byteCountToDisplaySize(this.appconfig.maxDatastoreSize)).append('\n');
+		return sb.toString();
+	}
+
+	private void reply(String reply, MessageChannel channel)
+	{
+		System.out.println("*** Command reply:\n\t" + reply.trim().replace("\n", "\n\t") + "\n");
+		if (this.appconfig.enableBotReply)
+		{
+			// Replies quote logged content: keep any mentions (e.g. @everyone) in it from pinging anyone.
+			reply = new MessageBuilder().append(reply).stripMentions(channel.getJDA()).getStringBuilder().toString();
+			if (reply.length() > DiscordMonitorCommandEngine.MAX_REPLY_LENGTH)
+				reply = reply.substring(0, DiscordMonitorCommandEngine.MAX_REPLY_LENGTH - 3) + "...";
+			channel.sendMessage(reply).queue();
+		}
+	}
+}
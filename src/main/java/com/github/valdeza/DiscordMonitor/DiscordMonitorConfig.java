@@ -3,8 +3,17 @@ package com.github.valdeza.DiscordMonitor;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -40,11 +49,38 @@ class DiscordMonitorConfig
 	public Integer minFileSize;
 	public Integer maxFileSize;
 	public Long maxDatastoreSize;
+	/** How downloads are placed across AttachmentDatastorePaths; defaults to {@link DiscordMonitorDatastoreStriper.Placement#SEQUENTIAL SEQUENTIAL}. */
+	public DiscordMonitorDatastoreStriper.Placement attachmentPlacement;
 	private long remainingDatastoreCapacity = 0;
+	/** AttachmentDatastorePaths as configured (including the temporary directory, if used), in order of use */
+	private transient LinkedList<File> configuredAttachmentDatastorePaths;
+	/**
+	 * AttachmentDatastorePaths removed for exceeding MaxDatastoreSize, which are reinstated once freed up,
+	 * with the bytes they hold (as counted when removed, less attachments deleted since)
+	 */
+	private final transient Map<File, Long> fullAttachmentDatastorePaths = new HashMap<>();
+	/** Bytes per second shared by all attachment downloads; null if unlimited. */
+	public Long downloadBandwidthLimit;
+	/** Bytes that may be downloaded at once above {@link #downloadBandwidthLimit}; defaults to one second's worth. */
+	public Long downloadBurstSize;
+	/** Engine used to match {@linkplain DiscordMonitorTargetIdentifier#messageRegex MessageRegex} values; defaults to {@link DiscordMonitorMessageRegex.Engine#BACKTRACKING BACKTRACKING}. */
+	public DiscordMonitorMessageRegex.Engine regexEngine;
+	/** Maximum number of characters a backtracking MessageRegex match from any one position may read (including re-reads) before the search is aborted. */
+	public Long regexStepLimit;
+	private static final long DEFAULT_VALUE_REGEX_STEP_LIMIT = 1000000;
+	/** Milliseconds events may wait for processing before work is {@linkplain DiscordMonitorOverloadController deferred or shed}. */
+	public Long overloadLagThreshold;
+	private static final long DEFAULT_VALUE_OVERLOAD_LAG_THRESHOLD = 1000;
 	public File logDBLocation;
+	/** Directory holding the write-ahead journal of received message events; null if journaling is disabled. */
+	public File eventJournalLocation;
 	public DiscordMonitorTargetIdentifier[] logTargets;
 	public File notificationTextLogLocation;
 	public DiscordMonitorTargetIdentifier[] notificationWatchlist;
+	/** Local receivers NotificationWatchlist hits are delivered to; null if none. */
+	public DiscordMonitorNotificationDispatcher.SinkConfig[] notificationSinks;
+	/** Directory holding the outbox of each NotificationSink. Required if NotificationSinks are configured. */
+	public File notificationOutboxLocation;
 
 	/**
 	 * @param filepath File path pointing to a .profile.json file.
@@ -102,7 +138,9 @@ class DiscordMonitorConfig
 	 * 	<ul>
 	 * 	<li> {@link DiscordMonitorConfig#attachmentDatastorePaths AttachmentDatastorePaths} do not point to files
 	 * 	<li> Neither {@link DiscordMonitorConfig#logDBLocation LogDBLocation} nor {@link DiscordMonitorConfig#notificationTextLogLocation NotificationTextLogLocation} point to a directory
+	 * 	<li> {@link DiscordMonitorConfig#eventJournalLocation EventJournalLocation} does not point to a file
 	 * 	</ul>
+	 * <li> '{@linkplain DiscordMonitorTargetIdentifier#messageRegex MessageRegex}' values are prepared for matching, warning of those likely to backtrack excessively
 	 * <li> '{@linkplain com.github.valdeza.DiscordMonitor.DiscordMonitorTargetIdentifier#messageProcessingOptions MessageProcessingOptions}' of '{@linkplain DiscordMonitorTargetIdentifier DMTargetIdentifiers}' are set correctly
 	 *      (where "{@link DiscordMonitorTargetIdentifier.MessageProcessingOptions#AUTODOWNLOAD_ATTACHMENTS AUTODOWNLOAD_ATTACHMENTS}" are always accompanied by "{@link DiscordMonitorTargetIdentifier.MessageProcessingOptions#HAS_ATTACHMENTS HAS_ATTACHMENTS}")
 	 * </ul>
@@ -124,13 +162,6 @@ class DiscordMonitorConfig
 			System.out.println("warning: Field 'EnableBotReply' undefined. Assuming 'false'.");
 		}
 
-		if (this.commandPrefix == null)
-			System.out.println("info: Field 'CommandPrefix' is null. "
-				+ "This bot will never respond to commands.");
-		else if (this.commandPrefix.equals(""))
-			System.out.println("info: Field 'CommandPrefix' undefined. "
-				+ "All received messages will be interpreted as commands.");
-
 		if (this.authorizedUsers == null)
 		{
 			this.authorizedUsers = new DiscordMonitorTargetIdentifier[]{};
@@ -139,6 +170,20 @@ class DiscordMonitorConfig
 				+ "Specify \"AuthorizedUsers\":[] in supplied .profile.json to suppress this warning.");
 		}
 
+		if (this.commandPrefix == null)
+		{
+			if (this.authorizedUsers.length == 0)
+				System.out.println("info: Field 'CommandPrefix' is null. "
+					+ "This bot will never respond to commands.");
+			else // Versions before the command engine took every message from AuthorizedUsers as a (then unimplemented) command instead.
+				System.out.println("warning: Field 'CommandPrefix' is null. "
+					+ "This bot will never respond to commands, and messages from AuthorizedUsers are logged like any other. "
+					+ "Specify \"CommandPrefix\":\"\" in supplied .profile.json to interpret all their messages as commands.");
+		}
+		else if (this.commandPrefix.equals(""))
+			System.out.println("info: Field 'CommandPrefix' undefined. "
+				+ "All received messages will be interpreted as commands.");
+
 		if (this.attachmentDatastorePaths != null && this.useTempDir == null)
 		{
 			this.useTempDir = DiscordMonitorConfig.DEFAULT_VALUE_USE_TEMP_DIR;
@@ -157,8 +202,12 @@ class DiscordMonitorConfig
 			for (File path : this.attachmentDatastorePaths)
 				if (path.isFile())
 					throw new IllegalArgumentException("error: AttachmentDatastorePath cannot be file: " + path.toString());
+			this.configuredAttachmentDatastorePaths = new LinkedList<>(this.attachmentDatastorePaths);
 		}
 
+		if (this.attachmentPlacement == null)
+			this.attachmentPlacement = DiscordMonitorDatastoreStriper.Placement.SEQUENTIAL;
+
 		if (this.minFileSize <= 0)
 			this.minFileSize = null;
 
@@ -168,12 +217,26 @@ class DiscordMonitorConfig
 		if (this.maxDatastoreSize != null && this.maxDatastoreSize < 0)
 			throw new IllegalArgumentException("error: Field 'MaxDatastoreSize' cannot be negative.");
 
+		if (this.downloadBandwidthLimit != null && this.downloadBandwidthLimit <= 0)
+			throw new IllegalArgumentException("error: Field 'DownloadBandwidthLimit' must be positive.");
+
+		if (this.downloadBurstSize != null && this.downloadBurstSize <= 0)
+			throw new IllegalArgumentException("error: Field 'DownloadBurstSize' must be positive.");
+		else if (this.downloadBurstSize == null && this.downloadBandwidthLimit != null)
+			this.downloadBurstSize = this.downloadBandwidthLimit;
+
 		if (this.logDBLocation == null)
 			System.out.println("info: Field 'LogDBLocation' is null. "
 				+ "Message activity logging disabled.");
 		else if (this.logDBLocation.isDirectory())
 			throw new IllegalArgumentException("error: LogDBLocation cannot be directory: " + this.logDBLocation.toString());
 
+		if (this.eventJournalLocation == null)
+			System.out.println("info: Field 'EventJournalLocation' is null. "
+				+ "Event journaling disabled.");
+		else if (this.eventJournalLocation.isFile())
+			throw new IllegalArgumentException("error: EventJournalLocation cannot be file: " + this.eventJournalLocation.toString());
+
 		if (this.logTargets != null)
 			for (DiscordMonitorTargetIdentifier tid : this.logTargets)
 				if (tid.messageProcessingOptions != null && tid.messageProcessingOptions.contains(MessageProcessingOptions.AUTODOWNLOAD_ATTACHMENTS))
@@ -189,6 +252,73 @@ class DiscordMonitorConfig
 			for (DiscordMonitorTargetIdentifier tid : this.notificationWatchlist)
 				if (tid.messageProcessingOptions != null && tid.messageProcessingOptions.contains(MessageProcessingOptions.AUTODOWNLOAD_ATTACHMENTS))
 					tid.messageProcessingOptions.add(MessageProcessingOptions.HAS_ATTACHMENTS);
+
+		if (this.notificationSinks != null && this.notificationSinks.length == 0)
+			this.notificationSinks = null;
+		if (this.notificationSinks != null)
+		{
+			if (this.notificationOutboxLocation == null)
+				throw new IllegalArgumentException("error: Field 'NotificationOutboxLocation' is required with 'NotificationSinks'.");
+			if (this.notificationOutboxLocation.isFile())
+				throw new IllegalArgumentException("error: NotificationOutboxLocation cannot be file: " + this.notificationOutboxLocation.toString());
+			Set<String> sinkLabels = new HashSet<>();
+			for (DiscordMonitorNotificationDispatcher.SinkConfig sink : this.notificationSinks)
+			{
+				if (sink.label == null || !sink.label.matches("[\\w.-]+"))
+					throw new IllegalArgumentException("error: NotificationSinks 'Label' must be non-empty and consist of letters, digits, '_', '.' and '-': " + sink.label);
+				if (!sinkLabels.add(sink.label))
+					throw new IllegalArgumentException("error: Duplicate NotificationSinks 'Label': " + sink.label);
+				if (sink.type == null || sink.target == null)
+					throw new IllegalArgumentException("error: NotificationSink '" + sink.label + "' requires 'Type' (HTTP, PIPE or TCP) and 'Target'.");
+				try
+				{
+					DiscordMonitorNotificationSink.create(sink.type, sink.target);
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IllegalArgumentException("error: NotificationSink '" + sink.label + "': " + e.getMessage());
+				}
+			}
+			if (this.eventJournalLocation == null)
+				System.out.println("warning: Without 'EventJournalLocation', NotificationWatchlist hits not yet in a NotificationSink outbox are lost on a crash.");
+		}
+
+		boolean hasRetentionPolicy = false;
+		if (this.logTargets != null)
+			for (DiscordMonitorTargetIdentifier tid : this.logTargets)
+			{
+				if (tid.retentionDays != null && tid.retentionDays <= 0)
+					throw new IllegalArgumentException("error: 'RetentionDays' of LogTargets identifier '" + tid.identifierLabel + "' must be positive.");
+				if (tid.retentionSize != null && tid.retentionSize <= 0)
+					throw new IllegalArgumentException("error: 'RetentionSize' of LogTargets identifier '" + tid.identifierLabel + "' must be positive.");
+				hasRetentionPolicy |= tid.retentionDays != null || tid.retentionSize != null;
+			}
+		for (DiscordMonitorTargetIdentifier[] tids : new DiscordMonitorTargetIdentifier[][]{ this.authorizedUsers, this.notificationWatchlist })
+			if (tids != null)
+				for (DiscordMonitorTargetIdentifier tid : tids)
+					if (tid.retentionDays != null || tid.retentionSize != null)
+					{
+						System.out.println("warning: Identifier '" + tid.identifierLabel + "' is not one of the LogTargets. Its 'RetentionDays' and 'RetentionSize' are ignored.");
+						tid.retentionDays = null;
+						tid.retentionSize = null;
+					}
+		if (hasRetentionPolicy && this.logDBLocation == null)
+			System.out.println("warning: Retention policies (RetentionDays/RetentionSize) require 'LogDBLocation'. Ignored.");
+
+		if (this.regexEngine == null)
+			this.regexEngine = DiscordMonitorMessageRegex.Engine.BACKTRACKING;
+		if (this.regexStepLimit == null)
+			this.regexStepLimit = DiscordMonitorConfig.DEFAULT_VALUE_REGEX_STEP_LIMIT;
+		else if (this.regexStepLimit <= 0)
+			throw new IllegalArgumentException("error: Field 'RegexStepLimit' must be positive.");
+		if (this.overloadLagThreshold == null)
+			this.overloadLagThreshold = DiscordMonitorConfig.DEFAULT_VALUE_OVERLOAD_LAG_THRESHOLD;
+		else if (this.overloadLagThreshold <= 0)
+			throw new IllegalArgumentException("error: Field 'OverloadLagThreshold' must be positive.");
+		for (DiscordMonitorTargetIdentifier[] tids : new DiscordMonitorTargetIdentifier[][]{ this.authorizedUsers, this.logTargets, this.notificationWatchlist })
+			if (tids != null)
+				for (DiscordMonitorTargetIdentifier tid : tids)
+					tid.prepareMessageRegex(this.regexEngine, this.regexStepLimit);
 	}
 
 	/** Validation checks to be performed on bot startup.
@@ -252,16 +382,20 @@ class DiscordMonitorConfig
 		{
 			while (true) // Re-examine current datastore path until OK or no more paths
 			{
-				long currDirSize = FileUtils.sizeOfDirectory(this.attachmentDatastorePaths.peek());
+				File currDir = this.attachmentDatastorePaths.peek();
+				long currDirSize = DiscordMonitorConfig.sizeOfDatastorePath(currDir);
 				if (currDirSize < 0)
 					System.out.println("error: Removed datastore path (size too large): " + this.attachmentDatastorePaths.remove());
-				else if (currDirSize == 0)
+				else if (currDir.exists() && !currDir.canRead())
 					System.out.println("error: Removed datastore path (access denied): " + this.attachmentDatastorePaths.remove());
 				else
 				{ // Recheck directory size. Files may have been deleted since then.
 					long remainingDatastoreCapacity = this.maxDatastoreSize - currDirSize;
 					if (remainingDatastoreCapacity <= 0)
+					{
+						this.fullAttachmentDatastorePaths.put(currDir, currDirSize);
 						System.out.println("warning: Removed datastore path (over size limit): " + this.attachmentDatastorePaths.remove());
+					}
 					else
 					{
 						this.remainingDatastoreCapacity = remainingDatastoreCapacity;
@@ -279,23 +413,30 @@ class DiscordMonitorConfig
 	}
 
 	/** <em>It is expected to have {@linkplain com.github.valdeza.DiscordMonitor.DiscordMonitorConfig#refreshCurrentAttachmentDatastorePath() refreshed} the current {@linkplain com.github.valdeza.DiscordMonitor.DiscordMonitorConfig#attachmentDatastorePaths AttachmentDatastorePath} prior to calling this method.</em>
-	 * <br>Using the current AttachmentDatastorePath and given <em>filename</em>, generates an absolute file path to a file location to be written to. Uniqueness is guaranteed by appending random alphanumeric characters to the end of the given <em>filename</em>. If the current AttachmentDatastorePath refers to a directory that does not exist yet, it will be created (along with parent directories, if needed).
+	 * <br>Using the current AttachmentDatastorePath and given <em>filename</em>, generates an absolute file path to a file location to be written to. Uniqueness is guaranteed by appending random alphanumeric characters to the end of the given <em>filename</em>, and the path is reserved by creating an empty file there, so that concurrent downloads never share a path. If the current AttachmentDatastorePath refers to a directory that does not exist yet, it will be created (along with parent directories, if needed).
 	 * @param filename Name of the file to save to--including extension
 	 * @return An absolute file path to be supplied to the aforementioned {@link net.dv8tion.jda.core.entities.Message.Attachment#download(File) download} method
 	 * @throws UnsupportedOperationException Thrown if this config's {@linkplain DiscordMonitorConfig#attachmentDatastorePaths AttachmentDatastorePaths} is in an invalid state (is null or empty)
+	 * @throws IOException Thrown if the file could not be created (e.g. the AttachmentDatastorePath cannot be written to).
 	 * @see net.dv8tion.jda.core.entities.Message.Attachment#download(File)
 	 * @see net.dv8tion.jda.core.entities.Message.Attachment#getFileName()
 	 */
-	public File generateDownloadFilepath(String filename) throws UnsupportedOperationException
+	public File generateDownloadFilepath(String filename) throws UnsupportedOperationException, IOException
 	{
 		if (this.attachmentDatastorePaths == null)
 			throw new UnsupportedOperationException("Cannot generate download filepath: attachment auto-download disabled");
 		if (this.attachmentDatastorePaths.isEmpty())
 			throw new UnsupportedOperationException("Cannot generate download filepath: no AttachmentDatastorePaths remaining.");
-		if (!this.attachmentDatastorePaths.peek().exists())
-			this.attachmentDatastorePaths.peek().mkdirs();
+		return DiscordMonitorConfig.generateDownloadFilepath(this.attachmentDatastorePaths.peek(), filename);
+	}
+
+	/** As {@link #generateDownloadFilepath(String)}, but for the given AttachmentDatastorePath (e.g. as picked by a {@link DiscordMonitorDatastoreStriper}). */
+	public static File generateDownloadFilepath(File datastorePath, String filename) throws IOException
+	{
+		if (!datastorePath.exists())
+			datastorePath.mkdirs();
 
-		String dirpath = this.attachmentDatastorePaths.peek().toString();
+		String dirpath = datastorePath.toString();
 		if (!dirpath.endsWith(File.separator))
 			dirpath += File.separatorChar;
 
@@ -308,12 +449,13 @@ class DiscordMonitorConfig
 			extension = '.' + extension;
 
 		// Try generating filepaths with random suffixes until a unique filepath is found.
+		// Creating the file checks for and claims the path atomically, so another worker cannot pick it in the meantime.
 		String randsuffix = "";
 		while (true)
 		{
 			randsuffix += RandomStringUtils.randomAlphanumeric(1);
 			File fileCandidate = new File(dirpath + basename + randsuffix + extension);
-			if (!fileCandidate.exists())
+			if (fileCandidate.createNewFile())
 				return fileCandidate;
 		}
 	}
@@ -323,6 +465,87 @@ class DiscordMonitorConfig
 		this.remainingDatastoreCapacity -= numBytes;
 	}
 
+	/**
+	 * To be called once an attachment of <em>numBytes</em> has been deleted from the datastore (e.g. by LogDB compaction).
+	 * The space is credited to the AttachmentDatastorePath holding it without recounting the path, and paths removed for exceeding
+	 * {@linkplain DiscordMonitorConfig#maxDatastoreSize MaxDatastoreSize} are reinstated (in their configured order) once they no longer do.
+	 */
+	public void notifyFreedAttachmentDatastoreCapacity(File file, long numBytes)
+	{
+		if (this.maxDatastoreSize == null || this.configuredAttachmentDatastorePaths == null)
+			return;
+		File path = DiscordMonitorConfig.findContainingPath(this.configuredAttachmentDatastorePaths, file);
+		if (path == null)
+			return;
+
+		if (path.equals(this.attachmentDatastorePaths.peek()))
+		{
+			if (this.remainingDatastoreCapacity > 0) // Otherwise recounted before the next download anyway
+				this.remainingDatastoreCapacity += numBytes;
+			return;
+		}
+
+		Long size = this.fullAttachmentDatastorePaths.get(path);
+		if (size == null)
+			return; // Counted once it becomes the current path
+		size -= numBytes;
+		if (size >= this.maxDatastoreSize)
+		{
+			this.fullAttachmentDatastorePaths.put(path, size);
+			return;
+		}
+
+		this.fullAttachmentDatastorePaths.remove(path);
+		System.out.println("info: Reinstated datastore path (under size limit): " + path);
+		LinkedList<File> paths = new LinkedList<>();
+		for (File configuredPath : this.configuredAttachmentDatastorePaths)
+			if (this.attachmentDatastorePaths.contains(configuredPath) || configuredPath.equals(path))
+				paths.add(configuredPath);
+		if (path.equals(paths.peek())) // Ahead of the current path
+			this.remainingDatastoreCapacity = this.maxDatastoreSize - size;
+		this.attachmentDatastorePaths = paths;
+	}
+
+	/** Returns the one of the given AttachmentDatastorePaths holding <em>file</em>, or null if none does. */
+	static File findContainingPath(Iterable<File> paths, File file)
+	{
+		Path filePath = file.getAbsoluteFile().toPath();
+		for (File path : paths)
+			if (filePath.startsWith(path.getAbsoluteFile().toPath()))
+				return path;
+		return null;
+	}
+
+	/**
+	 * Returns the striper placing downloads across the AttachmentDatastorePaths in {@link DiscordMonitorDatastoreStriper.Placement#STRIPED STRIPED} placement,
+	 * or null in {@link DiscordMonitorDatastoreStriper.Placement#SEQUENTIAL SEQUENTIAL} placement or if attachment auto-downloading is disabled.
+	 */
+	public DiscordMonitorDatastoreStriper createDatastoreStriper()
+	{
+		if (this.attachmentDatastorePaths == null || this.attachmentPlacement != DiscordMonitorDatastoreStriper.Placement.STRIPED)
+			return null;
+		File tempDir = this.useTempDir ? this.configuredAttachmentDatastorePaths.getLast() : null;
+		return new DiscordMonitorDatastoreStriper(this.configuredAttachmentDatastorePaths, tempDir, this.maxDatastoreSize);
+	}
+
+	/** Returns the total size of the files in the given AttachmentDatastorePath (0 if it does not exist yet), or a negative number on overflow. */
+	private static long sizeOfDatastorePath(File path)
+	{
+		return path.isDirectory() ? FileUtils.sizeOfDirectory(path) : 0;
+	}
+
+	/** Returns the LogDB retention policies of the LogTargets that set 'RetentionDays' or 'RetentionSize'. */
+	public List<DiscordMonitorLogDB.RetentionPolicy> getRetentionPolicies()
+	{
+		List<DiscordMonitorLogDB.RetentionPolicy> policies = new ArrayList<>();
+		if (this.logTargets != null)
+			for (DiscordMonitorTargetIdentifier tid : this.logTargets)
+				if (tid.retentionDays != null || tid.retentionSize != null)
+					policies.add(new DiscordMonitorLogDB.RetentionPolicy(DiscordMonitorLogDB.TARGET_LIST_LOG_TARGETS, tid.identifierLabel,
+						tid.retentionDays != null ? TimeUnit.DAYS.toNanos(tid.retentionDays) : null, tid.retentionSize));
+		return policies;
+	}
+
 	/**
 	 * Removes the current {@linkplain com.github.valdeza.DiscordMonitor.DiscordMonitorConfig#attachmentDatastorePaths AttachmentDatastorePath},
 	 * returning the subsequent AttachmentDatastorePath or, if the list of AttachmentDatastorePaths is empty, null.
@@ -332,8 +555,7 @@ class DiscordMonitorConfig
 	 */
 	public File nextAttachmentDatastorePath(boolean isExpected)
 	{
-		this.attachmentDatastorePaths.remove();
-		System.out.println((isExpected ? "info" : "warning") + ": Removed datastore path (over size limit): " + this.attachmentDatastorePaths.remove());
+		System.out.println((isExpected ? "info" : "warning") + ": Removed datastore path: " + this.attachmentDatastorePaths.remove());
 		return this.attachmentDatastorePaths.peek();
 	}
 }
@@ -0,0 +1,358 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Places attachment downloads across all {@linkplain DiscordMonitorConfig#attachmentDatastorePaths AttachmentDatastorePaths} at once
+ * in {@link Placement#STRIPED STRIPED} placement, so that concurrent downloads are written to several disks in parallel.
+ * <p>
+ * Each download goes to a path picked at random, weighted by the path's remaining capacity and measured write throughput,
+ * and divided among the downloads already writing to it. Remaining capacity is the lesser of the space left under
+ * {@linkplain DiscordMonitorConfig#maxDatastoreSize MaxDatastoreSize} and the free space of the path's file system.
+ * The temporary directory (if {@linkplain DiscordMonitorConfig#useTempDir UseTempDir}) is only used while no other path is available.
+ * <p>
+ * A path that fails a write and then a write test is taken out of rotation rather than removed, and re-probed with exponential backoff
+ * until it can be written to again. Paths over MaxDatastoreSize rejoin the rotation once {@linkplain #notifyFreed(File, long) deletions} bring them below it.
+ * <p>
+ * Safe for concurrent use by the download workers. Write tests and free space samples run outside the lock, so that a hung disk does not hold up the other paths.
+ * Between samples (every {@link #USABLE_SPACE_SAMPLE_INTERVAL_NANOS}), a path's free space is estimated from the downloads and deletions since.
+ */
+class DiscordMonitorDatastoreStriper
+{
+	enum Placement
+	{
+		/** Fill the first AttachmentDatastorePath up to MaxDatastoreSize, then move on to the next */
+		SEQUENTIAL,
+		/** Spread downloads across all AttachmentDatastorePaths */
+		STRIPED
+	}
+
+	/** Write throughput assumed of a path until measured, in bytes per second, if no path has been measured yet */
+	private static final double DEFAULT_THROUGHPUT = 50e6;
+	/** Weight of the latest measurement in a path's throughput estimate */
+	private static final double THROUGHPUT_SMOOTHING = 0.2;
+	/** Downloads smaller than this are not measured: their write time is dominated by overhead. */
+	private static final long MIN_MEASURED_BYTES = 65536;
+	private static final long INITIAL_PROBE_DELAY_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private static final long MAX_PROBE_DELAY_NANOS = TimeUnit.MINUTES.toNanos(10);
+	private static final long USABLE_SPACE_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	/** State of one AttachmentDatastorePath. Guarded by the striper. */
+	static class Stripe
+	{
+		final File path;
+		/** Used only while no other path is available */
+		final boolean isFallback;
+		/** Bytes stored in the path, as last counted plus downloads since */
+		long usedBytes;
+		/** Free space of the path's file system, as last sampled minus downloads plus deletions since */
+		long usableSpace;
+		long nextUsableSpaceSampleNanos;
+		/** Bytes expected of downloads currently writing to the path */
+		long pendingBytes = 0;
+		int activeCount = 0;
+		/** Estimated write throughput in bytes per second; NaN until measured */
+		double throughput = Double.NaN;
+		boolean isHealthy = true;
+		boolean isFull = false;
+		long nextProbeNanos = 0;
+		long probeDelayNanos = DiscordMonitorDatastoreStriper.INITIAL_PROBE_DELAY_NANOS;
+		long downloadCount = 0;
+		long downloadedBytes = 0;
+
+		Stripe(File path, boolean isFallback)
+		{
+			this.path = path;
+			this.isFallback = isFallback;
+		}
+	}
+
+	/** Never modified after construction */
+	private final List<Stripe> stripes = new ArrayList<>();
+	/** null if unlimited */
+	private final Long maxDatastoreSize;
+
+	/**
+	 * Counts the contents of each path.
+	 * @param fallbackPath One of <em>paths</em> to use only while no other is available; null if none
+	 */
+	DiscordMonitorDatastoreStriper(List<File> paths, File fallbackPath, Long maxDatastoreSize)
+	{
+		this.maxDatastoreSize = maxDatastoreSize;
+		for (File path : paths)
+		{
+			Stripe stripe = new Stripe(path, path.equals(fallbackPath));
+			stripe.usedBytes = DiscordMonitorDatastoreStriper.sizeOf(path);
+			stripe.usableSpace = DiscordMonitorDatastoreStriper.getUsableSpace(path);
+			stripe.nextUsableSpaceSampleNanos = System.nanoTime() + DiscordMonitorDatastoreStriper.USABLE_SPACE_SAMPLE_INTERVAL_NANOS;
+			this.stripes.add(stripe);
+		}
+	}
+
+	/**
+	 * Picks the path to write a download of the given size to, re-probing paths out of rotation whose backoff has elapsed
+	 * and re-sampling the free space of paths whose sample is due.
+	 * Every stripe acquired must be {@linkplain #release(Stripe, long, long, long) released} or {@linkplain #fail(Stripe, long) failed}.
+	 * @return null if no path is both healthy and has room for the download
+	 */
+	public Stripe acquire(long expectedSize)
+	{
+		List<Stripe> dueProbes = new ArrayList<>();
+		List<Stripe> dueSamples = new ArrayList<>();
+		synchronized (this)
+		{
+			long nowNanos = System.nanoTime();
+			for (Stripe stripe : this.stripes)
+			{
+				if (!stripe.isHealthy && nowNanos - stripe.nextProbeNanos >= 0)
+				{
+					this.scheduleProbe(stripe, nowNanos); // Keeps other workers from probing it at the same time.
+					dueProbes.add(stripe);
+				}
+				if (nowNanos - stripe.nextUsableSpaceSampleNanos >= 0)
+				{
+					stripe.nextUsableSpaceSampleNanos = nowNanos + DiscordMonitorDatastoreStriper.USABLE_SPACE_SAMPLE_INTERVAL_NANOS; // Likewise
+					dueSamples.add(stripe);
+				}
+			}
+		}
+		for (Stripe stripe : dueSamples)
+		{
+			long usableSpace = DiscordMonitorDatastoreStriper.getUsableSpace(stripe.path);
+			synchronized (this)
+			{
+				stripe.usableSpace = usableSpace;
+			}
+		}
+		for (Stripe stripe : dueProbes)
+		{
+			boolean isWritable = DiscordMonitorDatastoreStriper.isWritable(stripe.path);
+			synchronized (this)
+			{
+				if (isWritable)
+					this.restore(stripe);
+			}
+		}
+
+		synchronized (this)
+		{
+			Stripe stripe = this.pick(expectedSize, false);
+			if (stripe == null)
+				stripe = this.pick(expectedSize, true);
+			if (stripe != null)
+			{
+				++stripe.activeCount;
+				stripe.pendingBytes += expectedSize;
+			}
+			return stripe;
+		}
+	}
+
+	/** Records a completed download, updating the path's throughput estimate. */
+	public synchronized void release(Stripe stripe, long expectedSize, long numBytes, long writeNanos)
+	{
+		--stripe.activeCount;
+		stripe.pendingBytes -= expectedSize;
+		stripe.usedBytes += numBytes;
+		stripe.usableSpace -= numBytes;
+		++stripe.downloadCount;
+		stripe.downloadedBytes += numBytes;
+		if (numBytes >= DiscordMonitorDatastoreStriper.MIN_MEASURED_BYTES && writeNanos > 0)
+		{
+			double sample = numBytes * 1e9 / writeNanos;
+			stripe.throughput = Double.isNaN(stripe.throughput) ? sample
+				: stripe.throughput + DiscordMonitorDatastoreStriper.THROUGHPUT_SMOOTHING * (sample - stripe.throughput);
+		}
+	}
+
+	/**
+	 * Records a failed download, taking the path out of rotation (with announcement) if it cannot be written to.
+	 * @return Whether the path was taken out of rotation
+	 */
+	public boolean fail(Stripe stripe, long expectedSize)
+	{
+		synchronized (this)
+		{
+			--stripe.activeCount;
+			stripe.pendingBytes -= expectedSize;
+		}
+		if (DiscordMonitorDatastoreStriper.isWritable(stripe.path))
+			return false;
+
+		synchronized (this)
+		{
+			if (!stripe.isHealthy)
+				return true; // Another worker got there first.
+			stripe.isHealthy = false;
+			stripe.probeDelayNanos = DiscordMonitorDatastoreStriper.INITIAL_PROBE_DELAY_NANOS;
+			stripe.nextProbeNanos = System.nanoTime() + stripe.probeDelayNanos;
+			System.out.printf("warning: Datastore path taken out of rotation (not writable): %s. Re-probing in %d s.\n",
+				stripe.path, TimeUnit.NANOSECONDS.toSeconds(stripe.probeDelayNanos));
+			return true;
+		}
+	}
+
+	/**
+	 * Credits the path holding the given deleted file (e.g. an attachment deleted by LogDB compaction) with its size, without recounting the path.
+	 * Paths back under MaxDatastoreSize rejoin the rotation.
+	 */
+	public void notifyFreed(File file, long numBytes)
+	{
+		List<File> paths = new ArrayList<>(this.stripes.size());
+		for (Stripe stripe : this.stripes)
+			paths.add(stripe.path);
+		File path = DiscordMonitorConfig.findContainingPath(paths, file);
+		if (path == null)
+			return;
+		synchronized (this)
+		{
+			Stripe stripe = this.stripes.get(paths.indexOf(path));
+			stripe.usedBytes = Math.max(0, stripe.usedBytes - numBytes);
+			stripe.usableSpace += numBytes;
+		}
+	}
+
+	/** Summarises the state of each path, e.g. "D:\ (in rotation): 1.2 GB used, 30 GB free, 180 MB/s, 2 writing, 1500 downloaded". */
+	public synchronized String describe()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Stripe stripe : this.stripes)
+		{
+			sb.append(stripe.path).append(" (")
+				.append(!stripe.isHealthy ? "out of rotation" : stripe.isFull ? "full" : stripe.isFallback ? "fallback" : "in rotation")
+				.append("): ").append(FileUtils.byteCountToDisplaySize(stripe.usedBytes)).append(" used, ")
+				.append(FileUtils.byteCountToDisplaySize(Math.max(0, this.getRemainingCapacity(stripe)))).append(" free, ")
+				.append(Double.isNaN(stripe.throughput) ? "unmeasured" : FileUtils.byteCountToDisplaySize((long)stripe.throughput) + "/s").append(", ")
+				.append(stripe.activeCount).append(" writing, ")
+				.append(stripe.downloadCount).append(" downloaded\n");
+		}
+		return sb.toString();
+	}
+
+	/** Picks one of the healthy fallback (or other) paths with room for the download at random, weighted as described above. */
+	private Stripe pick(long expectedSize, boolean isFallback)
+	{
+		double defaultThroughput = this.getDefaultThroughput();
+		double[] weights = new double[this.stripes.size()];
+		double totalWeight = 0;
+		for (int i = 0; i < this.stripes.size(); ++i)
+		{
+			Stripe stripe = this.stripes.get(i);
+			if (stripe.isFallback != isFallback || !stripe.isHealthy)
+				continue;
+			long remainingCapacity = this.getRemainingCapacity(stripe);
+			this.updateFull(stripe, remainingCapacity <= 0);
+			remainingCapacity -= stripe.pendingBytes;
+			if (remainingCapacity < expectedSize)
+				continue;
+			double throughput = Double.isNaN(stripe.throughput) ? defaultThroughput : stripe.throughput;
+			weights[i] = (double)remainingCapacity * throughput / (stripe.activeCount + 1);
+			totalWeight += weights[i];
+		}
+		if (totalWeight <= 0)
+			return null;
+
+		double target = ThreadLocalRandom.current().nextDouble(totalWeight);
+		for (int i = 0; i < weights.length; ++i)
+		{
+			if (weights[i] <= 0)
+				continue;
+			target -= weights[i];
+			if (target < 0)
+				return this.stripes.get(i);
+		}
+		for (int i = weights.length - 1; ; --i) // Rounding left some of the target over.
+			if (weights[i] > 0)
+				return this.stripes.get(i);
+	}
+
+	/** Announces paths leaving or rejoining the rotation for lack of space. */
+	private void updateFull(Stripe stripe, boolean isFull)
+	{
+		if (stripe.isFull == isFull)
+			return;
+		stripe.isFull = isFull;
+		if (isFull)
+			System.out.println("warning: Datastore path out of rotation (over size limit or disk full): " + stripe.path);
+		else
+			System.out.println("info: Datastore path back in rotation (space available): " + stripe.path);
+	}
+
+	/** Returns the mean throughput of the measured paths, or {@link #DEFAULT_THROUGHPUT} if none were measured yet. */
+	private double getDefaultThroughput()
+	{
+		double sum = 0;
+		int count = 0;
+		for (Stripe stripe : this.stripes)
+			if (!Double.isNaN(stripe.throughput))
+			{
+				sum += stripe.throughput;
+				++count;
+			}
+		return count > 0 ? sum / count : DiscordMonitorDatastoreStriper.DEFAULT_THROUGHPUT;
+	}
+
+	private long getRemainingCapacity(Stripe stripe)
+	{
+		long remainingCapacity = stripe.usableSpace;
+		if (this.maxDatastoreSize != null)
+			remainingCapacity = Math.min(remainingCapacity, this.maxDatastoreSize - stripe.usedBytes);
+		return remainingCapacity;
+	}
+
+	private void scheduleProbe(Stripe stripe, long nowNanos)
+	{
+		stripe.probeDelayNanos = Math.min(stripe.probeDelayNanos * 2, DiscordMonitorDatastoreStriper.MAX_PROBE_DELAY_NANOS);
+		stripe.nextProbeNanos = nowNanos + stripe.probeDelayNanos;
+	}
+
+	private void restore(Stripe stripe)
+	{
+		if (stripe.isHealthy)
+			return;
+		stripe.isHealthy = true;
+		stripe.probeDelayNanos = DiscordMonitorDatastoreStriper.INITIAL_PROBE_DELAY_NANOS;
+		System.out.println("info: Datastore path back in rotation (writable again): " + stripe.path);
+	}
+
+	/** Tests whether a file can be created in the given path, creating the path if needed. */
+	private static boolean isWritable(File path)
+	{
+		try
+		{
+			if (!path.exists())
+				path.mkdirs();
+			File.createTempFile("writetest", null, path).delete();
+			return true;
+		}
+		catch (IOException | SecurityException e)
+		{
+			return false;
+		}
+	}
+
+	/** Returns the free space available to this program on the file system of the given path (or its nearest existing parent). */
+	private static long getUsableSpace(File path)
+	{
+		File existing = path.getAbsoluteFile();
+		while (existing != null && !existing.exists())
+			existing = existing.getParentFile();
+		return existing != null ? existing.getUsableSpace() : 0;
+	}
+
+	/** Returns the total size of the files in the given path (0 if it does not exist yet), or Long.MAX_VALUE on overflow. */
+	private static long sizeOf(File path)
+	{
+		if (!path.isDirectory())
+			return 0;
+		long size = FileUtils.sizeOfDirectory(path);
+		return size >= 0 ? size : Long.MAX_VALUE;
+	}
+}
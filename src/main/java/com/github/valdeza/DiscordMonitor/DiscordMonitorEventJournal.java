@@ -0,0 +1,532 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+/**
+ * Append-only journal of received message events at {@linkplain DiscordMonitorConfig#eventJournalLocation EventJournalLocation},
+ * so that events not yet fully processed (logged and their attachments downloaded) when the JVM dies are replayed on the next start.
+ * <p>
+ * Each {@linkplain #append(MessageEventRecord) appended} event gets an {@link Entry}, which pipeline stages {@linkplain Entry#retain() retain}
+ * while they still have work to do for it and {@linkplain Entry#release() release} once done.
+ * Once fully released, a completion marker is appended for the event.
+ * <p>
+ * The journal is split into segment files. A dedicated writer thread appends entries and fsyncs them in groups
+ * (as many as have accumulated during the previous fsync), so appending never waits on the disk.
+ * Segments are deleted, oldest first, once all of their events are complete.
+ * <p>
+ * Entry format: <code>int payload length, int CRC-32 of type and payload, byte type, payload</code>.
+ * A torn entry at the end of a segment (e.g. from a crash mid-write) ends that segment's recovery.
+ */
+class DiscordMonitorEventJournal implements AutoCloseable
+{
+	private static final String SEGMENT_FILENAME_PREFIX = "journal-";
+	private static final String SEGMENT_FILENAME_SUFFIX = ".log";
+	private static final byte[] SEGMENT_HEADER = { 'D', 'M', 'J', 1 };
+	/** A new segment is started once the current one exceeds this size. */
+	private static final long MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int QUEUE_CAPACITY = 65536;
+	private static final int ENTRY_HEADER_SIZE = 4 + 4 + 1;
+	private static final byte ENTRY_TYPE_EVENT = 1;
+	private static final byte ENTRY_TYPE_COMPLETION = 2;
+
+	/** Tracks the outstanding work on one journaled event. */
+	static class Entry
+	{
+		final long sequence;
+		private final DiscordMonitorEventJournal journal;
+		private final AtomicInteger references = new AtomicInteger(1);
+		/** Segment holding this event. Writer thread only. */
+		private Segment segment;
+
+		private Entry(DiscordMonitorEventJournal journal, long sequence)
+		{
+			this.journal = journal;
+			this.sequence = sequence;
+		}
+
+		/** Registers further work to be done for this event. */
+		public void retain()
+		{
+			this.references.incrementAndGet();
+		}
+
+		/** Marks one piece of work on this event as done. The event is complete once every retain (and the initial reference) is released. */
+		public void release()
+		{
+			if (this.references.decrementAndGet() == 0)
+				this.journal.enqueue(new QueuedEntry(DiscordMonitorEventJournal.ENTRY_TYPE_COMPLETION, this, null));
+		}
+	}
+
+	private static class Segment
+	{
+		final File file;
+		/** Number of events in this segment not yet complete. Writer thread only. */
+		int incompleteCount = 0;
+
+		Segment(File file)
+		{
+			this.file = file;
+		}
+	}
+
+	private static class QueuedEntry
+	{
+		final byte type;
+		final Entry entry;
+		/** Serialised event; null for completions */
+		final byte[] payload;
+
+		QueuedEntry(byte type, Entry entry, byte[] payload)
+		{
+			this.type = type;
+			this.entry = entry;
+			this.payload = payload;
+		}
+	}
+
+	/** Queued by {@link #close()} to stop the writer thread once all preceding entries are written. */
+	private static final QueuedEntry END_OF_QUEUE = new QueuedEntry((byte)0, null, null);
+
+	private final File directory;
+	private final BlockingQueue<QueuedEntry> writeQueue = new ArrayBlockingQueue<>(DiscordMonitorEventJournal.QUEUE_CAPACITY);
+	private final Thread writerThread;
+	/** Oldest first; the last segment is being appended to. Writer thread only (after construction). */
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private FileChannel activeChannel;
+	private long nextSegmentId = 0;
+	/** Guarded by 'this' */
+	private long nextSequence = 0;
+	private List<MessageEventRecord> recoveredRecords = new ArrayList<>();
+	/** Set once the writer thread has stopped other than by {@link #close()}, after which entries are no longer queued. */
+	private volatile boolean isFailed = false;
+
+	/**
+	 * Opens the journal in the given directory (creating it if needed), recovering the events left incomplete by the previous run.
+	 * @see #takeRecoveredRecords()
+	 */
+	DiscordMonitorEventJournal(File directory) throws IOException
+	{
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create event journal directory: " + directory);
+
+		this.recover();
+		this.startSegment();
+		this.writerThread = new Thread(this::runWriter, "DiscordMonitorEventJournal-writer");
+		this.writerThread.setDaemon(true); // Flushed by close() on shutdown
+		this.writerThread.start();
+	}
+
+	/**
+	 * Returns the events left incomplete by the previous run, in the order received, each with its {@link MessageEventRecord#journalEntry} set.
+	 * These are to be processed (and released) as if just received. Subsequent calls return an empty list.
+	 */
+	public List<MessageEventRecord> takeRecoveredRecords()
+	{
+		List<MessageEventRecord> records = this.recoveredRecords;
+		this.recoveredRecords = new ArrayList<>();
+		return records;
+	}
+
+	/**
+	 * Journals the given event, setting its {@link MessageEventRecord#journalEntry}. Blocks only if the writer has fallen far behind.
+	 * Any {@linkplain MessageEventRecord#deferredEmbeds deferred embeds} are serialised first, so that replayed events keep them.
+	 */
+	public Entry append(MessageEventRecord record)
+	{
+		DiscordMonitorBotUtilities.serialiseDeferredEmbeds(record);
+		Entry entry;
+		synchronized (this)
+		{
+			entry = new Entry(this, this.nextSequence++);
+		}
+		record.journalEntry = entry;
+		this.enqueue(new QueuedEntry(DiscordMonitorEventJournal.ENTRY_TYPE_EVENT, entry, DiscordMonitorEventJournal.serialise(entry.sequence, record)));
+		return entry;
+	}
+
+	/** Queues the given entry for the writer thread. Does nothing once the writer has failed, rather than blocking on a queue no longer drained. */
+	private void enqueue(QueuedEntry queuedEntry)
+	{
+		try
+		{
+			while (!this.isFailed)
+				if (this.writeQueue.offer(queuedEntry, 1, TimeUnit.SECONDS))
+					return;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			System.out.println("warning: Interrupted while writing to the event journal. Event " + queuedEntry.entry.sequence + " may be replayed on restart.");
+		}
+	}
+
+	private void runWriter()
+	{
+		List<QueuedEntry> batch = new ArrayList<>();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		CRC32 crc = new CRC32();
+		boolean isEndOfQueue = false;
+		try
+		{
+			this.deleteCompleteSegments(); // Left over from the previous run
+			while (!isEndOfQueue)
+			{
+				// Everything queued during the previous fsync is written and synced together.
+				batch.add(this.writeQueue.take());
+				this.writeQueue.drainTo(batch);
+				Segment activeSegment = this.segments.getLast();
+				for (QueuedEntry queuedEntry : batch)
+				{
+					if (queuedEntry == DiscordMonitorEventJournal.END_OF_QUEUE)
+					{
+						isEndOfQueue = true;
+						continue;
+					}
+
+					byte[] payload = queuedEntry.payload;
+					if (queuedEntry.type == DiscordMonitorEventJournal.ENTRY_TYPE_EVENT)
+					{
+						queuedEntry.entry.segment = activeSegment;
+						++activeSegment.incompleteCount;
+					}
+					else
+					{
+						payload = ByteBuffer.allocate(8).putLong(queuedEntry.entry.sequence).array();
+						--queuedEntry.entry.segment.incompleteCount;
+					}
+
+					crc.reset();
+					crc.update(queuedEntry.type);
+					crc.update(payload);
+					if (buffer.remaining() < DiscordMonitorEventJournal.ENTRY_HEADER_SIZE + payload.length)
+					{
+						this.write(buffer);
+						if (buffer.capacity() < DiscordMonitorEventJournal.ENTRY_HEADER_SIZE + payload.length)
+							buffer = ByteBuffer.allocate(DiscordMonitorEventJournal.ENTRY_HEADER_SIZE + payload.length);
+					}
+					buffer.putInt(payload.length).putInt((int)crc.getValue()).put(queuedEntry.type).put(payload);
+				}
+				this.write(buffer);
+				this.activeChannel.force(false);
+				batch.clear();
+
+				if (this.activeChannel.size() >= DiscordMonitorEventJournal.MAX_SEGMENT_SIZE && !isEndOfQueue)
+					this.startSegment();
+				this.deleteCompleteSegments();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			System.out.println("warning: Event journal writer interrupted. " + (batch.size() + this.writeQueue.size()) + " entries not written.");
+		}
+		catch (IOException | RuntimeException e)
+		{
+			System.out.println("error: Event journal writer failed: " + e.toString());
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (!isEndOfQueue)
+			{ // Carry on without the journal rather than have event processing wait on it.
+				this.isFailed = true;
+				this.writeQueue.clear();
+				System.out.println("error: Event journal disabled. Events received from now on are not journaled, and those not yet processed will not be replayed after a crash.");
+			}
+			try
+			{
+				this.activeChannel.close();
+			}
+			catch (IOException e)
+			{
+				System.out.println("warning: Unable to cleanly close the event journal: " + e.toString());
+			}
+		}
+	}
+
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+			this.activeChannel.write(buffer);
+		buffer.clear();
+	}
+
+	private void startSegment() throws IOException
+	{
+		if (this.activeChannel != null)
+			this.activeChannel.close();
+		Segment segment = new Segment(new File(this.directory,
+			String.format("%s%016d%s", DiscordMonitorEventJournal.SEGMENT_FILENAME_PREFIX, this.nextSegmentId++, DiscordMonitorEventJournal.SEGMENT_FILENAME_SUFFIX)));
+		this.activeChannel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		this.activeChannel.write(ByteBuffer.wrap(DiscordMonitorEventJournal.SEGMENT_HEADER));
+		this.segments.addLast(segment);
+	}
+
+	/** Deletes segments with no incomplete events, oldest first, up to the first segment still in use. */
+	private void deleteCompleteSegments()
+	{
+		while (this.segments.size() > 1 && this.segments.getFirst().incompleteCount == 0)
+		{
+			File file = this.segments.removeFirst().file;
+			if (!file.delete())
+				System.out.println("warning: Unable to delete processed event journal segment: " + file);
+		}
+	}
+
+	/** Reads all existing segments, collecting events without a completion marker. */
+	private void recover() throws IOException
+	{
+		File[] files = this.directory.listFiles((dir, name) ->
+			name.startsWith(DiscordMonitorEventJournal.SEGMENT_FILENAME_PREFIX) && name.endsWith(DiscordMonitorEventJournal.SEGMENT_FILENAME_SUFFIX));
+		if (files == null)
+			throw new IOException("Unable to list event journal directory: " + this.directory);
+		Arrays.sort(files); // Segment IDs are zero-padded.
+
+		Map<Long, Entry> incompleteEntries = new LinkedHashMap<>();
+		Map<Long, MessageEventRecord> incompleteRecords = new LinkedHashMap<>();
+		for (File file : files)
+		{
+			String name = file.getName();
+			long segmentId;
+			try
+			{
+				segmentId = Long.parseLong(name.substring(DiscordMonitorEventJournal.SEGMENT_FILENAME_PREFIX.length(), name.length() - DiscordMonitorEventJournal.SEGMENT_FILENAME_SUFFIX.length()));
+			}
+			catch (NumberFormatException e)
+			{
+				continue;
+			}
+			this.nextSegmentId = Math.max(this.nextSegmentId, segmentId + 1);
+			Segment segment = new Segment(file);
+			this.segments.addLast(segment);
+
+			ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			byte[] header = new byte[DiscordMonitorEventJournal.SEGMENT_HEADER.length];
+			if (data.remaining() < header.length || !Arrays.equals(DiscordMonitorEventJournal.SEGMENT_HEADER, DiscordMonitorEventJournal.get(data, header)))
+			{
+				System.out.println("warning: Ignoring unrecognised event journal segment: " + file);
+				continue;
+			}
+
+			CRC32 crc = new CRC32();
+			while (data.remaining() >= DiscordMonitorEventJournal.ENTRY_HEADER_SIZE)
+			{
+				int entryStart = data.position();
+				int length = data.getInt();
+				int checksum = data.getInt();
+				byte type = data.get();
+				if (length < 8 || length > data.remaining()) // Payloads start with the event sequence number.
+				{
+					data.position(entryStart);
+					break;
+				}
+				byte[] payload = DiscordMonitorEventJournal.get(data, new byte[length]);
+				crc.reset();
+				crc.update(type);
+				crc.update(payload);
+				if ((int)crc.getValue() != checksum)
+				{
+					data.position(entryStart);
+					break;
+				}
+
+				long sequence = ByteBuffer.wrap(payload).getLong();
+				this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+				if (type == DiscordMonitorEventJournal.ENTRY_TYPE_EVENT)
+				{
+					Entry entry = new Entry(this, sequence);
+					entry.segment = segment;
+					++segment.incompleteCount;
+					incompleteEntries.put(sequence, entry);
+					try
+					{
+						incompleteRecords.put(sequence, DiscordMonitorEventJournal.deserialise(payload));
+					}
+					catch (IOException | IllegalArgumentException e)
+					{
+						System.out.println("warning: Unable to read journaled event " + sequence + " in " + file + ": " + e.toString());
+					}
+				}
+				else if (type == DiscordMonitorEventJournal.ENTRY_TYPE_COMPLETION)
+				{
+					Entry entry = incompleteEntries.remove(sequence);
+					incompleteRecords.remove(sequence);
+					if (entry != null)
+						--entry.segment.incompleteCount;
+				}
+			}
+			if (data.hasRemaining())
+				System.out.println("warning: Discarded " + data.remaining() + " byte(s) of incomplete event journal data at the end of " + file);
+		}
+
+		for (Map.Entry<Long, Entry> entry : incompleteEntries.entrySet())
+		{
+			MessageEventRecord record = incompleteRecords.get(entry.getKey());
+			if (record == null)
+			{ // Unreadable. Treat as complete so that its segment can eventually be deleted.
+				--entry.getValue().segment.incompleteCount;
+				continue;
+			}
+			record.journalEntry = entry.getValue();
+			record.isPossiblyStored = true; // May have been partially processed already.
+			this.recoveredRecords.add(record);
+		}
+	}
+
+	private static byte[] get(ByteBuffer buffer, byte[] dst)
+	{
+		buffer.get(dst);
+		return dst;
+	}
+
+	private static byte[] serialise(long sequence, MessageEventRecord record)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			out.writeLong(sequence);
+			out.writeByte(record.eventType.ordinal());
+			out.writeByte(record.channelType.ordinal());
+			out.writeLong(record.messageId);
+			DiscordMonitorEventJournal.writeNullableLong(out, record.serverId);
+			DiscordMonitorEventJournal.writeNullableLong(out, record.channelId);
+			DiscordMonitorEventJournal.writeNullableLong(out, record.userId);
+			DiscordMonitorEventJournal.writeNullableLong(out, record.recipientId);
+			DiscordMonitorEventJournal.writeString(out, record.serverName);
+			DiscordMonitorEventJournal.writeString(out, record.channelName);
+			DiscordMonitorEventJournal.writeString(out, record.authorName);
+			DiscordMonitorEventJournal.writeString(out, record.recipientName);
+			out.writeLong(record.time.toEpochSecond());
+			out.writeInt(record.time.getNano());
+			out.writeInt(record.time.getOffset().getTotalSeconds());
+			out.writeBoolean(record.isTimeApproximate);
+			DiscordMonitorEventJournal.writeString(out, record.content);
+			DiscordMonitorEventJournal.writeString(out, record.strippedContent);
+			out.writeInt(record.embedJson.size());
+			for (String json : record.embedJson)
+				DiscordMonitorEventJournal.writeString(out, json);
+			out.writeInt(record.attachmentJson.size());
+			for (String json : record.attachmentJson)
+				DiscordMonitorEventJournal.writeString(out, json);
+		}
+		catch (IOException e)
+		{ // Not expected from an in-memory stream
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static MessageEventRecord deserialise(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		in.readLong(); // Sequence
+		MessageEventRecord record = new MessageEventRecord();
+		record.eventType = MessageEventType.values()[in.readUnsignedByte()];
+		record.channelType = ChannelType.values()[in.readUnsignedByte()];
+		record.messageId = in.readLong();
+		record.serverId = DiscordMonitorEventJournal.readNullableLong(in);
+		record.channelId = DiscordMonitorEventJournal.readNullableLong(in);
+		record.userId = DiscordMonitorEventJournal.readNullableLong(in);
+		record.recipientId = DiscordMonitorEventJournal.readNullableLong(in);
+		record.serverName = DiscordMonitorEventJournal.readString(in);
+		record.channelName = DiscordMonitorEventJournal.readString(in);
+		record.authorName = DiscordMonitorEventJournal.readString(in);
+		record.recipientName = DiscordMonitorEventJournal.readString(in);
+		long epochSecond = in.readLong();
+		int nano = in.readInt();
+		record.time = OffsetDateTime.ofInstant(Instant.ofEpochSecond(epochSecond, nano), ZoneOffset.ofTotalSeconds(in.readInt()));
+		record.isTimeApproximate = in.readBoolean();
+		record.content = DiscordMonitorEventJournal.readString(in);
+		record.strippedContent = DiscordMonitorEventJournal.readString(in);
+		for (int i = in.readInt(); i > 0; --i)
+			record.embedJson.add(DiscordMonitorEventJournal.readString(in));
+		for (int i = in.readInt(); i > 0; --i)
+			record.attachmentJson.add(DiscordMonitorEventJournal.readString(in));
+		return record;
+	}
+
+	private static void writeNullableLong(DataOutputStream out, Long value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeLong(value);
+	}
+
+	private static Long readNullableLong(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readLong() : null;
+	}
+
+	/** Writes a length-prefixed UTF-8 string (length -1 for null). Unlike {@link DataOutputStream#writeUTF}, not limited to 64 KB. */
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		if (length > in.available())
+			throw new EOFException();
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Writes and syncs all queued entries, then closes the journal. Events not yet complete are replayed on the next start. */
+	@Override
+	public void close()
+	{
+		try
+		{
+			while (!this.isFailed && !this.writeQueue.offer(DiscordMonitorEventJournal.END_OF_QUEUE, 1, TimeUnit.SECONDS))
+				;
+			this.writerThread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.writerThread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,1730 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+/**
+ * SQLite-backed store of logged message activity at {@linkplain DiscordMonitorConfig#logDBLocation LogDBLocation},
+ * with an FTS5 full-text index over message content.
+ * <p>
+ * Records are {@linkplain #submit(MessageEventRecord) submitted} from the event thread and written by a dedicated writer thread,
+ * which groups them into transactions so that event processing never waits on disk I/O.
+ * Queries use a separate connection and may run concurrently with writes.
+ * <p>
+ * If {@linkplain RetentionPolicy retention policies} are given, the writer thread also compacts the database whenever it is idle,
+ * in small steps (each its own transaction) so that it never holds up writes for long:
+ * events no longer retained by any identifier they matched are deleted, along with their messages' downloaded attachments once no event of the message remains,
+ * and the space freed is reclaimed by incremental vacuuming.
+ */
+class DiscordMonitorLogDB implements AutoCloseable
+{
+	/**
+	 * Stored in <code>PRAGMA user_version</code>. Increment when changing the schema, adding a migration from the previous version.
+	 * Migrations spell out the DDL of the version they target rather than using the CREATE_* constants, which always describe the current schema.
+	 */
+	private static final int SCHEMA_VERSION = 5;
+	private static final int WRITE_QUEUE_CAPACITY = 65536;
+	/** Maximum number of records written per transaction. */
+	private static final int MAX_WRITE_BATCH_SIZE = 1024;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	/** Every this many revisions of a message, an edit is stored in full rather than as a delta, bounding the work needed to rebuild any revision. */
+	private static final int REVISION_SNAPSHOT_INTERVAL = 16;
+	/** Number of messages whose latest revision the writer keeps in memory to encode further edits against. */
+	private static final int REVISION_CACHE_CAPACITY = 4096;
+	/** Maximum number of events pruned per compaction step (and transaction). */
+	private static final int COMPACTION_BATCH_SIZE = 256;
+	/** Time between compaction passes, once a pass has found nothing more to prune. */
+	private static final long COMPACTION_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+	/** Maximum number of free pages returned to the file system after each compaction step. */
+	private static final int INCREMENTAL_VACUUM_PAGES = 1024;
+	/** Number of events read per query when {@linkplain #export(long, ExportVisitor) exporting}. */
+	private static final int EXPORT_CHUNK_SIZE = 4096;
+	/** How long the writer waits for records before considering itself idle. */
+	private static final long IDLE_POLL_MILLIS = 1000;
+	/** message_event_target.target_list of {@linkplain DiscordMonitorConfig#logTargets LogTargets} */
+	static final String TARGET_LIST_LOG_TARGETS = "LogTargets";
+	/** message_event_target.target_list of the {@linkplain DiscordMonitorConfig#notificationWatchlist NotificationWatchlist} */
+	static final String TARGET_LIST_NOTIFICATION_WATCHLIST = "NotificationWatchlist";
+	/** Queued by {@link #close()} to stop the writer thread once all preceding records are written. */
+	private static final MessageEventRecord END_OF_QUEUE = new MessageEventRecord();
+
+	/** Kinds of names kept in the name_dictionary table. */
+	private enum NameType
+	{
+		/** Guild name */
+		SERVER,
+		/** Text channel or group name */
+		CHANNEL,
+		/** User name */
+		USER,
+		/** Effective name of a user within a guild (scope: server ID) */
+		MEMBER
+	}
+
+	private static final String CREATE_MESSAGE_EVENT_TABLE =
+		"CREATE TABLE message_event ("
+			+ "event_id INTEGER PRIMARY KEY, "
+			+ "message_id INTEGER NOT NULL, "
+			+ "event_type TEXT NOT NULL, " // MessageEventType
+			+ "event_time INTEGER NOT NULL, " // Unix epoch nanoseconds
+			+ "is_time_approximate INTEGER NOT NULL, "
+			+ "channel_type TEXT NOT NULL, " // ChannelType
+			+ "server_id INTEGER, "
+			+ "channel_id INTEGER, "
+			+ "user_id INTEGER, "
+			+ "recipient_id INTEGER, " // Private channels only
+			+ "revision INTEGER, " // Counts from 0 per message; null for deletions
+			+ "is_delta INTEGER NOT NULL DEFAULT 0, " // If 1, the following hold DiscordMonitorTextDelta deltas against the previous revision
+			+ "content TEXT, "
+			+ "embeds TEXT, " // JSON array, null if none
+			+ "attachments TEXT)"; // JSON array, null if none
+	private static final String[] CREATE_MESSAGE_EVENT_INDICES = {
+		"CREATE INDEX message_event_message ON message_event(message_id, revision)",
+		"CREATE INDEX message_event_time ON message_event(event_time)",
+		"CREATE INDEX message_event_server ON message_event(server_id, event_time)",
+		"CREATE INDEX message_event_channel ON message_event(channel_id, event_time)",
+		"CREATE INDEX message_event_user ON message_event(user_id, event_time)"
+	};
+	/**
+	 * message_event and its indices as of schema version 2, which {@link #migrateToVersion2(Statement)} rebuilds version 1 tables into.
+	 * Frozen: later migrations start from these, whatever the current schema.
+	 */
+	private static final String CREATE_MESSAGE_EVENT_TABLE_V2 =
+		"CREATE TABLE message_event ("
+			+ "event_id INTEGER PRIMARY KEY, "
+			+ "message_id INTEGER NOT NULL, "
+			+ "event_type TEXT NOT NULL, "
+			+ "event_time INTEGER NOT NULL, "
+			+ "is_time_approximate INTEGER NOT NULL, "
+			+ "channel_type TEXT NOT NULL, "
+			+ "server_id INTEGER, "
+			+ "channel_id INTEGER, "
+			+ "user_id INTEGER, "
+			+ "recipient_id INTEGER, "
+			+ "content TEXT, "
+			+ "embeds TEXT, "
+			+ "attachments TEXT)";
+	private static final String[] CREATE_MESSAGE_EVENT_INDICES_V2 = {
+		"CREATE INDEX message_event_message ON message_event(message_id)",
+		"CREATE INDEX message_event_time ON message_event(event_time)",
+		"CREATE INDEX message_event_server ON message_event(server_id, event_time)",
+		"CREATE INDEX message_event_channel ON message_event(channel_id, event_time)",
+		"CREATE INDEX message_event_user ON message_event(user_id, event_time)"
+	};
+	/**
+	 * Names are stored once per change rather than with every event.
+	 * Each row gives an entity's name from <code>valid_from</code> (event time) onwards, so renames are kept as history.
+	 */
+	private static final String CREATE_NAME_DICTIONARY_TABLE =
+		"CREATE TABLE name_dictionary ("
+			+ "name_type TEXT NOT NULL, " // NameType
+			+ "scope_id INTEGER NOT NULL, " // Server ID for MEMBER names; 0 otherwise
+			+ "entity_id INTEGER NOT NULL, "
+			+ "valid_from INTEGER NOT NULL, " // Unix epoch nanoseconds
+			+ "name TEXT NOT NULL, "
+			+ "PRIMARY KEY (name_type, scope_id, entity_id, valid_from)) WITHOUT ROWID";
+	/** Identifiers each event was stored for. An event is kept while any of these retain it. */
+	private static final String CREATE_MESSAGE_EVENT_TARGET_TABLE =
+		"CREATE TABLE message_event_target ("
+			+ "target_list TEXT NOT NULL, " // TARGET_LIST_*
+			+ "target_label TEXT NOT NULL, " // IdentifierLabel
+			+ "event_id INTEGER NOT NULL, "
+			+ "PRIMARY KEY (target_list, target_label, event_id)) WITHOUT ROWID";
+	private static final String CREATE_MESSAGE_EVENT_TARGET_INDEX =
+		"CREATE INDEX message_event_target_event ON message_event_target(event_id)";
+	/** Attachments downloaded to the AttachmentDatastorePaths. Deleted along with the last event of their message. */
+	private static final String CREATE_ATTACHMENT_FILE_TABLE =
+		"CREATE TABLE attachment_file ("
+			+ "path TEXT PRIMARY KEY, "
+			+ "message_id INTEGER NOT NULL, "
+			+ "size INTEGER NOT NULL, " // Bytes
+			+ "download_time INTEGER NOT NULL)"; // Unix epoch nanoseconds
+	private static final String CREATE_ATTACHMENT_FILE_INDEX =
+		"CREATE INDEX attachment_file_message ON attachment_file(message_id)";
+	/**
+	 * Running total of the bytes each identifier retains, kept up to date as events are stored and pruned, so that size-based retention
+	 * need not add them up on every compaction step. Counts the stored content, embeds and attachments columns of the identifier's events,
+	 * plus the attachment files of each message it retains any event of.
+	 */
+	private static final String CREATE_RETENTION_USAGE_TABLE =
+		"CREATE TABLE retention_usage ("
+			+ "target_list TEXT NOT NULL, "
+			+ "target_label TEXT NOT NULL, "
+			+ "size INTEGER NOT NULL, " // Bytes
+			+ "PRIMARY KEY (target_list, target_label)) WITHOUT ROWID";
+	/** Bytes an event takes up in the retention_usage of the identifiers retaining it, with message_event aliased as 'e' */
+	private static final String EVENT_SIZE_EXPR =
+		"IFNULL(LENGTH(CAST(e.content AS BLOB)), 0) + IFNULL(LENGTH(CAST(e.embeds AS BLOB)), 0) + IFNULL(LENGTH(CAST(e.attachments AS BLOB)), 0)";
+	/** Rebuilds the human-readable names of each event from name_dictionary, as of the time of the event. */
+	private static final String CREATE_MESSAGE_EVENT_VIEW =
+		"CREATE VIEW message_event_view AS SELECT e.*, "
+			+ DiscordMonitorLogDB.nameAsOf(NameType.SERVER, "0", "e.server_id") + " AS server_name, "
+			+ "CASE e.channel_type "
+				+ "WHEN 'PRIVATE' THEN CASE WHEN e.event_type = 'DELETE' OR e.user_id IS NULL "
+					+ "THEN " + DiscordMonitorLogDB.nameAsOf(NameType.USER, "0", "e.recipient_id") + " "
+					+ "ELSE COALESCE(" + DiscordMonitorLogDB.nameAsOf(NameType.USER, "0", "e.user_id") + " || ' -> ' || " + DiscordMonitorLogDB.nameAsOf(NameType.USER, "0", "e.recipient_id") + ", "
+						+ DiscordMonitorLogDB.nameAsOf(NameType.USER, "0", "e.user_id") + ") END " // Recipient unknown for schema version 1 events
+				+ "ELSE " + DiscordMonitorLogDB.nameAsOf(NameType.CHANNEL, "0", "e.channel_id") + " END AS channel_name, "
+			+ "CASE e.channel_type "
+				+ "WHEN 'TEXT' THEN " + DiscordMonitorLogDB.nameAsOf(NameType.MEMBER, "e.server_id", "e.user_id") + " "
+				+ "ELSE " + DiscordMonitorLogDB.nameAsOf(NameType.USER, "0", "e.user_id") + " END AS author_name "
+		+ "FROM message_event e";
+	// Contentless: message text is kept in message_event only. Rows share message_event's event_id as their rowid.
+	private static final String CREATE_MESSAGE_FTS_TABLE =
+		"CREATE VIRTUAL TABLE message_fts USING fts5(content, content='', tokenize='unicode61 remove_diacritics 1')";
+
+	/** Returns a subquery selecting the given entity's name as of <code>e.event_time</code>, or its earliest known name if none. */
+	private static String nameAsOf(NameType nameType, String scopeIdExpr, String entityIdExpr)
+	{
+		String where = "d.name_type = '" + nameType.name() + "' AND d.scope_id = " + scopeIdExpr + " AND d.entity_id = " + entityIdExpr;
+		return "COALESCE("
+			+ "(SELECT d.name FROM name_dictionary d WHERE " + where + " AND d.valid_from <= e.event_time ORDER BY d.valid_from DESC LIMIT 1), "
+			+ "(SELECT d.name FROM name_dictionary d WHERE " + where + " ORDER BY d.valid_from LIMIT 1))";
+	}
+
+	/** Key of a name_dictionary entity */
+	private static class NameKey
+	{
+		final NameType nameType;
+		final long scopeId;
+		final long entityId;
+
+		NameKey(NameType nameType, long scopeId, long entityId)
+		{
+			this.nameType = nameType;
+			this.scopeId = scopeId;
+			this.entityId = entityId;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof NameKey))
+				return false;
+			NameKey other = (NameKey)o;
+			return this.nameType == other.nameType && this.scopeId == other.scopeId && this.entityId == other.entityId;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash(this.nameType, this.scopeId, this.entityId);
+		}
+	}
+
+	/** Full content of one revision of a message, with embeds and attachments as stored (JSON arrays) */
+	private static class MessageRevision
+	{
+		final int revision;
+		/** Number of deltas since the last full snapshot */
+		final int deltaCount;
+		final String content;
+		final String embeds;
+		final String attachments;
+
+		MessageRevision(int revision, int deltaCount, String content, String embeds, String attachments)
+		{
+			this.revision = revision;
+			this.deltaCount = deltaCount;
+			this.content = content;
+			this.embeds = embeds;
+			this.attachments = attachments;
+		}
+
+		/** Returns the revision following this one, as described by the given deltas. */
+		MessageRevision applyDelta(int revision, String contentDelta, String embedsDelta, String attachmentsDelta)
+		{
+			return new MessageRevision(revision, this.deltaCount + 1,
+				DiscordMonitorTextDelta.apply(this.content, contentDelta),
+				DiscordMonitorLogDB.emptyToNull(DiscordMonitorTextDelta.apply(this.embeds, embedsDelta)),
+				DiscordMonitorLogDB.emptyToNull(DiscordMonitorTextDelta.apply(this.attachments, attachmentsDelta)));
+		}
+	}
+
+	/** Latest known name_dictionary entry of an entity */
+	private static class NameVersion
+	{
+		final long validFrom;
+		final String name;
+
+		NameVersion(long validFrom, String name)
+		{
+			this.validFrom = validFrom;
+			this.name = name;
+		}
+	}
+
+	/** Limits on the events stored for a single identifier. An event is pruned once every identifier it was stored for has let it go. */
+	static class RetentionPolicy
+	{
+		/** One of the TARGET_LIST_* constants */
+		final String targetList;
+		final String targetLabel;
+		/** Events older than this (in nanoseconds) are let go; null if unlimited. */
+		final Long maxAgeNanos;
+		/** Oldest events are let go while the events (and their messages' downloaded attachments) exceed this many bytes; null if unlimited. */
+		final Long maxSize;
+
+		RetentionPolicy(String targetList, String targetLabel, Long maxAgeNanos, Long maxSize)
+		{
+			this.targetList = targetList;
+			this.targetLabel = targetLabel;
+			this.maxAgeNanos = maxAgeNanos;
+			this.maxSize = maxSize;
+		}
+	}
+
+	/** A downloaded attachment, not yet recorded by the writer thread */
+	private static class AttachmentFile
+	{
+		final long messageId;
+		final File path;
+		final long size;
+		final long downloadTime;
+
+		AttachmentFile(long messageId, File path, long size, long downloadTime)
+		{
+			this.messageId = messageId;
+			this.path = path;
+			this.size = size;
+			this.downloadTime = downloadTime;
+		}
+	}
+
+	private final File location;
+	private final Connection writeConnection;
+	private final Connection readConnection;
+	private final BlockingQueue<MessageEventRecord> writeQueue = new ArrayBlockingQueue<>(DiscordMonitorLogDB.WRITE_QUEUE_CAPACITY);
+	private final Thread writerThread;
+	/** Writer thread only. Caches the latest name of each entity seen, sparing a lookup for names that have not changed. */
+	private final Map<NameKey, NameVersion> latestNames = new HashMap<>();
+	private PreparedStatement selectNameAsOf;
+	private PreparedStatement insertName;
+	/** Writer thread only. Latest revision of recently edited messages, least recently used first. */
+	private final Map<Long, MessageRevision> latestRevisions = DiscordMonitorLogDB.newRevisionCache();
+	private PreparedStatement selectLatestRevisions;
+	/** Writer thread only. See {@link #addRetentionUsage}, {@link #retainsOtherEventOf} and {@link #getAttachmentFileSize}. */
+	private PreparedStatement updateRetentionUsage;
+	private PreparedStatement insertRetentionUsage;
+	private PreparedStatement selectOtherRetainedEvent;
+	private PreparedStatement selectAttachmentFileSize;
+	private final ConcurrentLinkedQueue<AttachmentFile> pendingAttachmentFiles = new ConcurrentLinkedQueue<>();
+	private final List<RetentionPolicy> retentionPolicies;
+	/** Called (on the writer thread) with each attachment file deleted by compaction and its size */
+	private final ObjLongConsumer<File> onAttachmentFileDeleted;
+	/** Writer thread only. System.nanoTime() of the next compaction pass */
+	private long nextCompactionNanos = System.nanoTime();
+	/** Writer thread only. Totals of the current compaction pass */
+	private long compactedEventCount = 0;
+	private long compactedFileCount = 0;
+	private long compactedFileBytes = 0;
+
+	/** Receives the events streamed by {@link DiscordMonitorLogDB#export(long, ExportVisitor)}. */
+	interface ExportVisitor
+	{
+		/** @param revision Revision of the message the event stored (counting from 0); null for deletions */
+		void accept(long eventId, Integer revision, MessageEventRecord record) throws IOException;
+	}
+
+	/** Filters for {@link DiscordMonitorLogDB#search(SearchQuery)}. null fields are not filtered on. */
+	static class SearchQuery
+	{
+		/** FTS5 query string. See <a href="https://sqlite.org/fts5.html#full_text_query_syntax">https://sqlite.org/fts5.html#full_text_query_syntax</a>. */
+		public String terms;
+		public Long serverId;
+		public Long channelId;
+		public Long userId;
+		/** Inclusive */
+		public OffsetDateTime after;
+		/** Exclusive */
+		public OffsetDateTime before;
+		public EnumSet<MessageEventType> eventTypes;
+		public int limit = 100;
+	}
+
+	/**
+	 * Opens (creating, if needed) the log database at the given location and starts its writer thread.
+	 * @throws SQLException Thrown if the database could not be opened or is of an unsupported schema version.
+	 */
+	public DiscordMonitorLogDB(File location) throws SQLException
+	{
+		this(location, new ArrayList<>(), (file, numBytes) -> {});
+	}
+
+	/**
+	 * Opens (creating, if needed) the log database at the given location and starts its writer thread,
+	 * which compacts the database according to the given retention policies while idle.
+	 * Databases created before incremental vacuuming was supported are converted (with a one-time full VACUUM) if there are any policies.
+	 * @param onAttachmentFileDeleted Called (on the writer thread) with each downloaded attachment compaction deletes and its size
+	 * @throws SQLException Thrown if the database could not be opened or is of an unsupported schema version.
+	 */
+	public DiscordMonitorLogDB(File location, List<RetentionPolicy> retentionPolicies, ObjLongConsumer<File> onAttachmentFileDeleted) throws SQLException
+	{
+		this.location = location;
+		this.retentionPolicies = retentionPolicies;
+		this.onAttachmentFileDeleted = onAttachmentFileDeleted;
+		this.writeConnection = DiscordMonitorLogDB.connect(location);
+		this.initialiseSchema();
+		if (!retentionPolicies.isEmpty())
+			this.enableIncrementalVacuum();
+		this.readConnection = DiscordMonitorLogDB.connect(location);
+
+		this.writerThread = new Thread(this::runWriter, "DiscordMonitorLogDB-writer");
+		this.writerThread.start();
+	}
+
+	private static Connection connect(File location) throws SQLException
+	{
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + location.getPath());
+		try (Statement stmt = connection.createStatement())
+		{
+			// WAL permits queries to run alongside the writer thread.
+			stmt.execute("PRAGMA journal_mode=WAL");
+			stmt.execute("PRAGMA synchronous=NORMAL");
+			stmt.execute("PRAGMA busy_timeout=10000");
+		}
+		return connection;
+	}
+
+	private void initialiseSchema() throws SQLException
+	{
+		try (Statement stmt = this.writeConnection.createStatement())
+		{
+			int version;
+			try (ResultSet rs = stmt.executeQuery("PRAGMA user_version"))
+			{
+				version = rs.next() ? rs.getInt(1) : 0;
+			}
+
+			if (version == DiscordMonitorLogDB.SCHEMA_VERSION)
+				return;
+			if (version > DiscordMonitorLogDB.SCHEMA_VERSION)
+				throw new SQLException("LogDB schema version " + version + " is newer than supported (" + DiscordMonitorLogDB.SCHEMA_VERSION + "). Please update DiscordMonitor.");
+
+			if (version == 0)
+				stmt.execute("PRAGMA auto_vacuum=INCREMENTAL"); // Only takes effect before the first table is created.
+			this.writeConnection.setAutoCommit(false);
+			if (version == 0)
+			{
+				System.out.println("info: Initialising LogDB: " + this.location);
+				stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_TABLE);
+				for (String ddl : DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_INDICES)
+					stmt.execute(ddl);
+				stmt.execute(DiscordMonitorLogDB.CREATE_NAME_DICTIONARY_TABLE);
+				stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_VIEW);
+				stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_FTS_TABLE);
+				DiscordMonitorLogDB.createRetentionTables(stmt);
+				stmt.execute(DiscordMonitorLogDB.CREATE_RETENTION_USAGE_TABLE);
+			}
+			else
+			{
+				System.out.println("info: Upgrading LogDB from schema version " + version + " to " + DiscordMonitorLogDB.SCHEMA_VERSION + ": " + this.location);
+				if (version < 2)
+					DiscordMonitorLogDB.migrateToVersion2(stmt);
+				if (version < 3)
+					DiscordMonitorLogDB.migrateToVersion3(stmt);
+				if (version < 4)
+					DiscordMonitorLogDB.createRetentionTables(stmt);
+				if (version < 5)
+					DiscordMonitorLogDB.migrateToVersion5(stmt);
+				// Views hold no data, so are simply recreated from the current schema rather than migrated.
+				stmt.execute("DROP VIEW IF EXISTS message_event_view");
+				stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_VIEW);
+			}
+			stmt.execute("PRAGMA user_version=" + DiscordMonitorLogDB.SCHEMA_VERSION);
+			this.writeConnection.commit();
+			this.writeConnection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Moves the names stored with every version 1 event into name_dictionary.
+	 * Each distinct name is recorded from the first time it was seen, so names reverted to after a rename keep their original start time.
+	 * Version 1 did not record the recipients of DMs, whose labels therefore only show the author after migration.
+	 */
+	private static void migrateToVersion2(Statement stmt) throws SQLException
+	{
+		stmt.execute(DiscordMonitorLogDB.CREATE_NAME_DICTIONARY_TABLE);
+		stmt.execute("INSERT OR IGNORE INTO name_dictionary "
+			+ "SELECT 'SERVER', 0, server_id, MIN(event_time), server_name FROM message_event "
+			+ "WHERE channel_type = 'TEXT' AND server_id IS NOT NULL AND server_name IS NOT NULL GROUP BY server_id, server_name");
+		stmt.execute("INSERT OR IGNORE INTO name_dictionary "
+			+ "SELECT 'CHANNEL', 0, channel_id, MIN(event_time), channel_name FROM message_event "
+			+ "WHERE channel_type <> 'PRIVATE' AND channel_id IS NOT NULL AND channel_name IS NOT NULL GROUP BY channel_id, channel_name");
+		stmt.execute("INSERT OR IGNORE INTO name_dictionary "
+			+ "SELECT 'MEMBER', server_id, user_id, MIN(event_time), author_name FROM message_event "
+			+ "WHERE channel_type = 'TEXT' AND server_id IS NOT NULL AND user_id IS NOT NULL AND author_name IS NOT NULL GROUP BY server_id, user_id, author_name");
+		stmt.execute("INSERT OR IGNORE INTO name_dictionary "
+			+ "SELECT 'USER', 0, user_id, MIN(event_time), author_name FROM message_event "
+			+ "WHERE channel_type <> 'TEXT' AND user_id IS NOT NULL AND author_name IS NOT NULL GROUP BY user_id, author_name");
+
+		// Rebuild message_event without its name columns. event_id is kept, so message_fts rowids remain valid.
+		stmt.execute("ALTER TABLE message_event RENAME TO message_event_v1");
+		stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_TABLE_V2);
+		stmt.execute("INSERT INTO message_event(event_id, message_id, event_type, event_time, is_time_approximate, channel_type, "
+			+ "server_id, channel_id, user_id, recipient_id, content, embeds, attachments) "
+			+ "SELECT event_id, message_id, event_type, event_time, is_time_approximate, channel_type, "
+			+ "server_id, channel_id, user_id, NULL, content, embeds, attachments FROM message_event_v1");
+		stmt.execute("DROP TABLE message_event_v1"); // Along with its indices, whose names are reused below
+		for (String ddl : DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_INDICES_V2)
+			stmt.execute(ddl);
+	}
+
+	/**
+	 * Numbers the revisions of existing events. Their content stays stored in full.
+	 */
+	private static void migrateToVersion3(Statement stmt) throws SQLException
+	{
+		stmt.execute("ALTER TABLE message_event ADD COLUMN revision INTEGER");
+		stmt.execute("ALTER TABLE message_event ADD COLUMN is_delta INTEGER NOT NULL DEFAULT 0");
+		stmt.execute("UPDATE message_event SET revision = (SELECT COUNT(*) FROM message_event p "
+			+ "WHERE p.message_id = message_event.message_id AND p.event_type <> 'DELETE' AND p.event_id < message_event.event_id) "
+			+ "WHERE event_type <> 'DELETE'");
+		stmt.execute("DROP INDEX message_event_message");
+		stmt.execute("CREATE INDEX message_event_message ON message_event(message_id, revision)");
+	}
+
+	/**
+	 * Adds the tables retention is tracked in (schema version 4). Events stored before then are not linked to any identifier and are never pruned.
+	 */
+	private static void createRetentionTables(Statement stmt) throws SQLException
+	{
+		stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_TARGET_TABLE);
+		stmt.execute(DiscordMonitorLogDB.CREATE_MESSAGE_EVENT_TARGET_INDEX);
+		stmt.execute(DiscordMonitorLogDB.CREATE_ATTACHMENT_FILE_TABLE);
+		stmt.execute(DiscordMonitorLogDB.CREATE_ATTACHMENT_FILE_INDEX);
+	}
+
+	/** Adds up what each identifier retains so far into retention_usage. */
+	private static void migrateToVersion5(Statement stmt) throws SQLException
+	{
+		stmt.execute("CREATE TABLE retention_usage (target_list TEXT NOT NULL, target_label TEXT NOT NULL, size INTEGER NOT NULL, "
+			+ "PRIMARY KEY (target_list, target_label)) WITHOUT ROWID");
+		stmt.execute("INSERT INTO retention_usage(target_list, target_label, size) "
+			+ "SELECT t.target_list, t.target_label, SUM(IFNULL(LENGTH(CAST(e.content AS BLOB)), 0) + IFNULL(LENGTH(CAST(e.embeds AS BLOB)), 0) "
+				+ "+ IFNULL(LENGTH(CAST(e.attachments AS BLOB)), 0)) "
+			+ "+ (SELECT IFNULL(SUM(f.size), 0) FROM attachment_file f WHERE f.message_id IN ("
+				+ "SELECT e2.message_id FROM message_event_target t2 JOIN message_event e2 ON e2.event_id = t2.event_id "
+				+ "WHERE t2.target_list = t.target_list AND t2.target_label = t.target_label)) "
+			+ "FROM message_event_target t JOIN message_event e ON e.event_id = t.event_id GROUP BY t.target_list, t.target_label");
+	}
+
+	/** Switches the database to incremental auto-vacuuming if it is not already, which requires a full VACUUM once. */
+	private void enableIncrementalVacuum() throws SQLException
+	{
+		try (Statement stmt = this.writeConnection.createStatement())
+		{
+			try (ResultSet rs = stmt.executeQuery("PRAGMA auto_vacuum"))
+			{
+				if (rs.next() && rs.getInt(1) == 2) // INCREMENTAL
+					return;
+			}
+			System.out.println("info: Enabling incremental vacuuming of LogDB for compaction. This requires a one-time full VACUUM, which may take a while: " + this.location);
+			stmt.execute("PRAGMA auto_vacuum=INCREMENTAL");
+			stmt.execute("VACUUM");
+		}
+	}
+
+	/**
+	 * Queues the given record to be written and indexed.
+	 * Blocks only if the writer thread has fallen {@value #WRITE_QUEUE_CAPACITY} records behind.
+	 */
+	public void submit(MessageEventRecord record)
+	{
+		try
+		{
+			this.writeQueue.put(record);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			System.out.println("warning: Interrupted while queueing message " + record.messageId + " for LogDB. Message not stored.");
+		}
+	}
+
+	/**
+	 * Records a downloaded attachment of the given message, so that compaction deletes it along with the message's last event.
+	 * May be called from any thread.
+	 */
+	public void recordAttachmentFile(long messageId, File path, long size)
+	{
+		this.pendingAttachmentFiles.add(new AttachmentFile(messageId, path, size, DiscordMonitorLogDB.toEpochNanos(OffsetDateTime.now())));
+	}
+
+	private void runWriter()
+	{
+		List<MessageEventRecord> batch = new ArrayList<>(DiscordMonitorLogDB.MAX_WRITE_BATCH_SIZE);
+		boolean isEndOfQueue = false;
+		try (PreparedStatement insertEvent = this.writeConnection.prepareStatement(
+				"INSERT INTO message_event(message_id, event_type, event_time, is_time_approximate, channel_type, "
+				+ "server_id, channel_id, user_id, recipient_id, revision, is_delta, content, embeds, attachments) "
+				+ "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?)", Statement.RETURN_GENERATED_KEYS);
+			PreparedStatement selectLatestRevisions = this.writeConnection.prepareStatement(
+				DiscordMonitorLogDB.SELECT_REVISIONS_DESCENDING);
+			PreparedStatement selectNameAsOf = this.writeConnection.prepareStatement(
+				"SELECT valid_from, name FROM name_dictionary WHERE name_type = ? AND scope_id = ? AND entity_id = ? AND valid_from <= ? "
+				+ "ORDER BY valid_from DESC LIMIT 1");
+			PreparedStatement insertName = this.writeConnection.prepareStatement(
+				"INSERT OR REPLACE INTO name_dictionary(name_type, scope_id, entity_id, valid_from, name) VALUES (?,?,?,?,?)");
+			PreparedStatement insertFts = this.writeConnection.prepareStatement(
+				"INSERT INTO message_fts(rowid, content) VALUES (?,?)");
+			PreparedStatement selectLastAuthor = this.writeConnection.prepareStatement(
+				"SELECT user_id FROM message_event WHERE message_id = ? AND user_id IS NOT NULL ORDER BY event_id DESC LIMIT 1");
+			PreparedStatement selectExistingEvent = this.writeConnection.prepareStatement(
+				"SELECT 1 FROM message_event WHERE message_id = ? AND event_type = ? AND event_time = ?");
+			PreparedStatement insertTarget = this.writeConnection.prepareStatement(
+				"INSERT OR IGNORE INTO message_event_target(target_list, target_label, event_id) VALUES (?,?,?)");
+			PreparedStatement insertAttachmentFile = this.writeConnection.prepareStatement(
+				"INSERT OR REPLACE INTO attachment_file(path, message_id, size, download_time) VALUES (?,?,?,?)");
+			PreparedStatement updateRetentionUsage = this.writeConnection.prepareStatement(
+				"UPDATE retention_usage SET size = size + ? WHERE target_list = ? AND target_label = ?");
+			PreparedStatement insertRetentionUsage = this.writeConnection.prepareStatement(
+				"INSERT INTO retention_usage(size, target_list, target_label) VALUES (?,?,?)");
+			// Walks the (few) events of the message rather than the (many) events of the identifier.
+			PreparedStatement selectOtherRetainedEvent = this.writeConnection.prepareStatement(
+				"SELECT 1 FROM message_event e CROSS JOIN message_event_target t ON t.event_id = e.event_id "
+				+ "WHERE e.message_id = ? AND t.target_list = ? AND t.target_label = ? AND t.event_id <> ? LIMIT 1");
+			PreparedStatement selectAttachmentFileSize = this.writeConnection.prepareStatement(
+				"SELECT IFNULL(SUM(size), 0) FROM attachment_file WHERE message_id = ?"))
+		{
+			this.selectNameAsOf = selectNameAsOf;
+			this.insertName = insertName;
+			this.selectLatestRevisions = selectLatestRevisions;
+			this.updateRetentionUsage = updateRetentionUsage;
+			this.insertRetentionUsage = insertRetentionUsage;
+			this.selectOtherRetainedEvent = selectOtherRetainedEvent;
+			this.selectAttachmentFileSize = selectAttachmentFileSize;
+			boolean isCompactionPending = false;
+			while (!isEndOfQueue)
+			{
+				// While compaction is under way, only checks for records between steps.
+				MessageEventRecord first = this.writeQueue.poll(isCompactionPending ? 0 : DiscordMonitorLogDB.IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				this.writeAttachmentFiles(insertAttachmentFile);
+				if (first == null)
+				{ // Idle
+					isCompactionPending = this.compactIfDue();
+					continue;
+				}
+				batch.add(first);
+				this.writeQueue.drainTo(batch, DiscordMonitorLogDB.MAX_WRITE_BATCH_SIZE - 1);
+				if (batch.get(batch.size() - 1) == DiscordMonitorLogDB.END_OF_QUEUE)
+				{
+					batch.remove(batch.size() - 1);
+					isEndOfQueue = true;
+				}
+
+				try
+				{
+					this.writeTransaction(batch, insertEvent, insertFts, selectLastAuthor, selectExistingEvent, insertTarget);
+					for (MessageEventRecord record : batch)
+						if (record.journalEntry != null)
+							record.journalEntry.release();
+				}
+				catch (SQLException | RuntimeException e)
+				{
+					if (batch.size() == 1)
+						DiscordMonitorLogDB.onWriteFailed(batch.get(0), e);
+					else
+					{ // Isolate the failing record(s), so that the rest of the batch is not lost with them.
+						System.out.println("warning: Unable to write " + batch.size() + " record(s) to LogDB in one transaction: " + e.toString()
+							+ ". Retrying them one at a time.");
+						for (MessageEventRecord record : batch)
+						{
+							try
+							{
+								this.writeTransaction(Collections.singletonList(record), insertEvent, insertFts, selectLastAuthor, selectExistingEvent, insertTarget);
+								if (record.journalEntry != null)
+									record.journalEntry.release();
+							}
+							catch (SQLException | RuntimeException e2)
+							{
+								DiscordMonitorLogDB.onWriteFailed(record, e2);
+							}
+						}
+					}
+				}
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			System.out.println("warning: LogDB writer interrupted. " + (batch.size() + this.writeQueue.size()) + " record(s) not stored.");
+		}
+		catch (SQLException e)
+		{
+			System.out.println("fatal: LogDB writer failed: " + e.toString());
+			e.printStackTrace();
+		}
+	}
+
+	/** Writes the given records in a single transaction, rolling it back if any record fails. */
+	private void writeTransaction(List<MessageEventRecord> records, PreparedStatement insertEvent, PreparedStatement insertFts, PreparedStatement selectLastAuthor,
+		PreparedStatement selectExistingEvent, PreparedStatement insertTarget) throws SQLException
+	{
+		try
+		{
+			this.writeConnection.setAutoCommit(false);
+			for (MessageEventRecord record : records)
+				this.writeRecord(record, insertEvent, insertFts, selectLastAuthor, selectExistingEvent, insertTarget);
+			this.writeConnection.commit();
+		}
+		catch (SQLException | RuntimeException e)
+		{
+			// May hold names and revisions from the rolled back transaction.
+			this.latestNames.clear();
+			this.latestRevisions.clear();
+			try
+			{
+				this.writeConnection.rollback();
+			}
+			catch (SQLException e2)
+			{
+				System.out.println("error: LogDB rollback failed: " + e2.toString());
+			}
+			throw e;
+		}
+		finally
+		{
+			this.writeConnection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Reports a record that could not be written.
+	 * If the failure may be transient (e.g. the disk is full), the record's journal entry is kept so that it is replayed on the next start.
+	 * Otherwise, retrying would fail the same way, so the journal entry is released and the record discarded.
+	 */
+	private static void onWriteFailed(MessageEventRecord record, Exception e)
+	{
+		String outcome = "Record discarded.";
+		if (record.journalEntry != null)
+		{
+			if (e instanceof SQLException && DiscordMonitorLogDB.isTransientFailure((SQLException)e))
+				outcome = "Record kept in the event journal for replay on the next start.";
+			else
+				record.journalEntry.release();
+		}
+		System.out.printf("error: Unable to write %s event of message ID %d to LogDB: %s. %s\n", record.eventType, record.messageId, e.toString(), outcome);
+	}
+
+	/** Returns whether the given failure stems from the state of the database or its environment rather than the record written. */
+	private static boolean isTransientFailure(SQLException e)
+	{
+		switch (e.getErrorCode() & 0xff) // Primary SQLite result code
+		{
+			case 5: // SQLITE_BUSY
+			case 6: // SQLITE_LOCKED
+			case 7: // SQLITE_NOMEM
+			case 10: // SQLITE_IOERR
+			case 13: // SQLITE_FULL
+			case 14: // SQLITE_CANTOPEN
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void writeRecord(MessageEventRecord record, PreparedStatement insertEvent, PreparedStatement insertFts, PreparedStatement selectLastAuthor,
+		PreparedStatement selectExistingEvent, PreparedStatement insertTarget) throws SQLException
+	{
+		long eventTime = DiscordMonitorLogDB.toEpochNanos(record.time);
+		if (record.isPossiblyStored)
+		{
+			selectExistingEvent.setLong(1, record.messageId);
+			selectExistingEvent.setString(2, record.eventType.name());
+			selectExistingEvent.setLong(3, eventTime);
+			try (ResultSet rs = selectExistingEvent.executeQuery())
+			{
+				if (rs.next())
+					return;
+			}
+		}
+
+		Long userId = record.userId;
+		if (record.eventType == MessageEventType.DELETE && userId == null)
+		{ // Deletions do not say who sent the message. Carry the author over from earlier events, if any.
+			selectLastAuthor.setLong(1, record.messageId);
+			try (ResultSet rs = selectLastAuthor.executeQuery())
+			{
+				if (rs.next())
+					userId = rs.getLong(1);
+			}
+		}
+
+		if (record.channelType == ChannelType.TEXT)
+		{
+			this.recordName(NameType.SERVER, 0, record.serverId, eventTime, record.serverName);
+			this.recordName(NameType.CHANNEL, 0, record.channelId, eventTime, record.channelName);
+			if (record.serverId != null)
+				this.recordName(NameType.MEMBER, record.serverId, record.userId, eventTime, record.authorName);
+		}
+		else
+		{
+			if (record.channelType == ChannelType.GROUP)
+				this.recordName(NameType.CHANNEL, 0, record.channelId, eventTime, record.channelName);
+			this.recordName(NameType.USER, 0, record.userId, eventTime, record.authorName);
+			this.recordName(NameType.USER, 0, record.recipientId, eventTime, record.recipientName);
+		}
+
+		insertEvent.setLong(1, record.messageId);
+		insertEvent.setString(2, record.eventType.name());
+		insertEvent.setLong(3, eventTime);
+		insertEvent.setInt(4, record.isTimeApproximate ? 1 : 0);
+		insertEvent.setString(5, record.channelType.name());
+		DiscordMonitorLogDB.setNullableLong(insertEvent, 6, record.serverId);
+		DiscordMonitorLogDB.setNullableLong(insertEvent, 7, record.channelId);
+		DiscordMonitorLogDB.setNullableLong(insertEvent, 8, userId);
+		DiscordMonitorLogDB.setNullableLong(insertEvent, 9, record.recipientId);
+		long storedSize;
+		if (record.eventType == MessageEventType.DELETE)
+		{
+			storedSize = 0;
+			insertEvent.setNull(10, Types.INTEGER);
+			insertEvent.setInt(11, 0);
+			insertEvent.setNull(12, Types.VARCHAR);
+			insertEvent.setNull(13, Types.VARCHAR);
+			insertEvent.setNull(14, Types.VARCHAR);
+		}
+		else
+		{
+			String embeds = DiscordMonitorLogDB.toJsonArray(record.embedJson);
+			String attachments = DiscordMonitorLogDB.toJsonArray(record.attachmentJson);
+			MessageRevision previous = this.latestRevisions.get(record.messageId);
+			if (previous == null)
+				previous = this.readRevision(this.selectLatestRevisions, record.messageId, Integer.MAX_VALUE);
+
+			MessageRevision current = null;
+			storedSize = 0;
+			if (previous != null && previous.deltaCount + 1 < DiscordMonitorLogDB.REVISION_SNAPSHOT_INTERVAL)
+			{
+				String contentDelta = DiscordMonitorTextDelta.encode(previous.content, record.content);
+				String embedsDelta = DiscordMonitorTextDelta.encode(previous.embeds, embeds);
+				String attachmentsDelta = DiscordMonitorTextDelta.encode(previous.attachments, attachments);
+				// Deltas of wholly rewritten messages are no smaller than a snapshot. Store these in full.
+				if (contentDelta.length() + embedsDelta.length() + attachmentsDelta.length()
+					< DiscordMonitorLogDB.length(record.content) + DiscordMonitorLogDB.length(embeds) + DiscordMonitorLogDB.length(attachments))
+				{
+					current = new MessageRevision(previous.revision + 1, previous.deltaCount + 1, record.content, embeds, attachments);
+					insertEvent.setInt(11, 1);
+					insertEvent.setString(12, contentDelta);
+					insertEvent.setString(13, embedsDelta);
+					insertEvent.setString(14, attachmentsDelta);
+					storedSize = DiscordMonitorLogDB.storedSize(contentDelta, embedsDelta, attachmentsDelta);
+				}
+			}
+			if (current == null)
+			{
+				current = new MessageRevision(previous == null ? 0 : previous.revision + 1, 0, record.content, embeds, attachments);
+				insertEvent.setInt(11, 0);
+				insertEvent.setString(12, record.content);
+				insertEvent.setString(13, embeds);
+				insertEvent.setString(14, attachments);
+				storedSize = DiscordMonitorLogDB.storedSize(record.content, embeds, attachments);
+			}
+			insertEvent.setInt(10, current.revision);
+			this.latestRevisions.put(record.messageId, current);
+		}
+		insertEvent.executeUpdate();
+
+		long eventId;
+		try (ResultSet keys = insertEvent.getGeneratedKeys())
+		{
+			keys.next();
+			eventId = keys.getLong(1);
+		}
+		if (record.content != null && !record.content.isEmpty())
+		{
+			insertFts.setLong(1, eventId);
+			insertFts.setString(2, record.content);
+			insertFts.executeUpdate();
+		}
+		this.insertTargets(insertTarget, DiscordMonitorLogDB.TARGET_LIST_LOG_TARGETS, record.logTargetLabels, eventId, record.messageId, storedSize);
+		this.insertTargets(insertTarget, DiscordMonitorLogDB.TARGET_LIST_NOTIFICATION_WATCHLIST, record.watchlistLabels, eventId, record.messageId, storedSize);
+	}
+
+	/** Links the given event to the identifiers retaining it, adding it (and its message's attachment files, if new to them) to their usage. */
+	private void insertTargets(PreparedStatement insertTarget, String targetList, List<String> targetLabels, long eventId, long messageId, long storedSize)
+		throws SQLException
+	{
+		Long attachmentFileSize = null; // Looked up once needed
+		for (String targetLabel : targetLabels)
+		{
+			insertTarget.setString(1, targetList);
+			insertTarget.setString(2, targetLabel);
+			insertTarget.setLong(3, eventId);
+			if (insertTarget.executeUpdate() == 0)
+				continue; // Listed twice
+			long addedSize = storedSize;
+			if (!this.retainsOtherEventOf(targetList, targetLabel, messageId, eventId))
+			{
+				if (attachmentFileSize == null)
+					attachmentFileSize = this.getAttachmentFileSize(messageId);
+				addedSize += attachmentFileSize;
+			}
+			this.addRetentionUsage(targetList, targetLabel, addedSize);
+		}
+	}
+
+	/** Adds <em>delta</em> bytes (possibly negative) to the given identifier's retention_usage. */
+	private void addRetentionUsage(String targetList, String targetLabel, long delta) throws SQLException
+	{
+		this.updateRetentionUsage.setLong(1, delta);
+		this.updateRetentionUsage.setString(2, targetList);
+		this.updateRetentionUsage.setString(3, targetLabel);
+		if (this.updateRetentionUsage.executeUpdate() > 0)
+			return;
+		this.insertRetentionUsage.setLong(1, delta);
+		this.insertRetentionUsage.setString(2, targetList);
+		this.insertRetentionUsage.setString(3, targetLabel);
+		this.insertRetentionUsage.executeUpdate();
+	}
+
+	/** Returns whether the given identifier retains any event of the given message other than <em>eventId</em>. */
+	private boolean retainsOtherEventOf(String targetList, String targetLabel, long messageId, long eventId) throws SQLException
+	{
+		this.selectOtherRetainedEvent.setLong(1, messageId);
+		this.selectOtherRetainedEvent.setString(2, targetList);
+		this.selectOtherRetainedEvent.setString(3, targetLabel);
+		this.selectOtherRetainedEvent.setLong(4, eventId);
+		try (ResultSet rs = this.selectOtherRetainedEvent.executeQuery())
+		{
+			return rs.next();
+		}
+	}
+
+	/** Returns the total size of the attachment files recorded for the given message. */
+	private long getAttachmentFileSize(long messageId) throws SQLException
+	{
+		this.selectAttachmentFileSize.setLong(1, messageId);
+		try (ResultSet rs = this.selectAttachmentFileSize.executeQuery())
+		{
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	/**
+	 * Writes the attachments recorded since the last call, adding each to the usage of the identifiers retaining events of its message.
+	 * Failures are reported; the files are then never deleted by compaction.
+	 */
+	private void writeAttachmentFiles(PreparedStatement insertAttachmentFile)
+	{
+		AttachmentFile file;
+		while ((file = this.pendingAttachmentFiles.poll()) != null)
+		{
+			try (PreparedStatement selectPreviousSize = this.writeConnection.prepareStatement(
+					"SELECT size FROM attachment_file WHERE path = ? AND message_id = ?");
+				PreparedStatement updateUsage = this.writeConnection.prepareStatement(
+					"UPDATE retention_usage SET size = size + ?1 WHERE EXISTS ("
+					+ "SELECT 1 FROM message_event e CROSS JOIN message_event_target t ON t.event_id = e.event_id WHERE e.message_id = ?2 "
+					+ "AND t.target_list = retention_usage.target_list AND t.target_label = retention_usage.target_label)"))
+			{
+				this.writeConnection.setAutoCommit(false);
+				long previousSize = 0; // If downloaded again
+				selectPreviousSize.setString(1, file.path.getAbsolutePath());
+				selectPreviousSize.setLong(2, file.messageId);
+				try (ResultSet rs = selectPreviousSize.executeQuery())
+				{
+					if (rs.next())
+						previousSize = rs.getLong(1);
+				}
+				insertAttachmentFile.setString(1, file.path.getAbsolutePath());
+				insertAttachmentFile.setLong(2, file.messageId);
+				insertAttachmentFile.setLong(3, file.size);
+				insertAttachmentFile.setLong(4, file.downloadTime);
+				insertAttachmentFile.executeUpdate();
+				updateUsage.setLong(1, file.size - previousSize);
+				updateUsage.setLong(2, file.messageId);
+				updateUsage.executeUpdate();
+				this.writeConnection.commit();
+			}
+			catch (SQLException e)
+			{
+				System.out.println("warning: Unable to record downloaded attachment in LogDB: " + file.path + ": " + e.toString());
+				try
+				{
+					this.writeConnection.rollback();
+				}
+				catch (SQLException e2)
+				{
+					System.out.println("error: LogDB rollback failed: " + e2.toString());
+				}
+			}
+			finally
+			{
+				try
+				{
+					this.writeConnection.setAutoCommit(true);
+				}
+				catch (SQLException e)
+				{
+					System.out.println("error: Unable to restore LogDB auto-commit: " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a compaction step if a pass is under way or due. Announces the totals of each pass that pruned anything.
+	 * @return Whether the pass is still under way
+	 */
+	private boolean compactIfDue()
+	{
+		if (this.retentionPolicies.isEmpty() || System.nanoTime() - this.nextCompactionNanos < 0)
+			return false;
+
+		boolean isPending;
+		try
+		{
+			isPending = this.compactStep();
+		}
+		catch (SQLException e)
+		{
+			System.out.println("error: LogDB compaction failed: " + e.toString());
+			this.latestRevisions.clear(); // May hold revisions from the rolled back transaction.
+			try
+			{
+				this.writeConnection.rollback();
+			}
+			catch (SQLException e2)
+			{
+				System.out.println("error: LogDB rollback failed: " + e2.toString());
+			}
+			isPending = false;
+		}
+		finally
+		{
+			try
+			{
+				this.writeConnection.setAutoCommit(true);
+			}
+			catch (SQLException e)
+			{
+				System.out.println("error: Unable to restore LogDB auto-commit: " + e.toString());
+			}
+		}
+
+		if (!isPending)
+		{
+			this.nextCompactionNanos = System.nanoTime() + DiscordMonitorLogDB.COMPACTION_INTERVAL_NANOS;
+			if (this.compactedEventCount > 0)
+				System.out.printf("info: LogDB compaction pruned %d event(s) and %d attachment file(s) (%d bytes).\n",
+					this.compactedEventCount, this.compactedFileCount, this.compactedFileBytes);
+			this.compactedEventCount = 0;
+			this.compactedFileCount = 0;
+			this.compactedFileBytes = 0;
+		}
+		return isPending;
+	}
+
+	/**
+	 * Lets go of up to {@value #COMPACTION_BATCH_SIZE} events on behalf of the first retention policy that has any to let go of,
+	 * pruning those no other identifier retains, then reclaims free pages.
+	 * @return 'false' if no policy had anything to let go of
+	 */
+	private boolean compactStep() throws SQLException
+	{
+		long nowNanos = DiscordMonitorLogDB.toEpochNanos(OffsetDateTime.now());
+		for (RetentionPolicy policy : this.retentionPolicies)
+		{
+			this.writeConnection.setAutoCommit(false);
+			List<Long> eventIds = new ArrayList<>();
+			if (policy.maxAgeNanos != null)
+				this.selectEventsOlderThan(policy, nowNanos - policy.maxAgeNanos, eventIds);
+			if (eventIds.isEmpty() && policy.maxSize != null)
+				this.selectEventsBeyondSize(policy, eventIds);
+			if (eventIds.isEmpty())
+			{
+				this.writeConnection.commit();
+				continue;
+			}
+
+			List<File> deletedFiles = new ArrayList<>();
+			try (PreparedStatement selectEvent = this.writeConnection.prepareStatement(
+					"SELECT e.message_id, " + DiscordMonitorLogDB.EVENT_SIZE_EXPR + " FROM message_event e WHERE e.event_id = ?");
+				PreparedStatement deleteTarget = this.writeConnection.prepareStatement(
+					"DELETE FROM message_event_target WHERE target_list = ? AND target_label = ? AND event_id = ?"))
+			{
+				for (long eventId : eventIds)
+				{
+					long messageId;
+					long removedSize;
+					selectEvent.setLong(1, eventId);
+					try (ResultSet rs = selectEvent.executeQuery())
+					{
+						if (!rs.next())
+							continue;
+						messageId = rs.getLong(1);
+						removedSize = rs.getLong(2);
+					}
+					deleteTarget.setString(1, policy.targetList);
+					deleteTarget.setString(2, policy.targetLabel);
+					deleteTarget.setLong(3, eventId);
+					deleteTarget.executeUpdate();
+					if (!this.retainsOtherEventOf(policy.targetList, policy.targetLabel, messageId, eventId))
+						removedSize += this.getAttachmentFileSize(messageId);
+					this.addRetentionUsage(policy.targetList, policy.targetLabel, -removedSize);
+				}
+			}
+			this.pruneUnretainedEvents(eventIds, deletedFiles);
+			this.writeConnection.commit();
+			this.writeConnection.setAutoCommit(true);
+
+			// Only once no longer referenced, in case the transaction had failed.
+			for (File file : deletedFiles)
+			{
+				long size = file.length();
+				if (file.delete())
+				{
+					this.compactedFileBytes += size;
+					++this.compactedFileCount;
+					this.onAttachmentFileDeleted.accept(file, size);
+				}
+				else if (file.exists())
+					System.out.println("warning: Unable to delete expired attachment: " + file);
+			}
+
+			try (Statement stmt = this.writeConnection.createStatement();
+				ResultSet rs = stmt.executeQuery("PRAGMA incremental_vacuum(" + DiscordMonitorLogDB.INCREMENTAL_VACUUM_PAGES + ")"))
+			{
+				while (rs.next())
+					; // Each step frees a page.
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/** Adds the oldest events stored for the given policy's identifier before <em>cutoffNanos</em>, up to a batch. */
+	private void selectEventsOlderThan(RetentionPolicy policy, long cutoffNanos, List<Long> eventIds) throws SQLException
+	{
+		try (PreparedStatement stmt = this.writeConnection.prepareStatement(
+			"SELECT t.event_id FROM message_event_target t JOIN message_event e ON e.event_id = t.event_id "
+			+ "WHERE t.target_list = ? AND t.target_label = ? AND e.event_time < ? ORDER BY t.event_id LIMIT ?"))
+		{
+			stmt.setString(1, policy.targetList);
+			stmt.setString(2, policy.targetLabel);
+			stmt.setLong(3, cutoffNanos);
+			stmt.setInt(4, DiscordMonitorLogDB.COMPACTION_BATCH_SIZE);
+			try (ResultSet rs = stmt.executeQuery())
+			{
+				while (rs.next())
+					eventIds.add(rs.getLong(1));
+			}
+		}
+	}
+
+	/**
+	 * Adds the oldest events stored for the given policy's identifier, up to a batch, until their stored size covers the amount by which
+	 * the identifier's {@linkplain #CREATE_RETENTION_USAGE_TABLE usage} exceeds the policy's maximum size.
+	 * Attachments are only freed with the last event of their message, so further steps may be needed.
+	 */
+	private void selectEventsBeyondSize(RetentionPolicy policy, List<Long> eventIds) throws SQLException
+	{
+		long excess;
+		try (PreparedStatement stmt = this.writeConnection.prepareStatement(
+			"SELECT size FROM retention_usage WHERE target_list = ? AND target_label = ?"))
+		{
+			stmt.setString(1, policy.targetList);
+			stmt.setString(2, policy.targetLabel);
+			try (ResultSet rs = stmt.executeQuery())
+			{
+				excess = (rs.next() ? rs.getLong(1) : 0) - policy.maxSize;
+			}
+		}
+		if (excess <= 0)
+			return;
+
+		try (PreparedStatement stmt = this.writeConnection.prepareStatement(
+			"SELECT t.event_id, " + DiscordMonitorLogDB.EVENT_SIZE_EXPR + " FROM message_event_target t JOIN message_event e ON e.event_id = t.event_id "
+			+ "WHERE t.target_list = ? AND t.target_label = ? ORDER BY t.event_id LIMIT ?"))
+		{
+			stmt.setString(1, policy.targetList);
+			stmt.setString(2, policy.targetLabel);
+			stmt.setInt(3, DiscordMonitorLogDB.COMPACTION_BATCH_SIZE);
+			try (ResultSet rs = stmt.executeQuery())
+			{
+				while (excess > 0 && rs.next())
+				{
+					eventIds.add(rs.getLong(1));
+					excess -= rs.getLong(2);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes those of the given events that no identifier retains any longer, with their full-text index entries.
+	 * Revisions stored as deltas against a deleted revision are rewritten in full.
+	 * Messages left without events also lose their downloaded attachments, which are added to <em>deletedFiles</em> for the caller to delete.
+	 */
+	private void pruneUnretainedEvents(List<Long> eventIds, List<File> deletedFiles) throws SQLException
+	{
+		Map<Long, Set<Long>> unretainedEventIds = new LinkedHashMap<>(); // By message ID
+		try (PreparedStatement stmt = this.writeConnection.prepareStatement(
+			"SELECT message_id FROM message_event e WHERE event_id = ? AND NOT EXISTS (SELECT 1 FROM message_event_target t WHERE t.event_id = e.event_id)"))
+		{
+			for (long eventId : eventIds)
+			{
+				stmt.setLong(1, eventId);
+				try (ResultSet rs = stmt.executeQuery())
+				{
+					if (rs.next())
+						unretainedEventIds.computeIfAbsent(rs.getLong(1), messageId -> new HashSet<>()).add(eventId);
+				}
+			}
+		}
+
+		try (PreparedStatement selectHistory = this.writeConnection.prepareStatement(
+				"SELECT event_id, event_type, revision, is_delta, content, embeds, attachments FROM message_event WHERE message_id = ? ORDER BY event_id");
+			PreparedStatement deleteFts = this.writeConnection.prepareStatement(
+				"INSERT INTO message_fts(message_fts, rowid, content) VALUES ('delete', ?, ?)");
+			PreparedStatement deleteEvent = this.writeConnection.prepareStatement(
+				"DELETE FROM message_event WHERE event_id = ?");
+			PreparedStatement rewriteSnapshot = this.writeConnection.prepareStatement(
+				"UPDATE message_event SET is_delta = 0, content = ?, embeds = ?, attachments = ? WHERE event_id = ?");
+			PreparedStatement updateRewrittenUsage = this.writeConnection.prepareStatement(
+				"UPDATE retention_usage SET size = size + ?1 WHERE EXISTS (SELECT 1 FROM message_event_target t WHERE t.event_id = ?2 "
+				+ "AND t.target_list = retention_usage.target_list AND t.target_label = retention_usage.target_label)");
+			PreparedStatement selectFiles = this.writeConnection.prepareStatement(
+				"SELECT path FROM attachment_file WHERE message_id = ?");
+			PreparedStatement deleteFiles = this.writeConnection.prepareStatement(
+				"DELETE FROM attachment_file WHERE message_id = ?"))
+		{
+			for (Map.Entry<Long, Set<Long>> entry : unretainedEventIds.entrySet())
+			{
+				long messageId = entry.getKey();
+				Set<Long> unretained = entry.getValue();
+				// Read the whole history first, as it is rewritten while walking it.
+				List<Object[]> rows = new ArrayList<>();
+				selectHistory.setLong(1, messageId);
+				try (ResultSet rs = selectHistory.executeQuery())
+				{
+					while (rs.next())
+						rows.add(new Object[]{ rs.getLong(1), rs.getString(2), rs.getInt(3), rs.getInt(4) != 0, rs.getString(5), rs.getString(6), rs.getString(7) });
+				}
+
+				MessageRevision current = null;
+				boolean isPreviousRevisionDeleted = false;
+				int keptCount = 0;
+				for (Object[] row : rows)
+				{
+					long eventId = (Long)row[0];
+					boolean isDelete = MessageEventType.DELETE.name().equals(row[1]);
+					boolean isDelta = (Boolean)row[3];
+					if (!isDelete)
+					{
+						if (!isDelta)
+							current = new MessageRevision((Integer)row[2], 0, (String)row[4], (String)row[5], (String)row[6]);
+						else if (current != null)
+							current = current.applyDelta((Integer)row[2], (String)row[4], (String)row[5], (String)row[6]);
+						else
+							throw new SQLException("Snapshot missing from revision history of message " + messageId);
+					}
+
+					if (unretained.contains(eventId))
+					{
+						if (!isDelete && current.content != null && !current.content.isEmpty())
+						{
+							deleteFts.setLong(1, eventId);
+							deleteFts.setString(2, current.content);
+							deleteFts.executeUpdate();
+						}
+						deleteEvent.setLong(1, eventId);
+						deleteEvent.executeUpdate();
+						++this.compactedEventCount;
+						if (!isDelete)
+							isPreviousRevisionDeleted = true;
+						continue;
+					}
+
+					++keptCount;
+					if (isDelete)
+						continue;
+					if (isDelta && isPreviousRevisionDeleted)
+					{ // Its base is gone. Keep it as a snapshot of its own.
+						rewriteSnapshot.setString(1, current.content);
+						rewriteSnapshot.setString(2, current.embeds);
+						rewriteSnapshot.setString(3, current.attachments);
+						rewriteSnapshot.setLong(4, eventId);
+						rewriteSnapshot.executeUpdate();
+						updateRewrittenUsage.setLong(1, DiscordMonitorLogDB.storedSize(current.content, current.embeds, current.attachments)
+							- DiscordMonitorLogDB.storedSize((String)row[4], (String)row[5], (String)row[6]));
+						updateRewrittenUsage.setLong(2, eventId);
+						updateRewrittenUsage.executeUpdate();
+					}
+					isPreviousRevisionDeleted = false;
+				}
+				this.latestRevisions.remove(messageId);
+
+				if (keptCount == 0)
+				{
+					selectFiles.setLong(1, messageId);
+					try (ResultSet rs = selectFiles.executeQuery())
+					{
+						while (rs.next())
+							deletedFiles.add(new File(rs.getString(1)));
+					}
+					deleteFiles.setLong(1, messageId);
+					deleteFiles.executeUpdate();
+				}
+			}
+		}
+	}
+
+	/** Selects the revisions of a message up to a given revision, newest first. See {@link #readRevision}. */
+	private static final String SELECT_REVISIONS_DESCENDING =
+		"SELECT revision, is_delta, content, embeds, attachments FROM message_event "
+		+ "WHERE message_id = ? AND revision <= ? ORDER BY revision DESC";
+
+	/**
+	 * Rebuilds the given revision of a message (or the latest one before it) from its last snapshot and the deltas since.
+	 * @param selectRevisions {@link #SELECT_REVISIONS_DESCENDING} prepared on the connection to read from
+	 * @return null if no revision of the message is stored
+	 */
+	private MessageRevision readRevision(PreparedStatement selectRevisions, long messageId, int revision) throws SQLException
+	{
+		List<String[]> deltas = new ArrayList<>(); // Newest first
+		MessageRevision snapshot = null;
+		selectRevisions.setLong(1, messageId);
+		selectRevisions.setInt(2, revision);
+		try (ResultSet rs = selectRevisions.executeQuery())
+		{
+			while (snapshot == null && rs.next())
+			{
+				if (rs.getInt(2) == 0)
+					snapshot = new MessageRevision(rs.getInt(1), 0, rs.getString(3), rs.getString(4), rs.getString(5));
+				else
+					deltas.add(new String[]{ rs.getString(1), rs.getString(3), rs.getString(4), rs.getString(5) });
+			}
+		}
+		if (snapshot == null)
+		{
+			if (!deltas.isEmpty())
+				throw new SQLException("Snapshot missing from revision history of message " + messageId);
+			return null;
+		}
+
+		MessageRevision result = snapshot;
+		for (int i = deltas.size() - 1; i >= 0; --i)
+		{
+			String[] delta = deltas.get(i);
+			result = result.applyDelta(Integer.parseInt(delta[0]), delta[1], delta[2], delta[3]);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds a name_dictionary entry for the given entity if its name as of <em>eventTime</em> differs from <em>name</em>.
+	 * Does nothing if either <em>entityId</em> or <em>name</em> is unknown.
+	 */
+	private void recordName(NameType nameType, long scopeId, Long entityId, long eventTime, String name) throws SQLException
+	{
+		if (entityId == null || name == null)
+			return;
+
+		NameKey key = new NameKey(nameType, scopeId, entityId);
+		NameVersion latest = this.latestNames.get(key);
+		if (latest != null && latest.validFrom <= eventTime)
+		{ // Common case: events arrive in order.
+			if (latest.name.equals(name))
+				return;
+		}
+		else
+		{ // Not cached or an out-of-order event (e.g. imported from an older log).
+			this.selectNameAsOf.setString(1, nameType.name());
+			this.selectNameAsOf.setLong(2, scopeId);
+			this.selectNameAsOf.setLong(3, entityId);
+			this.selectNameAsOf.setLong(4, eventTime);
+			try (ResultSet rs = this.selectNameAsOf.executeQuery())
+			{
+				if (rs.next())
+				{
+					NameVersion asOf = new NameVersion(rs.getLong(1), rs.getString(2));
+					if (latest == null)
+						this.latestNames.put(key, latest = asOf);
+					if (asOf.name.equals(name))
+						return;
+				}
+			}
+		}
+
+		this.insertName.setString(1, nameType.name());
+		this.insertName.setLong(2, scopeId);
+		this.insertName.setLong(3, entityId);
+		this.insertName.setLong(4, eventTime);
+		this.insertName.setString(5, name);
+		this.insertName.executeUpdate();
+		if (latest == null || latest.validFrom <= eventTime)
+			this.latestNames.put(key, new NameVersion(eventTime, name));
+	}
+
+	/**
+	 * Returns the most recent events matching the given query, newest first.
+	 * @throws SQLException Thrown if the query failed (e.g. due to invalid FTS5 query syntax).
+	 */
+	public synchronized List<MessageEventRecord> search(SearchQuery query) throws SQLException
+	{
+		List<Object> params = new ArrayList<>();
+		StringBuilder sql = new StringBuilder();
+		if (query.terms != null)
+		{
+			sql.append("SELECT e.* FROM message_fts JOIN message_event_view e ON e.event_id = message_fts.rowid WHERE message_fts MATCH ?");
+			params.add(query.terms);
+		}
+		else
+			sql.append("SELECT e.* FROM message_event_view e WHERE 1");
+
+		if (query.serverId != null)
+		{
+			sql.append(" AND e.server_id = ?");
+			params.add(query.serverId);
+		}
+		if (query.channelId != null)
+		{
+			sql.append(" AND e.channel_id = ?");
+			params.add(query.channelId);
+		}
+		if (query.userId != null)
+		{
+			sql.append(" AND e.user_id = ?");
+			params.add(query.userId);
+		}
+		if (query.after != null)
+		{
+			sql.append(" AND e.event_time >= ?");
+			params.add(DiscordMonitorLogDB.toEpochNanos(query.after));
+		}
+		if (query.before != null)
+		{
+			sql.append(" AND e.event_time < ?");
+			params.add(DiscordMonitorLogDB.toEpochNanos(query.before));
+		}
+		if (query.eventTypes != null && !query.eventTypes.isEmpty())
+		{
+			sql.append(" AND e.event_type IN (");
+			for (MessageEventType eventType : query.eventTypes)
+			{
+				sql.append(eventType == query.eventTypes.iterator().next() ? "?" : ",?");
+				params.add(eventType.name());
+			}
+			sql.append(")");
+		}
+		sql.append(" ORDER BY e.event_id DESC LIMIT ?");
+		params.add(query.limit);
+
+		List<MessageEventRecord> results = new ArrayList<>();
+		List<Integer> deltaRevisions = new ArrayList<>(); // null for records read in full
+		try (PreparedStatement stmt = this.readConnection.prepareStatement(sql.toString()))
+		{
+			for (int i = 0; i < params.size(); ++i)
+				stmt.setObject(i + 1, params.get(i));
+			try (ResultSet rs = stmt.executeQuery())
+			{
+				while (rs.next())
+				{
+					boolean isDelta = rs.getInt("is_delta") != 0;
+					results.add(DiscordMonitorLogDB.readRecord(rs, !isDelta));
+					deltaRevisions.add(isDelta ? rs.getInt("revision") : null);
+				}
+			}
+		}
+
+		try (PreparedStatement selectRevisions = this.readConnection.prepareStatement(DiscordMonitorLogDB.SELECT_REVISIONS_DESCENDING))
+		{
+			for (int i = 0; i < results.size(); ++i)
+			{
+				if (deltaRevisions.get(i) == null)
+					continue;
+				MessageEventRecord record = results.get(i);
+				DiscordMonitorLogDB.setRevision(record, this.readRevision(selectRevisions, record.messageId, deltaRevisions.get(i)));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns every stored event of the given message in the order received, each with the content of its revision.
+	 * Revisions are rebuilt in a single pass over the message's history.
+	 */
+	public synchronized List<MessageEventRecord> getMessageHistory(long messageId) throws SQLException
+	{
+		List<MessageEventRecord> results = new ArrayList<>();
+		try (PreparedStatement stmt = this.readConnection.prepareStatement(
+			"SELECT * FROM message_event_view WHERE message_id = ? ORDER BY event_id"))
+		{
+			stmt.setLong(1, messageId);
+			try (ResultSet rs = stmt.executeQuery())
+			{
+				MessageRevision current = null;
+				while (rs.next())
+				{
+					MessageEventRecord record = DiscordMonitorLogDB.readRecord(rs, false);
+					if (record.eventType != MessageEventType.DELETE)
+					{
+						int revision = rs.getInt("revision");
+						if (rs.getInt("is_delta") == 0)
+							current = new MessageRevision(revision, 0, rs.getString("content"), rs.getString("embeds"), rs.getString("attachments"));
+						else if (current != null)
+							current = current.applyDelta(revision, rs.getString("content"), rs.getString("embeds"), rs.getString("attachments"));
+						else
+							throw new SQLException("Snapshot missing from revision history of message " + messageId);
+						DiscordMonitorLogDB.setRevision(record, current);
+					}
+					results.add(record);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Streams every event stored after the given event ID to <em>visitor</em> in the order stored, each with the content of its revision.
+	 * Events are read {@value #EXPORT_CHUNK_SIZE} at a time and revisions rebuilt against a bounded cache,
+	 * so memory use does not grow with the size of the LogDB.
+	 * @param afterEventId Event ID returned by a previous export, or 0 to export all events
+	 * @return ID of the last event streamed, or <em>afterEventId</em> if there were none
+	 */
+	public synchronized long export(long afterEventId, ExportVisitor visitor) throws SQLException, IOException
+	{
+		Map<Long, MessageRevision> revisions = DiscordMonitorLogDB.newRevisionCache();
+		long lastEventId = afterEventId;
+		try (PreparedStatement selectChunk = this.readConnection.prepareStatement(
+				"SELECT * FROM message_event_view WHERE event_id > ? ORDER BY event_id LIMIT ?");
+			PreparedStatement selectRevisions = this.readConnection.prepareStatement(DiscordMonitorLogDB.SELECT_REVISIONS_DESCENDING))
+		{
+			int chunkCount;
+			do
+			{
+				chunkCount = 0;
+				selectChunk.setLong(1, lastEventId);
+				selectChunk.setInt(2, DiscordMonitorLogDB.EXPORT_CHUNK_SIZE);
+				try (ResultSet rs = selectChunk.executeQuery())
+				{
+					while (rs.next())
+					{
+						++chunkCount;
+						lastEventId = rs.getLong("event_id");
+						boolean isDelta = rs.getInt("is_delta") != 0;
+						MessageEventRecord record = DiscordMonitorLogDB.readRecord(rs, !isDelta);
+						Integer revision = null;
+						if (record.eventType != MessageEventType.DELETE)
+						{
+							revision = rs.getInt("revision");
+							MessageRevision current;
+							if (!isDelta)
+								current = new MessageRevision(revision, 0, record.content, rs.getString("embeds"), rs.getString("attachments"));
+							else
+							{
+								MessageRevision previous = revisions.get(record.messageId);
+								if (previous != null && previous.revision == revision - 1)
+									current = previous.applyDelta(revision, rs.getString("content"), rs.getString("embeds"), rs.getString("attachments"));
+								else if ((current = this.readRevision(selectRevisions, record.messageId, revision)) == null)
+									throw new SQLException("Snapshot missing from revision history of message " + record.messageId);
+								DiscordMonitorLogDB.setRevision(record, current);
+							}
+							revisions.put(record.messageId, current);
+						}
+						visitor.accept(lastEventId, revision, record);
+					}
+				}
+			} while (chunkCount == DiscordMonitorLogDB.EXPORT_CHUNK_SIZE);
+		}
+		return lastEventId;
+	}
+
+	/** Returns the number of stored events of each type. */
+	public synchronized Map<MessageEventType, Long> countEvents() throws SQLException
+	{
+		Map<MessageEventType, Long> counts = new EnumMap<>(MessageEventType.class);
+		for (MessageEventType eventType : MessageEventType.values())
+			counts.put(eventType, 0L);
+		try (Statement stmt = this.readConnection.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT event_type, COUNT(*) FROM message_event GROUP BY event_type"))
+		{
+			while (rs.next())
+				counts.put(MessageEventType.valueOf(rs.getString(1)), rs.getLong(2));
+		}
+		return counts;
+	}
+
+	/** Returns a map keeping the latest revision of the {@value #REVISION_CACHE_CAPACITY} most recently used messages. */
+	private static Map<Long, MessageRevision> newRevisionCache()
+	{
+		return new LinkedHashMap<Long, MessageRevision>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, MessageRevision> eldest)
+			{
+				return this.size() > DiscordMonitorLogDB.REVISION_CACHE_CAPACITY;
+			}
+		};
+	}
+
+	private static void setRevision(MessageEventRecord record, MessageRevision revision)
+	{
+		record.content = revision.content;
+		DiscordMonitorLogDB.fromJsonArray(revision.embeds, record.embedJson);
+		DiscordMonitorLogDB.fromJsonArray(revision.attachments, record.attachmentJson);
+	}
+
+	/** @param withContent whether to read content, embeds and attachments as well (false if stored as deltas) */
+	private static MessageEventRecord readRecord(ResultSet rs, boolean withContent) throws SQLException
+	{
+		MessageEventRecord record = new MessageEventRecord();
+		record.messageId = rs.getLong("message_id");
+		record.eventType = MessageEventType.valueOf(rs.getString("event_type"));
+		record.time = DiscordMonitorLogDB.fromEpochNanos(rs.getLong("event_time"));
+		record.isTimeApproximate = rs.getInt("is_time_approximate") != 0;
+		record.channelType = ChannelType.valueOf(rs.getString("channel_type"));
+		record.serverId = DiscordMonitorLogDB.getNullableLong(rs, "server_id");
+		record.channelId = DiscordMonitorLogDB.getNullableLong(rs, "channel_id");
+		record.userId = DiscordMonitorLogDB.getNullableLong(rs, "user_id");
+		record.recipientId = DiscordMonitorLogDB.getNullableLong(rs, "recipient_id");
+		record.serverName = rs.getString("server_name");
+		record.channelName = rs.getString("channel_name");
+		record.authorName = rs.getString("author_name");
+		if (withContent)
+		{
+			record.content = rs.getString("content");
+			DiscordMonitorLogDB.fromJsonArray(rs.getString("embeds"), record.embedJson);
+			DiscordMonitorLogDB.fromJsonArray(rs.getString("attachments"), record.attachmentJson);
+		}
+		return record;
+	}
+
+	static long toEpochNanos(OffsetDateTime time)
+	{
+		return time.toEpochSecond() * DiscordMonitorLogDB.NANOS_PER_SECOND + time.getNano();
+	}
+
+	static OffsetDateTime fromEpochNanos(long epochNanos)
+	{
+		return Instant.ofEpochSecond(Math.floorDiv(epochNanos, DiscordMonitorLogDB.NANOS_PER_SECOND), Math.floorMod(epochNanos, DiscordMonitorLogDB.NANOS_PER_SECOND))
+			.atOffset(ZoneOffset.UTC);
+	}
+
+	/** Joins already-serialised JSON elements into a JSON array, or returns null if there are none. */
+	private static String toJsonArray(List<String> jsonElements)
+	{
+		if (jsonElements.isEmpty())
+			return null;
+		return "[" + String.join(",", jsonElements) + "]";
+	}
+
+	/** Splits a JSON array written by {@link #toJsonArray(List)} back into elements serialised as they would be logged. */
+	private static void fromJsonArray(String jsonArray, List<String> out)
+	{
+		if (jsonArray == null)
+			return;
+		for (JsonElement element : new JsonParser().parse(jsonArray).getAsJsonArray())
+			out.add(DiscordMonitorBotUtilities.GSON_MESSAGE_ELEMENT_SERIALISER.toJson(element));
+	}
+
+	private static String emptyToNull(String s)
+	{
+		return s.isEmpty() ? null : s;
+	}
+
+	private static int length(String s)
+	{
+		return s != null ? s.length() : 0;
+	}
+
+	/** Returns the number of bytes SQLite stores the given column values in (UTF-8), as counted in retention_usage. */
+	private static long storedSize(String... values)
+	{
+		long size = 0;
+		for (String value : values)
+		{
+			if (value == null)
+				continue;
+			for (int i = 0; i < value.length(); ++i)
+			{
+				char c = value.charAt(i);
+				if (c < 0x80)
+					size += 1;
+				else if (c < 0x800)
+					size += 2;
+				else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+				{
+					size += 4;
+					++i;
+				}
+				else
+					size += 3;
+			}
+		}
+		return size;
+	}
+
+	private static void setNullableLong(PreparedStatement stmt, int index, Long value) throws SQLException
+	{
+		if (value == null)
+			stmt.setNull(index, Types.INTEGER);
+		else
+			stmt.setLong(index, value);
+	}
+
+	private static Long getNullableLong(ResultSet rs, String column) throws SQLException
+	{
+		long value = rs.getLong(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	/** Writes all queued records, then closes the database. */
+	@Override
+	public void close()
+	{
+		try
+		{
+			this.writeQueue.put(DiscordMonitorLogDB.END_OF_QUEUE);
+			this.writerThread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.writerThread.interrupt();
+		}
+
+		try
+		{
+			this.writeConnection.close();
+			this.readConnection.close();
+		}
+		catch (SQLException e)
+		{
+			System.out.println("warning: Unable to cleanly close LogDB: " + e.toString());
+		}
+	}
+}
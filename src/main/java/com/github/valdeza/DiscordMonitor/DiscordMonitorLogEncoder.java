@@ -0,0 +1,277 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+/**
+ * Prints message event records to standard output in the format read back by {@link DiscordMonitorLogParser}.
+ * Other output printed while events are being processed (e.g. hit announcements) goes through the same encoder,
+ * one block per write, so that it is never interleaved with a record.
+ * <p>
+ * Records are written straight into reusable character and byte buffers, replacing bell characters as fields are copied in,
+ * so that printing a record allocates nothing once the buffers have grown to fit.
+ * Timestamps are formatted as by {@link DiscordMonitor#LOG_DATETIME_FORMAT}, but the date and time of day up to the second
+ * (as well as the offset) are only formatted once per second; only the nanosecond digits are filled in per record.
+ */
+class DiscordMonitorLogEncoder
+{
+	/** {@link DiscordMonitor#LOG_DATETIME_FORMAT} up to and including the decimal point */
+	private static final DateTimeFormatter SECOND_PREFIX_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.");
+	/** {@link DiscordMonitor#LOG_DATETIME_FORMAT} after the nanoseconds */
+	private static final DateTimeFormatter OFFSET_FORMAT = DateTimeFormatter.ofPattern("XXXXX");
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final char[] NULL_CHARS = { 'n', 'u', 'l', 'l' };
+	private static final char[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9' };
+
+	private final PrintStream out;
+	private final CharsetEncoder encoder;
+	private char[] chars = new char[DiscordMonitorLogEncoder.INITIAL_BUFFER_SIZE];
+	private CharBuffer charBuffer = CharBuffer.wrap(this.chars);
+	private ByteBuffer byteBuffer = ByteBuffer.allocate(DiscordMonitorLogEncoder.INITIAL_BUFFER_SIZE);
+	private int length = 0;
+	/** Scratch space for formatting longs in reverse */
+	private final char[] digits = new char[20];
+
+	private long cachedEpochSecond;
+	private int cachedOffsetSeconds;
+	/** null until the first timestamp is formatted */
+	private char[] cachedSecondPrefix = null;
+	private char[] cachedOffset;
+
+	/**
+	 * @param out Stream to print to
+	 * @param charset Encoding <em>out</em> prints text in
+	 */
+	DiscordMonitorLogEncoder(PrintStream out, Charset charset)
+	{
+		this.out = out;
+		// As PrintStream does
+		this.encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/** Returns the encoding {@link System#out} prints text in. */
+	static Charset getStdoutCharset()
+	{
+		String encoding = System.getProperty("stdout.encoding"); // Java 19+
+		if (encoding == null)
+			encoding = System.getProperty("sun.stdout.encoding"); // Set for Windows consoles
+		if (encoding != null && Charset.isSupported(encoding))
+			return Charset.forName(encoding);
+		return Charset.defaultCharset();
+	}
+
+	/**
+	 * Prints the given record (header line, time, and message content, embeds and attachments or deletion notice) followed by a blank line.
+	 * The record is printed with a single write, so it is never interleaved with other output to the same stream.
+	 */
+	public void printRecord(MessageEventRecord record)
+	{
+		this.printRecord("", record);
+	}
+
+	/**
+	 * Prints <em>preamble</em> (e.g. lines announcing the identifiers the record matched) and the given record
+	 * as by {@link #printRecord(MessageEventRecord)}, with a single write.
+	 */
+	public synchronized void printRecord(CharSequence preamble, MessageEventRecord record)
+	{
+		this.length = 0;
+		this.append(preamble);
+		boolean isDelete = record.eventType == MessageEventType.DELETE;
+		this.appendLong(record.messageId);
+		if (record.channelType == ChannelType.TEXT)
+		{
+			this.append(":(").appendReplacingBell(record.serverName).append(")[").appendReplacingBell(record.channelName).append(']');
+			if (!isDelete)
+				this.append('<').appendReplacingBell(record.authorName).append('>');
+		}
+		else if (record.channelType == ChannelType.PRIVATE)
+			this.append(":[DM]<").appendReplacingBell(record.channelName).append('>');
+		else if (record.channelType == ChannelType.GROUP)
+		{
+			this.append(":[GRP: ").appendReplacingBell(record.channelName).append(']');
+			if (!isDelete)
+				this.append('<').appendReplacingBell(record.authorName).append('>');
+		}
+		else
+		{ // Not printed
+			this.length = preamble.length();
+			this.write();
+			return;
+		}
+		this.append(": \nTime: ").appendTime(record.time);
+
+		if (isDelete)
+			this.append(" (approximate)\nMESSAGE DELETED");
+		else
+		{
+			this.append("\nMessage: ").appendReplacingBell(record.content);
+			for (int i = 0; i < record.embedJson.size(); ++i)
+				this.append("\nEmbed[").appendLong(i).append("]: ").appendReplacingBell(record.embedJson.get(i));
+			for (int i = 0; i < record.attachmentJson.size(); ++i)
+				this.append("\nAttachment[").appendLong(i).append("]: ").appendReplacingBell(record.attachmentJson.get(i));
+		}
+		this.append("\n\n").write();
+	}
+
+	/** Prints the given text with a single write. */
+	public synchronized void print(CharSequence text)
+	{
+		this.length = 0;
+		this.append(text).write();
+	}
+
+	/** Prints the given line with a single write. */
+	public synchronized void println(CharSequence line)
+	{
+		this.length = 0;
+		this.append(line).append('\n').write();
+	}
+
+	/** Prints the formatted text, as by {@link PrintStream#printf(String, Object...)}, with a single write. */
+	public void printf(String format, Object... args)
+	{
+		this.print(String.format(format, args));
+	}
+
+	private DiscordMonitorLogEncoder append(char c)
+	{
+		this.ensureCapacity(1);
+		this.chars[this.length++] = c;
+		return this;
+	}
+
+	/** Appends a string constant. */
+	private DiscordMonitorLogEncoder append(String s)
+	{
+		this.ensureCapacity(s.length());
+		s.getChars(0, s.length(), this.chars, this.length);
+		this.length += s.length();
+		return this;
+	}
+
+	private DiscordMonitorLogEncoder append(CharSequence s)
+	{
+		int len = s.length();
+		this.ensureCapacity(len);
+		if (s instanceof String)
+			((String)s).getChars(0, len, this.chars, this.length);
+		else if (s instanceof StringBuilder)
+			((StringBuilder)s).getChars(0, len, this.chars, this.length);
+		else
+			for (int i = 0; i < len; ++i)
+				this.chars[this.length + i] = s.charAt(i);
+		this.length += len;
+		return this;
+	}
+
+	/** Appends the given string with bell characters replaced, as by {@link DiscordMonitorBotUtilities#replaceBellCharacter(String)}. */
+	private DiscordMonitorLogEncoder appendReplacingBell(String s)
+	{
+		if (s == null)
+			return this.append(DiscordMonitorLogEncoder.NULL_CHARS, DiscordMonitorLogEncoder.NULL_CHARS.length);
+		int len = s.length();
+		this.ensureCapacity(len);
+		char[] chars = this.chars;
+		int pos = this.length;
+		for (int i = 0; i < len; ++i)
+		{
+			char c = s.charAt(i);
+			chars[pos++] = c == DiscordMonitorBotUtilities.BELL_CHARACTER ? '.' : c;
+		}
+		this.length = pos;
+		return this;
+	}
+
+	private DiscordMonitorLogEncoder append(char[] src, int count)
+	{
+		this.ensureCapacity(count);
+		System.arraycopy(src, 0, this.chars, this.length, count);
+		this.length += count;
+		return this;
+	}
+
+	/** Appends the given number in decimal, as by {@link Long#toString(long)}. */
+	private DiscordMonitorLogEncoder appendLong(long value)
+	{
+		if (value < 0)
+		{
+			this.append('-');
+			if (value == Long.MIN_VALUE)
+				return this.append("9223372036854775808");
+			value = -value;
+		}
+		int count = 0;
+		do
+		{
+			this.digits[count++] = DiscordMonitorLogEncoder.DIGITS[(int)(value % 10)];
+			value /= 10;
+		} while (value != 0);
+
+		this.ensureCapacity(count);
+		while (count > 0)
+			this.chars[this.length++] = this.digits[--count];
+		return this;
+	}
+
+	/** Appends the given time as formatted by {@link DiscordMonitor#LOG_DATETIME_FORMAT}. */
+	private DiscordMonitorLogEncoder appendTime(OffsetDateTime time)
+	{
+		long epochSecond = time.toEpochSecond();
+		int offsetSeconds = time.getOffset().getTotalSeconds();
+		if (this.cachedSecondPrefix == null || epochSecond != this.cachedEpochSecond || offsetSeconds != this.cachedOffsetSeconds)
+		{
+			this.cachedEpochSecond = epochSecond;
+			this.cachedOffsetSeconds = offsetSeconds;
+			this.cachedSecondPrefix = DiscordMonitorLogEncoder.SECOND_PREFIX_FORMAT.format(time).toCharArray();
+			this.cachedOffset = DiscordMonitorLogEncoder.OFFSET_FORMAT.format(time).toCharArray();
+		}
+
+		this.append(this.cachedSecondPrefix, this.cachedSecondPrefix.length);
+		this.ensureCapacity(9);
+		int nano = time.getNano();
+		for (int i = this.length + 8; i >= this.length; --i)
+		{
+			this.chars[i] = DiscordMonitorLogEncoder.DIGITS[nano % 10];
+			nano /= 10;
+		}
+		this.length += 9;
+		return this.append(this.cachedOffset, this.cachedOffset.length);
+	}
+
+	private void ensureCapacity(int additional)
+	{
+		if (this.length + additional <= this.chars.length)
+			return;
+		char[] grown = new char[Math.max(this.chars.length * 2, this.length + additional)];
+		System.arraycopy(this.chars, 0, grown, 0, this.length);
+		this.chars = grown;
+		this.charBuffer = CharBuffer.wrap(grown);
+	}
+
+	/** Encodes the buffered characters and writes them out in one go. */
+	private void write()
+	{
+		int maxByteCount = (int)Math.ceil(this.length * (double)this.encoder.maxBytesPerChar());
+		if (this.byteBuffer.capacity() < maxByteCount)
+			this.byteBuffer = ByteBuffer.allocate(Math.max(this.byteBuffer.capacity() * 2, maxByteCount));
+
+		this.charBuffer.limit(this.length);
+		this.charBuffer.position(0);
+		this.byteBuffer.clear();
+		this.encoder.reset();
+		this.encoder.encode(this.charBuffer, this.byteBuffer, true);
+		this.encoder.flush(this.byteBuffer);
+		this.out.write(this.byteBuffer.array(), 0, this.byteBuffer.position());
+	}
+}
@@ -0,0 +1,400 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.google.gson.JsonParser;
+
+/**
+ * Exports the events of a {@link DiscordMonitorLogDB} for analysis in other tools, one row per event,
+ * gzip-compressed if the file name ends in ".gz". Files named "*.dmcol" (or "*.dmcol.gz") are written in the {@linkplain ColumnChunkWriter column-chunked layout},
+ * which columnar tools can load without parsing text; any other name is written as CSV (RFC 4180, UTF-8).
+ * <p>
+ * Events are streamed from the LogDB in chunks, so exports of any size run in constant memory.
+ * Exports may be incremental: given a checkpoint file, only events stored since the previous export are written,
+ * and the checkpoint is advanced once the file is complete. Files are written under a temporary name until then,
+ * so that an interrupted export neither leaves a partial file behind nor skips events next time.
+ */
+class DiscordMonitorLogExporter
+{
+	/** Type of an exported column; the ordinal is the type code of the column-chunked layout. */
+	enum ColumnType
+	{
+		INT64,
+		/** Nanoseconds since 1970-01-01T00:00:00Z, as INT64 */
+		TIMESTAMP,
+		BOOLEAN,
+		/** UTF-8 */
+		STRING
+	}
+
+	private static final String[] COLUMNS = {
+		"event_id", "message_id", "event_type", "event_time", "is_time_approximate", "channel_type",
+		"server_id", "server_name", "channel_id", "channel_name", "user_id", "author_name", "recipient_id",
+		"revision", "content", "embeds", "attachments"
+	};
+	private static final ColumnType[] COLUMN_TYPES = {
+		ColumnType.INT64, ColumnType.INT64, ColumnType.STRING, ColumnType.TIMESTAMP, ColumnType.BOOLEAN, ColumnType.STRING,
+		ColumnType.INT64, ColumnType.STRING, ColumnType.INT64, ColumnType.STRING, ColumnType.INT64, ColumnType.STRING, ColumnType.INT64,
+		ColumnType.INT64, ColumnType.STRING, ColumnType.STRING, ColumnType.STRING
+	};
+	private static final String GZIP_EXTENSION = ".gz";
+	private static final String COLUMNAR_EXTENSION = ".dmcol";
+	private static final String PARTIAL_EXTENSION = ".part";
+
+	/** Writes rows of {@link DiscordMonitorLogExporter#COLUMNS} in one of the export formats. */
+	private interface RowWriter extends Closeable
+	{
+		/** @param fields Values of the columns in order, null where unknown */
+		void writeRow(Object... fields) throws IOException;
+	}
+
+	/** Leaves null fields empty and quotes other fields where needed, including empty ones (distinguishing them from nulls). */
+	private static class CsvWriter implements RowWriter
+	{
+		private final Writer writer;
+
+		CsvWriter(OutputStream out) throws IOException
+		{
+			this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+			this.writeRow((Object[])DiscordMonitorLogExporter.COLUMNS);
+		}
+
+		@Override
+		public void writeRow(Object... fields) throws IOException
+		{
+			for (int i = 0; i < fields.length; ++i)
+			{
+				if (i != 0)
+					this.writer.write(',');
+				if (fields[i] instanceof OffsetDateTime)
+					this.writeField(DateTimeFormatter.ISO_INSTANT.format((OffsetDateTime)fields[i]));
+				else if (fields[i] != null)
+					this.writeField(fields[i].toString());
+			}
+			this.writer.write("\r\n");
+		}
+
+		private void writeField(String field) throws IOException
+		{
+			boolean isQuoted = field.isEmpty();
+			for (int i = 0; i < field.length() && !isQuoted; ++i)
+			{
+				char c = field.charAt(i);
+				isQuoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (!isQuoted)
+			{
+				this.writer.write(field);
+				return;
+			}
+			this.writer.write('"');
+			this.writer.write(field.replace("\"", "\"\""));
+			this.writer.write('"');
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.writer.close();
+		}
+	}
+
+	/**
+	 * Writes rows in a column-chunked binary layout: rows are buffered into chunks, and each chunk is written column by column,
+	 * so that readers can load (or skip) whole columns at a time. All integers are big-endian.
+	 * <pre>
+	 * file   := magic header chunk* int32(0) footer
+	 * magic  := "DMCOLS01" (ASCII)
+	 * header := int32(column count) { uint16(name length) name (ASCII) int8(type code, see {@link ColumnType}) }*
+	 * chunk  := int32(row count, above 0) column*  (in header order)
+	 * column := int32(length of the rest of the column) validity values
+	 * footer := int32(chunk count) { int64(offset of the chunk) int32(row count) }* int64(offset of the footer) magic
+	 * </pre>
+	 * <em>validity</em> is a bitmap of ceil(row count / 8) bytes in which bit (i % 8) of byte (i / 8), least significant first, is set if row i is not null.
+	 * <em>values</em> is, for INT64 and TIMESTAMP, one int64 per row (0 if null); for BOOLEAN, a bitmap laid out as <em>validity</em>;
+	 * and for STRING, (row count + 1) int32 offsets into the following UTF-8 data, starting at 0, then the data itself (null rows are empty).
+	 * Offsets in the footer count bytes from the start of the (uncompressed) file.
+	 */
+	static class ColumnChunkWriter implements RowWriter
+	{
+		static final byte[] MAGIC = "DMCOLS01".getBytes(StandardCharsets.US_ASCII);
+		/** A chunk is written once it has this many rows, */
+		private static final int MAX_CHUNK_ROWS = 65536;
+		/** or once its strings take up this many bytes. */
+		private static final int MAX_CHUNK_STRING_BYTES = 64 * 1024 * 1024;
+
+		private final DataOutputStream out;
+		/** Counts the bytes written to {@link #out} once flushed */
+		private final CountingOutputStream countingOut;
+		private final ColumnType[] types;
+		private final boolean[][] isPresent;
+		/** Per INT64 and TIMESTAMP column; null otherwise */
+		private final long[][] longValues;
+		/** Per BOOLEAN column; null otherwise */
+		private final boolean[][] booleanValues;
+		/** Per STRING column; null otherwise */
+		private final int[][] stringOffsets;
+		private final ByteArrayOutputStream[] stringData;
+		private int stringByteCount = 0;
+		private int rowCount = 0;
+		private final List<Long> chunkOffsets = new ArrayList<>();
+		private final List<Integer> chunkRowCounts = new ArrayList<>();
+
+		ColumnChunkWriter(OutputStream out, String[] columns, ColumnType[] types) throws IOException
+		{
+			this.countingOut = new CountingOutputStream(out);
+			this.out = new DataOutputStream(new BufferedOutputStream(this.countingOut, 65536));
+			this.types = types;
+			this.isPresent = new boolean[types.length][ColumnChunkWriter.MAX_CHUNK_ROWS];
+			this.longValues = new long[types.length][];
+			this.booleanValues = new boolean[types.length][];
+			this.stringOffsets = new int[types.length][];
+			this.stringData = new ByteArrayOutputStream[types.length];
+			for (int i = 0; i < types.length; ++i)
+			{
+				switch (types[i])
+				{
+					case INT64:
+					case TIMESTAMP:
+						this.longValues[i] = new long[ColumnChunkWriter.MAX_CHUNK_ROWS];
+						break;
+					case BOOLEAN:
+						this.booleanValues[i] = new boolean[ColumnChunkWriter.MAX_CHUNK_ROWS];
+						break;
+					case STRING:
+						this.stringOffsets[i] = new int[ColumnChunkWriter.MAX_CHUNK_ROWS + 1];
+						this.stringData[i] = new ByteArrayOutputStream();
+						break;
+				}
+			}
+
+			this.out.write(ColumnChunkWriter.MAGIC);
+			this.out.writeInt(columns.length);
+			for (int i = 0; i < columns.length; ++i)
+			{
+				this.out.writeUTF(columns[i]); // Same as uint16 length and ASCII for ASCII names
+				this.out.writeByte(types[i].ordinal());
+			}
+		}
+
+		@Override
+		public void writeRow(Object... fields) throws IOException
+		{
+			int row = this.rowCount;
+			for (int i = 0; i < fields.length; ++i)
+			{
+				Object field = fields[i];
+				this.isPresent[i][row] = field != null;
+				switch (this.types[i])
+				{
+					case INT64:
+						this.longValues[i][row] = field != null ? ((Number)field).longValue() : 0;
+						break;
+					case TIMESTAMP:
+						this.longValues[i][row] = field != null ? ColumnChunkWriter.toEpochNanos((OffsetDateTime)field) : 0;
+						break;
+					case BOOLEAN:
+						this.booleanValues[i][row] = field != null && (Boolean)field;
+						break;
+					case STRING:
+						if (field != null)
+						{
+							byte[] bytes = field.toString().getBytes(StandardCharsets.UTF_8);
+							this.stringData[i].write(bytes);
+							this.stringByteCount += bytes.length;
+						}
+						this.stringOffsets[i][row + 1] = this.stringData[i].size();
+						break;
+				}
+			}
+			++this.rowCount;
+			if (this.rowCount == ColumnChunkWriter.MAX_CHUNK_ROWS || this.stringByteCount >= ColumnChunkWriter.MAX_CHUNK_STRING_BYTES)
+				this.writeChunk();
+		}
+
+		private void writeChunk() throws IOException
+		{
+			if (this.rowCount == 0)
+				return;
+			this.chunkOffsets.add(this.getPosition());
+			this.chunkRowCounts.add(this.rowCount);
+			this.out.writeInt(this.rowCount);
+			int bitmapLength = (this.rowCount + 7) / 8;
+			for (int i = 0; i < this.types.length; ++i)
+			{
+				switch (this.types[i])
+				{
+					case INT64:
+					case TIMESTAMP:
+						this.out.writeInt(bitmapLength + 8 * this.rowCount);
+						this.writeBitmap(this.isPresent[i]);
+						for (int row = 0; row < this.rowCount; ++row)
+							this.out.writeLong(this.longValues[i][row]);
+						break;
+					case BOOLEAN:
+						this.out.writeInt(2 * bitmapLength);
+						this.writeBitmap(this.isPresent[i]);
+						this.writeBitmap(this.booleanValues[i]);
+						break;
+					case STRING:
+						this.out.writeInt(bitmapLength + 4 * (this.rowCount + 1) + this.stringData[i].size());
+						this.writeBitmap(this.isPresent[i]);
+						for (int row = 0; row <= this.rowCount; ++row)
+							this.out.writeInt(this.stringOffsets[i][row]);
+						this.stringData[i].writeTo(this.out);
+						this.stringData[i].reset();
+						break;
+				}
+			}
+			this.rowCount = 0;
+			this.stringByteCount = 0;
+		}
+
+		private void writeBitmap(boolean[] bits) throws IOException
+		{
+			for (int row = 0; row < this.rowCount; row += 8)
+			{
+				int b = 0;
+				for (int bit = 0; bit < 8 && row + bit < this.rowCount; ++bit)
+					if (bits[row + bit])
+						b |= 1 << bit;
+				this.out.writeByte(b);
+			}
+		}
+
+		/** Writes the last chunk and the footer. */
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				this.writeChunk();
+				this.out.writeInt(0);
+				long footerOffset = this.getPosition();
+				this.out.writeInt(this.chunkOffsets.size());
+				for (int i = 0; i < this.chunkOffsets.size(); ++i)
+				{
+					this.out.writeLong(this.chunkOffsets.get(i));
+					this.out.writeInt(this.chunkRowCounts.get(i));
+				}
+				this.out.writeLong(footerOffset);
+				this.out.write(ColumnChunkWriter.MAGIC);
+			}
+			finally
+			{
+				this.out.close();
+			}
+		}
+
+		/** Returns the number of bytes written so far (which {@link DataOutputStream#size()} caps at 2 GiB). */
+		private long getPosition() throws IOException
+		{
+			this.out.flush();
+			return this.countingOut.getByteCount();
+		}
+
+		private static long toEpochNanos(OffsetDateTime time)
+		{
+			Instant instant = time.toInstant();
+			return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+		}
+	}
+
+	private final DiscordMonitorLogDB logDB;
+	private final JsonParser jsonParser = new JsonParser();
+	private long eventCount = 0;
+	private long firstEventId = 0;
+
+	DiscordMonitorLogExporter(DiscordMonitorLogDB logDB)
+	{
+		this.logDB = logDB;
+	}
+
+	/**
+	 * Writes every event stored after <em>afterEventId</em> to <em>outputFile</em>, announcing the outcome.
+	 * Nothing is written if there are no such events.
+	 * @return ID of the last event exported, or <em>afterEventId</em> if there were none
+	 */
+	public long export(File outputFile, long afterEventId) throws IOException, SQLException
+	{
+		File partialFile = new File(outputFile.getPath() + DiscordMonitorLogExporter.PARTIAL_EXTENSION);
+		long startNanos = System.nanoTime();
+		long lastEventId;
+		try
+		{
+			String name = outputFile.getName();
+			OutputStream out = new FileOutputStream(partialFile);
+			if (name.endsWith(DiscordMonitorLogExporter.GZIP_EXTENSION))
+			{
+				out = new GZIPOutputStream(out, 65536);
+				name = name.substring(0, name.length() - DiscordMonitorLogExporter.GZIP_EXTENSION.length());
+			}
+			try (RowWriter writer = name.endsWith(DiscordMonitorLogExporter.COLUMNAR_EXTENSION)
+				? new ColumnChunkWriter(out, DiscordMonitorLogExporter.COLUMNS, DiscordMonitorLogExporter.COLUMN_TYPES)
+				: new CsvWriter(out))
+			{
+				lastEventId = this.logDB.export(afterEventId, (eventId, revision, record) -> this.writeEvent(writer, eventId, revision, record));
+			}
+		}
+		catch (IOException | SQLException | RuntimeException e)
+		{
+			partialFile.delete();
+			throw e;
+		}
+
+		if (this.eventCount == 0)
+		{
+			partialFile.delete();
+			System.out.printf("info: No events stored after event ID %d. Nothing exported.\n", afterEventId);
+			return afterEventId;
+		}
+		Files.move(partialFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.printf("info: Exported %d event(s) (event IDs %d to %d) to %s in %.1f s.\n",
+			this.eventCount, this.firstEventId, lastEventId, outputFile, (System.nanoTime() - startNanos) / 1e9);
+		return lastEventId;
+	}
+
+	private void writeEvent(RowWriter writer, long eventId, Integer revision, MessageEventRecord record) throws IOException
+	{
+		if (this.eventCount++ == 0)
+			this.firstEventId = eventId;
+		writer.writeRow(
+			eventId, record.messageId, record.eventType != null ? record.eventType.toString() : null, record.time, record.isTimeApproximate,
+			record.channelType != null ? record.channelType.toString() : null,
+			record.serverId, record.serverName, record.channelId, record.channelName, record.userId, record.authorName, record.recipientId,
+			revision, record.content, this.toCompactJsonArray(record.embedJson), this.toCompactJsonArray(record.attachmentJson));
+	}
+
+	/** Joins the given serialised JSON elements into a single-line JSON array, or returns null if there are none. */
+	private String toCompactJsonArray(List<String> jsonElements)
+	{
+		if (jsonElements.isEmpty())
+			return null;
+		StringBuilder sb = new StringBuilder("[");
+		for (String jsonElement : jsonElements)
+			sb.append(sb.length() == 1 ? "" : ",").append(this.jsonParser.parse(jsonElement));
+		return sb.append(']').toString();
+	}
+}
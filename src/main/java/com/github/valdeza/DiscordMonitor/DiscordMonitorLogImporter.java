@@ -0,0 +1,175 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.valdeza.DiscordMonitor.DiscordMonitorLogParser.MalformedLogRecordException;
+
+/**
+ * Imports stored stdout logs into a {@link DiscordMonitorLogDB}, including embeds and attachment metadata.
+ * Files are parsed in parallel chunks (see {@link DiscordMonitorLogScanner}) while records are handed to the LogDB writer in file order,
+ * so that edits are stored as revisions of the right message.
+ * <p>
+ * Stdout logs record names but not snowflake IDs. Servers, channels and users are therefore given synthetic IDs,
+ * derived from their names so that they are identical across imports (see {@link #syntheticId(String, String...)}).
+ * Synthetic IDs are always negative, so they never collide with genuine snowflake IDs, and a renamed entity is imported as a different one.
+ * Events already present in the LogDB (e.g. from an earlier import of the same log) are skipped.
+ * Malformed records are reported and skipped.
+ */
+class DiscordMonitorLogImporter extends DiscordMonitorLogScanner<DiscordMonitorLogImporter.ImportResult>
+{
+	/** Number of malformed records reported individually; further ones are only counted. */
+	private static final int MALFORMED_RECORD_REPORT_LIMIT = 100;
+	/** Separates the parts of a DM label, as in "author -> recipient". */
+	private static final String DM_LABEL_SEPARATOR = " -> ";
+
+	static class ImportResult
+	{
+		long recordCount = 0;
+		long malformedRecordCount = 0;
+		/** Records not yet handed to the LogDB */
+		final List<MessageEventRecord> records = new ArrayList<>();
+	}
+
+	private final DiscordMonitorLogDB logDB;
+	private final AtomicLong reportedMalformedRecordCount = new AtomicLong();
+
+	DiscordMonitorLogImporter(DiscordMonitorLogDB logDB, Charset charset)
+	{
+		super(charset);
+		this.logDB = logDB;
+	}
+
+	@Override
+	protected ImportResult newResult()
+	{
+		return new ImportResult();
+	}
+
+	@Override
+	protected void onRecord(MessageEventRecord record, ImportResult result)
+	{
+		++result.recordCount;
+		DiscordMonitorLogImporter.assignSyntheticIds(record);
+		record.isPossiblyStored = true;
+		result.records.add(record);
+	}
+
+	@Override
+	protected void onMalformedRecord(File file, long byteOffset, MalformedLogRecordException e, ImportResult result)
+	{
+		++result.malformedRecordCount;
+		long reportedCount = this.reportedMalformedRecordCount.incrementAndGet();
+		if (reportedCount <= DiscordMonitorLogImporter.MALFORMED_RECORD_REPORT_LIMIT)
+			System.out.printf("warning: Skipped malformed record at byte %d of %s: %s\n", byteOffset, file, e.getMessage());
+		if (reportedCount == DiscordMonitorLogImporter.MALFORMED_RECORD_REPORT_LIMIT)
+			System.out.println("warning: Further malformed records will only be counted.");
+	}
+
+	@Override
+	protected void onChunkScanned(ImportResult result)
+	{
+		for (MessageEventRecord record : result.records)
+			this.logDB.submit(record); // Blocks while the writer catches up.
+		result.records.clear();
+	}
+
+	@Override
+	protected ImportResult merge(ImportResult left, ImportResult right)
+	{
+		left.recordCount += right.recordCount;
+		left.malformedRecordCount += right.malformedRecordCount;
+		return left;
+	}
+
+	/**
+	 * Imports the given log files, in order, and prints a summary.
+	 * Records may still be queued for the LogDB writer on return; {@linkplain DiscordMonitorLogDB#close() close} the LogDB to wait for them.
+	 * @param logFiles stdout logs to import, in chronological order
+	 */
+	public void importLogs(List<File> logFiles) throws IOException
+	{
+		long startNanos = System.nanoTime();
+		long byteCount = 0;
+		ImportResult total = this.newResult();
+		for (File logFile : logFiles)
+		{
+			System.out.println("info: Importing " + logFile + " ...");
+			total = this.merge(total, this.scan(logFile));
+			byteCount += logFile.length();
+		}
+		double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+		System.out.printf("info: Parsed %d record(s) (%d malformed) from %d file(s) in %.1f s (%.1f MB/s). Waiting for LogDB writes to finish...\n",
+			total.recordCount, total.malformedRecordCount, logFiles.size(), elapsedSeconds, byteCount / 1e6 / Math.max(elapsedSeconds, 1e-3));
+	}
+
+	/** Fills in the IDs a stdout log does not record, as far as they can be derived from names. */
+	private static void assignSyntheticIds(MessageEventRecord record)
+	{
+		switch (record.channelType)
+		{
+			case TEXT:
+				record.serverId = DiscordMonitorLogImporter.syntheticId("SERVER", record.serverName);
+				record.channelId = DiscordMonitorLogImporter.syntheticId("CHANNEL", record.serverName, record.channelName);
+				if (record.authorName != null)
+					record.userId = DiscordMonitorLogImporter.syntheticId("MEMBER", record.serverName, record.authorName);
+				break;
+			case PRIVATE:
+				int separator = record.channelName.indexOf(DiscordMonitorLogImporter.DM_LABEL_SEPARATOR);
+				if (separator < 0)
+				{ // Deletions are labelled with the other party only, which does not identify the channel.
+					record.recipientName = record.channelName;
+					record.recipientId = DiscordMonitorLogImporter.syntheticId("USER", record.recipientName);
+					break;
+				}
+				record.authorName = record.channelName.substring(0, separator);
+				record.recipientName = record.channelName.substring(separator + DiscordMonitorLogImporter.DM_LABEL_SEPARATOR.length());
+				record.userId = DiscordMonitorLogImporter.syntheticId("USER", record.authorName);
+				record.recipientId = DiscordMonitorLogImporter.syntheticId("USER", record.recipientName);
+				// Either party may have sent the message.
+				boolean isAuthorFirst = record.authorName.compareTo(record.recipientName) <= 0;
+				record.channelId = DiscordMonitorLogImporter.syntheticId("DM",
+					isAuthorFirst ? record.authorName : record.recipientName, isAuthorFirst ? record.recipientName : record.authorName);
+				record.serverId = record.channelId;
+				break;
+			case GROUP:
+				record.channelId = DiscordMonitorLogImporter.syntheticId("GROUP", record.channelName);
+				record.serverId = record.channelId;
+				if (record.authorName != null)
+					record.userId = DiscordMonitorLogImporter.syntheticId("USER", record.authorName);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/** Returns a negative ID determined by the given kind of entity and the names identifying it. */
+	static long syntheticId(String kind, String... names)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{ // Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+		digest.update(kind.getBytes(StandardCharsets.UTF_8));
+		for (String name : names)
+		{
+			digest.update((byte)0);
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+		}
+		return ByteBuffer.wrap(digest.digest()).getLong() | Long.MIN_VALUE;
+	}
+}
@@ -0,0 +1,507 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.time.DateTimeException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+/**
+ * Parses message records back out of DiscordMonitor's standard output, as printed by
+ * {@link DiscordMonitor DiscordMonitor.DiscordMonitorListenerAdapter#eventHandlerGenericMessageEvent}.
+ * <p>
+ * A record starts with a header line (e.g. <code>%d:(%s)[%s]&lt;%s&gt;: </code>, <code>%d:[DM]&lt;%s&gt;: </code> or <code>%d:[GRP: %s]: </code>)
+ * immediately followed by a "Time: " line, and runs up to the next record header.
+ * Status lines printed between records (e.g. "(i) Logging for:", "/!\ WATCHLIST HIT:", "info: ") are not part of any record.
+ */
+class DiscordMonitorLogParser
+{
+	private static final Pattern PATTERN_ELEMENT_MARKER = Pattern.compile("(?<kind>Embed|Attachment)\\[\\d+\\]: (?<json>.*)");
+
+	private static final String TIME_PREFIX = "Time: ";
+	private static final String TIME_APPROXIMATE_SUFFIX = " (approximate)";
+	private static final String MESSAGE_PREFIX = "Message: ";
+	private static final String MESSAGE_DELETED = "MESSAGE DELETED";
+	private static final String MESSAGES_DELETED_PREFIX = "MESSAGES DELETED:";
+	private static final String ATTACHMENT_DOWNLOADED_PREFIX = "Attachment downloaded to: ";
+	private static final String ATTACHMENT_DOWNLOAD_FAILED_PREFIX = "Unable to auto-download attachment(s)";
+	/** Prefixes of lines printed to stdout between records. */
+	private static final String[] STATUS_LINE_PREFIXES = {
+		"(i) Logging for:", "/!\\ WATCHLIST HIT:", "*** Command ran by user", "*** Command reply", "\t",
+		"info: ", "warning: ", "error: ", "fatal: ", "Problem occurred at:"
+	};
+
+	/**
+	 * Fields of a record header line.
+	 * Headers are parsed by hand rather than with a regular expression, as this is the hottest path when scanning large logs.
+	 * Ambiguous names (e.g. a guild name containing ")[") are resolved greedily, as the equivalent regular expression
+	 * <code>\((.*)\)\[(.*)\](?:&lt;(.*)&gt;)?: </code> would.
+	 */
+	static class RecordHeader
+	{
+		ChannelType channelType;
+		/** null for bulk deletions */
+		String messageId;
+		String serverName;
+		String channelName;
+		String authorName;
+	}
+
+	/** Thrown when a record header was found but the remainder of the record could not be understood. */
+	static class MalformedLogRecordException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		MalformedLogRecordException(String reason)
+		{
+			super(reason);
+		}
+	}
+
+	/** Returns the index of the line feed ending the line starting at <em>lineStart</em>, or <em>text.length()</em> if there is none. */
+	static int endOfLine(CharSequence text, int lineStart)
+	{
+		int len = text.length();
+		for (int i = lineStart; i < len; ++i)
+			if (text.charAt(i) == '\n')
+				return i;
+		return len;
+	}
+
+	/** Returns the line spanning [<em>start</em>, <em>end</em>) without any trailing carriage return. */
+	private static String line(CharSequence text, int start, int end)
+	{
+		if (end > start && text.charAt(end - 1) == '\r')
+			--end;
+		return text.subSequence(start, end).toString();
+	}
+
+	/** Returns whether the given line (without its line terminator) is formatted like a record header. */
+	static boolean isRecordHeader(String line)
+	{
+		return DiscordMonitorLogParser.parseRecordHeader(line) != null;
+	}
+
+	/** Returns whether the line spanning [<em>start</em>, <em>end</em>) could be a record header, without allocating. */
+	private static boolean isPossibleRecordHeader(CharSequence text, int start, int end)
+	{
+		if (end > start && text.charAt(end - 1) == '\r')
+			--end;
+		// Every header starts with a message ID or '(' and ends with ": ".
+		if (end - start < 4 || text.charAt(end - 2) != ':' || text.charAt(end - 1) != ' ')
+			return false;
+		char first = text.charAt(start);
+		return first == '(' || (first >= '0' && first <= '9');
+	}
+
+	/** Returns the fields of the given record header line (without its line terminator), or null if it is not a record header. */
+	static RecordHeader parseRecordHeader(String line)
+	{
+		int len = line.length() - 2;
+		if (len < 2 || !line.endsWith(": "))
+			return null;
+
+		RecordHeader header = new RecordHeader();
+		if (line.charAt(0) == '(')
+		{ // Bulk deletion: (%s)[%s]
+			if (line.charAt(len - 1) != ']')
+				return null;
+			int guildEnd = line.lastIndexOf(")[", len - 3);
+			if (guildEnd < 1)
+				return null;
+			header.channelType = ChannelType.TEXT;
+			header.serverName = line.substring(1, guildEnd);
+			header.channelName = line.substring(guildEnd + 2, len - 1);
+			return header;
+		}
+
+		int idEnd = 0;
+		while (idEnd < len && line.charAt(idEnd) >= '0' && line.charAt(idEnd) <= '9')
+			++idEnd;
+		if (idEnd == 0 || idEnd + 1 >= len || line.charAt(idEnd) != ':')
+			return null;
+		header.messageId = line.substring(0, idEnd);
+
+		int rest = idEnd + 1;
+		if (line.charAt(rest) == '(')
+		{ // %d:(%s)[%s]<%s>
+			header.channelType = ChannelType.TEXT;
+			// Try the last possible guild/channel separator first.
+			for (int guildEnd = line.lastIndexOf(")[", len - 3); guildEnd > rest; guildEnd = line.lastIndexOf(")[", guildEnd - 1))
+			{
+				if (DiscordMonitorLogParser.parseNameAndAuthor(line, guildEnd + 2, len, header))
+				{
+					header.serverName = line.substring(rest + 1, guildEnd);
+					return header;
+				}
+			}
+			return null;
+		}
+		else if (line.startsWith("[DM]<", rest))
+		{ // %d:[DM]<%s>
+			if (line.charAt(len - 1) != '>')
+				return null;
+			header.channelType = ChannelType.PRIVATE;
+			header.channelName = line.substring(rest + 5, len - 1);
+			return header;
+		}
+		else if (line.startsWith("[GRP: ", rest))
+		{ // %d:[GRP: %s]<%s>
+			header.channelType = ChannelType.GROUP;
+			return DiscordMonitorLogParser.parseNameAndAuthor(line, rest + 6, len, header) ? header : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Parses <code>%s]</code> or <code>%s]&lt;%s&gt;</code> spanning [<em>start</em>, <em>end</em>) of <em>line</em>
+	 * into the channel and author names of <em>header</em>, preferring the longest channel name.
+	 * @return Whether the span was of the expected format
+	 */
+	private static boolean parseNameAndAuthor(String line, int start, int end, RecordHeader header)
+	{
+		if (end <= start)
+			return false;
+		if (line.charAt(end - 1) == ']')
+		{
+			header.channelName = line.substring(start, end - 1);
+			header.authorName = null;
+			return true;
+		}
+		if (line.charAt(end - 1) != '>')
+			return false;
+		int nameEnd = line.lastIndexOf("]<", end - 3);
+		if (nameEnd < start)
+			return false;
+		header.channelName = line.substring(start, nameEnd);
+		header.authorName = line.substring(nameEnd + 2, end - 1);
+		return true;
+	}
+
+	/** Returns whether the given line (without its line terminator) is a "Time: " line, as expected to follow a record header. */
+	static boolean isTimeLine(String line)
+	{
+		return line.startsWith(DiscordMonitorLogParser.TIME_PREFIX);
+	}
+
+	/**
+	 * Returns the index of the start of the first record at or after <em>from</em>, or -1 if there is none.
+	 * <em>from</em> is expected to be the start of a line.
+	 */
+	static int nextRecordStart(CharSequence text, int from)
+	{
+		int len = text.length();
+		int lineStart = from;
+		while (lineStart < len)
+		{
+			int lineEnd = DiscordMonitorLogParser.endOfLine(text, lineStart);
+			if (lineEnd < len && DiscordMonitorLogParser.isPossibleRecordHeader(text, lineStart, lineEnd)
+					&& DiscordMonitorLogParser.isRecordHeader(DiscordMonitorLogParser.line(text, lineStart, lineEnd)))
+			{
+				int nextLineEnd = DiscordMonitorLogParser.endOfLine(text, lineEnd + 1);
+				if (DiscordMonitorLogParser.isTimeLine(DiscordMonitorLogParser.line(text, lineEnd + 1, nextLineEnd)))
+					return lineStart;
+			}
+			lineStart = lineEnd + 1;
+		}
+		return -1;
+	}
+
+	private static boolean isStatusLine(String line)
+	{
+		for (String prefix : DiscordMonitorLogParser.STATUS_LINE_PREFIXES)
+			if (line.startsWith(prefix))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the end of the record spanning [<em>start</em>, <em>end</em>), excluding the blank line terminating the record
+	 * and any status lines printed after it.
+	 * Records are always terminated by a blank line, so status-like lines not preceded by one are kept as message content.
+	 */
+	private static int trimRecordEnd(CharSequence text, int start, int end)
+	{
+		int lineEnd = end;
+		if (lineEnd > start && text.charAt(lineEnd - 1) == '\n')
+			--lineEnd;
+		int recordEnd = lineEnd;
+		while (lineEnd > start)
+		{
+			int lineStart = lineEnd;
+			while (lineStart > start && text.charAt(lineStart - 1) != '\n')
+				--lineStart;
+			if (lineStart == start)
+				break; // Never trim the header.
+
+			String line = DiscordMonitorLogParser.line(text, lineStart, lineEnd);
+			if (line.isEmpty())
+				recordEnd = lineStart - 1; // Drop the blank line along with the line feed before it.
+			else if (!DiscordMonitorLogParser.isStatusLine(line))
+				break;
+			lineEnd = lineStart - 1;
+		}
+		return recordEnd;
+	}
+
+	/**
+	 * Parses the record spanning [<em>start</em>, <em>end</em>) of <em>text</em> and appends the resulting message event(s) to <em>out</em>.
+	 * Bulk deletions yield one {@link MessageEventType#DELETE DELETE} record per deleted message.
+	 * <p>
+	 * Stdout logs do not record whether a message was newly received or edited.
+	 * As message creation times are encoded in their snowflake IDs, messages logged with a later time are assumed to be edits.
+	 * @param start Start of the record header line, as returned by {@link #nextRecordStart(CharSequence, int)}
+	 * @param end Start of the next record, or the end of <em>text</em>
+	 * @throws MalformedLogRecordException Thrown if the record is not formatted as expected. Nothing is appended to <em>out</em>.
+	 */
+	static void parseRecord(CharSequence text, int start, int end, List<MessageEventRecord> out) throws MalformedLogRecordException
+	{
+		end = DiscordMonitorLogParser.trimRecordEnd(text, start, end);
+
+		int headerEnd = Math.min(DiscordMonitorLogParser.endOfLine(text, start), end);
+		RecordHeader header = DiscordMonitorLogParser.parseRecordHeader(DiscordMonitorLogParser.line(text, start, headerEnd));
+		if (header == null)
+			throw new MalformedLogRecordException("unrecognised record header");
+
+		MessageEventRecord record = new MessageEventRecord();
+		String messageId = header.messageId;
+		record.channelType = header.channelType;
+		record.serverName = header.serverName;
+		record.channelName = header.channelName;
+		record.authorName = header.authorName;
+
+		if (headerEnd >= end)
+			throw new MalformedLogRecordException("missing Time line");
+		int timeStart = headerEnd + 1;
+		int timeEnd = Math.min(DiscordMonitorLogParser.endOfLine(text, timeStart), end);
+		String timeLine = DiscordMonitorLogParser.line(text, timeStart, timeEnd);
+		if (!DiscordMonitorLogParser.isTimeLine(timeLine))
+			throw new MalformedLogRecordException("missing Time line");
+		String timeValue = timeLine.substring(DiscordMonitorLogParser.TIME_PREFIX.length());
+		if (timeValue.endsWith(DiscordMonitorLogParser.TIME_APPROXIMATE_SUFFIX))
+		{
+			record.isTimeApproximate = true;
+			timeValue = timeValue.substring(0, timeValue.length() - DiscordMonitorLogParser.TIME_APPROXIMATE_SUFFIX.length());
+		}
+		record.time = DiscordMonitorLogParser.parseLogTime(timeValue);
+		if (record.time == null)
+			throw new MalformedLogRecordException("unparseable time: " + timeValue);
+
+		if (timeEnd >= end)
+			throw new MalformedLogRecordException("missing message body");
+		int bodyStart = timeEnd + 1;
+		int bodyLineEnd = Math.min(DiscordMonitorLogParser.endOfLine(text, bodyStart), end);
+		String bodyLine = DiscordMonitorLogParser.line(text, bodyStart, bodyLineEnd);
+
+		if (messageId == null)
+		{ // Bulk deletion
+			if (!bodyLine.startsWith(DiscordMonitorLogParser.MESSAGES_DELETED_PREFIX))
+				throw new MalformedLogRecordException("expected \"" + DiscordMonitorLogParser.MESSAGES_DELETED_PREFIX + "\"");
+			String[] ids = bodyLine.substring(DiscordMonitorLogParser.MESSAGES_DELETED_PREFIX.length()).trim().split(" ");
+			int firstAdded = out.size();
+			for (String id : ids)
+			{
+				MessageEventRecord deletion = new MessageEventRecord();
+				deletion.eventType = MessageEventType.DELETE;
+				deletion.channelType = record.channelType;
+				deletion.serverName = record.serverName;
+				deletion.channelName = record.channelName;
+				deletion.time = record.time;
+				deletion.isTimeApproximate = record.isTimeApproximate;
+				try
+				{
+					deletion.messageId = Long.parseLong(id);
+				}
+				catch (NumberFormatException e)
+				{
+					out.subList(firstAdded, out.size()).clear();
+					throw new MalformedLogRecordException("unparseable message ID: " + id);
+				}
+				out.add(deletion);
+			}
+			return;
+		}
+
+		try
+		{
+			record.messageId = Long.parseLong(messageId);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new MalformedLogRecordException("unparseable message ID: " + messageId);
+		}
+
+		if (bodyLine.equals(DiscordMonitorLogParser.MESSAGE_DELETED))
+		{
+			record.eventType = MessageEventType.DELETE;
+			out.add(record);
+			return;
+		}
+
+		if (!bodyLine.startsWith(DiscordMonitorLogParser.MESSAGE_PREFIX))
+			throw new MalformedLogRecordException("expected \"" + DiscordMonitorLogParser.MESSAGE_PREFIX + "\" or \"" + DiscordMonitorLogParser.MESSAGE_DELETED + "\"");
+
+		record.eventType = record.time.toInstant().toEpochMilli() > DiscordMonitorBotUtilities.getSnowflakeCreationMillis(record.messageId)
+			? MessageEventType.EDIT
+			: MessageEventType.NEW;
+
+		// Message content may span multiple lines. It runs until the first embed/attachment/download line.
+		int contentStart = bodyStart + DiscordMonitorLogParser.MESSAGE_PREFIX.length();
+		int lineStart = bodyStart;
+		int lineEnd = bodyLineEnd;
+		while (true)
+		{
+			lineStart = lineEnd + 1;
+			if (lineStart > end)
+			{
+				record.content = DiscordMonitorLogParser.normaliseLineEndings(text, contentStart, end);
+				out.add(record);
+				return;
+			}
+			lineEnd = Math.min(DiscordMonitorLogParser.endOfLine(text, lineStart), end);
+			if (DiscordMonitorLogParser.isMessageElementLine(DiscordMonitorLogParser.line(text, lineStart, lineEnd)))
+				break;
+		}
+		record.content = DiscordMonitorLogParser.normaliseLineEndings(text, contentStart, lineStart - 1);
+
+		// Embeds, attachments and download results
+		while (lineStart <= end)
+		{
+			String line = DiscordMonitorLogParser.line(text, lineStart, lineEnd);
+			Matcher element = DiscordMonitorLogParser.PATTERN_ELEMENT_MARKER.matcher(line);
+			if (element.matches())
+			{
+				String jsonStart = element.group("json");
+				if (!jsonStart.startsWith("{"))
+					throw new MalformedLogRecordException("expected JSON object after " + element.group("kind") + " marker");
+				StringBuilder json = new StringBuilder(jsonStart);
+				// Pretty-printed JSON objects end with a lone closing brace.
+				boolean isJsonClosed = jsonStart.equals("{}");
+				while (!isJsonClosed)
+				{
+					lineStart = lineEnd + 1;
+					if (lineStart > end)
+						throw new MalformedLogRecordException("unterminated " + element.group("kind") + " JSON");
+					lineEnd = Math.min(DiscordMonitorLogParser.endOfLine(text, lineStart), end);
+					line = DiscordMonitorLogParser.line(text, lineStart, lineEnd);
+					json.append('\n').append(line);
+					isJsonClosed = line.equals("}");
+				}
+
+				if (element.group("kind").equals("Embed"))
+					record.embedJson.add(json.toString());
+				else
+					record.attachmentJson.add(json.toString());
+			}
+			else if (!line.startsWith(DiscordMonitorLogParser.ATTACHMENT_DOWNLOADED_PREFIX)
+					&& !line.startsWith(DiscordMonitorLogParser.ATTACHMENT_DOWNLOAD_FAILED_PREFIX))
+				throw new MalformedLogRecordException("unexpected line after message content: " + line);
+
+			lineStart = lineEnd + 1;
+			if (lineStart <= end)
+				lineEnd = Math.min(DiscordMonitorLogParser.endOfLine(text, lineStart), end);
+		}
+
+		out.add(record);
+	}
+
+	/**
+	 * Parses a time formatted with {@link DiscordMonitor#LOG_DATETIME_FORMAT}, or returns null if it could not be parsed.
+	 * The common "yyyy-MM-ddTHH:mm:ss.SSSSSSSSS" + offset layout is parsed by hand as {@link DateTimeFormatter} parsing is comparatively slow.
+	 */
+	static OffsetDateTime parseLogTime(String s)
+	{
+		// 2017-06-20T01:23:45.123456789Z
+		// 0    5  8  11 14 17 20       29
+		if (s.length() >= 30 && s.charAt(4) == '-' && s.charAt(7) == '-' && s.charAt(10) == 'T'
+				&& s.charAt(13) == ':' && s.charAt(16) == ':' && s.charAt(19) == '.')
+		{
+			int year = DiscordMonitorLogParser.parseDigits(s, 0, 4);
+			int month = DiscordMonitorLogParser.parseDigits(s, 5, 7);
+			int day = DiscordMonitorLogParser.parseDigits(s, 8, 10);
+			int hour = DiscordMonitorLogParser.parseDigits(s, 11, 13);
+			int minute = DiscordMonitorLogParser.parseDigits(s, 14, 16);
+			int second = DiscordMonitorLogParser.parseDigits(s, 17, 19);
+			int nano = DiscordMonitorLogParser.parseDigits(s, 20, 29);
+			ZoneOffset offset = null;
+			if (s.length() == 30 && s.charAt(29) == 'Z')
+				offset = ZoneOffset.UTC;
+			else if (s.length() == 35 && (s.charAt(29) == '+' || s.charAt(29) == '-') && s.charAt(32) == ':')
+			{
+				int offsetHours = DiscordMonitorLogParser.parseDigits(s, 30, 32);
+				int offsetMinutes = DiscordMonitorLogParser.parseDigits(s, 33, 35);
+				if (offsetHours >= 0 && offsetMinutes >= 0)
+				{
+					int sign = s.charAt(29) == '-' ? -1 : 1;
+					offset = ZoneOffset.ofTotalSeconds(sign * (offsetHours * 3600 + offsetMinutes * 60));
+				}
+			}
+
+			if (offset != null && (year | month | day | hour | minute | second | nano) >= 0)
+			{
+				try
+				{
+					return OffsetDateTime.of(year, month, day, hour, minute, second, nano, offset);
+				}
+				catch (DateTimeException e)
+				{
+					return null;
+				}
+			}
+		}
+
+		try
+		{
+			return OffsetDateTime.parse(s, DiscordMonitor.LOG_DATETIME_FORMAT);
+		}
+		catch (DateTimeParseException e)
+		{
+			return null;
+		}
+	}
+
+	/** Returns the non-negative integer represented by [<em>start</em>, <em>end</em>) of <em>s</em>, or -1 if it is not all digits. */
+	private static int parseDigits(String s, int start, int end)
+	{
+		int value = 0;
+		for (int i = start; i < end; ++i)
+		{
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isMessageElementLine(String line)
+	{
+		if (line.isEmpty())
+			return false;
+		switch (line.charAt(0))
+		{
+			case 'E':
+			case 'A':
+				return DiscordMonitorLogParser.PATTERN_ELEMENT_MARKER.matcher(line).matches()
+					|| line.startsWith(DiscordMonitorLogParser.ATTACHMENT_DOWNLOADED_PREFIX);
+			case 'U':
+				return line.startsWith(DiscordMonitorLogParser.ATTACHMENT_DOWNLOAD_FAILED_PREFIX);
+			default:
+				return false;
+		}
+	}
+
+	/** Returns [<em>start</em>, <em>end</em>) of <em>text</em> with CRLF line endings (e.g. from Windows captures) converted to LF. */
+	private static String normaliseLineEndings(CharSequence text, int start, int end)
+	{
+		if (end < start)
+			return "";
+		String s = DiscordMonitorLogParser.line(text, start, end);
+		return s.indexOf('\r') < 0 ? s : s.replace("\r\n", "\n");
+	}
+}
@@ -0,0 +1,247 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.valdeza.DiscordMonitor.DiscordMonitorLogParser.MalformedLogRecordException;
+
+/**
+ * Offline re-scan of stored stdout logs against a profile's {@linkplain DiscordMonitorConfig#logTargets LogTargets} and {@linkplain DiscordMonitorConfig#notificationWatchlist NotificationWatchlist},
+ * used to check whether newly added rules would have matched historical message activity.
+ * <p>
+ * Stdout logs record guild, channel and user names but not their snowflake IDs.
+ * ServerId, ChannelId and UserId conditions are therefore skipped (as with any other unknown field; see {@link DiscordMonitorTargetIdentifier#matches}),
+ * so rules relying on them may report more hits than they would have live. Rules with no other condition are reported as not evaluable offline instead.
+ * Note also that logs contain message content as displayed rather than {@linkplain net.dv8tion.jda.core.entities.Message#getStrippedContent() stripped of Markdown formatting characters}.
+ * <p>
+ * Hits are counted per {@linkplain DiscordMonitorTargetIdentifier#identifierLabel IdentifierLabel}, keeping only the first and last {@link #HIT_SAMPLE_SIZE} of each,
+ * so that memory use does not grow with the logs.
+ */
+class DiscordMonitorLogRescanner extends DiscordMonitorLogScanner<DiscordMonitorLogRescanner.RescanResult>
+{
+	/** Number of earliest and of latest hits listed per label */
+	private static final int HIT_SAMPLE_SIZE = 10;
+
+	/** Identifiers sharing an IdentifierLabel within LogTargets or NotificationWatchlist */
+	private static class Label
+	{
+		final String name;
+		/** Identifiers evaluable offline */
+		final List<DiscordMonitorTargetIdentifier> targetids = new ArrayList<>();
+		int unevaluableCount = 0;
+		/** Whether any of {@link #targetids} has ServerId, ChannelId or UserId conditions, which are skipped */
+		boolean isIdSkipped = false;
+
+		Label(String name)
+		{
+			this.name = name;
+		}
+	}
+
+	private final List<Label> logTargetLabels;
+	private final List<Label> watchlistLabels;
+
+	static class Hit
+	{
+		final long messageId;
+		final MessageEventType eventType;
+		final OffsetDateTime time;
+
+		Hit(MessageEventRecord record)
+		{
+			this.messageId = record.messageId;
+			this.eventType = record.eventType;
+			this.time = record.time;
+		}
+	}
+
+	/** Hit count of a label, with its first and last {@link #HIT_SAMPLE_SIZE} hits in log order */
+	static class HitSample
+	{
+		long count = 0;
+		final List<Hit> first = new ArrayList<>();
+		/** Hits after {@link #first}, of which only the last HIT_SAMPLE_SIZE are kept */
+		final ArrayDeque<Hit> last = new ArrayDeque<>();
+
+		void add(Hit hit)
+		{
+			++this.count;
+			if (this.first.size() < DiscordMonitorLogRescanner.HIT_SAMPLE_SIZE)
+				this.first.add(hit);
+			else
+			{
+				this.last.addLast(hit);
+				if (this.last.size() > DiscordMonitorLogRescanner.HIT_SAMPLE_SIZE)
+					this.last.removeFirst();
+			}
+		}
+
+		/** Appends the hits of a sample taken of later records. */
+		void addAll(HitSample later)
+		{
+			// Any hits skipped by the later sample lie between its first and (then full) last hits, so the latter end up as this sample's last hits.
+			long skippedCount = later.count - later.first.size() - later.last.size();
+			for (Hit hit : later.first)
+				this.add(hit);
+			for (Hit hit : later.last)
+				this.add(hit);
+			this.count += skippedCount;
+		}
+	}
+
+	static class RescanResult
+	{
+		long recordCount = 0;
+		long malformedRecordCount = 0;
+		/** Hits per label, indexed as LogTargets labels followed by NotificationWatchlist labels. */
+		final List<HitSample> hits;
+
+		RescanResult(int labelCount)
+		{
+			this.hits = new ArrayList<>(labelCount);
+			for (int i = 0; i < labelCount; ++i)
+				this.hits.add(new HitSample());
+		}
+	}
+
+	DiscordMonitorLogRescanner(DiscordMonitorConfig appconfig, Charset charset)
+	{
+		super(charset);
+		this.logTargetLabels = DiscordMonitorLogRescanner.groupByLabel(appconfig.logTargets);
+		this.watchlistLabels = DiscordMonitorLogRescanner.groupByLabel(appconfig.notificationWatchlist);
+	}
+
+	@Override
+	protected RescanResult newResult()
+	{
+		return new RescanResult(this.logTargetLabels.size() + this.watchlistLabels.size());
+	}
+
+	@Override
+	protected void onRecord(MessageEventRecord record, RescanResult result)
+	{
+		++result.recordCount;
+		Hit hit = null;
+		for (int i = 0; i < this.logTargetLabels.size() + this.watchlistLabels.size(); ++i)
+		{
+			Label label = i < this.logTargetLabels.size() ? this.logTargetLabels.get(i) : this.watchlistLabels.get(i - this.logTargetLabels.size());
+			for (DiscordMonitorTargetIdentifier targetid : label.targetids)
+				if (record.isMatchedBy(targetid))
+				{
+					if (hit == null)
+						hit = new Hit(record);
+					result.hits.get(i).add(hit);
+					break; // Count each record once per label.
+				}
+		}
+	}
+
+	@Override
+	protected void onMalformedRecord(File file, long byteOffset, MalformedLogRecordException e, RescanResult result)
+	{
+		++result.malformedRecordCount;
+	}
+
+	@Override
+	protected RescanResult merge(RescanResult left, RescanResult right)
+	{
+		left.recordCount += right.recordCount;
+		left.malformedRecordCount += right.malformedRecordCount;
+		for (int i = 0; i < left.hits.size(); ++i)
+			left.hits.get(i).addAll(right.hits.get(i));
+		return left;
+	}
+
+	/**
+	 * Re-scans the given log files and prints historical hits per {@linkplain DiscordMonitorTargetIdentifier#identifierLabel IdentifierLabel}.
+	 * @param logFiles stdout logs to scan, in chronological order
+	 */
+	public void rescan(List<File> logFiles) throws IOException
+	{
+		long startNanos = System.nanoTime();
+		RescanResult total = this.newResult();
+		for (File logFile : logFiles)
+		{
+			System.out.println("info: Rescanning " + logFile + " ...");
+			total = this.merge(total, this.scan(logFile));
+		}
+		double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+		System.out.printf("info: Rescanned %d record(s) (%d malformed) from %d file(s) in %.1f s.\n\n",
+			total.recordCount, total.malformedRecordCount, logFiles.size(), elapsedSeconds);
+		this.printHits("(i) Historical log target hits", this.logTargetLabels, total.hits.subList(0, this.logTargetLabels.size()));
+		this.printHits("/!\\ Historical watchlist hits", this.watchlistLabels, total.hits.subList(this.logTargetLabels.size(), total.hits.size()));
+	}
+
+	private void printHits(String heading, List<Label> labels, List<HitSample> hits)
+	{
+		for (int i = 0; i < labels.size(); ++i)
+		{
+			Label label = labels.get(i);
+			if (label.targetids.isEmpty())
+			{
+				System.out.printf("%s for '%s': not evaluable offline (ServerId, ChannelId and UserId conditions only)\n", heading, label.name);
+				continue;
+			}
+
+			HitSample sample = hits.get(i);
+			System.out.printf("%s for '%s': %d", heading, label.name, sample.count);
+			if (label.isIdSkipped)
+				System.out.print(" (ServerId, ChannelId and UserId conditions skipped)");
+			if (label.unevaluableCount > 0)
+				System.out.printf(" (%d identifier(s) not evaluable offline)", label.unevaluableCount);
+			System.out.println();
+			for (Hit hit : sample.first)
+				DiscordMonitorLogRescanner.printHit(hit);
+			long skippedCount = sample.count - sample.first.size() - sample.last.size();
+			if (skippedCount > 0)
+				System.out.printf("\t(%d more)\n", skippedCount);
+			for (Hit hit : sample.last)
+				DiscordMonitorLogRescanner.printHit(hit);
+		}
+		if (!labels.isEmpty())
+			System.out.println();
+	}
+
+	private static void printHit(Hit hit)
+	{
+		System.out.printf("\t%d %s %s\n", hit.messageId, hit.eventType, hit.time.format(DiscordMonitor.LOG_DATETIME_FORMAT));
+	}
+
+	/** Groups the given identifiers (null if none) by label, keeping profile order. */
+	private static List<Label> groupByLabel(DiscordMonitorTargetIdentifier[] targetids)
+	{
+		Map<String, Label> labels = new LinkedHashMap<>();
+		if (targetids != null)
+			for (DiscordMonitorTargetIdentifier targetid : targetids)
+			{
+				Label label = labels.get(targetid.identifierLabel);
+				if (label == null)
+				{
+					label = new Label(targetid.identifierLabel);
+					labels.put(targetid.identifierLabel, label);
+				}
+				boolean usesIds = targetid.usesCheck(DiscordMonitorRuleProfile.Check.SERVER)
+					|| targetid.usesCheck(DiscordMonitorRuleProfile.Check.CHANNEL)
+					|| targetid.usesCheck(DiscordMonitorRuleProfile.Check.USER);
+				boolean usesOtherConditions = targetid.usesCheck(DiscordMonitorRuleProfile.Check.MESSAGE_REGEX)
+					|| targetid.usesCheck(DiscordMonitorRuleProfile.Check.ATTACHMENTS)
+					|| targetid.usesCheck(DiscordMonitorRuleProfile.Check.EVENT_TYPE);
+				if (usesIds && !usesOtherConditions)
+					++label.unevaluableCount; // Would match every record
+				else
+				{
+					label.targetids.add(targetid);
+					label.isIdSkipped |= usesIds;
+				}
+			}
+		return new ArrayList<>(labels.values());
+	}
+}
@@ -0,0 +1,340 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.valdeza.DiscordMonitor.DiscordMonitorLogParser.MalformedLogRecordException;
+
+/**
+ * Scans DiscordMonitor stdout logs in parallel.
+ * Log files are memory-mapped and split into chunks on record boundaries,
+ * which are then {@linkplain DiscordMonitorLogParser parsed} concurrently by a worker thread per available core.
+ * Workers take chunks in file order, and never get more than {@value #MAX_CHUNKS_AHEAD_PER_CORE} chunks per worker ahead of
+ * the first chunk not yet handed to {@link #onChunkScanned}, so that the results held for in-order consumption stay bounded
+ * however large the file is.
+ * Per-chunk results are merged in file order. Subclasses needing to consume records in file order while scanning can do so per chunk in {@link #onChunkScanned}.
+ * <p>
+ * Only ASCII-compatible encodings (e.g. UTF-8) are supported, as record boundaries are located by scanning for line feed bytes.
+ * @param <R> Result type accumulated per chunk
+ */
+abstract class DiscordMonitorLogScanner<R>
+{
+	/** Upper bound on the nominal size of each chunk. Chunks are extended to the next record boundary. */
+	private static final long MAX_CHUNK_SIZE = 32L * 1024 * 1024;
+	/** Lower bound on the nominal size of each chunk, so small files are not split needlessly. */
+	private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+	/** Chunks to create per core, allowing faster workers to pick up the slack. */
+	private static final int CHUNKS_PER_CORE = 4;
+	/** Chunks per worker that may be scanned (or be being scanned) before all preceding chunks are handed to {@link #onChunkScanned} */
+	private static final int MAX_CHUNKS_AHEAD_PER_CORE = 2;
+	/** Number of bytes initially mapped while searching for the next record boundary. */
+	private static final int BOUNDARY_SEARCH_WINDOW = 64 * 1024;
+
+	protected final Charset charset;
+
+	DiscordMonitorLogScanner(Charset charset)
+	{
+		this.charset = charset;
+	}
+
+	/** Returns a new, empty result to accumulate a chunk's records into. */
+	protected abstract R newResult();
+
+	/** Called for each message event parsed from a chunk. May be called concurrently for different chunks. */
+	protected abstract void onRecord(MessageEventRecord record, R result);
+
+	/**
+	 * Called for each record that could not be parsed. May be called concurrently for different chunks.
+	 * @param byteOffset Offset into the file of the start of the malformed record
+	 */
+	protected abstract void onMalformedRecord(File file, long byteOffset, MalformedLogRecordException e, R result);
+
+	/** Merges two results. <em>left</em> always precedes <em>right</em> in file order. */
+	protected abstract R merge(R left, R right);
+
+	/**
+	 * Called with each chunk's result once it and all preceding chunks of the file have been scanned, in file order and never concurrently.
+	 * Chunks scanned ahead of an unfinished one wait (and hold their results) until it is done; while this blocks, workers stop taking further chunks.
+	 * The result is merged afterwards, so anything consumed here may be discarded from it.
+	 */
+	protected void onChunkScanned(R result)
+	{
+	}
+
+	/**
+	 * Scans the given log file, blocking until all chunks have been processed.
+	 * @throws IOException Thrown if the file could not be opened or memory-mapped.
+	 */
+	public R scan(File file) throws IOException
+	{
+		int workerCount = Runtime.getRuntime().availableProcessors();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			long[] boundaries = this.findChunkBoundaries(channel, workerCount);
+			ChunkSequencer sequencer = new ChunkSequencer(boundaries.length - 1, workerCount * DiscordMonitorLogScanner.MAX_CHUNKS_AHEAD_PER_CORE);
+			Thread[] workers = new Thread[workerCount];
+			for (int i = 0; i < workerCount; ++i)
+			{
+				workers[i] = new Thread(() ->
+				{
+					try
+					{
+						for (int chunk = sequencer.takeChunk(); chunk >= 0; chunk = sequencer.takeChunk())
+							sequencer.complete(chunk, this.scanChunk(file, channel, boundaries, chunk));
+					}
+					catch (RuntimeException | InterruptedException e)
+					{
+						sequencer.fail(e);
+					}
+				}, "DiscordMonitorLogScanner-" + i);
+				workers[i].start();
+			}
+
+			try
+			{
+				for (Thread worker : workers)
+					worker.join();
+			}
+			catch (InterruptedException e)
+			{
+				sequencer.fail(e);
+				for (Thread worker : workers)
+					worker.interrupt();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while scanning " + file, e);
+			}
+			return sequencer.getResult();
+		}
+	}
+
+	/** Returns the offsets chunks start at, followed by the file size. Every offset but the first and last is the start of a record. */
+	private long[] findChunkBoundaries(FileChannel channel, int parallelism) throws IOException
+	{
+		long size = channel.size();
+		long chunkSize = Math.max(DiscordMonitorLogScanner.MIN_CHUNK_SIZE,
+			Math.min(DiscordMonitorLogScanner.MAX_CHUNK_SIZE, size / ((long)parallelism * DiscordMonitorLogScanner.CHUNKS_PER_CORE)));
+
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(0L);
+		long nominal = chunkSize;
+		while (nominal < size)
+		{
+			long boundary = this.findRecordStart(channel, nominal, size);
+			if (boundary < 0)
+				break;
+			boundaries.add(boundary);
+			nominal = boundary + chunkSize;
+		}
+		boundaries.add(size);
+
+		long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; ++i)
+			result[i] = boundaries.get(i);
+		return result;
+	}
+
+	/** Returns the offset of the first record header line starting after <em>from</em>, or -1 if there is none. */
+	private long findRecordStart(FileChannel channel, long from, long size) throws IOException
+	{
+		long windowStart = from;
+		int windowSize = DiscordMonitorLogScanner.BOUNDARY_SEARCH_WINDOW;
+		boolean isFirstLinePartial = true; // 'from' may fall mid-line.
+		while (windowStart < size)
+		{
+			int mapSize = (int)Math.min(windowSize, size - windowStart);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, mapSize);
+			boolean isWindowAtEof = windowStart + mapSize == size;
+
+			int lineStart = 0;
+			if (isFirstLinePartial)
+			{
+				int lf = DiscordMonitorLogScanner.indexOfLineFeed(window, 0, mapSize);
+				if (lf < 0)
+				{ // The partial line spans the whole window.
+					windowStart += mapSize;
+					continue;
+				}
+				lineStart = lf + 1;
+				isFirstLinePartial = false;
+			}
+
+			while (true)
+			{
+				// Both the candidate header and the following line need to be within the window.
+				int headerEnd = DiscordMonitorLogScanner.indexOfLineFeed(window, lineStart, mapSize);
+				int timeEnd = headerEnd < 0 ? -1 : DiscordMonitorLogScanner.indexOfLineFeed(window, headerEnd + 1, mapSize);
+				if (timeEnd < 0 && !(isWindowAtEof && headerEnd >= 0))
+					break; // Need more data.
+				if (timeEnd < 0)
+					timeEnd = mapSize;
+
+				if (DiscordMonitorLogParser.isRecordHeader(this.decodeLine(window, lineStart, headerEnd))
+						&& DiscordMonitorLogParser.isTimeLine(this.decodeLine(window, headerEnd + 1, timeEnd)))
+					return windowStart + lineStart;
+				lineStart = headerEnd + 1;
+			}
+
+			if (isWindowAtEof)
+				return -1;
+			if (lineStart == 0)
+				windowSize *= 2; // A single line exceeds the window.
+			windowStart += lineStart;
+		}
+		return -1;
+	}
+
+	private static int indexOfLineFeed(MappedByteBuffer buffer, int from, int limit)
+	{
+		for (int i = from; i < limit; ++i)
+			if (buffer.get(i) == '\n')
+				return i;
+		return -1;
+	}
+
+	private String decodeLine(MappedByteBuffer buffer, int start, int end)
+	{
+		if (end > start && buffer.get(end - 1) == '\r')
+			--end;
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; ++i)
+			bytes[i] = buffer.get(start + i);
+		return new String(bytes, this.charset);
+	}
+
+	/** Unchecked wrapper allowing I/O errors to propagate out of worker threads. */
+	private static class ScanFailedException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		ScanFailedException(IOException cause)
+		{
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause()
+		{
+			return (IOException)super.getCause();
+		}
+	}
+
+	/**
+	 * Hands out chunks to workers in file order, and hands their results to {@link DiscordMonitorLogScanner#onChunkScanned} in file order,
+	 * merging them as it goes.
+	 */
+	private class ChunkSequencer
+	{
+		/** Results of chunks scanned ahead of {@link #nextChunkToHandOver}. Guarded by 'this'. */
+		private final Object[] pendingResults;
+		private final int maxChunksAhead;
+		private int nextChunkToTake = 0;
+		private int nextChunkToHandOver = 0;
+		private R result = DiscordMonitorLogScanner.this.newResult();
+		/** Stops handing out chunks once set; null while scanning proceeds. */
+		private Exception failure = null;
+
+		ChunkSequencer(int chunkCount, int maxChunksAhead)
+		{
+			this.pendingResults = new Object[chunkCount];
+			this.maxChunksAhead = maxChunksAhead;
+		}
+
+		/** Returns the next chunk to scan, waiting while too many chunks are ahead of the next one to hand over; -1 if there are none left. */
+		synchronized int takeChunk() throws InterruptedException
+		{
+			while (this.failure == null && this.nextChunkToTake - this.nextChunkToHandOver >= this.maxChunksAhead)
+				this.wait();
+			if (this.failure != null || this.nextChunkToTake >= this.pendingResults.length)
+				return -1;
+			return this.nextChunkToTake++;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void complete(int chunk, R result)
+		{
+			this.pendingResults[chunk] = result;
+			while (this.nextChunkToHandOver < this.pendingResults.length && this.pendingResults[this.nextChunkToHandOver] != null)
+			{
+				R chunkResult = (R)this.pendingResults[this.nextChunkToHandOver];
+				this.pendingResults[this.nextChunkToHandOver++] = null;
+				DiscordMonitorLogScanner.this.onChunkScanned(chunkResult);
+				this.result = DiscordMonitorLogScanner.this.merge(this.result, chunkResult);
+				this.notifyAll();
+			}
+		}
+
+		/** Stops handing out chunks. Only the first failure is kept. */
+		synchronized void fail(Exception e)
+		{
+			if (this.failure == null)
+				this.failure = e;
+			this.notifyAll();
+		}
+
+		/** Returns the merged result of every chunk, once all workers are done. */
+		synchronized R getResult() throws IOException
+		{
+			if (this.failure instanceof ScanFailedException)
+				throw ((ScanFailedException)this.failure).getCause();
+			if (this.failure instanceof RuntimeException)
+				throw (RuntimeException)this.failure;
+			if (this.failure != null)
+				throw new IOException("Scan interrupted", this.failure);
+			return this.result;
+		}
+	}
+
+	private R scanChunk(File file, FileChannel channel, long[] boundaries, int chunk)
+	{
+		long chunkStart = boundaries[chunk];
+		long chunkSize = boundaries[chunk + 1] - chunkStart;
+		String text;
+		try
+		{
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkSize);
+			text = this.charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.decode(buffer)
+				.toString();
+		}
+		catch (IOException e)
+		{
+			throw new ScanFailedException(e);
+		}
+
+		R result = this.newResult();
+		List<MessageEventRecord> records = new ArrayList<>();
+		// Byte offset of malformed records, advanced incrementally so that each character is only re-encoded once per chunk.
+		int offsetCharIndex = 0;
+		long byteOffset = chunkStart;
+		int recordStart = DiscordMonitorLogParser.nextRecordStart(text, 0);
+		while (recordStart >= 0)
+		{
+			int nextRecordStart = DiscordMonitorLogParser.nextRecordStart(text, DiscordMonitorLogParser.endOfLine(text, recordStart) + 1);
+			int recordEnd = nextRecordStart >= 0 ? nextRecordStart : text.length();
+			try
+			{
+				DiscordMonitorLogParser.parseRecord(text, recordStart, recordEnd, records);
+				for (MessageEventRecord record : records)
+					this.onRecord(record, result);
+			}
+			catch (MalformedLogRecordException e)
+			{
+				byteOffset += text.substring(offsetCharIndex, recordStart).getBytes(this.charset).length;
+				offsetCharIndex = recordStart;
+				this.onMalformedRecord(file, byteOffset, e, result);
+			}
+			records.clear();
+			recordStart = nextRecordStart;
+		}
+		return result;
+	}
+}
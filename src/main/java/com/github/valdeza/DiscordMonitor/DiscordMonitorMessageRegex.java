@@ -0,0 +1,404 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@linkplain DiscordMonitorTargetIdentifier#messageRegex MessageRegex} guarded against catastrophic backtracking,
+ * so that a badly written pattern and a crafted message cannot stall event processing.
+ * <p>
+ * With the {@link Engine#LINEAR LINEAR} engine, patterns are matched by RE2/J in time linear in the message length.
+ * Patterns using features RE2 lacks (e.g. backreferences or lookaround) fall back to the backtracking engine.
+ * <p>
+ * With the {@link Engine#BACKTRACKING BACKTRACKING} engine (java.util.regex), matching from each position of the message may read at most
+ * {@linkplain DiscordMonitorConfig#regexStepLimit RegexStepLimit} characters, counting re-reads while backtracking,
+ * and a whole search at most {@value #MAX_FIND_STEP_FACTOR} times as many plus {@value #MAX_FIND_STEPS_PER_SQUARED_CHAR} per squared message length.
+ * Budgeting per position, and in total by message length, keeps ordinary patterns (e.g. <code>.*foo</code>,
+ * which reread the rest of the message from every position) from being aborted on long messages.
+ * An aborted search is undecided: it is reported (at most once a minute per identifier) and treated as no match.
+ * Patterns are also checked for constructs likely to backtrack excessively (see {@link #findBacktrackingHazards(String)}) when loaded.
+ */
+class DiscordMonitorMessageRegex
+{
+	enum Engine
+	{
+		/** java.util.regex with a step limit */
+		BACKTRACKING,
+		/** RE2/J, falling back to BACKTRACKING for unsupported patterns */
+		LINEAR
+	}
+
+	/** Bounded repetitions with a higher maximum than this are considered unbounded by {@link #findBacktrackingHazards(String)}. */
+	private static final int MAX_HARMLESS_REPETITION = 10;
+	/** A whole {@link #find(CharSequence)} may take this many times the step limit (of a single start position)... */
+	private static final int MAX_FIND_STEP_FACTOR = 16;
+	/** ...plus this many steps per squared input length, enough for patterns rereading the rest of the input from every position */
+	private static final int MAX_FIND_STEPS_PER_SQUARED_CHAR = 4;
+	/** Minimum time between announcements of exceeded step limits, per identifier */
+	private static final long STEP_LIMIT_WARNING_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	/** Thrown (preallocated, without stack trace) once a match exceeds its step limit. */
+	private static class StepLimitExceededException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		StepLimitExceededException()
+		{
+			super(null, null, false, false);
+		}
+	}
+
+	private static final StepLimitExceededException STEP_LIMIT_EXCEEDED = new StepLimitExceededException();
+
+	/** Counts character reads, aborting the match once the step limit of the current start position, or of the whole search, is reached. */
+	private static class StepLimitedCharSequence implements CharSequence
+	{
+		private final CharSequence s;
+		/** Reset for every start position */
+		long remainingSteps;
+		private long remainingTotalSteps;
+
+		StepLimitedCharSequence(CharSequence s, long totalStepLimit)
+		{
+			this.s = s;
+			this.remainingTotalSteps = totalStepLimit;
+		}
+
+		@Override
+		public char charAt(int index)
+		{
+			if (--this.remainingSteps < 0 || --this.remainingTotalSteps < 0)
+				throw DiscordMonitorMessageRegex.STEP_LIMIT_EXCEEDED;
+			return this.s.charAt(index);
+		}
+
+		@Override
+		public int length()
+		{
+			return this.s.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end)
+		{
+			return this.s.subSequence(start, end);
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.s.toString();
+		}
+	}
+
+	private final String identifierLabel;
+	private final Pattern pattern;
+	/** null if matched by the backtracking engine */
+	private final com.google.re2j.Pattern linearPattern;
+	private final long stepLimit;
+	private final AtomicLong stepLimitExceededCount = new AtomicLong();
+	/** System.nanoTime() from which the next exceeded step limit is announced */
+	private final AtomicLong nextStepLimitWarningNanos = new AtomicLong();
+	/** Whether the pattern uses \G, which only matches at the start of the input in a single find() */
+	private final boolean isContinuationAnchored;
+
+	/**
+	 * Prepares <em>pattern</em> for matching with the given engine, announcing any fallback or likely backtracking hazards.
+	 * @param identifierLabel Label of the identifier the pattern belongs to, for announcements
+	 */
+	DiscordMonitorMessageRegex(String identifierLabel, Pattern pattern, Engine engine, long stepLimit)
+	{
+		this.identifierLabel = identifierLabel;
+		this.pattern = pattern;
+		this.stepLimit = stepLimit;
+		this.isContinuationAnchored = DiscordMonitorMessageRegex.usesContinuationAnchor(pattern.pattern());
+
+		com.google.re2j.Pattern linearPattern = null;
+		if (engine == Engine.LINEAR)
+		{
+			try
+			{
+				linearPattern = DiscordMonitorMessageRegex.compileLinear(pattern);
+			}
+			catch (com.google.re2j.PatternSyntaxException e)
+			{
+				System.out.printf("info: MessageRegex of identifier '%s' is not supported by the linear engine (%s). "
+					+ "Falling back to the backtracking engine.\n", identifierLabel, e.getDescription());
+			}
+		}
+		this.linearPattern = linearPattern;
+
+		if (this.linearPattern == null)
+			for (String hazard : DiscordMonitorMessageRegex.findBacktrackingHazards(pattern.pattern()))
+				System.out.printf("warning: MessageRegex of identifier '%s' may backtrack excessively: %s. "
+					+ "Consider rewriting it or setting RegexEngine to LINEAR.\n", identifierLabel, hazard);
+	}
+
+	/**
+	 * Returns whether <em>pattern</em> occurs anywhere in <em>input</em>, as by {@link java.util.regex.Matcher#find()}.
+	 * Returns 'false' if the backtracking engine exceeded the step limit before finding a match, announcing this (rate-limited).
+	 */
+	public boolean find(CharSequence input)
+	{
+		if (this.linearPattern != null)
+			return this.linearPattern.matcher(input).find();
+
+		int len = input.length();
+		long totalStepLimit = DiscordMonitorMessageRegex.saturatedAdd(
+			DiscordMonitorMessageRegex.saturatedMultiply(this.stepLimit, DiscordMonitorMessageRegex.MAX_FIND_STEP_FACTOR),
+			(long)len * len * DiscordMonitorMessageRegex.MAX_FIND_STEPS_PER_SQUARED_CHAR);
+		StepLimitedCharSequence limitedInput = new StepLimitedCharSequence(input, totalStepLimit);
+		// Each start position is tried in turn (as find() does), with its own step budget.
+		// Transparent, non-anchoring bounds let lookbehind and anchors see the whole message, as find() would.
+		Matcher matcher = this.pattern.matcher(limitedInput).useTransparentBounds(true).useAnchoringBounds(false);
+		try
+		{
+			int lastStart = this.isContinuationAnchored ? 0 : len;
+			for (int start = 0; start <= lastStart; ++start)
+			{
+				limitedInput.remainingSteps = this.stepLimit;
+				if (matcher.region(start, len).lookingAt())
+					return true;
+			}
+			return false;
+		}
+		catch (StepLimitExceededException e)
+		{
+			long count = this.stepLimitExceededCount.incrementAndGet();
+			long nowNanos = System.nanoTime();
+			long nextWarningNanos = this.nextStepLimitWarningNanos.get();
+			if ((count == 1 || nowNanos - nextWarningNanos >= 0)
+				&& this.nextStepLimitWarningNanos.compareAndSet(nextWarningNanos, nowNanos + DiscordMonitorMessageRegex.STEP_LIMIT_WARNING_INTERVAL_NANOS))
+			{
+				System.out.printf("warning: MessageRegex of identifier '%s' exceeded RegexStepLimit (%d) on a %d-character message (%d time(s) so far). "
+					+ "Treated as no match. Further occurrences are announced at most once a minute.\n", this.identifierLabel, this.stepLimit, len, count);
+			}
+			return false;
+		}
+	}
+
+	/** Returns whether <em>regex</em> contains an unescaped \G. */
+	private static boolean usesContinuationAnchor(String regex)
+	{
+		for (int i = regex.indexOf("\\G"); i >= 0; i = regex.indexOf("\\G", i + 1))
+		{
+			int backslashCount = 0;
+			while (i - backslashCount >= 0 && regex.charAt(i - backslashCount) == '\\')
+				++backslashCount;
+			if (backslashCount % 2 == 1)
+				return true;
+		}
+		return false;
+	}
+
+	private static long saturatedMultiply(long a, long b)
+	{
+		return a <= Long.MAX_VALUE / b ? a * b : Long.MAX_VALUE;
+	}
+
+	private static long saturatedAdd(long a, long b)
+	{
+		return a <= Long.MAX_VALUE - b ? a + b : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Compiles the given pattern for RE2/J, carrying over the flags both engines share.
+	 * Note that RE2 case folding is Unicode-aware and its '.' only excludes '\n', unlike java.util.regex defaults.
+	 * @throws com.google.re2j.PatternSyntaxException Thrown if the pattern uses features RE2 does not support.
+	 */
+	private static com.google.re2j.Pattern compileLinear(Pattern pattern)
+	{
+		int flags = 0;
+		int javaFlags = pattern.flags();
+		if ((javaFlags & Pattern.CASE_INSENSITIVE) != 0)
+			flags |= com.google.re2j.Pattern.CASE_INSENSITIVE;
+		if ((javaFlags & Pattern.DOTALL) != 0)
+			flags |= com.google.re2j.Pattern.DOTALL;
+		if ((javaFlags & Pattern.MULTILINE) != 0)
+			flags |= com.google.re2j.Pattern.MULTILINE;
+		return com.google.re2j.Pattern.compile(pattern.pattern(), flags);
+	}
+
+	/** Per-group state of {@link DiscordMonitorMessageRegex#findBacktrackingHazards(String)} */
+	private static class GroupScan
+	{
+		/** Whether the group contains a repeated element that backtracking can re-enter */
+		boolean hasRepetition = false;
+		/** Atomic groups and lookarounds are not re-entered once matched. */
+		boolean isBacktrackingBarrier = false;
+		/** Source of the previous element if it was repeated, otherwise null */
+		String previousRepeatedAtom = null;
+	}
+
+	/**
+	 * Returns descriptions of constructs in the given java.util.regex pattern that are likely to cause excessive backtracking:
+	 * <ul>
+	 * <li> Repeated groups containing repetition, e.g. <code>(a+)+</code> (exponential)
+	 * <li> Adjacent repetitions of the same (or any) character, e.g. <code>\s*\s*</code> or <code>.*.*</code> (polynomial)
+	 * </ul>
+	 * Possessive quantifiers and atomic groups are taken into account. This is a heuristic: not every hazard is found, and not every finding is exploitable.
+	 */
+	static List<String> findBacktrackingHazards(String regex)
+	{
+		List<String> hazards = new ArrayList<>();
+		Deque<GroupScan> groups = new ArrayDeque<>();
+		groups.push(new GroupScan());
+		int len = regex.length();
+		int i = 0;
+		while (i < len)
+		{
+			int atomStart = i;
+			GroupScan closedGroup = null;
+			char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				if (i + 1 < len && regex.charAt(i + 1) == 'Q')
+				{ // Quoted until \E
+					int quoteEnd = regex.indexOf("\\E", i + 2);
+					i = quoteEnd < 0 ? len : quoteEnd + 2;
+				}
+				else if (i + 2 < len && "pPx".indexOf(regex.charAt(i + 1)) >= 0 && regex.charAt(i + 2) == '{')
+				{ // \p{Name}, \x{h...h}
+					int braceEnd = regex.indexOf('}', i + 3);
+					i = braceEnd < 0 ? len : braceEnd + 1;
+				}
+				else
+					i = Math.min(i + 2, len);
+			}
+			else if (c == '[')
+				i = DiscordMonitorMessageRegex.skipCharacterClass(regex, i);
+			else if (c == '(')
+			{
+				GroupScan group = new GroupScan();
+				i = i + 1;
+				if (i < len && regex.charAt(i) == '?')
+				{
+					int flagsEnd = i + 1;
+					while (flagsEnd < len && (Character.isLetter(regex.charAt(flagsEnd)) || regex.charAt(flagsEnd) == '-'))
+						++flagsEnd;
+					if (flagsEnd < len && regex.charAt(flagsEnd) == ')' && flagsEnd > i + 1)
+					{ // (?flags) applies to the enclosing group. Not an element.
+						i = flagsEnd + 1;
+						continue;
+					}
+					char kind = i + 1 < len ? regex.charAt(i + 1) : ':';
+					group.isBacktrackingBarrier = kind == '>' || kind == '=' || kind == '!'
+						|| (kind == '<' && i + 2 < len && (regex.charAt(i + 2) == '=' || regex.charAt(i + 2) == '!'));
+				}
+				groups.push(group);
+				continue;
+			}
+			else if (c == ')')
+			{
+				if (groups.size() == 1)
+				{ // Unbalanced. Pattern.compile would have rejected it.
+					++i;
+					continue;
+				}
+				closedGroup = groups.pop();
+				++i;
+			}
+			else if (c == '|')
+			{
+				groups.peek().previousRepeatedAtom = null;
+				++i;
+				continue;
+			}
+			else
+				++i;
+
+			// Quantifier, if any
+			int atomEnd = i;
+			boolean isRepeated = false;
+			if (i < len)
+			{
+				char q = regex.charAt(i);
+				if (q == '*' || q == '+')
+				{
+					isRepeated = true;
+					++i;
+				}
+				else if (q == '?')
+					++i;
+				else if (q == '{')
+				{
+					int braceEnd = regex.indexOf('}', i);
+					if (braceEnd > 0)
+					{
+						String[] bounds = regex.substring(i + 1, braceEnd).split(",", -1);
+						try
+						{
+							isRepeated = bounds.length == 2 && (bounds[1].trim().isEmpty()
+								|| Integer.parseInt(bounds[1].trim()) > DiscordMonitorMessageRegex.MAX_HARMLESS_REPETITION);
+						}
+						catch (NumberFormatException e)
+						{
+							isRepeated = false;
+						}
+						i = braceEnd + 1;
+					}
+				}
+			}
+			if (i > atomEnd && i < len)
+			{
+				if (regex.charAt(i) == '+')
+				{ // Possessive: never backtracked into
+					isRepeated = false;
+					++i;
+				}
+				else if (regex.charAt(i) == '?')
+					++i; // Reluctant: backtracks all the same
+			}
+
+			GroupScan current = groups.peek();
+			if (closedGroup != null)
+			{
+				if (isRepeated && closedGroup.hasRepetition && !closedGroup.isBacktrackingBarrier)
+					hazards.add(String.format("repeated group containing repetition ending at index %d", atomEnd - 1));
+				if (!closedGroup.isBacktrackingBarrier)
+					current.hasRepetition |= closedGroup.hasRepetition;
+				current.previousRepeatedAtom = null;
+			}
+			else
+			{
+				String atom = regex.substring(atomStart, atomEnd);
+				String previous = current.previousRepeatedAtom;
+				if (isRepeated && previous != null && (previous.equals(atom) || previous.equals(".") || atom.equals(".")))
+					hazards.add(String.format("adjacent overlapping repetitions at index %d (\"%s\")", atomStart, regex.substring(atomStart, i)));
+				current.previousRepeatedAtom = isRepeated ? atom : null;
+			}
+			current.hasRepetition |= isRepeated;
+		}
+		return hazards;
+	}
+
+	/** Returns the index just past the character class starting at <em>start</em> (which may contain nested classes). */
+	private static int skipCharacterClass(String regex, int start)
+	{
+		int len = regex.length();
+		int i = start + 1;
+		if (i < len && regex.charAt(i) == '^')
+			++i;
+		if (i < len && regex.charAt(i) == ']')
+			++i; // Leading ']' is literal.
+		int depth = 1;
+		while (i < len && depth > 0)
+		{
+			char c = regex.charAt(i);
+			if (c == '\\')
+				++i;
+			else if (c == '[')
+				++depth;
+			else if (c == ']')
+				--depth;
+			++i;
+		}
+		return Math.min(i, len);
+	}
+}
@@ -0,0 +1,606 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Fans {@linkplain DiscordMonitorConfig#notificationWatchlist NotificationWatchlist} hits out to the configured
+ * {@linkplain DiscordMonitorConfig#notificationSinks NotificationSinks}, without holding up event processing.
+ * <p>
+ * Each sink has its own bounded queue, an outbox (in {@linkplain DiscordMonitorConfig#notificationOutboxLocation NotificationOutboxLocation})
+ * and two threads: a writer thread moving queued hits to the outbox, in batches gathered over up to {@value #LINGER_MILLIS} ms,
+ * and a delivery thread delivering them from there in batches of up to {@value #MAX_BATCH_SIZE}.
+ * Failed batches are retried with exponential backoff while further hits accumulate in the outbox, so a slow, failing or stalled sink
+ * never affects the others, nor holds up moving its hits to its outbox.
+ * <p>
+ * Delivery is at least once for HTTP and TCP sinks, which acknowledge delivery: a hit's {@linkplain MessageEventRecord#journalEntry journal entry}
+ * is retained until the hit is in the outbox, and hits leave the outbox only once delivered. Hits may therefore be delivered again after a crash
+ * or a failed batch. PIPE sinks cannot acknowledge delivery, so hits written to a pipe whose reader goes away are lost.
+ * An outbox holds up to {@value #MAX_OUTBOX_SIZE} bytes of undelivered hits; hits beyond it are dropped (with announcement),
+ * but keep their journal entries retained, so that they are replayed on the next start.
+ * If a sink's queue is full (i.e. its outbox cannot keep up), the processing thread writes the hit to the outbox
+ * together with everything queued before it, in one write.
+ */
+class DiscordMonitorNotificationDispatcher implements AutoCloseable
+{
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int MAX_BATCH_SIZE = 100;
+	/** How long a delivery thread waits for further hits to batch with the first one queued */
+	private static final long LINGER_MILLIS = 50;
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long MAX_OUTBOX_SIZE = 64 * 1024 * 1024;
+	/** Delivered hits are removed from the front of an outbox once they take up this many bytes and at least half of it. */
+	private static final long OUTBOX_COMPACTION_THRESHOLD = 1024 * 1024;
+	private static final String OUTBOX_FILENAME_SUFFIX = ".outbox";
+	private static final String COMPACTED_OUTBOX_FILENAME_SUFFIX = ".outbox.tmp";
+	private static final String CURSOR_FILENAME_SUFFIX = ".cursor";
+	/** Queued by {@link #close()} to stop a writer thread (and its delivery thread) once preceding hits are in the outbox. */
+	private static final QueuedHit END_OF_QUEUE = new QueuedHit(null, null);
+
+	/** A {@linkplain DiscordMonitorConfig#notificationSinks NotificationSinks} entry */
+	static class SinkConfig
+	{
+		/** Names the sink in announcements and its outbox files */
+		public String label;
+		public DiscordMonitorNotificationSink.Type type;
+		/** URL, path or "host:port", depending on the type */
+		public String target;
+	}
+
+	private static class QueuedHit
+	{
+		final String json;
+		/** null if the event was not journaled */
+		final DiscordMonitorEventJournal.Entry journalEntry;
+
+		QueuedHit(String json, DiscordMonitorEventJournal.Entry journalEntry)
+		{
+			this.json = json;
+			this.journalEntry = journalEntry;
+		}
+	}
+
+	/** Hits read from an outbox, not yet delivered */
+	static class OutboxBatch
+	{
+		final List<String> hits = new ArrayList<>();
+		/** Outbox offset just past the last hit */
+		long endOffset;
+	}
+
+	/**
+	 * Append-only file of undelivered hits, one per line, each prefixed with the epoch milliseconds it was added at and a tab.
+	 * A separate cursor file records the offset of the first undelivered hit. The outbox is emptied whenever it is fully delivered,
+	 * and compacted (rewritten without its delivered hits) once these take up {@value DiscordMonitorNotificationDispatcher#OUTBOX_COMPACTION_THRESHOLD} bytes
+	 * and at least half of the file.
+	 */
+	static class Outbox
+	{
+		private final File outboxPath;
+		private final File compactedOutboxPath;
+		/** Replaced when compacted */
+		private FileChannel channel;
+		private final RandomAccessFile cursorFile;
+		private long cursor;
+		private long length;
+		private long pendingCount = 0;
+		private boolean isStopRequested = false;
+
+		/** Opens (creating, if needed) the outbox with the given label in <em>directory</em>, dropping any torn last line. */
+		Outbox(File directory, String label) throws IOException
+		{
+			directory.mkdirs();
+			this.outboxPath = new File(directory, label + DiscordMonitorNotificationDispatcher.OUTBOX_FILENAME_SUFFIX);
+			this.compactedOutboxPath = new File(directory, label + DiscordMonitorNotificationDispatcher.COMPACTED_OUTBOX_FILENAME_SUFFIX);
+			this.compactedOutboxPath.delete(); // Left over from a crash mid-compaction. The outbox itself is still complete.
+			this.channel = new RandomAccessFile(this.outboxPath, "rw").getChannel();
+			this.cursorFile = new RandomAccessFile(new File(directory, label + DiscordMonitorNotificationDispatcher.CURSOR_FILENAME_SUFFIX), "rw");
+			this.cursor = this.cursorFile.length() >= 8 ? this.cursorFile.readLong() : 0;
+
+			// Count complete lines past the cursor, dropping a torn last line (e.g. from a crash mid-write).
+			long completeLength = 0;
+			long lineCount = 0;
+			ByteBuffer buffer = ByteBuffer.allocate(65536);
+			long position = 0;
+			while (this.channel.read(buffer, position) > 0)
+			{
+				buffer.flip();
+				for (int i = 0; i < buffer.limit(); ++i)
+					if (buffer.get(i) == '\n')
+					{
+						completeLength = position + i + 1;
+						++lineCount;
+						if (completeLength > this.cursor)
+							++this.pendingCount;
+					}
+				position += buffer.limit();
+				buffer.clear();
+			}
+			this.channel.truncate(completeLength);
+			this.length = completeLength;
+			if (this.cursor < 0 || this.cursor > this.length) // e.g. crashed between emptying the outbox and resetting the cursor
+			{
+				this.setCursor(0);
+				this.pendingCount = lineCount;
+			}
+		}
+
+		/**
+		 * Appends the given hits and syncs them to disk.
+		 * @return Number of hits dropped from the end of <em>hits</em>, as the undelivered hits would exceed
+		 * {@link DiscordMonitorNotificationDispatcher#MAX_OUTBOX_SIZE} bytes with the first of them
+		 */
+		synchronized int append(List<String> hits) throws IOException
+		{
+			List<byte[]> lines = new ArrayList<>(hits.size());
+			int byteCount = 0;
+			int dropCount = 0;
+			String prefix = System.currentTimeMillis() + "\t";
+			for (String hit : hits)
+			{
+				byte[] line = (prefix + hit + '\n').getBytes(StandardCharsets.UTF_8);
+				if (this.length - this.cursor + byteCount + line.length > DiscordMonitorNotificationDispatcher.MAX_OUTBOX_SIZE)
+				{ // Later hits are dropped too, even if smaller, so that whatever reaches the outbox stays in order.
+					dropCount = hits.size() - lines.size();
+					break;
+				}
+				lines.add(line);
+				byteCount += line.length;
+			}
+			if (lines.isEmpty())
+				return dropCount;
+
+			ByteBuffer buffer = ByteBuffer.allocate(byteCount);
+			for (byte[] line : lines)
+				buffer.put(line);
+			buffer.flip();
+			long position = this.length;
+			while (buffer.hasRemaining())
+				position += this.channel.write(buffer, position);
+			this.channel.force(false);
+			this.length = position;
+			this.pendingCount += hits.size() - dropCount;
+			this.notifyAll();
+			return dropCount;
+		}
+
+		/**
+		 * Waits up to <em>timeoutMillis</em> (0 for no limit) for hits to be appended, unless the number of undelivered hits
+		 * already differs from <em>pendingCount</em> or a stop was requested.
+		 */
+		synchronized void awaitAppend(long pendingCount, long timeoutMillis) throws InterruptedException
+		{
+			if (this.pendingCount == pendingCount && !this.isStopRequested)
+				this.wait(timeoutMillis);
+		}
+
+		/** Asks the delivery thread to stop, waking it if waiting in {@link #awaitAppend(long, long)}. */
+		synchronized void requestStop()
+		{
+			this.isStopRequested = true;
+			this.notifyAll();
+		}
+
+		synchronized boolean isStopRequested()
+		{
+			return this.isStopRequested;
+		}
+
+		/** Returns up to <em>maxCount</em> of the oldest undelivered hits (none if there are none). */
+		synchronized OutboxBatch read(int maxCount) throws IOException
+		{
+			OutboxBatch batch = new OutboxBatch();
+			batch.endOffset = this.cursor;
+			int bufferSize = 65536;
+			while (batch.hits.isEmpty() && batch.endOffset < this.length)
+			{
+				ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(bufferSize, this.length - batch.endOffset));
+				while (buffer.hasRemaining() && this.channel.read(buffer, batch.endOffset + buffer.position()) > 0)
+					;
+				byte[] bytes = buffer.array();
+				int lineStart = 0;
+				for (int i = 0; i < buffer.position() && batch.hits.size() < maxCount; ++i)
+				{
+					if (bytes[i] != '\n')
+						continue;
+					String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8);
+					batch.hits.add(line.substring(line.indexOf('\t') + 1));
+					lineStart = i + 1;
+				}
+				batch.endOffset += lineStart;
+				bufferSize *= 2; // No complete line in the buffer: the next hit is larger.
+			}
+			return batch;
+		}
+
+		/** Marks the given batch (the oldest undelivered hits) as delivered, emptying or compacting the outbox as due. */
+		synchronized void commit(OutboxBatch batch) throws IOException
+		{
+			this.pendingCount -= batch.hits.size();
+			if (batch.endOffset >= this.length)
+			{
+				this.channel.truncate(0);
+				this.length = 0;
+				this.setCursor(0);
+			}
+			else
+			{
+				this.setCursor(batch.endOffset);
+				if (this.cursor >= DiscordMonitorNotificationDispatcher.OUTBOX_COMPACTION_THRESHOLD && this.cursor >= this.length - this.cursor)
+					this.compact();
+			}
+		}
+
+		/**
+		 * Rewrites the outbox without its delivered hits.
+		 * The undelivered hits are copied to a separate file, which then replaces the outbox.
+		 * The cursor is reset (and synced) in between, so a crash at any point at worst delivers hits again.
+		 */
+		private void compact() throws IOException
+		{
+			try (FileChannel compacted = new RandomAccessFile(this.compactedOutboxPath, "rw").getChannel())
+			{
+				compacted.truncate(0);
+				long position = this.cursor;
+				while (position < this.length)
+					position += this.channel.transferTo(position, this.length - position, compacted);
+				compacted.force(false);
+			}
+			this.setCursor(0);
+			this.cursorFile.getFD().sync();
+			this.channel.close(); // Required to replace it on Windows
+			try
+			{
+				Files.move(this.compactedOutboxPath.toPath(), this.outboxPath.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally
+			{ // If not replaced, the outbox is delivered again from the start.
+				this.channel = new RandomAccessFile(this.outboxPath, "rw").getChannel();
+				this.length = this.channel.size();
+			}
+		}
+
+		/** Returns the size of the outbox file, including delivered hits not yet compacted away. */
+		synchronized long getFileLength()
+		{
+			return this.length;
+		}
+
+		synchronized long getPendingCount()
+		{
+			return this.pendingCount;
+		}
+
+		/** Returns when the oldest undelivered hit was added (epoch milliseconds), or null if there is none. */
+		synchronized Long getOldestPendingMillis() throws IOException
+		{
+			if (this.cursor >= this.length)
+				return null;
+			ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(32, this.length - this.cursor));
+			this.channel.read(buffer, this.cursor);
+			String prefix = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+			int tab = prefix.indexOf('\t');
+			return tab > 0 ? Long.valueOf(prefix.substring(0, tab)) : null;
+		}
+
+		synchronized void close() throws IOException
+		{
+			this.channel.close();
+			this.cursorFile.close();
+		}
+
+		/** Not synced: if lost, hits are merely delivered again. */
+		private void setCursor(long cursor) throws IOException
+		{
+			this.cursor = cursor;
+			this.cursorFile.seek(0);
+			this.cursorFile.writeLong(cursor);
+		}
+	}
+
+	/** Delivery state of one sink */
+	private static class SinkChannel
+	{
+		final String label;
+		final DiscordMonitorNotificationSink sink;
+		final Outbox outbox;
+		final BlockingQueue<QueuedHit> queue = new ArrayBlockingQueue<>(DiscordMonitorNotificationDispatcher.QUEUE_CAPACITY);
+		/** Held while taking hits off the queue until they are in the outbox, so that they are appended in queue order */
+		final Object outboxWriteLock = new Object();
+		Thread writerThread;
+		Thread deliveryThread;
+		final AtomicLong deliveredCount = new AtomicLong();
+		final AtomicLong batchCount = new AtomicLong();
+		final AtomicLong failedAttemptCount = new AtomicLong();
+		final AtomicLong droppedCount = new AtomicLong();
+		/** Delivery thread only */
+		long retryDelayMillis = DiscordMonitorNotificationDispatcher.INITIAL_RETRY_DELAY_MILLIS;
+		/** Epoch milliseconds; 0 if not waiting to retry */
+		volatile long nextAttemptMillis = 0;
+		volatile String lastError;
+
+		SinkChannel(String label, DiscordMonitorNotificationSink sink, Outbox outbox)
+		{
+			this.label = label;
+			this.sink = sink;
+			this.outbox = outbox;
+		}
+	}
+
+	private final List<SinkChannel> channels = new ArrayList<>();
+	private final JsonParser jsonParser = new JsonParser();
+
+	/**
+	 * Opens the outbox of each sink and starts delivering any hits left in them.
+	 * @throws IOException Thrown if an outbox could not be opened.
+	 */
+	DiscordMonitorNotificationDispatcher(SinkConfig[] sinkConfigs, File outboxLocation) throws IOException
+	{
+		for (SinkConfig sinkConfig : sinkConfigs)
+		{
+			SinkChannel channel = new SinkChannel(sinkConfig.label, DiscordMonitorNotificationSink.create(sinkConfig.type, sinkConfig.target),
+				new Outbox(outboxLocation, sinkConfig.label));
+			if (channel.outbox.getPendingCount() > 0)
+				System.out.printf("info: Delivering %d hit(s) left in the outbox of NotificationSink '%s'.\n", channel.outbox.getPendingCount(), channel.label);
+			this.channels.add(channel);
+		}
+		for (SinkChannel channel : this.channels)
+		{
+			// Daemons: queued hits are replayed from the event journal, if enabled.
+			channel.writerThread = new Thread(() -> this.runWriter(channel), "DiscordMonitorNotificationDispatcher-" + channel.label + "-writer");
+			channel.writerThread.setDaemon(true);
+			channel.writerThread.start();
+			channel.deliveryThread = new Thread(() -> this.runDelivery(channel), "DiscordMonitorNotificationDispatcher-" + channel.label);
+			channel.deliveryThread.setDaemon(true);
+			channel.deliveryThread.start();
+		}
+	}
+
+	/**
+	 * Queues the given NotificationWatchlist hit for every sink, retaining its journal entry (if any) until it is in each outbox.
+	 * Only blocks if a sink's queue is full, writing the hit and those queued before it to that sink's outbox instead.
+	 */
+	public void submit(MessageEventRecord record)
+	{
+		String json = this.toJson(record);
+		for (SinkChannel channel : this.channels)
+		{
+			if (record.journalEntry != null)
+				record.journalEntry.retain();
+			QueuedHit hit = new QueuedHit(json, record.journalEntry);
+			if (channel.queue.offer(hit))
+				continue;
+
+			synchronized (channel.outboxWriteLock)
+			{
+				List<QueuedHit> hits = new ArrayList<>(channel.queue.size() + 1);
+				channel.queue.drainTo(hits);
+				hits.add(hit);
+				this.moveToOutbox(channel, hits);
+			}
+		}
+	}
+
+	/** Summarises each sink's delivery state and lag, e.g. "collector (HTTP http://127.0.0.1:8080/hits): 120 delivered in 14 batch(es), ...". */
+	public String describe()
+	{
+		StringBuilder sb = new StringBuilder();
+		long nowMillis = System.currentTimeMillis();
+		for (SinkChannel channel : this.channels)
+		{
+			sb.append(channel.label).append(" (").append(channel.sink).append("): ")
+				.append(channel.deliveredCount.get()).append(" delivered in ").append(channel.batchCount.get()).append(" batch(es), ")
+				.append(channel.queue.size()).append(" queued, ")
+				.append(channel.outbox.getPendingCount()).append(" in outbox");
+			try
+			{
+				Long oldestMillis = channel.outbox.getOldestPendingMillis();
+				if (oldestMillis != null)
+					sb.append(String.format(" (lag %.1f s)", (nowMillis - oldestMillis) / 1000.0));
+			}
+			catch (IOException e)
+			{
+				sb.append(" (lag unknown)");
+			}
+			if (channel.droppedCount.get() > 0)
+				sb.append(", ").append(channel.droppedCount.get()).append(" dropped");
+			if (channel.failedAttemptCount.get() > 0)
+				sb.append(", ").append(channel.failedAttemptCount.get()).append(" failed attempt(s)");
+			long nextAttemptMillis = channel.nextAttemptMillis;
+			if (nextAttemptMillis != 0)
+				sb.append(String.format(", retrying in %.1f s after: %s", Math.max(0, nextAttemptMillis - nowMillis) / 1000.0, channel.lastError));
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/** Moves queued hits to the outboxes and stops delivery. Hits not yet delivered remain in the outboxes for the next start. */
+	@Override
+	public void close()
+	{
+		for (SinkChannel channel : this.channels)
+		{
+			try
+			{
+				if (channel.queue.offer(DiscordMonitorNotificationDispatcher.END_OF_QUEUE, 5, TimeUnit.SECONDS))
+					channel.writerThread.join(TimeUnit.SECONDS.toMillis(5));
+				// A delivery thread may be stuck on its sink (e.g. a receiver that stopped reading). Its hits remain in the outbox.
+				channel.deliveryThread.join(TimeUnit.SECONDS.toMillis(5));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Moves queued hits to the outbox until {@link #END_OF_QUEUE} is taken, then asks the delivery thread to stop. */
+	private void runWriter(SinkChannel channel)
+	{
+		try
+		{
+			boolean isEnd = false;
+			while (!isEnd)
+			{
+				QueuedHit first = channel.queue.take();
+				// Let further hits gather, so that they share a write (and sync) to the outbox.
+				if (first != DiscordMonitorNotificationDispatcher.END_OF_QUEUE && channel.queue.isEmpty())
+					Thread.sleep(DiscordMonitorNotificationDispatcher.LINGER_MILLIS);
+				synchronized (channel.outboxWriteLock)
+				{
+					List<QueuedHit> hits = new ArrayList<>(channel.queue.size() + 1);
+					hits.add(first);
+					channel.queue.drainTo(hits);
+					isEnd = hits.remove(DiscordMonitorNotificationDispatcher.END_OF_QUEUE);
+					if (!hits.isEmpty())
+						this.moveToOutbox(channel, hits);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			System.out.printf("warning: Outbox writer of NotificationSink '%s' interrupted.\n", channel.label);
+		}
+		channel.outbox.requestStop();
+	}
+
+	/** Delivers hits from the outbox as they are appended, until the writer thread requests a stop. */
+	private void runDelivery(SinkChannel channel)
+	{
+		try
+		{
+			while (!channel.outbox.isStopRequested())
+			{
+				// Deliver, unless the outbox is empty or the next attempt is not due yet.
+				long pendingCount = channel.outbox.getPendingCount();
+				long nowMillis = System.currentTimeMillis();
+				if (pendingCount > 0 && nowMillis >= channel.nextAttemptMillis)
+					this.deliverBatch(channel);
+				else
+					channel.outbox.awaitAppend(pendingCount, pendingCount > 0 ? channel.nextAttemptMillis - nowMillis : 0);
+			}
+			channel.sink.close();
+			channel.outbox.close();
+		}
+		catch (InterruptedException e)
+		{
+			System.out.printf("warning: Delivery to NotificationSink '%s' interrupted.\n", channel.label);
+		}
+		catch (IOException e)
+		{
+			System.out.printf("error: Outbox of NotificationSink '%s' failed: %s. Delivery stopped.\n", channel.label, e.toString());
+		}
+	}
+
+	/** Delivers the oldest batch in the outbox, scheduling a retry (with announcement on the first failure) if it fails. */
+	private void deliverBatch(SinkChannel channel) throws IOException
+	{
+		OutboxBatch batch = channel.outbox.read(DiscordMonitorNotificationDispatcher.MAX_BATCH_SIZE);
+		try
+		{
+			channel.sink.deliver(batch.hits);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			channel.failedAttemptCount.incrementAndGet();
+			channel.lastError = e.toString();
+			if (channel.nextAttemptMillis == 0)
+				System.out.printf("warning: Delivery to NotificationSink '%s' failed: %s. Retrying with backoff; hits are kept in its outbox.\n", channel.label, e.toString());
+			channel.nextAttemptMillis = System.currentTimeMillis() + channel.retryDelayMillis;
+			channel.retryDelayMillis = Math.min(channel.retryDelayMillis * 2, DiscordMonitorNotificationDispatcher.MAX_RETRY_DELAY_MILLIS);
+			return;
+		}
+
+		channel.outbox.commit(batch);
+		channel.deliveredCount.addAndGet(batch.hits.size());
+		channel.batchCount.incrementAndGet();
+		if (channel.nextAttemptMillis != 0)
+		{
+			System.out.printf("info: Delivery to NotificationSink '%s' resumed.\n", channel.label);
+			channel.nextAttemptMillis = 0;
+			channel.lastError = null;
+		}
+		channel.retryDelayMillis = DiscordMonitorNotificationDispatcher.INITIAL_RETRY_DELAY_MILLIS;
+	}
+
+	/**
+	 * Appends the given hits to the sink's outbox, then releases their journal entries.
+	 * The entries of hits that could not be appended stay retained, so that these are replayed on the next start.
+	 */
+	private void moveToOutbox(SinkChannel channel, List<QueuedHit> hits)
+	{
+		List<String> json = new ArrayList<>(hits.size());
+		for (QueuedHit hit : hits)
+			json.add(hit.json);
+		int appendedCount;
+		try
+		{
+			int dropCount = channel.outbox.append(json);
+			if (dropCount > 0 && channel.droppedCount.getAndAdd(dropCount) == 0)
+				System.out.printf("warning: Outbox of NotificationSink '%s' is full. Dropping further hits until it drains"
+					+ " (to be replayed on the next start if the event journal is enabled).\n", channel.label);
+			appendedCount = hits.size() - dropCount;
+		}
+		catch (IOException e)
+		{
+			// Journal entries stay retained, so that the hits are replayed on the next start.
+			channel.droppedCount.addAndGet(hits.size());
+			System.out.printf("error: Unable to write %d hit(s) to the outbox of NotificationSink '%s': %s\n", hits.size(), channel.label, e.toString());
+			return;
+		}
+		for (QueuedHit hit : hits.subList(0, appendedCount))
+			if (hit.journalEntry != null)
+				hit.journalEntry.release();
+	}
+
+	/** Serialises the given hit as a single-line JSON object. */
+	private String toJson(MessageEventRecord record)
+	{
+		JsonObject json = new JsonObject();
+		json.addProperty("messageId", record.messageId);
+		json.addProperty("eventType", record.eventType.name());
+		json.addProperty("time", DateTimeFormatter.ISO_INSTANT.format(record.time));
+		json.addProperty("isTimeApproximate", record.isTimeApproximate);
+		json.addProperty("channelType", record.channelType.name());
+		json.addProperty("serverId", record.serverId);
+		json.addProperty("serverName", record.serverName);
+		json.addProperty("channelId", record.channelId);
+		json.addProperty("channelName", record.channelName);
+		json.addProperty("userId", record.userId);
+		json.addProperty("authorName", record.authorName);
+		json.addProperty("content", record.content);
+		json.add("embeds", this.toJsonArray(record.embedJson));
+		json.add("attachments", this.toJsonArray(record.attachmentJson));
+		JsonArray watchlistLabels = new JsonArray();
+		for (String label : record.watchlistLabels)
+			watchlistLabels.add(label);
+		json.add("watchlistLabels", watchlistLabels);
+		return json.toString();
+	}
+
+	private JsonArray toJsonArray(List<String> jsonElements)
+	{
+		JsonArray array = new JsonArray();
+		for (String jsonElement : jsonElements)
+			array.add(this.jsonParser.parse(jsonElement));
+		return array;
+	}
+}
@@ -0,0 +1,334 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A local receiver of {@linkplain DiscordMonitorConfig#notificationWatchlist NotificationWatchlist} hits, fed by a {@link DiscordMonitorNotificationDispatcher}.
+ * Hits are JSON objects, delivered in batches as newline-delimited JSON.
+ * <p>
+ * Sinks are only ever used from their dispatcher's delivery thread, so implementations may block (e.g. on a slow receiver)
+ * without holding up event processing.
+ */
+interface DiscordMonitorNotificationSink
+{
+	enum Type
+	{
+		/** POSTs each batch to an HTTP URL (target), e.g. "http://127.0.0.1:8080/hits" */
+		HTTP,
+		/**
+		 * Appends each batch to a named pipe (FIFO), or any other file (target), e.g. "/var/run/discordmonitor.fifo".
+		 * Pipes cannot acknowledge hits, so delivery is at most once: hits still buffered in the pipe when the reader goes away are lost.
+		 */
+		PIPE,
+		/**
+		 * Writes each batch to a TCP connection (target "host:port"), e.g. "127.0.0.1:9000".
+		 * The receiver acknowledges each hit it has taken responsibility for by sending back a line (e.g. an empty one), in order.
+		 */
+		TCP
+	}
+
+	/**
+	 * Delivers the given hits (each a single-line JSON object), in order.
+	 * @throws IOException Thrown if the batch may not have been delivered in full. The whole batch is retried.
+	 */
+	void deliver(List<String> batch) throws IOException;
+
+	/** Releases any connection or file held open. The sink may still be used afterwards, reopening them as needed. */
+	void close();
+
+	/**
+	 * Returns a sink of the given type for <em>target</em>.
+	 * @throws IllegalArgumentException Thrown if <em>target</em> is not valid for the type.
+	 */
+	static DiscordMonitorNotificationSink create(Type type, String target) throws IllegalArgumentException
+	{
+		switch (type)
+		{
+			case HTTP: return new HttpSink(target);
+			case PIPE: return new PipeSink(target);
+			case TCP: return new TcpSink(target);
+			default: throw new IllegalArgumentException("Unsupported sink type: " + type);
+		}
+	}
+
+	/** Returns the given batch as newline-delimited JSON. */
+	static byte[] toNewlineDelimitedJson(List<String> batch)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String hit : batch)
+			sb.append(hit).append('\n');
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Delivered once the receiver responds with a 2xx status. */
+	class HttpSink implements DiscordMonitorNotificationSink
+	{
+		private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+		private static final int READ_TIMEOUT_MILLIS = 30000;
+
+		private final URL url;
+
+		HttpSink(String target)
+		{
+			try
+			{
+				this.url = new URL(target);
+			}
+			catch (MalformedURLException e)
+			{
+				throw new IllegalArgumentException("Invalid HTTP sink URL: " + target, e);
+			}
+			if (!this.url.getProtocol().equals("http") && !this.url.getProtocol().equals("https"))
+				throw new IllegalArgumentException("Invalid HTTP sink URL: " + target);
+		}
+
+		@Override
+		public void deliver(List<String> batch) throws IOException
+		{
+			byte[] body = DiscordMonitorNotificationSink.toNewlineDelimitedJson(batch);
+			HttpURLConnection connection = (HttpURLConnection)this.url.openConnection();
+			connection.setConnectTimeout(HttpSink.CONNECT_TIMEOUT_MILLIS);
+			connection.setReadTimeout(HttpSink.READ_TIMEOUT_MILLIS);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/x-ndjson; charset=utf-8");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+			try
+			{
+				try (OutputStream out = connection.getOutputStream())
+				{
+					out.write(body);
+				}
+				int status = connection.getResponseCode();
+				if (status / 100 != 2)
+					throw new IOException("HTTP " + status + " " + connection.getResponseMessage());
+				try (InputStream in = connection.getInputStream())
+				{
+					while (in.read() != -1) // Drain, so that the connection can be reused.
+						;
+				}
+			}
+			finally
+			{
+				connection.disconnect();
+			}
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public String toString()
+		{
+			return "HTTP " + this.url;
+		}
+	}
+
+	/**
+	 * Delivered once written to the pipe, i.e. at most once, as the reader may go away before reading it.
+	 * Opening a FIFO waits for a reader, so hits queue up until one connects.
+	 * As that wait cannot be interrupted, the pipe is opened on a helper thread; a delivery attempt gives up on it after
+	 * {@value #OPEN_TIMEOUT_MILLIS} ms, and the next attempt picks up the same (possibly completed) open.
+	 */
+	class PipeSink implements DiscordMonitorNotificationSink
+	{
+		private static final long OPEN_TIMEOUT_MILLIS = 5000;
+
+		private final String path;
+		private OutputStream out;
+		/** Open in progress on a helper thread; null if none */
+		private FutureTask<FileOutputStream> pendingOpen;
+
+		PipeSink(String path)
+		{
+			this.path = path;
+		}
+
+		@Override
+		public void deliver(List<String> batch) throws IOException
+		{
+			try
+			{
+				if (this.out == null)
+					this.out = new BufferedOutputStream(this.open());
+				this.out.write(DiscordMonitorNotificationSink.toNewlineDelimitedJson(batch));
+				this.out.flush();
+			}
+			catch (IOException e)
+			{
+				this.close(); // e.g. the reader went away. Reopen on retry.
+				throw e;
+			}
+		}
+
+		/** Returns the opened pipe, waiting up to {@link #OPEN_TIMEOUT_MILLIS} for a reader. */
+		private FileOutputStream open() throws IOException
+		{
+			if (this.pendingOpen == null)
+			{
+				this.pendingOpen = new FutureTask<>(() -> new FileOutputStream(this.path, true));
+				Thread opener = new Thread(this.pendingOpen, "DiscordMonitorNotificationSink-open " + this.path);
+				opener.setDaemon(true);
+				opener.start();
+			}
+			try
+			{
+				FileOutputStream out = this.pendingOpen.get(PipeSink.OPEN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				this.pendingOpen = null;
+				return out;
+			}
+			catch (TimeoutException e)
+			{ // Keep waiting in the background.
+				throw new IOException("No reader opened the pipe within " + PipeSink.OPEN_TIMEOUT_MILLIS + " ms");
+			}
+			catch (ExecutionException e)
+			{
+				this.pendingOpen = null;
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException(e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while opening the pipe");
+			}
+		}
+
+		/** An open still waiting for a reader is left to complete, to be picked up if the sink is used again. */
+		@Override
+		public void close()
+		{
+			if (this.out == null)
+				return;
+			try
+			{
+				this.out.close();
+			}
+			catch (IOException e)
+			{
+				// Already broken
+			}
+			this.out = null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "PIPE " + this.path;
+		}
+	}
+
+	/**
+	 * Delivered once the receiver has acknowledged each hit of the batch with a line sent back over the connection,
+	 * which is kept open between batches. Unacknowledged batches are retried in full on a new connection.
+	 */
+	class TcpSink implements DiscordMonitorNotificationSink
+	{
+		private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+		private static final int ACK_TIMEOUT_MILLIS = 30000;
+
+		private final InetSocketAddress address;
+		private Socket socket;
+		private OutputStream out;
+		private InputStream in;
+
+		TcpSink(String target)
+		{
+			int separator = target.lastIndexOf(':');
+			try
+			{
+				if (separator <= 0)
+					throw new NumberFormatException();
+				this.address = InetSocketAddress.createUnresolved(target.substring(0, separator), Integer.parseInt(target.substring(separator + 1)));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Invalid TCP sink address (expected \"host:port\"): " + target, e);
+			}
+		}
+
+		@Override
+		public void deliver(List<String> batch) throws IOException
+		{
+			try
+			{
+				if (this.socket == null)
+				{
+					this.socket = new Socket();
+					this.socket.connect(new InetSocketAddress(this.address.getHostString(), this.address.getPort()), TcpSink.CONNECT_TIMEOUT_MILLIS);
+					this.socket.setTcpNoDelay(true);
+					this.socket.setSoTimeout(TcpSink.ACK_TIMEOUT_MILLIS);
+					this.out = new BufferedOutputStream(this.socket.getOutputStream());
+					this.in = new BufferedInputStream(this.socket.getInputStream());
+				}
+				this.out.write(DiscordMonitorNotificationSink.toNewlineDelimitedJson(batch));
+				this.out.flush();
+				this.awaitAcks(batch.size());
+			}
+			catch (IOException e)
+			{
+				this.close();
+				throw e;
+			}
+		}
+
+		/** Reads an acknowledgement line for each of <em>count</em> hits, waiting up to {@value #ACK_TIMEOUT_MILLIS} ms for each read. */
+		private void awaitAcks(int count) throws IOException
+		{
+			int ackCount = 0;
+			while (ackCount < count)
+			{
+				int b = this.in.read();
+				if (b == -1)
+					throw new EOFException("Connection closed after " + ackCount + " of " + count + " hits were acknowledged");
+				if (b == '\n')
+					++ackCount;
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			if (this.socket == null)
+				return;
+			try
+			{
+				this.socket.close();
+			}
+			catch (IOException e)
+			{
+				// Already broken
+			}
+			this.socket = null;
+			this.out = null;
+			this.in = null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "TCP " + this.address.getHostString() + ":" + this.address.getPort();
+		}
+	}
+}
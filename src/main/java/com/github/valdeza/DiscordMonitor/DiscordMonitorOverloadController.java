@@ -0,0 +1,254 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Queues received message events for processing on a dedicated thread and degrades processing in stages while it falls behind,
+ * as measured by the time events spend queued ("lag"). See {@link Stage} for what each stage sheds.
+ * <p>
+ * Deferred work is kept in arrival order and caught up once the lag drops below a fifth of
+ * {@linkplain DiscordMonitorConfig#overloadLagThreshold OverloadLagThreshold}.
+ * Work deferred for a message is always run before any later event of that message is processed,
+ * so that e.g. an edit is never stored before the message it revises.
+ * <p>
+ * Except for {@link #submit(MessageEventRecord)} and {@link #getStage()}, methods may only be called from the processing thread
+ * (i.e. by the event processor).
+ */
+class DiscordMonitorOverloadController
+{
+	enum Stage
+	{
+		/** Events are processed in full as they arrive. */
+		NORMAL,
+		/**
+		 * Lag exceeds OverloadLagThreshold.
+		 * Embed serialisation (unless journaling), attachment downloads, storage and output of LogTargets hits are deferred.
+		 * Only a sample of events matching no targets is printed; the rest are shed rather than deferred,
+		 * so as not to take up room needed for deferring LogTargets hits.
+		 */
+		DEFER,
+		/** Lag exceeds five times OverloadLagThreshold. Additionally, no events matching no targets are printed at all. */
+		SHED
+	}
+
+	/** Of events matching no targets while in the {@link Stage#DEFER DEFER} stage, one in this many is printed. */
+	static final int SHED_SAMPLING_INTERVAL = 10;
+	/** Maximum number of deferred events kept. Events that would exceed it are shed instead. */
+	private static final int MAX_DEFERRED_COUNT = 100000;
+
+	private static class QueuedEvent
+	{
+		final MessageEventRecord record;
+		final long enqueueNanos;
+
+		QueuedEvent(MessageEventRecord record, long enqueueNanos)
+		{
+			this.record = record;
+			this.enqueueNanos = enqueueNanos;
+		}
+	}
+
+	private static class DeferredWork
+	{
+		final long messageId;
+		final Runnable work;
+
+		DeferredWork(long messageId, Runnable work)
+		{
+			this.messageId = messageId;
+			this.work = work;
+		}
+	}
+
+	private final Consumer<MessageEventRecord> processor;
+	private final DiscordMonitorStatistics statistics;
+	private final long deferLagNanos;
+	private final long shedLagNanos;
+	private final long recoverLagNanos;
+	private final BlockingQueue<QueuedEvent> queue = new LinkedBlockingQueue<>();
+	private volatile Stage stage = Stage.NORMAL;
+
+	// Processing thread only
+	private final Deque<DeferredWork> deferredWork = new ArrayDeque<>();
+	private final Map<Long, Integer> deferredCountByMessage = new HashMap<>();
+	private long shedSamplingCounter = 0;
+	/** Events shed since the stage was last NORMAL */
+	private long shedCountSinceNormal = 0;
+	private boolean isDeferredLimitAnnounced = false;
+
+	/**
+	 * Starts the processing thread.
+	 * @param processor Processes each submitted event, consulting {@link #getStage()} and deferring or shedding work as appropriate
+	 * @param lagThresholdMillis Lag at which the {@link Stage#DEFER DEFER} stage is entered
+	 */
+	DiscordMonitorOverloadController(Consumer<MessageEventRecord> processor, DiscordMonitorStatistics statistics, long lagThresholdMillis)
+	{
+		this.processor = processor;
+		this.statistics = statistics;
+		this.deferLagNanos = TimeUnit.MILLISECONDS.toNanos(lagThresholdMillis);
+		this.shedLagNanos = this.deferLagNanos * 5;
+		this.recoverLagNanos = this.deferLagNanos / 5;
+
+		Thread thread = new Thread(this::runProcessor, "DiscordMonitor-processor");
+		thread.setDaemon(true); // Unprocessed events are replayed from the event journal, if enabled.
+		thread.start();
+	}
+
+	/** Queues the given event for processing. May be called from any thread. */
+	public void submit(MessageEventRecord record)
+	{
+		this.queue.add(new QueuedEvent(record, System.nanoTime()));
+	}
+
+	/** Returns the current stage. May be called from any thread. */
+	public Stage getStage()
+	{
+		return this.stage;
+	}
+
+	/**
+	 * Defers the given work until load drops.
+	 * @return 'false' if too much work is deferred already, in which case the caller should shed the event.
+	 */
+	public boolean defer(long messageId, Runnable work)
+	{
+		if (this.deferredWork.size() >= DiscordMonitorOverloadController.MAX_DEFERRED_COUNT)
+		{
+			if (!this.isDeferredLimitAnnounced)
+			{
+				this.isDeferredLimitAnnounced = true;
+				System.out.printf("warning: %d events deferred. Shedding further events of LogTargets until load drops.\n", this.deferredWork.size());
+			}
+			return false;
+		}
+		this.deferredWork.addLast(new DeferredWork(messageId, work));
+		this.deferredCountByMessage.merge(messageId, 1, Integer::sum);
+		this.statistics.notifyDeferredEvent();
+		return true;
+	}
+
+	/** Runs any work deferred for the given message, in order, so that a later event of it can be processed. */
+	public void runDeferred(long messageId)
+	{
+		if (!this.deferredCountByMessage.containsKey(messageId))
+			return;
+		Iterator<DeferredWork> it = this.deferredWork.iterator();
+		while (it.hasNext())
+		{
+			DeferredWork deferred = it.next();
+			if (deferred.messageId != messageId)
+				continue;
+			it.remove();
+			this.runDeferredWork(deferred);
+		}
+	}
+
+	/**
+	 * Returns whether an event matching no targets should be kept as part of the sample, which is never the case in the {@link Stage#SHED SHED} stage.
+	 * Otherwise, the event is counted as shed.
+	 */
+	public boolean isSampled()
+	{
+		if (this.stage != Stage.SHED && ++this.shedSamplingCounter % DiscordMonitorOverloadController.SHED_SAMPLING_INTERVAL == 0)
+			return true;
+		this.notifyShed();
+		return false;
+	}
+
+	/** Counts an event whose work was dropped. */
+	public void notifyShed()
+	{
+		++this.shedCountSinceNormal;
+		this.statistics.notifyShedEvent();
+	}
+
+	private void runDeferredWork(DeferredWork deferred)
+	{
+		this.deferredCountByMessage.computeIfPresent(deferred.messageId, (messageId, count) -> count > 1 ? count - 1 : null);
+		this.statistics.notifyCaughtUpEvent();
+		deferred.work.run();
+	}
+
+	private void runProcessor()
+	{
+		while (true)
+		{
+			try
+			{
+				QueuedEvent event = this.queue.poll();
+				if (event == null)
+				{ // Caught up with arrivals
+					this.updateStage(0);
+					if (!this.deferredWork.isEmpty())
+					{
+						this.runDeferredWork(this.deferredWork.removeFirst());
+						continue;
+					}
+					event = this.queue.take();
+				}
+
+				this.updateStage(System.nanoTime() - event.enqueueNanos);
+				this.processor.accept(event.record);
+				// Keeps catching up under steady load that never empties the queue.
+				if (this.stage == Stage.NORMAL && !this.deferredWork.isEmpty())
+					this.runDeferredWork(this.deferredWork.removeFirst());
+			}
+			catch (InterruptedException e)
+			{
+				System.out.println("fatal: Event processing interrupted.");
+				return;
+			}
+			catch (RuntimeException e)
+			{
+				System.out.println("error: Unexpected exception while processing a message event.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Moves between stages as the given lag warrants, announcing changes. */
+	private void updateStage(long lagNanos)
+	{
+		Stage previous = this.stage;
+		Stage next = previous;
+		if (lagNanos >= this.shedLagNanos)
+			next = Stage.SHED;
+		else if (lagNanos >= this.deferLagNanos)
+			next = Stage.DEFER; // Also steps down from SHED.
+		else if (lagNanos < this.recoverLagNanos)
+			next = Stage.NORMAL;
+		else if (previous == Stage.SHED)
+			next = Stage.DEFER;
+		if (next == previous)
+			return;
+
+		this.stage = next;
+		long lagMillis = TimeUnit.NANOSECONDS.toMillis(lagNanos);
+		switch (next)
+		{
+			case SHED:
+				System.out.printf("warning: Heavily overloaded (event lag %d ms). "
+					+ "No longer printing events matching no targets.\n", lagMillis);
+				break;
+			case DEFER:
+				System.out.printf("warning: Overloaded (event lag %d ms). "
+					+ "Deferring LogTargets hits not on the NotificationWatchlist; printing only 1 in %d events matching no targets.\n",
+					lagMillis, DiscordMonitorOverloadController.SHED_SAMPLING_INTERVAL);
+				break;
+			case NORMAL:
+				System.out.printf("info: Load back to normal. %d event(s) shed; catching up on %d deferred event(s).\n",
+					this.shedCountSinceNormal, this.deferredWork.size());
+				this.shedCountSinceNormal = 0;
+				this.isDeferredLimitAnnounced = false;
+				break;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Matching statistics of a single {@link DiscordMonitorTargetIdentifier}, used to evaluate its field checks in the cheapest effective order.
+ * <p>
+ * One in {@link #SAMPLING_INTERVAL} evaluations is profiled: it runs and times one check, chosen round-robin, before any other
+ * (rather than only if the current order reaches it), so that each check's rejection rate and cost are estimated regardless of the order.
+ * Only the sampled check runs in addition to what the order would run, so a costly check (e.g. a MessageRegex) placed behind
+ * a cheap, usually rejecting one is only run for one in {@link #SAMPLING_INTERVAL} times the number of checks evaluations.
+ * Every {@link #REORDER_INTERVAL} profiled evaluations, checks are reordered by their cost per rejection, lowest first;
+ * checks that never reject go last. As a match requires every check to pass, the order never changes match results.
+ * <p>
+ * Safe for concurrent use, as identifiers are matched from several threads (e.g. during a {@linkplain DiscordMonitorLogScanner re-scan}).
+ */
+class DiscordMonitorRuleProfile
+{
+	/** Field checks of {@link DiscordMonitorTargetIdentifier#matches}, in their initial order */
+	enum Check
+	{
+		SERVER,
+		CHANNEL,
+		USER,
+		/** Includes {@linkplain DiscordMonitorTargetIdentifier.MessageProcessingOptions#IGNORE_WHITESPACE whitespace removal} */
+		MESSAGE_REGEX,
+		ATTACHMENTS,
+		EVENT_TYPE
+	}
+
+	static final int SAMPLING_INTERVAL = 64;
+	static final int REORDER_INTERVAL = 256;
+	private static final Check[] CHECKS = Check.values();
+
+	private final LongAdder evaluationCount = new LongAdder();
+	private final LongAdder matchCount = new LongAdder();
+	/** Profiled evaluations are rare enough not to need a LongAdder. */
+	private final AtomicLong sampleCount = new AtomicLong();
+	/** Profiled evaluations that sampled each check. Indexed by {@link Check#ordinal()} */
+	private final LongAdder[] checkSampleCounts = new LongAdder[Check.values().length];
+	/** Indexed by {@link Check#ordinal()} */
+	private final LongAdder[] rejectionCounts = new LongAdder[Check.values().length];
+	/** Indexed by {@link Check#ordinal()} */
+	private final LongAdder[] costNanos = new LongAdder[Check.values().length];
+	/** Replaced, never modified. */
+	private volatile Check[] order = Check.values();
+	/** Evaluations until the next profiled one. Races only skew the sampling interval slightly. */
+	private int sampleCountdown = DiscordMonitorRuleProfile.SAMPLING_INTERVAL;
+	/** {@link Check#ordinal()} of the check to sample next. Races only skew the round-robin slightly. */
+	private int nextSampledCheckIndex = 0;
+
+	DiscordMonitorRuleProfile()
+	{
+		for (int i = 0; i < this.rejectionCounts.length; ++i)
+		{
+			this.checkSampleCounts[i] = new LongAdder();
+			this.rejectionCounts[i] = new LongAdder();
+			this.costNanos[i] = new LongAdder();
+		}
+	}
+
+	/** Returns the order checks should currently be evaluated in. Must not be modified. */
+	public Check[] getOrder()
+	{
+		return this.order;
+	}
+
+	/** Returns the check the evaluation about to start should sample, or null if it should not be profiled. */
+	public Check nextSampledCheck()
+	{
+		if (--this.sampleCountdown > 0)
+			return null;
+		this.sampleCountdown = DiscordMonitorRuleProfile.SAMPLING_INTERVAL;
+		int index = this.nextSampledCheckIndex;
+		this.nextSampledCheckIndex = (index + 1) % DiscordMonitorRuleProfile.CHECKS.length;
+		return DiscordMonitorRuleProfile.CHECKS[index];
+	}
+
+	/** Records the outcome and cost of the check sampled by a profiled evaluation. */
+	public void notifyCheckSample(Check check, boolean isPassed, long nanos)
+	{
+		this.checkSampleCounts[check.ordinal()].increment();
+		if (!isPassed)
+			this.rejectionCounts[check.ordinal()].increment();
+		this.costNanos[check.ordinal()].add(nanos);
+	}
+
+	/** Records a completed evaluation. Reorders checks if due. */
+	public void notifyEvaluation(boolean isMatch, boolean isProfiled)
+	{
+		this.evaluationCount.increment();
+		if (isMatch)
+			this.matchCount.increment();
+		if (!isProfiled)
+			return;
+		if (this.sampleCount.incrementAndGet() % DiscordMonitorRuleProfile.REORDER_INTERVAL == 0)
+			this.reorder();
+	}
+
+	private void reorder()
+	{
+		// Snapshot first: counters keep changing while sorting.
+		// Mean cost over rejection rate, both estimated from the same samples, is the sampled cost per sampled rejection.
+		double[] meanNanos = new double[Check.values().length];
+		double[] costPerRejection = new double[Check.values().length];
+		for (Check check : Check.values())
+		{
+			long samples = this.checkSampleCounts[check.ordinal()].sum();
+			long rejections = this.rejectionCounts[check.ordinal()].sum();
+			long nanos = this.costNanos[check.ordinal()].sum();
+			meanNanos[check.ordinal()] = samples == 0 ? 0 : (double)nanos / samples;
+			costPerRejection[check.ordinal()] = rejections == 0 ? Double.POSITIVE_INFINITY : (double)nanos / rejections;
+		}
+		Check[] order = Check.values();
+		Arrays.sort(order, Comparator.<Check>comparingDouble(check -> costPerRejection[check.ordinal()])
+			.thenComparingDouble(check -> meanNanos[check.ordinal()]));
+		this.order = order;
+	}
+
+	public long getEvaluationCount()
+	{
+		return this.evaluationCount.sum();
+	}
+
+	public long getMatchCount()
+	{
+		return this.matchCount.sum();
+	}
+
+	/** Returns the estimated mean time, in nanoseconds, of running every check; 0 if no evaluation was profiled yet. */
+	public double getMeanFullCostNanos()
+	{
+		double nanos = 0;
+		for (Check check : Check.values())
+		{
+			long samples = this.checkSampleCounts[check.ordinal()].sum();
+			if (samples > 0)
+				nanos += (double)this.costNanos[check.ordinal()].sum() / samples;
+		}
+		return nanos;
+	}
+
+	/**
+	 * Summarises the current check order with each check's rejection rate and mean cost,
+	 * e.g. "USER 98% 40ns, MESSAGE_REGEX 60% 2100ns, ...".
+	 * @param isUsed Selects the checks to describe (i.e. those the identifier configures)
+	 */
+	public String describeChecks(Predicate<Check> isUsed)
+	{
+		if (this.sampleCount.get() == 0)
+			return "not profiled yet";
+		StringBuilder sb = new StringBuilder();
+		for (Check check : this.order)
+		{
+			if (!isUsed.test(check))
+				continue;
+			long samples = this.checkSampleCounts[check.ordinal()].sum();
+			if (samples == 0)
+			{
+				if (sb.length() > 0)
+					sb.append(", ");
+				sb.append(check).append(" not sampled yet");
+				continue;
+			}
+			long rejections = this.rejectionCounts[check.ordinal()].sum();
+			long nanos = this.costNanos[check.ordinal()].sum();
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(check).append(' ').append(Math.round(100.0 * rejections / samples)).append("% ").append(nanos / samples).append("ns");
+		}
+		return sb.length() > 0 ? sb.toString() : "no effective checks";
+	}
+}
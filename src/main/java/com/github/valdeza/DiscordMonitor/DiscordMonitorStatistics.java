@@ -0,0 +1,137 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters of processed message activity, as reported by the "stats" and "hits" commands.
+ * Updated from the event thread and read from command threads; counters are contention-free so that recording never slows down ingestion.
+ */
+class DiscordMonitorStatistics
+{
+	/** Number of recent watchlist hits kept for the "hits" command */
+	static final int RECENT_WATCHLIST_HIT_CAPACITY = 100;
+
+	static class WatchlistHit
+	{
+		final String identifierLabel;
+		final long messageId;
+		final MessageEventType eventType;
+		final OffsetDateTime time;
+
+		WatchlistHit(String identifierLabel, long messageId, MessageEventType eventType, OffsetDateTime time)
+		{
+			this.identifierLabel = identifierLabel;
+			this.messageId = messageId;
+			this.eventType = eventType;
+			this.time = time;
+		}
+	}
+
+	final Instant startTime = Instant.now();
+	private final Map<MessageEventType, LongAdder> eventCounts = new EnumMap<>(MessageEventType.class);
+	private final LongAdder logTargetHitCount = new LongAdder();
+	private final LongAdder watchlistHitCount = new LongAdder();
+	/** See {@link DiscordMonitorOverloadController} */
+	private final LongAdder deferredEventCount = new LongAdder();
+	private final LongAdder caughtUpEventCount = new LongAdder();
+	private final LongAdder shedEventCount = new LongAdder();
+	/** Newest first. Guarded by itself. */
+	private final Deque<WatchlistHit> recentWatchlistHits = new ArrayDeque<>(DiscordMonitorStatistics.RECENT_WATCHLIST_HIT_CAPACITY);
+
+	DiscordMonitorStatistics()
+	{
+		for (MessageEventType eventType : MessageEventType.values())
+			this.eventCounts.put(eventType, new LongAdder());
+	}
+
+	public void notifyEvent(MessageEventType eventType, int count)
+	{
+		this.eventCounts.get(eventType).add(count);
+	}
+
+	public void notifyLogTargetHit()
+	{
+		this.logTargetHitCount.increment();
+	}
+
+	public void notifyWatchlistHit(String identifierLabel, long messageId, MessageEventType eventType, OffsetDateTime time)
+	{
+		this.watchlistHitCount.increment();
+		synchronized (this.recentWatchlistHits)
+		{
+			if (this.recentWatchlistHits.size() == DiscordMonitorStatistics.RECENT_WATCHLIST_HIT_CAPACITY)
+				this.recentWatchlistHits.removeLast();
+			this.recentWatchlistHits.addFirst(new WatchlistHit(identifierLabel, messageId, eventType, time));
+		}
+	}
+
+	public void notifyDeferredEvent()
+	{
+		this.deferredEventCount.increment();
+	}
+
+	public void notifyCaughtUpEvent()
+	{
+		this.caughtUpEventCount.increment();
+	}
+
+	public void notifyShedEvent()
+	{
+		this.shedEventCount.increment();
+	}
+
+	public long getEventCount(MessageEventType eventType)
+	{
+		return this.eventCounts.get(eventType).sum();
+	}
+
+	public long getLogTargetHitCount()
+	{
+		return this.logTargetHitCount.sum();
+	}
+
+	public long getWatchlistHitCount()
+	{
+		return this.watchlistHitCount.sum();
+	}
+
+	public long getDeferredEventCount()
+	{
+		return this.deferredEventCount.sum();
+	}
+
+	/** Returns the number of deferred events not yet caught up. */
+	public long getPendingDeferredEventCount()
+	{
+		return this.deferredEventCount.sum() - this.caughtUpEventCount.sum();
+	}
+
+	public long getShedEventCount()
+	{
+		return this.shedEventCount.sum();
+	}
+
+	/** Returns up to <em>limit</em> of the most recent watchlist hits, newest first. */
+	public List<WatchlistHit> getRecentWatchlistHits(int limit)
+	{
+		List<WatchlistHit> hits = new ArrayList<>(Math.min(limit, DiscordMonitorStatistics.RECENT_WATCHLIST_HIT_CAPACITY));
+		synchronized (this.recentWatchlistHits)
+		{
+			for (WatchlistHit hit : this.recentWatchlistHits)
+			{
+				if (hits.size() == limit)
+					break;
+				hits.add(hit);
+			}
+		}
+		return hits;
+	}
+}
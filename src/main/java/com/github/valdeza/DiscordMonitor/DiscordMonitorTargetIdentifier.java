@@ -29,12 +29,28 @@ class DiscordMonitorTargetIdentifier
 	 * @see java.util.regex.Pattern
 	 */
 	public Pattern messageRegex;
+	/** {@link #messageRegex} as {@linkplain #prepareMessageRegex prepared} for matching; null until then. Not deserialised. */
+	transient DiscordMonitorMessageRegex preparedMessageRegex;
+	/** Decides the order fields are checked in by {@link #matches}. Not deserialised. */
+	final transient DiscordMonitorRuleProfile profile = new DiscordMonitorRuleProfile();
 	public EnumSet<MessageProcessingOptions> messageProcessingOptions;
 	public EnumSet<MessageEventType> eventType;
+	/** LogTargets only: days the LogDB keeps events (and downloaded attachments) stored for this identifier; null if unlimited. */
+	public Integer retentionDays;
+	/** LogTargets only: bytes of events and downloaded attachments the LogDB keeps for this identifier, oldest pruned first; null if unlimited. */
+	public Long retentionSize;
+
+	/** Prepares {@link #messageRegex} (if any) for matching with the given engine. Called once the configuration is loaded. */
+	void prepareMessageRegex(DiscordMonitorMessageRegex.Engine engine, long stepLimit)
+	{
+		if (this.messageRegex != null)
+			this.preparedMessageRegex = new DiscordMonitorMessageRegex(this.identifierLabel, this.messageRegex, engine, stepLimit);
+	}
 
 	/** Returns whether this DMTargetIdentifier matches the given parametres.
 	 * null may be provided for any of the parametres to skip match checks for that parametre
 	 * (e.g. specifying all nulls will return true).
+	 * Fields are checked in the order {@linkplain DiscordMonitorRuleProfile learned} to reject non-matches soonest.
 	 *
 	 * @param serverId
 	 * @param channelId Note: Can be the same as 'serverId' if the ID given corresponds to the general/public/default channel of a guild/server.
@@ -45,39 +61,86 @@ class DiscordMonitorTargetIdentifier
 	 */
 	public boolean matches(Long serverId, Long channelId, Long userId, String messageContent, Boolean hasMessageAttachment, MessageEventType eventType)
 	{
-		if (this.serverId != null && serverId != null && !this.serverId.equals(serverId))
-			return false;
-
-		if (this.channelId != null && channelId != null && !this.channelId.equals(channelId))
-			return false;
+		boolean isMatch = true;
+		DiscordMonitorRuleProfile.Check sampledCheck = this.profile.nextSampledCheck();
+		if (sampledCheck != null)
+		{ // Run (and time) the sampled check first, whether or not the order would reach it, for unbiased statistics.
+			long startNanos = System.nanoTime();
+			isMatch = this.passes(sampledCheck, serverId, channelId, userId, messageContent, hasMessageAttachment, eventType);
+			this.profile.notifyCheckSample(sampledCheck, isMatch, System.nanoTime() - startNanos);
+		}
+		if (isMatch)
+			for (DiscordMonitorRuleProfile.Check check : this.profile.getOrder())
+				if (check != sampledCheck && !this.passes(check, serverId, channelId, userId, messageContent, hasMessageAttachment, eventType))
+				{
+					isMatch = false;
+					break;
+				}
+		this.profile.notifyEvaluation(isMatch, sampledCheck != null);
+		return isMatch;
+	}
 
-		if (this.userId != null && userId != null && !this.userId.equals(userId))
-			return false;
-		
-		if (this.messageRegex != null && messageContent != null)
+	/** Returns whether the given check of {@link #matches} can reject anything, i.e. whether this identifier configures the field checked. */
+	boolean usesCheck(DiscordMonitorRuleProfile.Check check)
+	{
+		switch (check)
 		{
-			if (this.messageProcessingOptions != null && !this.messageProcessingOptions.isEmpty())
-			{ // Prepare custom-processed string.
-				String messageProc = messageContent;
-				
-				if (this.messageProcessingOptions.contains(MessageProcessingOptions.IGNORE_WHITESPACE))
-					messageProc = PATTERN_WHITESPACE.matcher(messageProc).replaceAll("");
-				
-				// String processed. Attempt regex match.
-				if (!this.messageRegex.matcher(messageContent).find())
-					return false;
-			}
-			else if (!this.messageRegex.matcher(messageContent).find())
-				return false;
+			case SERVER: return this.serverId != null;
+			case CHANNEL: return this.channelId != null;
+			case USER: return this.userId != null;
+			case MESSAGE_REGEX: return this.messageRegex != null;
+			case ATTACHMENTS: return this.messageProcessingOptions != null && this.messageProcessingOptions.contains(MessageProcessingOptions.HAS_ATTACHMENTS);
+			case EVENT_TYPE: return this.eventType != null;
+			default: return true;
 		}
+	}
 
-		if (this.messageProcessingOptions != null && this.messageProcessingOptions.contains(MessageProcessingOptions.HAS_ATTACHMENTS)
-				&& hasMessageAttachment != null && !hasMessageAttachment)
-			return false;
+	/** Returns whether the given check of {@link #matches} passes for the given parametres. */
+	private boolean passes(DiscordMonitorRuleProfile.Check check,
+		Long serverId, Long channelId, Long userId, String messageContent, Boolean hasMessageAttachment, MessageEventType eventType)
+	{
+		switch (check)
+		{
+			case SERVER:
+				return this.serverId == null || serverId == null || this.serverId.equals(serverId);
 
-		if (this.eventType != null && eventType != null && !this.eventType.contains(eventType))
-			return false;
+			case CHANNEL:
+				return this.channelId == null || channelId == null || this.channelId.equals(channelId);
 
-		return true;
+			case USER:
+				return this.userId == null || userId == null || this.userId.equals(userId);
+
+			case MESSAGE_REGEX:
+				if (this.messageRegex == null || messageContent == null)
+					return true;
+				if (this.messageProcessingOptions != null && !this.messageProcessingOptions.isEmpty())
+				{ // Prepare custom-processed string.
+					String messageProc = messageContent;
+
+					if (this.messageProcessingOptions.contains(MessageProcessingOptions.IGNORE_WHITESPACE))
+						messageProc = PATTERN_WHITESPACE.matcher(messageProc).replaceAll("");
+
+					// String processed. Attempt regex match.
+					return this.findMessageRegex(messageProc);
+				}
+				return this.findMessageRegex(messageContent);
+
+			case ATTACHMENTS:
+				return this.messageProcessingOptions == null || !this.messageProcessingOptions.contains(MessageProcessingOptions.HAS_ATTACHMENTS)
+					|| hasMessageAttachment == null || hasMessageAttachment;
+
+			case EVENT_TYPE:
+				return this.eventType == null || eventType == null || this.eventType.contains(eventType);
+
+			default:
+				throw new IllegalArgumentException("Unsupported check: " + check);
+		}
+	}
+
+	private boolean findMessageRegex(String messageContent)
+	{
+		if (this.preparedMessageRegex != null)
+			return this.preparedMessageRegex.find(messageContent);
+		return this.messageRegex.matcher(messageContent).find();
 	}
 }
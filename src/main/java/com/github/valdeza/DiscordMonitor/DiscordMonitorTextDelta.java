@@ -0,0 +1,72 @@
+package com.github.valdeza.DiscordMonitor;
+
+/**
+ * Compact text diffs used to store message edits against their previous revision.
+ * <p>
+ * A delta keeps the longest common prefix and suffix of the two texts and replaces what lies between, encoded as
+ * <code>&lt;prefix length&gt;,&lt;suffix length&gt;,&lt;replacement&gt;</code>.
+ * This covers the typical edit (a typo fixed or a sentence appended) in a few bytes, and is never much larger than the new text itself.
+ * Null texts are treated as empty.
+ */
+class DiscordMonitorTextDelta
+{
+	/** Returns the delta turning <em>base</em> into <em>target</em>. */
+	static String encode(String base, String target)
+	{
+		if (base == null)
+			base = "";
+		if (target == null)
+			target = "";
+
+		int maxCommon = Math.min(base.length(), target.length());
+		int prefixLength = 0;
+		while (prefixLength < maxCommon && base.charAt(prefixLength) == target.charAt(prefixLength))
+			++prefixLength;
+		int suffixLength = 0;
+		while (suffixLength < maxCommon - prefixLength
+			&& base.charAt(base.length() - 1 - suffixLength) == target.charAt(target.length() - 1 - suffixLength))
+			++suffixLength;
+
+		// Never split a surrogate pair, so that the replacement remains valid UTF-16 (and can be stored as UTF-8).
+		if (prefixLength > 0 && Character.isHighSurrogate(target.charAt(prefixLength - 1)))
+			--prefixLength;
+		if (suffixLength > 0 && Character.isLowSurrogate(target.charAt(target.length() - suffixLength)))
+			--suffixLength;
+
+		return prefixLength + "," + suffixLength + "," + target.substring(prefixLength, target.length() - suffixLength);
+	}
+
+	/**
+	 * Returns the text produced by applying the given delta to <em>base</em>.
+	 * @throws IllegalArgumentException if <em>delta</em> is malformed or was not made against <em>base</em>
+	 */
+	static String apply(String base, String delta)
+	{
+		if (base == null)
+			base = "";
+
+		int firstComma = delta.indexOf(',');
+		int secondComma = firstComma < 0 ? -1 : delta.indexOf(',', firstComma + 1);
+		if (secondComma < 0)
+			throw new IllegalArgumentException("Malformed delta");
+		int prefixLength;
+		int suffixLength;
+		try
+		{
+			prefixLength = Integer.parseInt(delta.substring(0, firstComma));
+			suffixLength = Integer.parseInt(delta.substring(firstComma + 1, secondComma));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Malformed delta", e);
+		}
+		if (prefixLength < 0 || suffixLength < 0 || prefixLength + suffixLength > base.length())
+			throw new IllegalArgumentException("Delta does not apply to a text of length " + base.length());
+
+		return new StringBuilder(prefixLength + (delta.length() - secondComma - 1) + suffixLength)
+			.append(base, 0, prefixLength)
+			.append(delta, secondComma + 1, delta.length())
+			.append(base, base.length() - suffixLength, base.length())
+			.toString();
+	}
+}
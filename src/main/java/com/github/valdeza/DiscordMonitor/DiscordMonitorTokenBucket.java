@@ -0,0 +1,82 @@
+package com.github.valdeza.DiscordMonitor;
+
+/**
+ * Token bucket rate limiter shared by all attachment downloads.
+ * Tokens (bytes) accrue at a fixed rate up to a burst capacity.
+ * <p>
+ * Priority acquirers are served first: while any are waiting, other acquirers are held back even if tokens are available,
+ * so that priority transfers proceed at (nearly) the full rate regardless of how much other traffic is queued.
+ */
+class DiscordMonitorTokenBucket
+{
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final long bytesPerSecond;
+	private final long capacity;
+	private double tokens;
+	private long lastRefillNanos;
+	private int waitingPriorityCount = 0;
+
+	/**
+	 * @param bytesPerSecond Sustained rate
+	 * @param capacity Maximum burst; also the maximum number of tokens acquirable at once
+	 */
+	DiscordMonitorTokenBucket(long bytesPerSecond, long capacity)
+	{
+		if (bytesPerSecond <= 0 || capacity <= 0)
+			throw new IllegalArgumentException("Rate and capacity must be positive");
+		this.bytesPerSecond = bytesPerSecond;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	public long getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/**
+	 * Blocks until <em>numBytes</em> tokens are available (and, unless <em>isPriority</em>, no priority acquirer is waiting), then takes them.
+	 * @throws IllegalArgumentException Thrown if <em>numBytes</em> exceeds this bucket's {@linkplain #getCapacity() capacity}.
+	 */
+	public synchronized void acquire(long numBytes, boolean isPriority) throws InterruptedException
+	{
+		if (numBytes > this.capacity)
+			throw new IllegalArgumentException("Cannot acquire more than the bucket capacity at once");
+
+		if (isPriority)
+			++this.waitingPriorityCount;
+		try
+		{
+			while (true)
+			{
+				this.refill();
+				boolean isTurn = isPriority || this.waitingPriorityCount == 0;
+				if (isTurn && this.tokens >= numBytes)
+				{
+					this.tokens -= numBytes;
+					return;
+				}
+
+				// Sleep until enough tokens should have accrued. Others' acquisitions (or priority arrivals) simply cause another wait.
+				long waitNanos = isTurn
+					? (long)Math.ceil((numBytes - this.tokens) * DiscordMonitorTokenBucket.NANOS_PER_SECOND / this.bytesPerSecond)
+					: DiscordMonitorTokenBucket.NANOS_PER_SECOND / 10;
+				this.wait(Math.max(1, waitNanos / 1000000), (int)(waitNanos % 1000000));
+			}
+		}
+		finally
+		{
+			if (isPriority && --this.waitingPriorityCount == 0)
+				this.notifyAll(); // Release held back acquirers.
+		}
+	}
+
+	private void refill()
+	{
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.capacity, this.tokens + (double)(now - this.lastRefillNanos) * this.bytesPerSecond / DiscordMonitorTokenBucket.NANOS_PER_SECOND);
+		this.lastRefillNanos = now;
+	}
+}
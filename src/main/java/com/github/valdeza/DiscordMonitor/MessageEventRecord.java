@@ -0,0 +1,73 @@
+package com.github.valdeza.DiscordMonitor;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+import net.dv8tion.jda.core.entities.MessageEmbed;
+
+/**
+ * A JDA-independent snapshot of a single message event as logged by {@link DiscordMonitor}.
+ * Fields that could not be determined (e.g. snowflake IDs of records parsed back from a stdout log) are left null.
+ */
+class MessageEventRecord
+{
+	public MessageEventType eventType;
+	/** One of {@link ChannelType#TEXT TEXT}, {@link ChannelType#PRIVATE PRIVATE} or {@link ChannelType#GROUP GROUP}. */
+	public ChannelType channelType;
+	public long messageId;
+	public Long serverId;
+	public Long channelId;
+	public Long userId;
+	/** For private channels: the other party of the DM label ("author -> recipient"); the private channel's user for deletions. */
+	public Long recipientId;
+	public String serverName;
+	/** Text channel name, group name, or DM label (e.g. "author -> recipient") depending on {@link #channelType}. */
+	public String channelName;
+	/** Effective (nick)name for text channels; user name otherwise. */
+	public String authorName;
+	public String recipientName;
+	public OffsetDateTime time;
+	/** 'true' if {@link #time} is the time the event was received rather than the time Discord reported. */
+	public boolean isTimeApproximate;
+	/** Message content as displayed; null for deletions. */
+	public String content;
+	/** Message content {@linkplain net.dv8tion.jda.core.entities.Message#getStrippedContent() stripped of Markdown formatting characters}, as used for matching; null if unknown. */
+	public String strippedContent;
+	/** Gson-serialised {@linkplain net.dv8tion.jda.core.entities.MessageEmbed embeds}. */
+	public List<String> embedJson = new ArrayList<>();
+	/**
+	 * Embeds not yet serialised into {@link #embedJson} while {@linkplain DiscordMonitorOverloadController overloaded}; null otherwise.
+	 * See {@link DiscordMonitorBotUtilities#serialiseDeferredEmbeds(MessageEventRecord)}. Not persisted.
+	 */
+	public List<MessageEmbed> deferredEmbeds;
+	/** Gson-serialised {@linkplain net.dv8tion.jda.core.entities.Message.Attachment attachments}. */
+	public List<String> attachmentJson = new ArrayList<>();
+	/** Labels of the {@linkplain DiscordMonitorConfig#logTargets LogTargets} matched, which retain the event in the LogDB. Not written to stdout logs. */
+	public List<String> logTargetLabels = new ArrayList<>();
+	/** Labels of the {@linkplain DiscordMonitorConfig#notificationWatchlist NotificationWatchlist} identifiers matched. Not written to stdout logs. */
+	public List<String> watchlistLabels = new ArrayList<>();
+	/** This record's entry in the {@linkplain DiscordMonitorEventJournal event journal}; null if not journaled. Not persisted. */
+	public DiscordMonitorEventJournal.Entry journalEntry;
+	/** 'true' if this event may already be stored in the LogDB (e.g. replayed or re-imported), in which case it is not stored again. Not persisted. */
+	public boolean isPossiblyStored;
+
+	/** Returns whether this message has attachments, or null if unknown (e.g. for deletions). */
+	public Boolean hasAttachments()
+	{
+		if (this.eventType == MessageEventType.DELETE)
+			return null;
+		return !this.attachmentJson.isEmpty();
+	}
+
+	/**
+	 * Returns whether the given DMTargetIdentifier matches this record. Unknown fields skip their respective match checks.
+	 * Matches against {@link #strippedContent} where known, falling back to {@link #content}.
+	 */
+	public boolean isMatchedBy(DiscordMonitorTargetIdentifier tid)
+	{
+		return tid.matches(this.serverId, this.channelId, this.userId,
+			this.strippedContent != null ? this.strippedContent : this.content, this.hasAttachments(), this.eventType);
+	}
+}
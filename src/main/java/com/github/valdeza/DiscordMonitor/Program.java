@@ -1,16 +1,46 @@
 package com.github.valdeza.DiscordMonitor;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Scanner;
 
+import net.dv8tion.jda.core.entities.ChannelType;
+
 public class Program
 {
+	private static final String USAGE =
+		"error: expected usage: DiscordMonitor.jar <path\\to\\.profile.json>\n"
+		+ "   or: DiscordMonitor.jar --rescan <path\\to\\.profile.json> <path\\to\\stdout.log>...\n"
+		+ "   or: DiscordMonitor.jar --import <path\\to\\.profile.json> <path\\to\\stdout.log>...\n"
+		+ "   or: DiscordMonitor.jar --search <path\\to\\.profile.json> [--server <id>] [--channel <id>] [--user <id>]\n"
+		+ "                          [--after <time>] [--before <time>] [--type NEW,EDIT,DELETE] [--limit <n>] [<FTS5 query>...]\n"
+		+ "   or: DiscordMonitor.jar --history <path\\to\\.profile.json> <message id>\n"
+		+ "   or: DiscordMonitor.jar --export <path\\to\\.profile.json> <path\\to\\output.csv|.dmcol[.gz]> [--since <event id>] [--checkpoint <path\\to\\file>]";
+
 	public static void main(String[] args)
 	{
+		if (args.length >= 1 && args[0].startsWith("--"))
+		{
+			Program.runOfflineMode(args);
+			return;
+		}
+
 		String profilepath;
 		if (args.length > 1)
 		{
-			System.out.println("error: expected usage: DiscordMonitor.jar <path\\to\\.profile.json>");
+			System.out.println(Program.USAGE);
 			return;
 		} else if (args.length == 1)
 		{
@@ -21,15 +51,306 @@ public class Program
 			profilepath = new Scanner(System.in).nextLine();
 		}
 
-		DiscordMonitor app;
+		DiscordMonitorConfig appconfig = Program.loadConfig(profilepath);
+		if (appconfig == null)
+			return;
+		new DiscordMonitor(appconfig).start();
+	}
+
+	/** Runs one of the modes operating on previously logged data rather than connecting to Discord. */
+	private static void runOfflineMode(String[] args)
+	{
+		switch (args[0])
+		{
+			case "--rescan":
+			{
+				if (args.length < 3)
+				{
+					System.out.println(Program.USAGE);
+					return;
+				}
+
+				DiscordMonitorConfig appconfig = Program.loadConfig(args[1]);
+				if (appconfig == null)
+					return;
+				List<File> logFiles = new ArrayList<>();
+				for (int i = 2; i < args.length; ++i)
+					logFiles.add(new File(args[i]));
+
+				try
+				{
+					new DiscordMonitorLogRescanner(appconfig, Charset.defaultCharset()).rescan(logFiles);
+				}
+				catch (IOException e)
+				{
+					System.out.println("error: Unable to read log file: " + e.toString());
+				}
+				return;
+			}
+			case "--import":
+				Program.runImport(args);
+				return;
+			case "--search":
+				Program.runSearch(args);
+				return;
+			case "--history":
+				Program.runHistory(args);
+				return;
+			case "--export":
+				Program.runExport(args);
+				return;
+			default:
+				System.out.println(Program.USAGE);
+				return;
+		}
+	}
+
+	/** Loads stored stdout logs into the profile's LogDB, creating it if needed. */
+	private static void runImport(String[] args)
+	{
+		if (args.length < 3)
+		{
+			System.out.println(Program.USAGE);
+			return;
+		}
+		DiscordMonitorConfig appconfig = Program.loadConfig(args[1]);
+		if (appconfig == null)
+			return;
+		if (appconfig.logDBLocation == null)
+		{
+			System.out.println("error: LogDBLocation is required to import logs.");
+			return;
+		}
+		List<File> logFiles = new ArrayList<>();
+		for (int i = 2; i < args.length; ++i)
+			logFiles.add(new File(args[i]));
+
+		try (DiscordMonitorLogDB logDB = new DiscordMonitorLogDB(appconfig.logDBLocation))
+		{
+			new DiscordMonitorLogImporter(logDB, Charset.defaultCharset()).importLogs(logFiles);
+		}
+		catch (IOException e)
+		{
+			System.out.println("error: Unable to read log file: " + e.toString());
+		}
+		catch (SQLException e)
+		{
+			System.out.println("error: Unable to open LogDB: " + e.toString());
+		}
+	}
+
+	/** Queries the full-text index of the profile's LogDB and prints matching events, newest first. */
+	private static void runSearch(String[] args)
+	{
+		if (args.length < 2)
+		{
+			System.out.println(Program.USAGE);
+			return;
+		}
+		DiscordMonitorConfig appconfig = Program.loadLogDBConfig(args[1]);
+		if (appconfig == null)
+			return;
+
+		DiscordMonitorLogDB.SearchQuery query = new DiscordMonitorLogDB.SearchQuery();
+		StringBuilder terms = new StringBuilder();
 		try
 		{
-			app = new DiscordMonitor(DiscordMonitorConfig.loadFromFile(profilepath));
+			for (int i = 2; i < args.length; ++i)
+			{
+				switch (args[i])
+				{
+					case "--server": query.serverId = Long.parseLong(args[++i]); break;
+					case "--channel": query.channelId = Long.parseLong(args[++i]); break;
+					case "--user": query.userId = Long.parseLong(args[++i]); break;
+					case "--after": query.after = Program.parseTime(args[++i]); break;
+					case "--before": query.before = Program.parseTime(args[++i]); break;
+					case "--limit": query.limit = Integer.parseInt(args[++i]); break;
+					case "--type":
+						query.eventTypes = EnumSet.noneOf(MessageEventType.class);
+						for (String eventType : args[++i].split(","))
+							query.eventTypes.add(MessageEventType.valueOf(eventType.trim().toUpperCase()));
+						break;
+					default:
+						terms.append(terms.length() == 0 ? "" : " ").append(args[i]);
+						break;
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | DateTimeParseException e)
+		{
+			System.out.println("error: Invalid search option: " + e.getMessage());
+			System.out.println(Program.USAGE);
+			return;
+		}
+		if (terms.length() != 0)
+			query.terms = terms.toString();
+
+		try (DiscordMonitorLogDB logDB = new DiscordMonitorLogDB(appconfig.logDBLocation))
+		{
+			long startNanos = System.nanoTime();
+			List<MessageEventRecord> results = logDB.search(query);
+			double elapsedMillis = (System.nanoTime() - startNanos) / 1e6;
+
+			for (MessageEventRecord record : results)
+				System.out.print(Program.formatSearchResult(record));
+			System.out.printf("info: %d result(s) in %.1f ms.\n", results.size(), elapsedMillis);
+		}
+		catch (SQLException e)
+		{
+			System.out.println("error: Search failed: " + e.toString());
+		}
+	}
+
+	/** Prints every stored event of a message, oldest first, with the content of each revision. */
+	private static void runHistory(String[] args)
+	{
+		if (args.length != 3)
+		{
+			System.out.println(Program.USAGE);
+			return;
+		}
+		DiscordMonitorConfig appconfig = Program.loadLogDBConfig(args[1]);
+		if (appconfig == null)
+			return;
+		long messageId;
+		try
+		{
+			messageId = Long.parseLong(args[2]);
+		}
+		catch (NumberFormatException e)
+		{
+			System.out.println("error: Invalid message ID: " + args[2]);
+			return;
+		}
+
+		try (DiscordMonitorLogDB logDB = new DiscordMonitorLogDB(appconfig.logDBLocation))
+		{
+			List<MessageEventRecord> history = logDB.getMessageHistory(messageId);
+			for (MessageEventRecord record : history)
+				System.out.print(Program.formatSearchResult(record));
+			System.out.printf("info: %d event(s) stored for message %d.\n", history.size(), messageId);
+		}
+		catch (SQLException e)
+		{
+			System.out.println("error: Unable to read message history: " + e.toString());
+		}
+	}
+
+	/**
+	 * Exports the events of the profile's LogDB to CSV. With a checkpoint file, only events stored since the last export are written,
+	 * and the checkpoint is advanced once the export is complete.
+	 */
+	private static void runExport(String[] args)
+	{
+		if (args.length < 3)
+		{
+			System.out.println(Program.USAGE);
+			return;
+		}
+		DiscordMonitorConfig appconfig = Program.loadLogDBConfig(args[1]);
+		if (appconfig == null)
+			return;
+		File outputFile = new File(args[2]);
+		long afterEventId = 0;
+		File checkpointFile = null;
+		try
+		{
+			for (int i = 3; i < args.length; ++i)
+			{
+				switch (args[i])
+				{
+					case "--since": afterEventId = Long.parseLong(args[++i]); break;
+					case "--checkpoint": checkpointFile = new File(args[++i]); break;
+					default: throw new IllegalArgumentException(args[i]);
+				}
+			}
+			if (checkpointFile != null && checkpointFile.isFile())
+				afterEventId = Math.max(afterEventId, Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim()));
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			System.out.println("error: Invalid export option: " + e.getMessage());
+			System.out.println(Program.USAGE);
+			return;
+		}
+		catch (IOException e)
+		{
+			System.out.println("error: Unable to read checkpoint: " + e.toString());
+			return;
+		}
+
+		try (DiscordMonitorLogDB logDB = new DiscordMonitorLogDB(appconfig.logDBLocation))
+		{
+			long lastEventId = new DiscordMonitorLogExporter(logDB).export(outputFile, afterEventId);
+			if (checkpointFile != null && lastEventId != afterEventId)
+				Files.write(checkpointFile.toPath(), (lastEventId + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException e)
+		{
+			System.out.println("error: Export failed: " + e.toString());
+		}
+		catch (SQLException e)
+		{
+			System.out.println("error: Unable to read LogDB: " + e.toString());
+		}
+	}
+
+	/** Accepts ISO-8601 date-times with offset (e.g. "2017-06-20T12:00:00Z") or plain dates (taken as UTC midnight). */
+	private static OffsetDateTime parseTime(String s) throws DateTimeParseException
+	{
+		if (s.indexOf('T') < 0)
+			return LocalDate.parse(s).atStartOfDay().atOffset(ZoneOffset.UTC);
+		return OffsetDateTime.parse(s);
+	}
+
+	private static String formatSearchResult(MessageEventRecord record)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(record.messageId).append(' ').append(record.eventType).append(' ')
+			.append(record.time.format(DiscordMonitor.LOG_DATETIME_FORMAT));
+		if (record.isTimeApproximate)
+			sb.append(" (approximate)");
+		switch (record.channelType)
+		{
+			case TEXT: sb.append(" (").append(record.serverName).append(")[").append(record.channelName).append(']'); break;
+			case PRIVATE: sb.append(" [DM]<").append(record.channelName).append('>'); break;
+			case GROUP: sb.append(" [GRP: ").append(record.channelName).append(']'); break;
+			default: break;
+		}
+		if (record.authorName != null && record.channelType != ChannelType.PRIVATE)
+			sb.append('<').append(record.authorName).append('>');
+		sb.append('\n');
+		if (record.content != null)
+			sb.append('\t').append(DiscordMonitorBotUtilities.replaceBellCharacter(record.content).replace("\n", "\n\t")).append('\n');
+		for (String attachmentJson : record.attachmentJson)
+			sb.append("\tAttachment: ").append(attachmentJson.replace("\n", "\n\t")).append('\n');
+		return sb.toString();
+	}
+
+	/** As {@link #loadConfig(String)}, but also returns null (with announcement) if the profile's LogDB does not exist. */
+	private static DiscordMonitorConfig loadLogDBConfig(String profilepath)
+	{
+		DiscordMonitorConfig appconfig = Program.loadConfig(profilepath);
+		if (appconfig == null)
+			return null;
+		if (appconfig.logDBLocation == null || !appconfig.logDBLocation.isFile())
+		{
+			System.out.println("error: LogDBLocation does not refer to an existing LogDB.");
+			return null;
+		}
+		return appconfig;
+	}
+
+	/** Returns the configuration loaded from the given .profile.json, or null (with announcement) if it does not exist. */
+	private static DiscordMonitorConfig loadConfig(String profilepath)
+	{
+		try
+		{
+			return DiscordMonitorConfig.loadFromFile(profilepath);
 		} catch (FileNotFoundException e)
 		{
 			System.out.println("error: specified .profile.json does not exist");
-			return;
+			return null;
 		}
-		app.start();
 	}
 }
@@ -0,0 +1,196 @@
+package com.github.valdeza.DiscordMonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+public class DiscordMonitorEventJournalTest
+{
+	/** Length of a segment's header, and of an entry's header (payload length, CRC and type) */
+	private static final int SEGMENT_HEADER_SIZE = 4;
+	private static final int ENTRY_HEADER_SIZE = 4 + 4 + 1;
+
+	private File directory;
+	private DiscordMonitorEventJournal journal;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = Files.createTempDirectory("journal").toFile();
+	}
+
+	@After
+	public void tearDown()
+	{
+		if (this.journal != null)
+			this.journal.close();
+		for (File file : this.directory.listFiles())
+			file.delete();
+		this.directory.delete();
+	}
+
+	/** Events not released before closing are replayed in order, intact, and flagged as possibly stored already. */
+	@Test
+	public void testReplaysIncompleteEvents() throws IOException
+	{
+		this.journal = new DiscordMonitorEventJournal(this.directory);
+		this.journal.append(this.newRecord(1, "first 😀"));
+		this.journal.append(this.newRecord(2, "second")).release();
+		MessageEventRecord third = this.newRecord(3, null);
+		third.eventType = MessageEventType.DELETE;
+		third.serverId = null;
+		this.journal.append(third);
+		this.journal.close();
+
+		List<MessageEventRecord> recovered = this.reopen();
+		assertEquals(Arrays.asList(1L, 3L), DiscordMonitorEventJournalTest.getMessageIds(recovered));
+		MessageEventRecord first = recovered.get(0);
+		assertEquals("first 😀", first.content);
+		assertEquals(MessageEventType.NEW, first.eventType);
+		assertEquals(Long.valueOf(10), first.serverId);
+		assertEquals(OffsetDateTime.parse("2017-06-20T12:00:01.5+02:00"), first.time);
+		assertEquals(Arrays.asList("{\"url\":\"http://x/1.png\"}"), first.attachmentJson);
+		assertTrue(first.isPossiblyStored);
+		assertNull(recovered.get(1).content);
+		assertNull(recovered.get(1).serverId);
+	}
+
+	/** An entry torn by a crash mid-write ends recovery of its segment, but the entries before it and later segments are still recovered. */
+	@Test
+	public void testRecoversUpToTornEntry() throws IOException
+	{
+		this.journal = new DiscordMonitorEventJournal(this.directory);
+		for (long messageId = 1; messageId <= 3; ++messageId)
+			this.journal.append(this.newRecord(messageId, "message " + messageId));
+		this.journal.close();
+		File segment = this.getSegmentFiles().get(0);
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+		{
+			file.setLength(file.length() - 3);
+		}
+
+		List<MessageEventRecord> recovered = this.reopen();
+		assertEquals(Arrays.asList(1L, 2L), DiscordMonitorEventJournalTest.getMessageIds(recovered));
+		this.journal.append(this.newRecord(4, "message 4"));
+		this.journal.close();
+
+		recovered = this.reopen();
+		assertEquals(Arrays.asList(1L, 2L, 4L), DiscordMonitorEventJournalTest.getMessageIds(recovered));
+	}
+
+	/** An entry failing its CRC check ends recovery of its segment. */
+	@Test
+	public void testStopsAtChecksumMismatch() throws IOException
+	{
+		this.journal = new DiscordMonitorEventJournal(this.directory);
+		for (long messageId = 1; messageId <= 3; ++messageId)
+			this.journal.append(this.newRecord(messageId, "message " + messageId));
+		this.journal.close();
+		try (RandomAccessFile file = new RandomAccessFile(this.getSegmentFiles().get(0), "rw"))
+		{
+			file.seek(DiscordMonitorEventJournalTest.SEGMENT_HEADER_SIZE);
+			long secondEntryStart = DiscordMonitorEventJournalTest.SEGMENT_HEADER_SIZE + DiscordMonitorEventJournalTest.ENTRY_HEADER_SIZE + file.readInt();
+			long corruptedOffset = secondEntryStart + DiscordMonitorEventJournalTest.ENTRY_HEADER_SIZE + 12;
+			file.seek(corruptedOffset);
+			int b = file.read();
+			file.seek(corruptedOffset);
+			file.write(b ^ 0x01);
+		}
+
+		assertEquals(Arrays.asList(1L), DiscordMonitorEventJournalTest.getMessageIds(this.reopen()));
+	}
+
+	/** Segments are deleted once all of their events are complete, including events recovered from them. */
+	@Test
+	public void testDeletesCompleteSegments() throws IOException
+	{
+		this.journal = new DiscordMonitorEventJournal(this.directory);
+		this.journal.append(this.newRecord(1, "complete")).release();
+		this.journal.append(this.newRecord(2, "incomplete"));
+		this.journal.close();
+		File firstSegment = this.getSegmentFiles().get(0);
+
+		List<MessageEventRecord> recovered = this.reopen();
+		assertEquals(2, this.getSegmentFiles().size()); // Still holds an incomplete event
+		assertTrue(firstSegment.exists());
+
+		recovered.get(0).journalEntry.release();
+		this.journal.close();
+		assertEquals(1, this.getSegmentFiles().size());
+		assertFalse(firstSegment.exists());
+		assertTrue(this.reopen().isEmpty());
+	}
+
+	/** Full segments are rolled over, and deleted once their events are complete. */
+	@Test
+	public void testRollsOverSegments() throws IOException
+	{
+		char[] content = new char[1024 * 1024];
+		Arrays.fill(content, 'x');
+		this.journal = new DiscordMonitorEventJournal(this.directory);
+		List<DiscordMonitorEventJournal.Entry> entries = new ArrayList<>();
+		for (long messageId = 1; messageId <= 40; ++messageId)
+			entries.add(this.journal.append(this.newRecord(messageId, new String(content))));
+		for (DiscordMonitorEventJournal.Entry entry : entries)
+			entry.release();
+		this.journal.close();
+
+		assertTrue(this.getSegmentFiles().size() <= 2);
+		assertTrue(this.reopen().isEmpty());
+	}
+
+	private List<MessageEventRecord> reopen() throws IOException
+	{
+		this.journal = new DiscordMonitorEventJournal(this.directory);
+		return this.journal.takeRecoveredRecords();
+	}
+
+	private List<File> getSegmentFiles()
+	{
+		List<File> files = new ArrayList<>(Arrays.asList(this.directory.listFiles((dir, name) -> name.startsWith("journal-"))));
+		files.sort(null);
+		return files;
+	}
+
+	private MessageEventRecord newRecord(long messageId, String content)
+	{
+		MessageEventRecord record = new MessageEventRecord();
+		record.messageId = messageId;
+		record.eventType = MessageEventType.NEW;
+		record.time = OffsetDateTime.parse("2017-06-20T12:00:01.5+02:00");
+		record.channelType = ChannelType.TEXT;
+		record.serverId = 10L;
+		record.channelId = 20L;
+		record.userId = 30L;
+		record.serverName = "Server";
+		record.channelName = "channel";
+		record.authorName = "author";
+		record.content = content;
+		record.attachmentJson.add("{\"url\":\"http://x/" + messageId + ".png\"}");
+		return record;
+	}
+
+	private static List<Long> getMessageIds(List<MessageEventRecord> records)
+	{
+		List<Long> messageIds = new ArrayList<>();
+		for (MessageEventRecord record : records)
+			messageIds.add(record.messageId);
+		return messageIds;
+	}
+}
@@ -0,0 +1,119 @@
+package com.github.valdeza.DiscordMonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+/** Edits stored as {@link DiscordMonitorTextDelta} deltas, with a full snapshot every 16 revisions. */
+public class DiscordMonitorLogDBRevisionTest
+{
+	private static final long MESSAGE_ID = 1000;
+	private static final int REWRITTEN_REVISION = 20;
+	private static final int REVISION_COUNT = 40;
+
+	private File directory;
+	private File location;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = Files.createTempDirectory("logdb").toFile();
+		this.location = new File(this.directory, "log.db");
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File file : this.directory.listFiles())
+			file.delete();
+		this.directory.delete();
+	}
+
+	/** Every revision is rebuilt from its snapshot and the deltas since, here without the writer's cache of latest revisions. */
+	@Test
+	public void testRebuildsRevisions() throws SQLException
+	{
+		List<String> contents = this.storeRevisions();
+		try (DiscordMonitorLogDB logDB = new DiscordMonitorLogDB(this.location))
+		{
+			List<MessageEventRecord> history = logDB.getMessageHistory(DiscordMonitorLogDBRevisionTest.MESSAGE_ID);
+			assertEquals(contents.size(), history.size());
+			for (int i = 0; i < contents.size(); ++i)
+				assertEquals("Revision " + i, contents.get(i), history.get(i).content);
+		}
+	}
+
+	/** Snapshots are stored every 16 revisions, and for edits rewriting the message entirely, which would not be smaller as a delta. */
+	@Test
+	public void testStoresSnapshotsAtInterval() throws SQLException
+	{
+		this.storeRevisions();
+		List<Integer> snapshotRevisions = new ArrayList<>();
+		try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.location.getPath());
+			PreparedStatement stmt = connection.prepareStatement("SELECT revision FROM message_event WHERE message_id = ? AND is_delta = 0 ORDER BY revision"))
+		{
+			stmt.setLong(1, DiscordMonitorLogDBRevisionTest.MESSAGE_ID);
+			try (ResultSet rs = stmt.executeQuery())
+			{
+				while (rs.next())
+					snapshotRevisions.add(rs.getInt(1));
+			}
+		}
+		List<Integer> expected = new ArrayList<>();
+		expected.add(0);
+		expected.add(16);
+		expected.add(DiscordMonitorLogDBRevisionTest.REWRITTEN_REVISION);
+		expected.add(DiscordMonitorLogDBRevisionTest.REWRITTEN_REVISION + 16);
+		assertEquals(expected, snapshotRevisions);
+	}
+
+	/** Stores a message and its edits (one of which rewrites it entirely), then closes the LogDB. Returns the content of each revision. */
+	private List<String> storeRevisions() throws SQLException
+	{
+		List<String> contents = new ArrayList<>();
+		try (DiscordMonitorLogDB logDB = new DiscordMonitorLogDB(this.location))
+		{
+			OffsetDateTime time = OffsetDateTime.parse("2017-06-20T12:00:00Z");
+			StringBuilder emoji = new StringBuilder();
+			for (int revision = 0; revision < DiscordMonitorLogDBRevisionTest.REVISION_COUNT; ++revision)
+			{
+				emoji.append(revision % 2 == 0 ? "😀" : "😁"); // Neighbouring pairs share their high surrogate.
+				String content = revision < DiscordMonitorLogDBRevisionTest.REWRITTEN_REVISION ? "This message was edited: " + emoji + " and ends here."
+					: "Rewritten entirely, " + emoji.substring(2 * DiscordMonitorLogDBRevisionTest.REWRITTEN_REVISION) + "!";
+				contents.add(content);
+
+				MessageEventRecord record = new MessageEventRecord();
+				record.messageId = DiscordMonitorLogDBRevisionTest.MESSAGE_ID;
+				record.eventType = revision == 0 ? MessageEventType.NEW : MessageEventType.EDIT;
+				record.time = time.plusSeconds(revision);
+				record.channelType = ChannelType.TEXT;
+				record.serverId = 1L;
+				record.channelId = 2L;
+				record.userId = 3L;
+				record.serverName = "Server";
+				record.channelName = "channel";
+				record.authorName = "author";
+				record.content = content;
+				record.logTargetLabels.add("target");
+				logDB.submit(record);
+			}
+		}
+		return contents;
+	}
+}
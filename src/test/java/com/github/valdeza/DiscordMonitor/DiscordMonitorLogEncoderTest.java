@@ -0,0 +1,196 @@
+package com.github.valdeza.DiscordMonitor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+public class DiscordMonitorLogEncoderTest
+{
+	private static final int RECORD_COUNT = 5000;
+	private static final Charset[] CHARSETS = { StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, Charset.forName("windows-1252") };
+	/** Includes bell characters, a surrogate pair, lone surrogates and characters unmappable in single-byte charsets. */
+	private static final String ALPHABET = "abc XYZ 019 :()[]<>-\n\t\u0007é€日😀𐀀";
+
+	/**
+	 * Output must match the String.format-based printing DiscordMonitor used before the encoder, byte for byte.
+	 * (Attachment download results are no longer part of the record, as downloads complete in the background; see README.)
+	 */
+	@Test
+	public void testMatchesFormattedOutput() throws UnsupportedEncodingException
+	{
+		Random random = new Random(1);
+		for (Charset charset : DiscordMonitorLogEncoderTest.CHARSETS)
+		{
+			for (int i = 0; i < DiscordMonitorLogEncoderTest.RECORD_COUNT; ++i)
+			{
+				MessageEventRecord record = DiscordMonitorLogEncoderTest.randomRecord(random);
+
+				ByteArrayOutputStream expected = new ByteArrayOutputStream();
+				DiscordMonitorLogEncoderTest.printFormatted(new PrintStream(expected, true, charset.name()), record);
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				new DiscordMonitorLogEncoder(new PrintStream(actual, true, charset.name()), charset).printRecord(record);
+
+				assertArrayEquals("Record " + i + " in " + charset, expected.toByteArray(), actual.toByteArray());
+			}
+		}
+	}
+
+	/** A record and the announcement preceding it are printed with a single write, as other threads print through the same stream. */
+	@Test
+	public void testPrintsPreambleAndRecordInOneWrite() throws UnsupportedEncodingException
+	{
+		Random random = new Random(3);
+		String preamble = "(i) Logging for: a b\n/!\\ WATCHLIST HIT: \u00e9\u20ac\n";
+		for (int i = 0; i < 100; ++i)
+		{
+			MessageEventRecord record = DiscordMonitorLogEncoderTest.randomRecord(random);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			PrintStream expectedOut = new PrintStream(expected, true, "UTF-8");
+			expectedOut.print(preamble);
+			DiscordMonitorLogEncoderTest.printFormatted(expectedOut, record);
+
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			int[] writeCount = { 0 };
+			new DiscordMonitorLogEncoder(new PrintStream(new OutputStream()
+			{
+				@Override
+				public void write(int b)
+				{
+					++writeCount[0];
+					actual.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len)
+				{
+					++writeCount[0];
+					actual.write(b, off, len);
+				}
+			}), StandardCharsets.UTF_8).printRecord(new StringBuilder(preamble), record);
+
+			assertArrayEquals("Record " + i, expected.toByteArray(), actual.toByteArray());
+			assertTrue("Record " + i + " took " + writeCount[0] + " writes", writeCount[0] == 1);
+		}
+	}
+
+	/** Once its buffers have grown to fit, printing a record allocates nothing. */
+	@Test
+	public void testSteadyStateAllocation()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue("Per-thread allocation counters unavailable", bean instanceof com.sun.management.ThreadMXBean
+			&& ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported());
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)bean;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+		Random random = new Random(2);
+		MessageEventRecord[] records = new MessageEventRecord[100];
+		OffsetDateTime second = OffsetDateTime.of(2017, 9, 1, 12, 0, 0, 0, ZoneOffset.ofHours(2));
+		for (int i = 0; i < records.length; ++i)
+		{
+			records[i] = DiscordMonitorLogEncoderTest.randomRecord(random);
+			records[i].time = second.withNano(random.nextInt(1000000000)); // Timestamp prefixes are only formatted once per second.
+		}
+		DiscordMonitorLogEncoder encoder = new DiscordMonitorLogEncoder(new PrintStream(new OutputStream()
+		{
+			@Override
+			public void write(int b)
+			{
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		}), StandardCharsets.UTF_8);
+
+		for (int i = 0; i < 20000; ++i) // Warm up and grow the buffers
+			encoder.printRecord(records[i % records.length]);
+		long threadId = Thread.currentThread().getId();
+		long before = allocationBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 20000; ++i)
+			encoder.printRecord(records[i % records.length]);
+		long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+		// Allows for the measurement itself; a single String per record would exceed this many times over.
+		assertTrue("Allocated " + allocated + " bytes for 20000 records", allocated < 20000);
+	}
+
+	private static MessageEventRecord randomRecord(Random random)
+	{
+		MessageEventRecord record = new MessageEventRecord();
+		record.messageId = random.nextLong() & Long.MAX_VALUE;
+		record.eventType = MessageEventType.values()[random.nextInt(MessageEventType.values().length)];
+		record.channelType = new ChannelType[]{ ChannelType.TEXT, ChannelType.PRIVATE, ChannelType.GROUP }[random.nextInt(3)];
+		record.serverName = DiscordMonitorLogEncoderTest.randomString(random, 20);
+		record.channelName = DiscordMonitorLogEncoderTest.randomString(random, 20);
+		record.authorName = DiscordMonitorLogEncoderTest.randomString(random, 20);
+		record.time = OffsetDateTime.ofInstant(Instant.ofEpochSecond(1400000000 + random.nextInt(200000000), random.nextInt(1000000000)),
+			ZoneOffset.ofTotalSeconds((random.nextInt(36) - 18) * 3600 + (random.nextBoolean() ? 0 : random.nextInt(60) * 60 + random.nextInt(60))));
+		record.isTimeApproximate = record.eventType == MessageEventType.DELETE;
+		if (record.eventType != MessageEventType.DELETE)
+		{
+			record.content = DiscordMonitorLogEncoderTest.randomString(random, 300);
+			for (int i = random.nextInt(3); i > 0; --i)
+				record.embedJson.add(DiscordMonitorLogEncoderTest.randomString(random, 100));
+			for (int i = random.nextInt(3); i > 0; --i)
+				record.attachmentJson.add(DiscordMonitorLogEncoderTest.randomString(random, 100));
+		}
+		return record;
+	}
+
+	private static String randomString(Random random, int maxLength)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = random.nextInt(maxLength); i > 0; --i)
+			sb.append(DiscordMonitorLogEncoderTest.ALPHABET.charAt(random.nextInt(DiscordMonitorLogEncoderTest.ALPHABET.length())));
+		return sb.toString();
+	}
+
+	/** Prints the given record as DiscordMonitor did before {@link DiscordMonitorLogEncoder}. */
+	private static void printFormatted(PrintStream out, MessageEventRecord record)
+	{
+		StringBuilder msg = new StringBuilder("\n");
+		if (record.eventType == MessageEventType.DELETE)
+		{
+			msg.append("Time: ").append(record.time.format(DiscordMonitor.LOG_DATETIME_FORMAT)).append(" (approximate)")
+				.append("\nMESSAGE DELETED");
+			if (record.channelType == ChannelType.TEXT)
+				out.printf("%d:(%s)[%s]: %s\n\n", record.messageId, DiscordMonitorBotUtilities.replaceBellCharacter(record.serverName), DiscordMonitorBotUtilities.replaceBellCharacter(record.channelName), msg);
+			else if (record.channelType == ChannelType.PRIVATE)
+				out.printf("%d:[DM]<%s>: %s\n\n", record.messageId, DiscordMonitorBotUtilities.replaceBellCharacter(record.channelName), msg);
+			else if (record.channelType == ChannelType.GROUP)
+				out.printf("%d:[GRP: %s]: %s\n\n", record.messageId, DiscordMonitorBotUtilities.replaceBellCharacter(record.channelName), msg);
+			return;
+		}
+
+		msg.append("Time: ").append(record.time.format(DiscordMonitor.LOG_DATETIME_FORMAT))
+			.append("\nMessage: ").append(DiscordMonitorBotUtilities.replaceBellCharacter(record.content));
+		for (int i = 0; i < record.embedJson.size(); ++i)
+			msg.append(String.format("\nEmbed[%d]: ", i)).append(DiscordMonitorBotUtilities.replaceBellCharacter(record.embedJson.get(i)));
+		for (int i = 0; i < record.attachmentJson.size(); ++i)
+			msg.append(String.format("\nAttachment[%d]: ", i)).append(DiscordMonitorBotUtilities.replaceBellCharacter(record.attachmentJson.get(i)));
+		if (record.channelType == ChannelType.TEXT)
+			out.printf("%d:(%s)[%s]<%s>: %s\n\n", record.messageId, DiscordMonitorBotUtilities.replaceBellCharacter(record.serverName), DiscordMonitorBotUtilities.replaceBellCharacter(record.channelName), DiscordMonitorBotUtilities.replaceBellCharacter(record.authorName), msg);
+		else if (record.channelType == ChannelType.PRIVATE)
+			out.printf("%d:[DM]<%s>: %s\n\n", record.messageId, DiscordMonitorBotUtilities.replaceBellCharacter(record.channelName), msg);
+		else if (record.channelType == ChannelType.GROUP)
+			out.printf("%d:[GRP: %s]<%s>: %s\n\n", record.messageId, DiscordMonitorBotUtilities.replaceBellCharacter(record.channelName), DiscordMonitorBotUtilities.replaceBellCharacter(record.authorName), msg);
+	}
+}
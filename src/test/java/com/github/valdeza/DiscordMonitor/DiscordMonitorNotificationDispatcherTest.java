@@ -0,0 +1,328 @@
+package com.github.valdeza.DiscordMonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import net.dv8tion.jda.core.entities.ChannelType;
+
+public class DiscordMonitorNotificationDispatcherTest
+{
+	private static final Pattern PATTERN_MESSAGE_ID = Pattern.compile("\"messageId\":(\\d+)");
+	private static final long DELIVERY_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/** Collects the message IDs of the hits it receives. */
+	private abstract static class Receiver implements Closeable
+	{
+		final Set<Long> messageIds = ConcurrentHashMap.newKeySet();
+
+		void receive(String line)
+		{
+			Matcher matcher = DiscordMonitorNotificationDispatcherTest.PATTERN_MESSAGE_ID.matcher(line);
+			if (matcher.find())
+				this.messageIds.add(Long.valueOf(matcher.group(1)));
+		}
+
+		/** Waits until hits of every message ID in [0, count) were received. */
+		void awaitMessageIds(int count) throws InterruptedException
+		{
+			long deadlineMillis = System.currentTimeMillis() + DiscordMonitorNotificationDispatcherTest.DELIVERY_TIMEOUT_MILLIS;
+			while (this.messageIds.size() < count && System.currentTimeMillis() < deadlineMillis)
+				Thread.sleep(50);
+			assertEquals(count, this.messageIds.size());
+			for (long messageId = 0; messageId < count; ++messageId)
+				assertTrue("Message " + messageId + " not received", this.messageIds.contains(messageId));
+		}
+	}
+
+	/** Responds 503 to the first <em>failureCount</em> requests. */
+	private static class HttpReceiver extends Receiver
+	{
+		final HttpServer server;
+		final AtomicInteger requestCount = new AtomicInteger();
+
+		HttpReceiver(int failureCount) throws IOException
+		{
+			this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			this.server.createContext("/hits", exchange ->
+			{
+				byte[] body = DiscordMonitorNotificationDispatcherTest.readFully(exchange.getRequestBody());
+				if (this.requestCount.incrementAndGet() <= failureCount)
+					exchange.sendResponseHeaders(503, -1);
+				else
+				{
+					for (String line : new String(body, StandardCharsets.UTF_8).split("\n"))
+						this.receive(line);
+					exchange.sendResponseHeaders(204, -1);
+				}
+				exchange.close();
+			});
+			this.server.start();
+		}
+
+		String getUrl()
+		{
+			return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/hits";
+		}
+
+		@Override
+		public void close()
+		{
+			this.server.stop(0);
+		}
+	}
+
+	/**
+	 * Accepts connections on the given port and reads and acknowledges hits from them, unless stalled (accepting, but never reading).
+	 * The first <em>droppedConnectionCount</em> connections are closed after reading a hit, without taking or acknowledging it.
+	 */
+	private static class TcpReceiver extends Receiver
+	{
+		final ServerSocket serverSocket;
+		final List<Socket> sockets = new ArrayList<>();
+		final AtomicInteger remainingDroppedConnectionCount;
+
+		TcpReceiver(int port, boolean isStalled) throws IOException
+		{
+			this(port, isStalled, 0);
+		}
+
+		TcpReceiver(int port, boolean isStalled, int droppedConnectionCount) throws IOException
+		{
+			this.remainingDroppedConnectionCount = new AtomicInteger(droppedConnectionCount);
+			this.serverSocket = new ServerSocket();
+			this.serverSocket.setReuseAddress(true);
+			if (isStalled)
+				this.serverSocket.setReceiveBufferSize(4096); // Fill up sooner
+			this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			Thread thread = new Thread(() ->
+			{
+				try
+				{
+					while (true)
+					{
+						Socket socket = this.serverSocket.accept();
+						synchronized (this.sockets)
+						{
+							this.sockets.add(socket);
+						}
+						if (!isStalled)
+							this.startReading(socket);
+					}
+				}
+				catch (IOException e)
+				{
+					// Closed
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void startReading(Socket socket)
+		{
+			Thread thread = new Thread(() ->
+			{
+				boolean isDropped = this.remainingDroppedConnectionCount.getAndDecrement() > 0;
+				try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)))
+				{
+					OutputStream out = socket.getOutputStream();
+					String line;
+					while ((line = in.readLine()) != null)
+					{
+						if (isDropped)
+							break;
+						this.receive(line);
+						out.write('\n');
+					}
+				}
+				catch (IOException e)
+				{
+					// Closed
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		String getTarget()
+		{
+			return "127.0.0.1:" + this.serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.serverSocket.close();
+			synchronized (this.sockets)
+			{
+				for (Socket socket : this.sockets)
+					socket.close();
+			}
+		}
+	}
+
+	private File directory;
+	private DiscordMonitorNotificationDispatcher dispatcher;
+	private final List<Closeable> receivers = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = Files.createTempDirectory("dispatcher").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if (this.dispatcher != null)
+			this.dispatcher.close();
+		for (Closeable receiver : this.receivers)
+			receiver.close();
+		for (File file : this.directory.listFiles())
+			file.delete();
+		this.directory.delete();
+	}
+
+	/** Failed batches stay in the outbox and are retried until the receiver recovers. */
+	@Test
+	public void testDeliversToRecoveringHttpReceiver() throws IOException, InterruptedException
+	{
+		HttpReceiver receiver = this.addReceiver(new HttpReceiver(2));
+		this.dispatcher = this.createDispatcher(this.sinkConfig("http", DiscordMonitorNotificationSink.Type.HTTP, receiver.getUrl()));
+
+		this.submit(200, 0);
+		receiver.awaitMessageIds(200);
+		assertTrue(receiver.requestCount.get() > 2);
+	}
+
+	/** Hits submitted while nothing listens are delivered once the receiver starts listening. */
+	@Test
+	public void testDeliversToRecoveringTcpReceiver() throws IOException, InterruptedException
+	{
+		int port;
+		try (ServerSocket reservation = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			port = reservation.getLocalPort();
+		}
+		this.dispatcher = this.createDispatcher(this.sinkConfig("tcp", DiscordMonitorNotificationSink.Type.TCP, "127.0.0.1:" + port));
+
+		this.submit(200, 0);
+		Thread.sleep(500); // The first attempt is refused.
+		TcpReceiver receiver = this.addReceiver(new TcpReceiver(port, false));
+		receiver.awaitMessageIds(200);
+	}
+
+	/** Hits a TCP receiver did not acknowledge before the connection closed are sent again. */
+	@Test
+	public void testRedeliversUnacknowledgedTcpHits() throws IOException, InterruptedException
+	{
+		TcpReceiver receiver = this.addReceiver(new TcpReceiver(0, false, 2));
+		this.dispatcher = this.createDispatcher(this.sinkConfig("tcp", DiscordMonitorNotificationSink.Type.TCP, receiver.getTarget()));
+
+		this.submit(200, 0);
+		receiver.awaitMessageIds(200);
+		assertTrue(receiver.remainingDroppedConnectionCount.get() < 0);
+	}
+
+	/** A receiver that stops reading holds up neither event processing nor the other sinks. */
+	@Test
+	public void testStalledReceiverHoldsUpNothingElse() throws IOException, InterruptedException
+	{
+		TcpReceiver stalledReceiver = this.addReceiver(new TcpReceiver(0, true));
+		TcpReceiver tcpReceiver = this.addReceiver(new TcpReceiver(0, false));
+		HttpReceiver httpReceiver = this.addReceiver(new HttpReceiver(0));
+		this.dispatcher = this.createDispatcher(
+			this.sinkConfig("stalled", DiscordMonitorNotificationSink.Type.TCP, stalledReceiver.getTarget()),
+			this.sinkConfig("tcp", DiscordMonitorNotificationSink.Type.TCP, tcpReceiver.getTarget()),
+			this.sinkConfig("http", DiscordMonitorNotificationSink.Type.HTTP, httpReceiver.getUrl()));
+
+		// Far more than the stalled connection can buffer, and more than the queues hold
+		long startNanos = System.nanoTime();
+		this.submit(3000, 8192);
+		long submitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		assertTrue("Submitting took " + submitMillis + " ms", submitMillis < TimeUnit.SECONDS.toMillis(10));
+
+		tcpReceiver.awaitMessageIds(3000);
+		httpReceiver.awaitMessageIds(3000);
+		assertTrue(stalledReceiver.messageIds.isEmpty());
+	}
+
+	private <T extends Closeable> T addReceiver(T receiver)
+	{
+		this.receivers.add(receiver);
+		return receiver;
+	}
+
+	private DiscordMonitorNotificationDispatcher.SinkConfig sinkConfig(String label, DiscordMonitorNotificationSink.Type type, String target)
+	{
+		DiscordMonitorNotificationDispatcher.SinkConfig sinkConfig = new DiscordMonitorNotificationDispatcher.SinkConfig();
+		sinkConfig.label = label;
+		sinkConfig.type = type;
+		sinkConfig.target = target;
+		return sinkConfig;
+	}
+
+	private DiscordMonitorNotificationDispatcher createDispatcher(DiscordMonitorNotificationDispatcher.SinkConfig... sinkConfigs) throws IOException
+	{
+		return new DiscordMonitorNotificationDispatcher(sinkConfigs, this.directory);
+	}
+
+	/** Submits hits of message IDs [0, count), each with <em>contentLength</em> characters of content. */
+	private void submit(int count, int contentLength)
+	{
+		char[] content = new char[contentLength];
+		Arrays.fill(content, 'x');
+		for (int i = 0; i < count; ++i)
+		{
+			MessageEventRecord record = new MessageEventRecord();
+			record.messageId = i;
+			record.eventType = MessageEventType.NEW;
+			record.time = OffsetDateTime.now();
+			record.channelType = ChannelType.TEXT;
+			record.content = new String(content);
+			record.watchlistLabels.add("watchlist");
+			this.dispatcher.submit(record);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) != -1)
+			out.write(buffer, 0, count);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,225 @@
+package com.github.valdeza.DiscordMonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiscordMonitorNotificationOutboxTest
+{
+	private static final String LABEL = "sink";
+	private static final int MEBIBYTE = 1024 * 1024;
+
+	private File directory;
+	private DiscordMonitorNotificationDispatcher.Outbox outbox;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = Files.createTempDirectory("outbox").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if (this.outbox != null)
+			this.outbox.close();
+		for (File file : this.directory.listFiles())
+			file.delete();
+		this.directory.delete();
+	}
+
+	/** A line left incomplete by a crash mid-append is dropped, and later hits are not merged into it. */
+	@Test
+	public void testDropsTornLastLine() throws IOException
+	{
+		try (FileOutputStream out = new FileOutputStream(this.getOutboxFile()))
+		{
+			out.write("1\tfirst\n2\tsecond\n3\tthi".getBytes(StandardCharsets.UTF_8));
+		}
+
+		this.outbox = this.open();
+		assertEquals(2, this.outbox.getPendingCount());
+		assertEquals("1\tfirst\n2\tsecond\n".length(), this.getOutboxFile().length());
+
+		this.outbox.append(Collections.singletonList("third"));
+		assertEquals(Arrays.asList("first", "second", "third"), this.deliverAll());
+	}
+
+	/** Hits delivered before a restart are not read again, and the oldest undelivered hit's age survives it. */
+	@Test
+	public void testRecoversCursor() throws IOException
+	{
+		this.outbox = this.open();
+		this.outbox.append(Arrays.asList("a", "b", "c", "d"));
+		this.outbox.commit(this.outbox.read(2));
+		this.outbox.close();
+
+		this.outbox = this.open();
+		assertEquals(2, this.outbox.getPendingCount());
+		assertNotNull(this.outbox.getOldestPendingMillis());
+		assertEquals(Arrays.asList("c", "d"), this.deliverAll());
+	}
+
+	/** A cursor past the end of the outbox (e.g. after a crash while emptying it) is reset, delivering the hits again. */
+	@Test
+	public void testResetsCursorPastEnd() throws IOException
+	{
+		try (FileOutputStream out = new FileOutputStream(this.getOutboxFile()))
+		{
+			out.write("1\ta\n".getBytes(StandardCharsets.UTF_8));
+		}
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(this.getCursorFile())))
+		{
+			out.writeLong(1000);
+		}
+
+		this.outbox = this.open();
+		assertEquals(1, this.outbox.getPendingCount());
+		assertEquals(Collections.singletonList("a"), this.deliverAll());
+	}
+
+	@Test
+	public void testCommit() throws IOException
+	{
+		this.outbox = this.open();
+		this.outbox.append(Arrays.asList("a", "b", "c", "d", "e"));
+
+		DiscordMonitorNotificationDispatcher.OutboxBatch batch = this.outbox.read(2);
+		assertEquals(Arrays.asList("a", "b"), batch.hits);
+		assertEquals(5, this.outbox.getPendingCount()); // Not delivered until committed
+		assertEquals(Arrays.asList("a", "b"), this.outbox.read(2).hits);
+
+		this.outbox.commit(batch);
+		assertEquals(3, this.outbox.getPendingCount());
+		assertEquals(Arrays.asList("c", "d", "e"), this.outbox.read(10).hits);
+	}
+
+	/** A fully delivered outbox is truncated, and takes further hits from the start. */
+	@Test
+	public void testEmptiesThenTruncates() throws IOException
+	{
+		this.outbox = this.open();
+		this.outbox.append(Arrays.asList("a", "b"));
+		this.outbox.commit(this.outbox.read(10));
+
+		assertEquals(0, this.outbox.getPendingCount());
+		assertNull(this.outbox.getOldestPendingMillis());
+		assertTrue(this.outbox.read(10).hits.isEmpty());
+		assertEquals(0, this.getOutboxFile().length());
+
+		this.outbox.append(Collections.singletonList("c"));
+		this.outbox.close();
+		this.outbox = this.open();
+		assertEquals(Collections.singletonList("c"), this.deliverAll());
+	}
+
+	/** Delivered hits are compacted away once they take up most of the outbox; undelivered hits are kept in order. */
+	@Test
+	public void testCompactsDeliveredHits() throws IOException
+	{
+		this.outbox = this.open();
+		char[] padding = new char[1000];
+		Arrays.fill(padding, 'x');
+		List<String> hits = new ArrayList<>();
+		for (int i = 0; i < 3000; ++i)
+			hits.add(i + new String(padding));
+		this.outbox.append(hits);
+		long fullLength = this.outbox.getFileLength();
+
+		int deliveredCount = 0;
+		while (deliveredCount < 2500)
+		{
+			DiscordMonitorNotificationDispatcher.OutboxBatch batch = this.outbox.read(Math.min(100, 2500 - deliveredCount));
+			this.outbox.commit(batch);
+			deliveredCount += batch.hits.size();
+		}
+
+		assertTrue("Outbox not compacted: " + this.outbox.getFileLength() + " of " + fullLength + " bytes",
+			this.outbox.getFileLength() <= fullLength / 2);
+		assertEquals(this.outbox.getFileLength(), this.getOutboxFile().length());
+		this.outbox.close();
+		this.outbox = this.open();
+		assertEquals(hits.subList(2500, 3000), this.deliverAll());
+	}
+
+	/** The size limit applies to the encoded bytes of undelivered hits only, and drops hits from the end of an append. */
+	@Test
+	public void testLimitsUndeliveredBytes() throws IOException
+	{
+		this.outbox = this.open();
+		char[] chars = new char[MEBIBYTE / 2 - 32];
+		Arrays.fill(chars, 'é'); // Two bytes in UTF-8: each hit takes just under a mebibyte.
+		String hit = new String(chars);
+
+		int droppedCount = 0;
+		for (int i = 0; i < 70; ++i)
+			droppedCount += this.outbox.append(Collections.singletonList(hit));
+		assertEquals(6, droppedCount);
+		assertEquals(64, this.outbox.getPendingCount());
+
+		// Delivering hits (without them being compacted away yet) makes room for as many.
+		int deliveredCount = 0;
+		while (deliveredCount < 10)
+		{
+			DiscordMonitorNotificationDispatcher.OutboxBatch batch = this.outbox.read(10 - deliveredCount);
+			this.outbox.commit(batch);
+			deliveredCount += batch.hits.size();
+		}
+		assertEquals(0, this.outbox.append(Collections.nCopies(10, hit)));
+		assertEquals(1, this.outbox.append(Collections.singletonList(hit)));
+		assertEquals(64, this.outbox.getPendingCount());
+
+		// Hits after a dropped one are dropped too, even if they would fit, so that the outbox stays in order.
+		assertEquals(2, this.outbox.append(Arrays.asList(hit, "small")));
+		assertEquals(64, this.outbox.getPendingCount());
+	}
+
+	private DiscordMonitorNotificationDispatcher.Outbox open() throws IOException
+	{
+		return new DiscordMonitorNotificationDispatcher.Outbox(this.directory, DiscordMonitorNotificationOutboxTest.LABEL);
+	}
+
+	private File getOutboxFile()
+	{
+		return new File(this.directory, DiscordMonitorNotificationOutboxTest.LABEL + ".outbox");
+	}
+
+	private File getCursorFile()
+	{
+		return new File(this.directory, DiscordMonitorNotificationOutboxTest.LABEL + ".cursor");
+	}
+
+	/** Reads and commits every undelivered hit. */
+	private List<String> deliverAll() throws IOException
+	{
+		long pendingCount = this.outbox.getPendingCount();
+		List<String> hits = new ArrayList<>();
+		while (true)
+		{
+			DiscordMonitorNotificationDispatcher.OutboxBatch batch = this.outbox.read(100);
+			if (batch.hits.isEmpty())
+				break;
+			hits.addAll(batch.hits);
+			this.outbox.commit(batch);
+		}
+		assertEquals(pendingCount, hits.size());
+		assertEquals(0, this.outbox.getPendingCount());
+		return hits;
+	}
+}
@@ -0,0 +1,87 @@
+package com.github.valdeza.DiscordMonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DiscordMonitorTextDeltaTest
+{
+	/** Characters random texts are drawn from: few enough to share prefixes and suffixes, with surrogate pairs sharing either half. */
+	private static final String[] ALPHABET = { "a", "b", " ", "é", "😀", "😁", "🨀" };
+
+	@Test
+	public void testEncodesTypicalEditsCompactly()
+	{
+		assertEquals("5,6,,", DiscordMonitorTextDelta.encode("Hello world", "Hello, world"));
+		assertEquals("11,0, again", DiscordMonitorTextDelta.encode("Hello world", "Hello world again"));
+		assertEquals("4,0,", DiscordMonitorTextDelta.encode("same", "same"));
+	}
+
+	/** Edits next to or within a surrogate pair never split it, whether the pairs share their high or their low surrogate. */
+	@Test
+	public void testRoundTripsSurrogatePairs()
+	{
+		String[][] edits = {
+			{ "😀", "😁" }, // Same high surrogate
+			{ "😀", "🨀" }, // Same low surrogate
+			{ "a😀b", "a😁b" },
+			{ "x😀", "x😀😀" },
+			{ "😀😀", "😀" },
+			{ "😀 end", "😁😀 end" }
+		};
+		for (String[] edit : edits)
+			this.assertRoundTrips(edit[0], edit[1]);
+	}
+
+	@Test
+	public void testRoundTripsRandomEdits()
+	{
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; ++i)
+		{
+			String base = DiscordMonitorTextDeltaTest.randomText(random);
+			String target = random.nextBoolean() ? DiscordMonitorTextDeltaTest.randomText(random)
+				: base.substring(0, base.offsetByCodePoints(0, random.nextInt(base.codePointCount(0, base.length()) + 1))) + DiscordMonitorTextDeltaTest.randomText(random);
+			this.assertRoundTrips(base, target);
+		}
+	}
+
+	@Test
+	public void testTreatsNullAsEmpty()
+	{
+		assertEquals("abc", DiscordMonitorTextDelta.apply(null, DiscordMonitorTextDelta.encode(null, "abc")));
+		assertEquals("", DiscordMonitorTextDelta.apply("abc", DiscordMonitorTextDelta.encode("abc", null)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsDeltaAgainstOtherBase()
+	{
+		DiscordMonitorTextDelta.apply("ab", DiscordMonitorTextDelta.encode("abcdef", "abcxef"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsMalformedDelta()
+	{
+		DiscordMonitorTextDelta.apply("ab", "1;1;x");
+	}
+
+	/** Also checks that the replacement is valid UTF-16, i.e. survives being stored as UTF-8. */
+	private void assertRoundTrips(String base, String target)
+	{
+		String delta = DiscordMonitorTextDelta.encode(base, target);
+		assertEquals(target, DiscordMonitorTextDelta.apply(base, delta));
+		String replacement = delta.substring(delta.indexOf(',', delta.indexOf(',') + 1) + 1);
+		assertEquals(replacement, new String(replacement.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+	}
+
+	private static String randomText(Random random)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = random.nextInt(8); i > 0; --i)
+			sb.append(DiscordMonitorTextDeltaTest.ALPHABET[random.nextInt(DiscordMonitorTextDeltaTest.ALPHABET.length)]);
+		return sb.toString();
+	}
+}